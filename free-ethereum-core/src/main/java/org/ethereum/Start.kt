@@ -29,8 +29,13 @@ package org.ethereum
 import org.apache.commons.lang3.StringUtils
 import org.ethereum.cli.CLIInterface
 import org.ethereum.config.SystemProperties
+import org.ethereum.db.StateAnalyzer
+import org.ethereum.db.StateExporter
+import org.ethereum.db.StateImporter
+import org.ethereum.db.StatePruner
 import org.ethereum.facade.EthereumFactory
 import org.ethereum.mine.Ethash
+import java.io.File
 import java.io.IOException
 import java.net.URISyntaxException
 
@@ -47,14 +52,38 @@ object Start {
 
         val config = SystemProperties.getDefault()
         val actionBlocksLoader = config!!.blocksLoader() != ""
+        val actionBlocksExporter = config.blocksExporter() != ""
         val actionGenerateDag = !StringUtils.isEmpty(System.getProperty("ethash.blockNumber"))
+        val actionPruneState = !StringUtils.isEmpty(System.getProperty("state.prune.keepBlocks"))
+        val actionAnalyzeState = System.getProperty("state.analyze") != null
+        val actionExportState = !StringUtils.isEmpty(System.getProperty("state.export"))
+        val actionImportState = !StringUtils.isEmpty(System.getProperty("state.import"))
 
-        if (actionBlocksLoader || actionGenerateDag) {
+        if (actionBlocksLoader || actionBlocksExporter || actionGenerateDag) {
             config.isSyncEnabled = false
             config.setDiscoveryEnabled(false)
         }
 
-        if (actionGenerateDag) {
+        if (actionPruneState) {
+            // the node must not be running: prunes the state DB and exits
+            StatePruner.pruneOffline(config, Integer.parseInt(System.getProperty("state.prune.keepBlocks")))
+            System.exit(0)
+        } else if (actionAnalyzeState) {
+            // the node must not be running: logs the state statistics and exits
+            StateAnalyzer.analyzeOffline(config)
+            System.exit(0)
+        } else if (actionExportState) {
+            // the node must not be running: writes the block state, headers and recent blocks to the file and exits
+            StateExporter.exportOffline(config, File(System.getProperty("state.export")),
+                    java.lang.Long.parseLong(System.getProperty("state.export.block", "-1")),
+                    Integer.parseInt(System.getProperty("state.export.recentBlocks", "256")))
+            System.exit(0)
+        } else if (actionImportState) {
+            // the node must not be running: fills the empty DB from the state export file and exits
+            StateImporter.importOffline(config, File(System.getProperty("state.import")),
+                    java.lang.Boolean.parseBoolean(System.getProperty("state.import.verify", "false")))
+            System.exit(0)
+        } else if (actionGenerateDag) {
             Ethash(config, java.lang.Long.parseLong(System.getProperty("ethash.blockNumber"))).fullDataset
             // DAG file has been created, lets exit
             System.exit(0)
@@ -63,6 +92,9 @@ object Start {
 
             if (actionBlocksLoader) {
                 ethereum.blockLoader.loadBlocks()
+            } else if (actionBlocksExporter) {
+                ethereum.blockLoader.exportBlocks(File(config.blocksExporter()), 0, java.lang.Long.MAX_VALUE)
+                System.exit(0)
             }
         }
     }
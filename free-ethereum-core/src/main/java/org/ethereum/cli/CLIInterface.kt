@@ -85,6 +85,19 @@ object CLIInterface {
                     cliOptions.put(SystemProperties.PROPERTY_PEER_DISCOVERY_ENABLED, false)
                 }
 
+                // import the blocks from the rlp file (see BlockLoader)
+                if (args[i] == "-importChain" && i + 1 < args.size) {
+                    logger.info("Blocks import file set to [{}]", args[i + 1])
+                    cliOptions.put(SystemProperties.PROPERTY_BLOCKS_LOADER, args[i + 1])
+                    cliOptions.put(SystemProperties.PROPERTY_BLOCKS_FORMAT, "rlp")
+                }
+
+                // export the canonical blocks to the rlp file (see BlockLoader)
+                if (args[i] == "-exportChain" && i + 1 < args.size) {
+                    logger.info("Blocks export file set to [{}]", args[i + 1])
+                    cliOptions.put(SystemProperties.PROPERTY_BLOCKS_EXPORTER, args[i + 1])
+                }
+
                 // override the listen port directory
                 if (args[i] == "-reset" && i + 1 < args.size) {
                     val resetStr = interpret(args[i + 1])
@@ -121,6 +134,8 @@ object CLIInterface {
         println("-listen  <port>       -- port to listen on for incoming connections ")
         println("-connect <enode://pubKey@host:port>  -- address actively connect to  ")
         println("-connectOnly <enode://pubKey@host:port>  -- like 'connect', but will not attempt to connect to other peers  ")
+        println("-importChain <file>   -- import the blocks from the rlp file and exit ")
+        println("-exportChain <file>   -- export the canonical blocks to the rlp file and exit ")
         println("")
         println("e.g: cli -reset no -db db-1 -listen 20202 -connect enode://0be5b4@poc-7.ethdev.com:30300 ")
         println("")
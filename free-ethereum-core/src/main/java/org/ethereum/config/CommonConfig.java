@@ -32,6 +32,7 @@ import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.*;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.datasource.segment.SegmentLogDataSource;
 import org.ethereum.db.*;
 import org.ethereum.listener.EthereumListener;
 import org.ethereum.sync.FastSyncManager;
@@ -44,10 +45,8 @@ import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.context.annotation.*;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Arrays.asList;
 
@@ -59,7 +58,13 @@ import static java.util.Arrays.asList;
 public class CommonConfig {
     private static final Logger logger = LoggerFactory.getLogger("general");
     private static CommonConfig defaultInstance;
-    private final Set<DbSource> dbSources = new HashSet<>();
+    // flushed from the DbFlushManager thread while new sources may be added
+    private final Set<DbSource> dbSources = ConcurrentHashMap.newKeySet();
+    private final Map<String, DbSource<byte[]>> storeDbs = new HashMap<>();
+    private final Map<String, AbstractCachedSource<byte[], byte[]>> storeDbCaches = new HashMap<>();
+    private boolean dbLayoutChecked = false;
+    // no blocks are stored yet
+    private boolean newDatabase = true;
 
     public static CommonConfig getDefault() {
         if (defaultInstance == null && !SystemProperties.isUseOnlySpringConfig()) {
@@ -91,12 +96,18 @@ public class CommonConfig {
 
     @Bean
     public Repository defaultRepository() {
-        return new RepositoryRoot(stateSource(), null);
+        return new RepositoryRoot(stateSource(), stateSnapshot(), null);
     }
 
     @Bean @Scope("prototype")
     public Repository repository(final byte[] stateRoot) {
-        return new RepositoryRoot(stateSource(), stateRoot);
+        return new RepositoryRoot(stateSource(), stateSnapshot(), stateRoot);
+    }
+
+    @Bean
+    public StateSnapshot stateSnapshot() {
+        final int depth = systemProperties().databaseSnapshotDepth();
+        return new StateSnapshot(stateSource(), depth > 0 ? cachedDbSource("snapshot") : null, depth);
     }
 
 
@@ -104,7 +115,9 @@ public class CommonConfig {
     public StateSource stateSource() {
         fastSyncCleanUp();
         final StateSource stateSource = new StateSource(blockchainSource("state"),
-                systemProperties().databasePruneDepth() >= 0, systemProperties().getConfig().getInt("cache.maxStateBloomSize") << 20);
+                systemProperties().databasePruneDepth() >= 0, systemProperties().databasePruneDiffLayers(),
+                systemProperties().getConfig().getInt("cache.maxStateBloomSize") << 20,
+                systemProperties().databaseMetrics() ? sourceMetricsReporter() : null);
 
         dbFlushManager().addCache(stateSource.getWriteCache());
 
@@ -117,26 +130,98 @@ public class CommonConfig {
         final AbstractCachedSource<byte[], byte[]> writeCache = new AsyncWriteCache<byte[], byte[]>(blockchainSource(name)) {
             @Override
             protected WriteCache<byte[], byte[]> createCache(final Source<byte[], byte[]> source) {
-                final WriteCache.BytesKey<byte[]> ret = new WriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE);
+                final WriteCache<byte[], byte[]> ret = new ShardedWriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE, 16);
                 ret.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
                 ret.setFlushSource(true);
                 return ret;
             }
         }.withName(name);
         dbFlushManager().addCache(writeCache);
-        return writeCache;
+        return metered(name + ".writeCache", writeCache);
     }
 
     @Bean
     @Scope("prototype")
     public Source<byte[], byte[]> blockchainSource(final String name) {
-        return new XorDataSource<>(blockchainDbCache(), HashUtil.INSTANCE.sha3(name.getBytes()));
+        checkDbLayout();
+        final Source<byte[], byte[]> ret;
+        if (systemProperties().databaseSeparateStores()) {
+            // keys are XORed the same way as in the combined layout, so the entries
+            // can be moved between layouts as is (see DbLayoutMigration)
+            ret = new XorDataSource<>(metered(name + ".dbCache", storeDbCache(name)), HashUtil.INSTANCE.sha3(name.getBytes()));
+        } else {
+            ret = new XorDataSource<>(metered(name + ".dbCache", blockchainDbCache()), HashUtil.INSTANCE.sha3(name.getBytes()));
+        }
+        // the values written without the codec may be misread by it, so the compression
+        // can be switched for the new database only
+        return CompressionSerializer.wrapStore(name, ret, systemProperties().databaseStoreValueCompression(name), newDatabase);
+    }
+
+    /**
+     * Inserts the {@link MetricsSource} decorator measuring the layer when 'database.metrics.enabled'
+     */
+    private Source<byte[], byte[]> metered(final String name, final Source<byte[], byte[]> src) {
+        return systemProperties().databaseMetrics() ? sourceMetricsReporter().wrap(name, src) : src;
+    }
+
+    @Bean
+    public SourceMetricsReporter sourceMetricsReporter() {
+        return new SourceMetricsReporter(systemProperties().databaseMetrics() ?
+                systemProperties().databaseMetricsLogInterval() : 0);
+    }
+
+    /**
+     * The write cache above the separate DB of the logical store
+     * Note that unlike the combined layout the stores are not flushed in a single atomic batch
+     */
+    private synchronized AbstractCachedSource<byte[], byte[]> storeDbCache(final String name) {
+        AbstractCachedSource<byte[], byte[]> ret = storeDbCaches.get(name);
+        if (ret == null) {
+            final WriteCache.BytesKey<byte[]> cache = new WriteCache.BytesKey<>(
+                    metered(name + ".db", new BatchSourceWriter<>(storeDb(name))), WriteCache.CacheType.SIMPLE);
+            cache.setFlushSource(true);
+            dbFlushManager().addDbCache(cache);
+            storeDbCaches.put(name, cache);
+            ret = cache;
+        }
+        return ret;
+    }
+
+    private synchronized DbSource<byte[]> storeDb(final String name) {
+        DbSource<byte[]> ret = storeDbs.get(name);
+        if (ret == null) {
+            ret = keyValueDataSource(name);
+            storeDbs.put(name, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Fails fast when the configured layout doesn't match the existing database
+     */
+    private synchronized void checkDbLayout() {
+        if (dbLayoutChecked) return;
+        dbLayoutChecked = true;
+        if ("inmem".equals(systemProperties().getKeyValueDataSource())) return;
+
+        // the block index is keyed the same way with both layouts
+        newDatabase = !DbLayoutMigration.hasCombinedData(systemProperties().databaseSeparateStores() ?
+                storeDb("index") : blockchainDB());
+        if (systemProperties().databaseSeparateStores()) {
+            if (DbLayoutMigration.hasCombinedData(blockchainDB())) {
+                throw new RuntimeException("Database has the combined layout while 'database.layout = separate'. " +
+                        "Convert it with " + DbLayoutMigration.class.getName() + " or set 'database.layout = combined'");
+            }
+        } else if (DbLayoutMigration.hasSeparateData(systemProperties())) {
+            throw new RuntimeException("Database has the separate layout while 'database.layout = combined'. " +
+                    "Set 'database.layout = separate'");
+        }
     }
 
     @Bean
     public AbstractCachedSource<byte[], byte[]> blockchainDbCache() {
         final WriteCache.BytesKey<byte[]> ret = new WriteCache.BytesKey<>(
-                new BatchSourceWriter<>(blockchainDB()), WriteCache.CacheType.SIMPLE);
+                metered("blockchain.db", new BatchSourceWriter<>(blockchainDB())), WriteCache.CacheType.SIMPLE);
         ret.setFlushSource(true);
         return ret;
     }
@@ -150,6 +235,9 @@ public class CommonConfig {
             final DbSource<byte[]> dbSource;
             if ("inmem".equals(dataSource)) {
                 dbSource = new HashMapDB<>();
+            } else if ("segment".equals(systemProperties().databaseStoreEngine(name))) {
+                dataSource = "segment";
+                dbSource = new SegmentLogDataSource(systemProperties());
             } else {
                 dataSource = "leveldb";
                 dbSource = levelDbDataSource();
@@ -184,12 +272,19 @@ public class CommonConfig {
 
             final DbSource bcSource = blockchainDB();
             resetDataSource(bcSource);
+            if (systemProperties().databaseSeparateStores()) {
+                for (final String store : DbLayoutMigration.STORES) {
+                    resetDataSource(storeDb(store));
+                }
+            }
         }
     }
 
     private void resetDataSource(final Source source) {
         if (source instanceof LevelDbDataSource) {
             ((LevelDbDataSource) source).reset();
+        } else if (source instanceof SegmentLogDataSource) {
+            ((SegmentLogDataSource) source).reset();
         } else {
             throw new Error("Cannot cleanup non-LevelDB database");
         }
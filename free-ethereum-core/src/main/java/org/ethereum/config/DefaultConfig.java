@@ -28,9 +28,12 @@ package org.ethereum.config;
 
 import org.ethereum.datasource.Source;
 import org.ethereum.db.BlockStore;
+import org.ethereum.db.CanonicalIndex;
 import org.ethereum.db.IndexedBlockStore;
 import org.ethereum.db.PruneManager;
 import org.ethereum.db.TransactionStore;
+import org.ethereum.db.freezer.BlockFreezer;
+import org.ethereum.db.freezer.FreezerManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -39,6 +42,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import java.io.File;
+
 /**
  *
  * @author Roman Mandeleil
@@ -58,6 +63,8 @@ public class DefaultConfig {
     private final
     SystemProperties config;
 
+    private BlockFreezer blockFreezer;
+
     @Autowired
     public DefaultConfig(ApplicationContext appCtx, CommonConfig commonConfig, SystemProperties config) {
         Thread.setDefaultUncaughtExceptionHandler((t, e) -> logger.error("Uncaught exception", e));
@@ -72,7 +79,11 @@ public class DefaultConfig {
         final IndexedBlockStore indexedBlockStore = new IndexedBlockStore();
         final Source<byte[], byte[]> block = commonConfig.cachedDbSource("block");
         final Source<byte[], byte[]> index = commonConfig.cachedDbSource("index");
-        indexedBlockStore.init(index, block);
+        indexedBlockStore.init(index, block, config.blockCacheSize(), config.headerCacheSize());
+        indexedBlockStore.setFreezer(blockFreezer());
+        if (config.databaseCanonicalIndex()) {
+            indexedBlockStore.setCanonicalIndex(new CanonicalIndex(new File(config.databaseDir(), "canonical.idx")));
+        }
 
         return indexedBlockStore;
     }
@@ -80,7 +91,26 @@ public class DefaultConfig {
     @Bean
     public TransactionStore transactionStore() {
         commonConfig.fastSyncCleanUp();
-        return new TransactionStore(commonConfig.cachedDbSource("transactions"));
+        final TransactionStore transactionStore = new TransactionStore(commonConfig.cachedDbSource("transactions"));
+        transactionStore.setFreezer(blockFreezer());
+        return transactionStore;
+    }
+
+    @Bean
+    public FreezerManager freezerManager() {
+        return new FreezerManager((IndexedBlockStore) blockStore(), transactionStore(), blockFreezer(),
+                config.databaseFreezerDepth());
+    }
+
+    /**
+     * @return the ancient store shared by the block and transaction stores or null if disabled
+     */
+    private synchronized BlockFreezer blockFreezer() {
+        if (blockFreezer == null && config.databaseFreezerDepth() >= 0) {
+            blockFreezer = new BlockFreezer(new File(config.databaseDir(), "ancient"),
+                    config.databaseFreezerFileSize() << 20);
+        }
+        return blockFreezer;
     }
 
     @Bean
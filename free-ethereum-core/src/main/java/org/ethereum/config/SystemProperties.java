@@ -85,6 +85,9 @@ public class SystemProperties {
     public final static String PROPERTY_PEER_ACTIVE = "peer.active";
     public final static String PROPERTY_DB_RESET = "database.reset";
     public final static String PROPERTY_PEER_DISCOVERY_ENABLED = "peer.discovery.enabled";
+    public final static String PROPERTY_BLOCKS_LOADER = "blocks.loader";
+    public final static String PROPERTY_BLOCKS_FORMAT = "blocks.format";
+    public final static String PROPERTY_BLOCKS_EXPORTER = "blocks.exporter";
     private static final Logger logger = LoggerFactory.getLogger("general");
     /* Testing */
     private final static Boolean DEFAULT_VMTEST_LOAD_LOCAL = false;
@@ -409,11 +412,79 @@ public class SystemProperties {
         return config.getLong("database.resetBlock");
     }
 
+    /**
+     * @return true if each logical store has its own DB,
+     * false if all of them are combined in the single 'blockchain' DB
+     */
+    @ValidateMe
+    public boolean databaseSeparateStores() {
+        return "separate".equalsIgnoreCase(config.getString("database.layout"));
+    }
+
+    /**
+     * @return the storage engine of the named DB: 'database.stores.[name].engine'
+     * or 'database.stores.default.engine'
+     */
+    public String databaseStoreEngine(final String name) {
+        final String path = "database.stores.\"" + name + "\".engine";
+        if (config.hasPath(path)) return config.getString(path);
+        return config.hasPath("database.stores.default.engine") ? config.getString("database.stores.default.engine") : "leveldb";
+    }
+
+    /**
+     * @return the min size of the values compressed by the named logical store
+     * ('database.stores.[name].valueCompression') or -1 if the compression is disabled
+     */
+    public int databaseStoreValueCompression(final String name) {
+        Config storeCfg = config.getConfig("database.stores.default");
+        final String path = "database.stores.\"" + name + "\"";
+        if (config.hasPath(path)) storeCfg = config.getConfig(path).withFallback(storeCfg);
+        return storeCfg.getBoolean("valueCompression") ? storeCfg.getInt("valueCompressionMinSize") : -1;
+    }
+
     @ValidateMe
     public int databasePruneDepth() {
         return config.getBoolean("database.prune.enabled") ? config.getInt("database.prune.maxDepth") : -1;
     }
 
+    @ValidateMe
+    public boolean databasePruneDiffLayers() {
+        return config.getBoolean("database.prune.diffLayers");
+    }
+
+    /**
+     * @return the depth of the blocks moved to the ancient store or -1 if the freezer is disabled
+     */
+    @ValidateMe
+    public int databaseFreezerDepth() {
+        return config.getBoolean("database.freezer.enabled") ? config.getInt("database.freezer.depth") : -1;
+    }
+
+    @ValidateMe
+    public int databaseFreezerFileSize() {
+        return config.getInt("database.freezer.fileSize");
+    }
+
+    @ValidateMe
+    public boolean databaseMetrics() {
+        return config.getBoolean("database.metrics.enabled");
+    }
+
+    @ValidateMe
+    public int databaseMetricsLogInterval() {
+        return config.getInt("database.metrics.logInterval");
+    }
+
+    @ValidateMe
+    public boolean databaseCanonicalIndex() {
+        return config.getBoolean("database.canonicalIndex.enabled");
+    }
+
+    @ValidateMe
+    public int databaseSnapshotDepth() {
+        return config.getBoolean("database.snapshot.enabled") ? config.getInt("database.snapshot.depth") : -1;
+    }
+
     @ValidateMe
     public List<Node> peerActive() {
         if (!config.hasPath("peer.active")) {
@@ -482,6 +553,16 @@ public class SystemProperties {
         return config.getInt("cache.headerQueueSize") * 1024 * 1024;
     }
 
+    @ValidateMe
+    public int blockCacheSize() {
+        return config.getInt("cache.blockCacheSize");
+    }
+
+    @ValidateMe
+    public int headerCacheSize() {
+        return config.getInt("cache.headerCacheSize");
+    }
+
     @ValidateMe
     public Integer peerChannelReadTimeout() {
         return config.getInt("peer.channel.read.timeout");
@@ -892,6 +973,11 @@ public class SystemProperties {
                 config.getString("blocks.loader") : DEFAULT_BLOCKS_LOADER;
     }
 
+    public String blocksExporter() {
+        return config.hasPath("blocks.exporter") ?
+                config.getString("blocks.exporter") : DEFAULT_BLOCKS_LOADER;
+    }
+
     /**
      * Marks config accessor methods which need to be called (for value validation)
      * upon config creation or modification
@@ -27,8 +27,7 @@
 package org.ethereum.core;
 
 import org.ethereum.crypto.HashUtil;
-import org.ethereum.trie.Trie;
-import org.ethereum.trie.TrieImpl;
+import org.ethereum.trie.OrderedTrieRoot;
 import org.ethereum.util.ByteUtil;
 import org.ethereum.util.RLP;
 import org.ethereum.util.RLPElement;
@@ -354,15 +353,13 @@ public class Block {
 
     private byte[] parseTxs(final RLPList txTransactions, final boolean validate) {
 
-        final Trie<byte[]> txsState = new TrieImpl();
         for (int i = 0; i < txTransactions.size(); i++) {
             final RLPElement transactionRaw = txTransactions.get(i);
             final Transaction tx = new Transaction(transactionRaw.getRLPData());
             if (validate) tx.verify();
             this.transactionsList.add(tx);
-            txsState.put(RLP.encodeInt(i), transactionRaw.getRLPData());
         }
-        return txsState.getRootHash();
+        return OrderedTrieRoot.calcRoot(txTransactions.size(), i -> txTransactions.get(i).getRLPData());
     }
 
 
@@ -85,5 +85,11 @@ public interface Blockchain {
 
     List<byte[]> getListOfBodiesByHashes(List<byte[]> hashes);
 
+    /**
+     * Returns receipts of the blocks with specified hashes, not found blocks are skipped.
+     * Receipts of a block are truncated on the first transaction without stored receipt
+     */
+    List<List<TransactionReceipt>> getListOfReceiptsByHashes(List<byte[]> hashes);
+
     Block createNewBlock(Block parent, List<Transaction> transactions, List<BlockHeader> uncles);
 }
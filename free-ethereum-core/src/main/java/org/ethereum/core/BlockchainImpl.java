@@ -31,12 +31,12 @@ import org.ethereum.config.SystemProperties;
 import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.db.*;
+import org.ethereum.db.freezer.FreezerManager;
 import org.ethereum.listener.EthereumListener;
 import org.ethereum.listener.EthereumListenerAdapter;
 import org.ethereum.manager.AdminInfo;
 import org.ethereum.sync.SyncManager;
-import org.ethereum.trie.Trie;
-import org.ethereum.trie.TrieImpl;
+import org.ethereum.trie.OrderedTrieRoot;
 import org.ethereum.util.*;
 import org.ethereum.validator.DependentBlockHeaderRule;
 import org.ethereum.validator.ParentBlockHeaderValidator;
@@ -128,6 +128,9 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
     PruneManager pruneManager;
     @Autowired
     private
+    FreezerManager freezerManager;
+    @Autowired
+    private
     DbFlushManager dbFlushManager;
     private SystemProperties config = SystemProperties.getDefault();
     private long exitOn = Long.MAX_VALUE;
@@ -179,27 +182,18 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
 
     public static byte[] calcTxTrie(final List<Transaction> transactions) {
 
-        final Trie txsState = new TrieImpl();
-
         if (transactions == null || transactions.isEmpty())
             return HashUtil.INSTANCE.getEMPTY_TRIE_HASH();
 
-        for (int i = 0; i < transactions.size(); i++) {
-            txsState.put(RLP.encodeInt(i), transactions.get(i).getEncoded());
-        }
-        return txsState.getRootHash();
+        return OrderedTrieRoot.calcRoot(transactions.size(), i -> transactions.get(i).getEncoded());
     }
 
     public static byte[] calcReceiptsTrie(final List<TransactionReceipt> receipts) {
-        final Trie receiptsTrie = new TrieImpl();
 
         if (receipts == null || receipts.isEmpty())
             return HashUtil.INSTANCE.getEMPTY_TRIE_HASH();
 
-        for (int i = 0; i < receipts.size(); i++) {
-            receiptsTrie.put(RLP.encodeInt(i), receipts.get(i).getReceiptTrieEncoded());
-        }
-        return receiptsTrie.getRootHash();
+        return OrderedTrieRoot.calcRoot(receipts.size(), i -> receipts.get(i).getReceiptTrieEncoded());
     }
 
     public static Set<ByteArrayWrapper> getAncestors(final BlockStore blockStore, final Block testedBlock, int limitNum, final boolean isParentBlock) {
@@ -268,25 +262,8 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
     @Override
     public TransactionInfo getTransactionInfo(final byte[] hash) {
 
-        final List<TransactionInfo> infos = transactionStore.get(hash);
-
-        if (infos == null || infos.isEmpty())
-            return null;
-
-        TransactionInfo txInfo = null;
-        if (infos.size() == 1) {
-            txInfo = infos.get(0);
-        } else {
-            // pick up the receipt from the block on the main chain
-            for (final TransactionInfo info : infos) {
-                final Block block = blockStore.getBlockByHash(info.getBlockHash());
-                final Block mainBlock = blockStore.getChainBlockByNumber(block.getNumber());
-                if (FastByteComparisons.equal(info.getBlockHash(), mainBlock.getHash())) {
-                    txInfo = info;
-                    break;
-                }
-            }
-        }
+        // pick up the receipt from the block on the main chain
+        final TransactionInfo txInfo = transactionStore.getMainChain(hash, blockStore);
         if (txInfo == null) {
             logger.warn("Can't find block from main chain for transaction " + Hex.toHexString(hash));
             return null;
@@ -638,6 +615,8 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
                 dbFlushManager.commit(() -> {
                     storeBlock(block, receipts);
                     repository.commit();
+                    final Block stateBlock = pruneManager == null ? block : pruneManager.getStateBlock(block);
+                    if (stateBlock != null) dbFlushManager.setCommitted(stateBlock);
                 });
             } else {
                 storeBlock(block, receipts);
@@ -944,14 +923,16 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
         else
             blockStore.saveBlock(block, totalDifficulty, true);
 
-        for (int i = 0; i < receipts.size(); i++) {
-            transactionStore.put(new TransactionInfo(receipts.get(i), block.getHash(), i));
-        }
+        transactionStore.put(block, receipts);
 
         if (pruneManager != null) {
             pruneManager.blockCommitted(block.getHeader());
         }
 
+        if (freezerManager != null) {
+            freezerManager.blockCommitted(block.getHeader());
+        }
+
         logger.debug("Block saved: number: {}, hash: {}, TD: {}",
                 block.getNumber(), block.getShortHash(), totalDifficulty);
 
@@ -1238,8 +1219,7 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
     public List<byte[]> getListOfBodiesByHashes(final List<byte[]> hashes) {
         final List<byte[]> bodies = new ArrayList<>(hashes.size());
 
-        for (final byte[] hash : hashes) {
-            final Block block = blockStore.getBlockByHash(hash);
+        for (final Block block : blockStore.getBlocksByHashes(hashes)) {
             if (block == null) break;
             bodies.add(block.getEncodedBody());
         }
@@ -1247,6 +1227,35 @@ public class BlockchainImpl implements Blockchain, org.ethereum.facade.Blockchai
         return bodies;
     }
 
+    /**
+     * Reads the receipts of each block with a single request
+     * [Synchronized only in blockstore, not using any synchronized BlockchainImpl methods]
+     */
+    @Override
+    public List<List<TransactionReceipt>> getListOfReceiptsByHashes(final List<byte[]> hashes) {
+        final List<List<TransactionReceipt>> ret = new ArrayList<>(hashes.size());
+        for (final Block block : blockStore.getBlocksByHashes(hashes)) {
+            if (block == null) continue;
+            final List<Transaction> txs = block.getTransactionsList();
+            List<TransactionReceipt> blockReceipts = txs.isEmpty() ? new ArrayList<>() :
+                    transactionStore.getReceipts(block.getNumber(), block.getHash());
+            if (blockReceipts == null) {
+                // entries saved by the previous versions are stored per transaction
+                blockReceipts = new ArrayList<>();
+                for (final Transaction tx : txs) {
+                    final TransactionInfo txInfo = transactionStore.get(tx.getHash(), block.getHash());
+                    if (txInfo == null) break;
+                    blockReceipts.add(txInfo.getReceipt());
+                }
+            }
+            for (int i = 0; i < blockReceipts.size(); i++) {
+                blockReceipts.get(i).setTransaction(txs.get(i));
+            }
+            ret.add(blockReceipts);
+        }
+        return ret;
+    }
+
     public void setPruneManager(final PruneManager pruneManager) {
         this.pruneManager = pruneManager;
     }
@@ -26,6 +26,10 @@
 
 package org.ethereum.datasource;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Abstract Source implementation with underlying backing Source
  * The class has control whether the backing Source should be flushed
@@ -53,6 +57,39 @@ public abstract class AbstractChainedSource<Key, Value, SourceKey, SourceValue>
         return source;
     }
 
+    /**
+     * Gets values for several keys at once.
+     * This implementation just calls {@link #get} for each key, the subclasses
+     * should override it to pass the (missing) keys to the backing Source as a batch
+     * @return values in the iteration order of keys, null for missing keys
+     */
+    public List<Value> getBatch(final Collection<Key> keys) {
+        final List<Value> ret = new ArrayList<>(keys.size());
+        for (final Key key : keys) {
+            ret.add(get(key));
+        }
+        return ret;
+    }
+
+    /**
+     * Gets values for several keys from arbitrary Source using the batch read when supported
+     * @return values in the iteration order of keys, null for missing keys
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> List<V> getBatch(final Source<K, V> source, final Collection<K> keys) {
+        if (source instanceof AbstractChainedSource) {
+            return ((AbstractChainedSource<K, V, ?, ?>) source).getBatch(keys);
+        } else if (source instanceof BatchSource) {
+            return ((BatchSource<K, V>) source).getBatch(keys);
+        } else {
+            final List<V> ret = new ArrayList<>(keys.size());
+            for (final K key : keys) {
+                ret.add(source.get(key));
+            }
+            return ret;
+        }
+    }
+
     /**
      * Intended for subclasses which wishes to initialize the source later
      */
@@ -32,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -94,6 +95,13 @@ public abstract class AsyncWriteCache<Key, Value> extends AbstractCachedSource<K
         }
     }
 
+    @Override
+    public List<Value> getBatch(final Collection<Key> keys) {
+        try (ALock l = rLock.lock()) {
+            return curCache.getBatch(keys);
+        }
+    }
+
     @Override
     public synchronized boolean flush() {
         try {
@@ -121,7 +129,7 @@ public abstract class AsyncWriteCache<Key, Value> extends AbstractCachedSource<K
         }
 
         try (ALock l = wLock.lock()) {
-            flushingCache.cache = curCache.cache;
+            flushingCache.moveFrom(curCache);
             curCache = createCache(flushingCache);
         }
     }
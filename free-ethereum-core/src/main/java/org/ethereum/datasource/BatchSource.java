@@ -26,6 +26,9 @@
 
 package org.ethereum.datasource;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -46,4 +49,17 @@ public interface BatchSource<K, V> extends Source<K, V> {
      *             require passing specific Maps
      */
     void updateBatch(Map<K, V> rows);
+
+    /**
+     * Gets values for several keys at once.
+     * The implementation may read the keys in an order which is optimal for the storage
+     * @return values in the iteration order of keys, null for missing keys
+     */
+    default List<V> getBatch(final Collection<K> keys) {
+        final List<V> ret = new ArrayList<>(keys.size());
+        for (final K key : keys) {
+            ret.add(get(key));
+        }
+        return ret;
+    }
 }
@@ -26,7 +26,9 @@
 
 package org.ethereum.datasource;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -61,6 +63,11 @@ public class BatchSourceWriter<Key, Value> extends AbstractChainedSource<Key, Va
         return getSource().get(key);
     }
 
+    @Override
+    public List<Value> getBatch(final Collection<Key> keys) {
+        return getBatch(getSource(), keys);
+    }
+
     @Override
     public synchronized boolean flushImpl() {
         if (!buf.isEmpty()) {
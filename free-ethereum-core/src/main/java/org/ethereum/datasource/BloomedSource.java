@@ -30,6 +30,10 @@ import org.ethereum.crypto.HashUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Special optimization when the majority of get requests to the slower underlying source
  * are targeted to missing entries. The BloomFilter handles most of these requests.
@@ -41,11 +45,10 @@ public class BloomedSource extends AbstractChainedSource<byte[], byte[], byte[],
 
     private final byte[] filterKey = HashUtil.INSTANCE.sha3("filterKey".getBytes());
     private final int maxBloomSize;
-    private QuotientFilter filter;
+    private ScalableQuotientFilter filter;
     private int hits = 0;
     private int misses = 0;
     private int falseMisses = 0;
-    private boolean dirty = false;
 
     public BloomedSource(final Source<byte[], byte[]> source, final int maxBloomSize) {
         super(source);
@@ -53,14 +56,14 @@ public class BloomedSource extends AbstractChainedSource<byte[], byte[], byte[],
         final byte[] filterBytes = source.get(filterKey);
         if (filterBytes != null) {
             if (filterBytes.length > 0) {
-                filter = QuotientFilter.deserialize(filterBytes);
+                filter = ScalableQuotientFilter.load(source, filterKey, 100_000);
             } else {
                 // filter size exceeded limit and is disabled forever
                 filter = null;
             }
         } else {
             if (maxBloomSize > 0) {
-                filter = QuotientFilter.create(50_000_000, 100_000);
+                filter = new ScalableQuotientFilter(100_000);
             } else {
                 // we can't re-enable filter later
                 getSource().put(filterKey, new byte[0]);
@@ -84,7 +87,7 @@ public class BloomedSource extends AbstractChainedSource<byte[], byte[], byte[],
 //        }.start();
     }
 
-    public void startBlooming(final QuotientFilter filter) {
+    public void startBlooming(final ScalableQuotientFilter filter) {
         this.filter = filter;
     }
 
@@ -96,12 +99,10 @@ public class BloomedSource extends AbstractChainedSource<byte[], byte[], byte[],
     public void put(final byte[] key, final byte[] val) {
         if (filter != null) {
             filter.insert(key);
-            dirty = true;
             if (filter.getAllocatedBytes() > maxBloomSize) {
                 logger.info("Bloom filter became too large (" + filter.getAllocatedBytes() + " exceeds max threshold " + maxBloomSize + ") and is now disabled forever.");
                 getSource().put(filterKey, new byte[0]);
                 filter = null;
-                dirty = false;
             }
         }
         getSource().put(key, val);
@@ -122,6 +123,39 @@ public class BloomedSource extends AbstractChainedSource<byte[], byte[], byte[],
         }
     }
 
+    @Override
+    public List<byte[]> getBatch(final Collection<byte[]> keys) {
+        final ScalableQuotientFilter filter = this.filter;
+        if (filter == null) return getBatch(getSource(), keys);
+
+        final List<byte[]> maybeKeys = new ArrayList<>();
+        final boolean[] maybe = new boolean[keys.size()];
+        int i = 0;
+        for (final byte[] key : keys) {
+            if (filter.maybeContains(key)) {
+                maybe[i] = true;
+                maybeKeys.add(key);
+            } else {
+                hits++;
+            }
+            i++;
+        }
+        final List<byte[]> found = maybeKeys.isEmpty() ? maybeKeys : getBatch(getSource(), maybeKeys);
+        final List<byte[]> ret = new ArrayList<>(keys.size());
+        int j = 0;
+        for (final boolean m : maybe) {
+            if (m) {
+                final byte[] val = found.get(j++);
+                if (val == null) falseMisses++;
+                else misses++;
+                ret.add(val);
+            } else {
+                ret.add(null);
+            }
+        }
+        return ret;
+    }
+
     @Override
     public void delete(final byte[] key) {
         if (filter != null) filter.remove(key);
@@ -130,12 +164,7 @@ public class BloomedSource extends AbstractChainedSource<byte[], byte[], byte[],
 
     @Override
     protected boolean flushImpl() {
-        if (filter != null && dirty) {
-            getSource().put(filterKey, filter.serialize());
-            dirty = false;
-            return true;
-        } else {
-            return false;
-        }
+        final ScalableQuotientFilter filter = this.filter;
+        return filter != null && filter.flush(getSource(), filterKey);
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.crypto.HashUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Value codec compressing the values with {@link Deflater} at the fastest level.
+ *
+ * The stored value starts with the header byte from the reserved range [0x20..0x2F]:
+ *  0x20 - the original value follows as is
+ *  0x21 - deflate (zlib format): the original length (4 bytes) and the compressed data follow
+ * Values starting with a byte outside the range are written without header when they are
+ * shorter than the min size or don't compress and are read as is. So the codec can't be put
+ * above the source with values written without it: e.g. the reference counter 32 prefix of
+ * {@link CountingBytesSource} values is read as a header. The store compressing values keeps
+ * the {@link #MARKER_KEY} entry to check that (see CommonConfig). The trie nodes are mostly
+ * short hashes and aren't worth compressing.
+ *
+ * Usage: new SourceCodec.BytesKey<>(src, new CompressionSerializer(256))
+ */
+public class CompressionSerializer implements Serializer<byte[], byte[]> {
+
+    /**
+     * The key of the entry marking the store compressing values, written bypassing the codec
+     */
+    public static final byte[] MARKER_KEY = HashUtil.INSTANCE.sha3("valueCompression".getBytes());
+
+    private static final byte HEADER_MIN = 0x20;
+    private static final byte HEADER_MAX = 0x2F;
+    private static final byte RAW = 0x20;
+    private static final byte DEFLATE_V1 = 0x21;
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private final int minSize;
+
+    /**
+     * @param minSize values shorter than this are not compressed
+     */
+    public CompressionSerializer(final int minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * Puts the codec above the logical store source if the compression is enabled (minSize >= 0)
+     * and checks the store compression marker: it's written to the new store and must match the setting otherwise
+     */
+    public static Source<byte[], byte[]> wrapStore(final String name, final Source<byte[], byte[]> store,
+                                                   final int minSize, final boolean newStore) {
+        final boolean enabled = minSize >= 0;
+        final boolean marked = store.get(MARKER_KEY) != null;
+        if (enabled != marked) {
+            if (!newStore) {
+                throw new RuntimeException("Value compression of the '" + name + "' store can't be " +
+                        (enabled ? "enabled" : "disabled") + " for the existing database. Revert 'database.stores." +
+                        name + ".valueCompression' or reset the database (database.reset = true)");
+            }
+            if (enabled) store.put(MARKER_KEY, new byte[]{1});
+        }
+        return enabled ? new SourceCodec.BytesKey<>(store, new CompressionSerializer(minSize)) : store;
+    }
+
+    /**
+     * @return the logical store of the combined DB as it is created by CommonConfig (for the offline tools)
+     */
+    public static Source<byte[], byte[]> storeSource(final SystemProperties config, final Source<byte[], byte[]> db,
+                                                     final String name, final boolean newStore) {
+        final XorDataSource<byte[]> store = new XorDataSource<>(db, HashUtil.INSTANCE.sha3(name.getBytes()));
+        store.setFlushSource(true);
+        return wrapStore(name, store, config.databaseStoreValueCompression(name), newStore);
+    }
+
+    private static boolean isHeader(final byte b) {
+        return b >= HEADER_MIN && b <= HEADER_MAX;
+    }
+
+    @Override
+    public byte[] serialize(final byte[] value) {
+        if (value == null) return null;
+        if (value.length >= minSize && value.length > 16) {
+            final byte[] compressed = deflate(value);
+            if (compressed != null) return compressed;
+        }
+        if (value.length == 0 || !isHeader(value[0])) return value;
+        final byte[] ret = new byte[value.length + 1];
+        ret[0] = RAW;
+        System.arraycopy(value, 0, ret, 1, value.length);
+        return ret;
+    }
+
+    @Override
+    public byte[] deserialize(final byte[] stored) {
+        if (stored == null || stored.length == 0 || !isHeader(stored[0])) return stored;
+        switch (stored[0]) {
+            case RAW:
+                return Arrays.copyOfRange(stored, 1, stored.length);
+            case DEFLATE_V1:
+                return inflate(stored);
+            default:
+                throw new RuntimeException("Unknown value compression format: " + stored[0]);
+        }
+    }
+
+    /**
+     * @return the compressed value with the header or null if it doesn't get shorter
+     */
+    private static byte[] deflate(final byte[] value) {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        // no use to store it compressed unless it saves something
+        final byte[] buf = new byte[value.length - 1];
+        ByteBuffer.wrap(buf).put(DEFLATE_V1).putInt(value.length);
+        int len = 5;
+        while (!deflater.finished()) {
+            if (len == buf.length) return null;
+            len += deflater.deflate(buf, len, buf.length - len);
+        }
+        return Arrays.copyOf(buf, len);
+    }
+
+    private static byte[] inflate(final byte[] stored) {
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(stored, 5, stored.length - 5);
+        final byte[] ret = new byte[ByteBuffer.wrap(stored).getInt(1)];
+        try {
+            int len = 0;
+            while (len < ret.length && !inflater.finished()) {
+                final int n = inflater.inflate(ret, len, ret.length - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RuntimeException("Truncated compressed value");
+                }
+                len += n;
+            }
+            if (len != ret.length) throw new RuntimeException("Compressed value length mismatch: " + len + " != " + ret.length);
+        } catch (final DataFormatException e) {
+            throw new RuntimeException("Corrupted compressed value", e);
+        }
+        return ret;
+    }
+}
@@ -30,7 +30,10 @@ import org.ethereum.crypto.HashUtil;
 import org.ethereum.util.ByteUtil;
 import org.ethereum.util.RLP;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * 'Reference counting' Source. Unlike regular Source if an entry was
@@ -51,8 +54,7 @@ public class CountingBytesSource extends AbstractChainedSource<byte[], byte[], b
         implements HashedKeySource<byte[], byte[]> {
 
     private final byte[] filterKey = HashUtil.INSTANCE.sha3("countingStateFilter".getBytes());
-    private QuotientFilter filter;
-    private boolean dirty = false;
+    private ScalableQuotientFilter filter;
 
     public CountingBytesSource(final Source<byte[], byte[]> src) {
         this(src, false);
@@ -61,13 +63,8 @@ public class CountingBytesSource extends AbstractChainedSource<byte[], byte[], b
 
     public CountingBytesSource(final Source<byte[], byte[]> src, final boolean bloom) {
         super(src);
-        final byte[] filterBytes = src.get(filterKey);
         if (bloom) {
-            if (filterBytes != null) {
-                filter = QuotientFilter.deserialize(filterBytes);
-            } else {
-                filter = QuotientFilter.create(5_000_000, 10_000);
-            }
+            filter = ScalableQuotientFilter.load(src, filterKey, 10_000);
         }
     }
 
@@ -83,7 +80,6 @@ public class CountingBytesSource extends AbstractChainedSource<byte[], byte[], b
             final int srcCount = decodeCount(srcVal);
             if (srcCount >= 1) {
                 if (filter != null) filter.insert(key);
-                dirty = true;
             }
             getSource().put(key, encodeCount(val, srcCount + 1));
         }
@@ -94,6 +90,16 @@ public class CountingBytesSource extends AbstractChainedSource<byte[], byte[], b
         return decodeValue(getSource().get(key));
     }
 
+    @Override
+    public List<byte[]> getBatch(final Collection<byte[]> keys) {
+        final List<byte[]> srcVals = getBatch(getSource(), keys);
+        final List<byte[]> ret = new ArrayList<>(srcVals.size());
+        for (final byte[] srcVal : srcVals) {
+            ret.add(decodeValue(srcVal));
+        }
+        return ret;
+    }
+
     @Override
     public void delete(final byte[] key) {
         synchronized (this) {
@@ -115,17 +121,7 @@ public class CountingBytesSource extends AbstractChainedSource<byte[], byte[], b
 
     @Override
     protected boolean flushImpl() {
-        if (filter != null && dirty) {
-            final byte[] filterBytes;
-            synchronized (this) {
-                filterBytes = filter.serialize();
-            }
-            getSource().put(filterKey, filterBytes);
-            dirty = false;
-            return true;
-        } else {
-            return false;
-        }
+        return filter != null && filter.flush(getSource(), filterKey);
     }
 
     /**
@@ -37,7 +37,7 @@ import java.util.AbstractList;
  * Created by Anton Nashatyrev on 17.03.2016.
  */
 public class DataSourceArray<V> extends AbstractList<V> {
-    private static final byte[] SIZE_KEY = Hex.decode("FFFFFFFFFFFFFFFF");
+    public static final byte[] SIZE_KEY = Hex.decode("FFFFFFFFFFFFFFFF");
     private final ObjectDataSource<V> src;
     private int size = -1;
 
@@ -68,6 +68,17 @@ public class DataSourceArray<V> extends AbstractList<V> {
         throw new RuntimeException("Not supported yet.");
     }
 
+    /**
+     * Removes the elements starting from the newSize
+     */
+    public synchronized void truncate(final int newSize) {
+        if (newSize >= size()) return;
+        for (int i = newSize; i < size; i++) {
+            src.delete(ByteUtil.intToBytes(i));
+        }
+        setSize(newSize);
+    }
+
     @Override
     public synchronized V get(final int idx) {
         if (idx < 0 || idx >= size()) throw new IndexOutOfBoundsException(idx + " > " + size);
@@ -27,6 +27,7 @@
 package org.ethereum.datasource;
 
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  * Interface represents DB source which is normally the final Source in the chain
@@ -64,4 +65,10 @@ public interface DbSource<V> extends BatchSource<byte[], V> {
      * @throws RuntimeException if the method is not supported
      */
     Set<byte[]> keys() throws RuntimeException;
+
+    /**
+     * Iterates over all DB entries without collecting them into memory
+     * @throws RuntimeException if the method is not supported
+     */
+    void forEachEntry(BiConsumer<byte[], V> consumer) throws RuntimeException;
 }
@@ -0,0 +1,203 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.db.ByteArrayWrapper;
+
+import java.util.*;
+
+/**
+ * The {@link JournalSource} which keeps the changes of the recent blocks in memory
+ * as diff layers instead of writing them to the backing Source immediately.
+ *
+ * Inserts are visible to readers right away though they reach the backing Source
+ * only when the layer is persisted (becomes N blocks deep on the main chain) along
+ * with the layer deletes. Layers of the fork blocks are just dropped on revert, so
+ * neither their inserts nor their journal ever hit the DB. As the insert and the
+ * later delete of a short living node reach the backing counting cache close in
+ * time they are mostly cancelled out there without DB writes.
+ *
+ * The layers are spilled to the journal store as regular {@link JournalSource}
+ * updates on {@link #spillLayers()} (called on shutdown), thus the state of
+ * the recent blocks is lost in case of unclean shutdown. The DB commit marker
+ * follows the last persisted layer, so the startup rolls the chain back to it
+ */
+public class DiffLayerSource<V> extends JournalSource<V> {
+
+    private final Map<ByteArrayWrapper, Layer> layers = new LinkedHashMap<>();
+    // the values inserted by all the layers and the number of inserts
+    private final Map<ByteArrayWrapper, Node<V>> nodes = new HashMap<>();
+    private Layer currentLayer = new Layer();
+
+    public DiffLayerSource(final Source<byte[], V> src) {
+        super(src);
+    }
+
+    @Override
+    public synchronized void put(final byte[] key, final V val) {
+        if (val == null) {
+            delete(key);
+            return;
+        }
+        currentLayer.insertedKeys.add(key);
+        final Node<V> node = nodes.computeIfAbsent(new ByteArrayWrapper(key), k -> new Node<>(val));
+        node.refs++;
+    }
+
+    @Override
+    public synchronized void delete(final byte[] key) {
+        currentLayer.deletedKeys.add(key);
+    }
+
+    @Override
+    public synchronized V get(final byte[] key) {
+        final Node<V> node = nodes.get(new ByteArrayWrapper(key));
+        return node != null ? node.value : getSource().get(key);
+    }
+
+    @Override
+    public synchronized List<V> getBatch(final Collection<byte[]> keys) {
+        final List<V> ret = new ArrayList<>(keys.size());
+        final List<byte[]> missed = new ArrayList<>();
+        for (final byte[] key : keys) {
+            final Node<V> node = nodes.get(new ByteArrayWrapper(key));
+            ret.add(node == null ? null : node.value);
+            if (node == null) missed.add(key);
+        }
+        if (missed.isEmpty()) return ret;
+
+        final Iterator<V> srcValues = getBatch(getSource(), missed).iterator();
+        for (int i = 0; i < ret.size(); i++) {
+            if (ret.get(i) == null) ret.set(i, srcValues.next());
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized void commitUpdates(final byte[] updateHash) {
+        layers.put(new ByteArrayWrapper(updateHash), currentLayer);
+        currentLayer = new Layer();
+    }
+
+    @Override
+    public synchronized boolean hasUpdate(final byte[] updateHash) {
+        return layers.containsKey(new ByteArrayWrapper(updateHash)) || super.hasUpdate(updateHash);
+    }
+
+    /**
+     * Writes the layer inserts and deletes to the backing Source
+     */
+    @Override
+    public synchronized void persistUpdate(final byte[] updateHash) {
+        final Layer layer = layers.remove(new ByteArrayWrapper(updateHash));
+        if (layer == null) {
+            // spilled before restart
+            super.persistUpdate(updateHash);
+            return;
+        }
+        for (final byte[] key : layer.insertedKeys) {
+            getSource().put(key, release(key));
+        }
+        for (final byte[] key : layer.deletedKeys) {
+            getSource().delete(key);
+        }
+    }
+
+    /**
+     * Drops the layer
+     */
+    @Override
+    public synchronized void revertUpdate(final byte[] updateHash) {
+        final Layer layer = layers.remove(new ByteArrayWrapper(updateHash));
+        if (layer == null) {
+            super.revertUpdate(updateHash);
+            return;
+        }
+        for (final byte[] key : layer.insertedKeys) {
+            release(key);
+        }
+    }
+
+    private V release(final byte[] key) {
+        final ByteArrayWrapper k = new ByteArrayWrapper(key);
+        final Node<V> node = nodes.get(k);
+        if (--node.refs == 0) nodes.remove(k);
+        return node.value;
+    }
+
+    /**
+     * Writes the inserts of all the layers to the backing Source and stores the layers
+     * to the journal store so they can be persisted or reverted after restart
+     */
+    public synchronized void spillLayers() {
+        for (final Map.Entry<ByteArrayWrapper, Layer> entry : layers.entrySet()) {
+            final Layer layer = entry.getValue();
+            final Update update = new Update();
+            update.updateHash = entry.getKey().getData();
+            for (final byte[] key : layer.insertedKeys) {
+                getSource().put(key, release(key));
+                update.insertedKeys.add(key);
+            }
+            update.deletedKeys.addAll(layer.deletedKeys);
+            journal.put(update.updateHash, update);
+        }
+        layers.clear();
+        // uncommitted changes
+        for (final byte[] key : currentLayer.insertedKeys) {
+            getSource().put(key, release(key));
+        }
+        currentLayer = new Layer();
+    }
+
+    /**
+     * @return number of the layers in memory
+     */
+    public synchronized int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * @return number of the distinct inserted keys in memory
+     */
+    public synchronized int getNodeCount() {
+        return nodes.size();
+    }
+
+    private static class Layer {
+        final List<byte[]> insertedKeys = new ArrayList<>();
+        final List<byte[]> deletedKeys = new ArrayList<>();
+    }
+
+    private static class Node<V> {
+        final V value;
+        int refs;
+
+        Node(final V value) {
+            this.value = value;
+        }
+    }
+}
@@ -33,6 +33,7 @@ import org.ethereum.util.RLPList;
 import org.spongycastle.util.encoders.Hex;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -115,6 +116,11 @@ public class JournalSource<V> extends AbstractChainedSource<byte[], V, byte[], V
         return getSource().get(key);
     }
 
+    @Override
+    public synchronized List<V> getBatch(final Collection<byte[]> keys) {
+        return getBatch(getSource(), keys);
+    }
+
     /**
      * Records all the changes made prior to this call to a single chunk
      * with supplied hash.
@@ -166,7 +172,7 @@ public class JournalSource<V> extends AbstractChainedSource<byte[], V, byte[], V
         return false;
     }
 
-    private static class Update {
+    static class Update {
         final List<byte[]> insertedKeys = new ArrayList<>();
         final List<byte[]> deletedKeys = new ArrayList<>();
         byte[] updateHash;
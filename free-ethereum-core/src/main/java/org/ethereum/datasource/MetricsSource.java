@@ -0,0 +1,278 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.datasource;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Transparent Source decorator counting the calls passing through it: hits and misses of
+ * the reads, the latency histograms, the bytes read and written and the flush durations.
+ *
+ * It is inserted between the layers of the Source chain, so comparing the adjacent
+ * decorators shows which layer answers the reads. The flush is always passed to the backing
+ * Source (the upper layer decides whether to cascade it), i.e. the chain behaves the same way
+ * with or without the decorators.
+ */
+public class MetricsSource<Key, Value> extends AbstractChainedSource<Key, Value, Key, Value>
+        implements SourceMetricsMXBean {
+
+    private final String name;
+    private final MemSizeEstimator<Value> valueSize;
+
+    private final AtomicLong gets = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong flushMaxNanos = new AtomicLong();
+    private final Histogram getLatency = new Histogram();
+    private final Histogram putLatency = new Histogram();
+
+    public MetricsSource(final String name, final Source<Key, Value> source, final MemSizeEstimator<Value> valueSize) {
+        super(source);
+        this.name = name;
+        this.valueSize = valueSize;
+        setFlushSource(true);
+    }
+
+    @Override
+    public Value get(final Key key) {
+        final long s = System.nanoTime();
+        final Value ret = getSource().get(key);
+        getLatency.add(System.nanoTime() - s);
+        countRead(ret);
+        return ret;
+    }
+
+    @Override
+    public List<Value> getBatch(final Collection<Key> keys) {
+        final long s = System.nanoTime();
+        final List<Value> ret = getBatch(getSource(), keys);
+        getLatency.add(System.nanoTime() - s);
+        for (final Value val : ret) countRead(val);
+        return ret;
+    }
+
+    private void countRead(final Value val) {
+        gets.incrementAndGet();
+        if (val != null) {
+            hits.incrementAndGet();
+            bytesRead.addAndGet(valueSize.estimateSize(val));
+        }
+    }
+
+    @Override
+    public void put(final Key key, final Value val) {
+        final long s = System.nanoTime();
+        getSource().put(key, val);
+        putLatency.add(System.nanoTime() - s);
+        puts.incrementAndGet();
+        if (val != null) bytesWritten.addAndGet(valueSize.estimateSize(val));
+    }
+
+    @Override
+    public void delete(final Key key) {
+        final long s = System.nanoTime();
+        getSource().delete(key);
+        putLatency.add(System.nanoTime() - s);
+        deletes.incrementAndGet();
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        final long s = System.nanoTime();
+        final boolean ret = getSource().flush();
+        final long t = System.nanoTime() - s;
+        flushes.incrementAndGet();
+        flushNanos.addAndGet(t);
+        flushMaxNanos.accumulateAndGet(t, Math::max);
+        return ret;
+    }
+
+    @Override
+    protected boolean flushImpl() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getGets() {
+        return gets.get();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return gets.get() - hits.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long g = gets.get();
+        return g == 0 ? 0 : (double) hits.get() / g;
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.get();
+    }
+
+    @Override
+    public long getDeletes() {
+        return deletes.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getGetLatencyMeanMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(getLatency.mean());
+    }
+
+    @Override
+    public long getGetLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getLatency.percentile(0.5));
+    }
+
+    @Override
+    public long getGetLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getLatency.percentile(0.99));
+    }
+
+    @Override
+    public long getPutLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(putLatency.percentile(0.99));
+    }
+
+    @Override
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public long getFlushTimeTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(flushNanos.get());
+    }
+
+    @Override
+    public long getFlushTimeMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(flushMaxNanos.get());
+    }
+
+    @Override
+    public void reset() {
+        gets.set(0);
+        hits.set(0);
+        puts.set(0);
+        deletes.set(0);
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        flushes.set(0);
+        flushNanos.set(0);
+        flushMaxNanos.set(0);
+        getLatency.reset();
+        putLatency.reset();
+    }
+
+    /**
+     * @return the short summary for the log line or null if there were no calls
+     */
+    public String summary() {
+        if (gets.get() == 0 && puts.get() == 0 && deletes.get() == 0 && flushes.get() == 0) return null;
+        return String.format("%s[get: %d (hit %.1f%%, p50 %dus, p99 %dus, %s), put: %d/%d (p99 %dus, %s), flush: %d (%d ms, max %d ms)]",
+                name, getGets(), getHitRatio() * 100, getGetLatencyP50Micros(), getGetLatencyP99Micros(),
+                bytes(getBytesRead()), getPuts(), getDeletes(), getPutLatencyP99Micros(), bytes(getBytesWritten()),
+                getFlushes(), getFlushTimeTotalMillis(), getFlushTimeMaxMillis());
+    }
+
+    private static String bytes(final long n) {
+        return n < 1 << 20 ? (n >> 10) + "Kb" : (n >> 20) + "Mb";
+    }
+
+    /**
+     * Latency histogram with power of two nanosecond buckets
+     */
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+
+        void add(final long nanos) {
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+        }
+
+        long mean() {
+            final long c = count.get();
+            return c == 0 ? 0 : total.get() / c;
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the percentile
+         */
+        long percentile(final double p) {
+            final long c = count.get();
+            if (c == 0) return 0;
+            final long target = (long) Math.ceil(c * p);
+            long sum = 0;
+            for (int i = 0; i < 64; i++) {
+                sum += buckets.get(i);
+                if (sum >= target) return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void reset() {
+            for (int i = 0; i < 64; i++) buckets.set(i, 0);
+            count.set(0);
+            total.set(0);
+        }
+    }
+}
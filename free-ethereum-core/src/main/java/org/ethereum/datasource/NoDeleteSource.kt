@@ -49,6 +49,10 @@ class NoDeleteSource<Key, Value>(src: Source<Key, Value>) : AbstractChainedSourc
         return source[key]
     }
 
+    override fun getBatch(keys: Collection<Key>): List<Value> {
+        return AbstractChainedSource.getBatch(source, keys)
+    }
+
     override fun flushImpl(): Boolean {
         return false
     }
@@ -48,7 +48,7 @@ public class ObjectDataSource<V> extends SourceChainBox<byte[], V, byte[], byte[
         add(codec = new SourceCodec<>(byteSource, new Serializers.Identity<>(), serializer));
         if (readCacheEntries > 0) {
             final ReadCache<byte[], V> cache;
-            add(cache = new ReadCache.BytesKey<>(codec).withMaxCapacity(readCacheEntries));
+            add(cache = new ReadCache.BytesKey<>(codec).withMaxSize(readCacheEntries));
         }
     }
 }
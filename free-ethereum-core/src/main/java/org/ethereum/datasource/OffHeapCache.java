@@ -0,0 +1,486 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of 32-byte hash keyed values which stores entries in the direct
+ * (off-heap) memory, so huge caches don't contribute to the GC pauses.
+ *
+ * The memory is allocated by 1Mb pages which are assigned to slot size classes
+ * (like in memcached), each page is split to equal slots of its class. A slot holds the
+ * key, the value length and the value. Within a size class the slots are evicted with the
+ * CLOCK algorithm. Once all the memory budget is assigned pages don't move between classes.
+ * The entries are located with the open-addressing (linear probing) index which consists
+ * of primitive arrays only.
+ *
+ * The cache is split to independently locked shards by key.
+ * Keys of other sizes, values larger than the max slot and null values are not cached.
+ * The cache is write-through: all the updates are passed to the underlying Source.
+ * It is intended for the content addressed data (like trie nodes) where a value
+ * racing with concurrent delete can't be stale
+ */
+public class OffHeapCache extends AbstractChainedSource<byte[], byte[], byte[], byte[]> {
+
+    private static final int KEY_SIZE = 32;
+    private static final int HEADER_SIZE = KEY_SIZE + 4;
+    private static final int PAGE_SIZE = 1 << 20;
+    private static final int SLOT_BITS = 14; // PAGE_SIZE / min slot size
+    private static final int[] SLOT_SIZES = slotSizes(64, 64 * 1024);
+
+    private volatile Shard[] shards = new Shard[0];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize the max memory size in bytes occupied by the cache pages, 0 disables the cache
+     */
+    public OffHeapCache(final Source<byte[], byte[]> source, final long maxSize) {
+        super(source);
+        setMaxSize(maxSize);
+    }
+
+    private static int[] slotSizes(final int min, final int max) {
+        final List<Integer> ret = new ArrayList<>();
+        for (int size = min; size < max; size = (size * 5 / 4 + 7) & ~7) {
+            ret.add(size);
+        }
+        ret.add(max);
+        return ret.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Drops all cached entries and reallocates the cache with the new memory budget
+     */
+    public synchronized void setMaxSize(final long maxSize) {
+        final int shardCount = maxSize >= 256L * PAGE_SIZE ? 16 : 1;
+        final long shardPages = maxSize / shardCount / PAGE_SIZE;
+        if (shardPages == 0) {
+            shards = new Shard[0];
+            return;
+        }
+        final Shard[] newShards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            newShards[i] = new Shard((int) Math.min(shardPages, 1 << (31 - SLOT_BITS)));
+        }
+        shards = newShards;
+    }
+
+    private Shard shardFor(final byte[] key) {
+        final Shard[] s = shards;
+        if (s.length == 0 || key.length != KEY_SIZE) return null;
+        return s[(key[KEY_SIZE - 1] & 0xFF) % s.length];
+    }
+
+    @Override
+    public byte[] get(final byte[] key) {
+        final Shard shard = shardFor(key);
+        if (shard == null) return getSource().get(key);
+
+        byte[] ret = shard.get(key);
+        if (ret != null) {
+            hits.increment();
+            return ret;
+        }
+        misses.increment();
+        ret = getSource().get(key);
+        if (ret != null) {
+            shard.put(key, ret);
+        }
+        return ret;
+    }
+
+    @Override
+    public List<byte[]> getBatch(final Collection<byte[]> keys) {
+        final List<byte[]> ret = new ArrayList<>(keys.size());
+        final List<byte[]> missedKeys = new ArrayList<>();
+        final List<Integer> missedIdx = new ArrayList<>();
+        for (final byte[] key : keys) {
+            final Shard shard = shardFor(key);
+            final byte[] val = shard == null ? null : shard.get(key);
+            if (val == null) {
+                if (shard != null) misses.increment();
+                missedIdx.add(ret.size());
+                missedKeys.add(key);
+            } else {
+                hits.increment();
+            }
+            ret.add(val);
+        }
+        if (!missedKeys.isEmpty()) {
+            final List<byte[]> loaded = getBatch(getSource(), missedKeys);
+            for (int i = 0; i < loaded.size(); i++) {
+                final byte[] val = loaded.get(i);
+                if (val == null) continue;
+                ret.set(missedIdx.get(i), val);
+                final Shard shard = shardFor(missedKeys.get(i));
+                if (shard != null) shard.put(missedKeys.get(i), val);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void put(final byte[] key, final byte[] val) {
+        final Shard shard = shardFor(key);
+        if (shard != null) {
+            if (val == null) {
+                shard.remove(key);
+            } else {
+                shard.put(key, val);
+            }
+        }
+        getSource().put(key, val);
+    }
+
+    @Override
+    public void delete(final byte[] key) {
+        final Shard shard = shardFor(key);
+        if (shard != null) {
+            shard.remove(key);
+        }
+        getSource().delete(key);
+    }
+
+    @Override
+    protected boolean flushImpl() {
+        return false;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public long getSize() {
+        long ret = 0;
+        for (final Shard shard : shards) {
+            ret += shard.getCount();
+        }
+        return ret;
+    }
+
+    /**
+     * @return the memory allocated for the cache pages
+     */
+    public long getAllocatedBytes() {
+        long ret = 0;
+        for (final Shard shard : shards) {
+            ret += shard.getAllocatedPages() * (long) PAGE_SIZE;
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        final long h = getHitCount();
+        final long total = h + getMissCount();
+        return String.format("OffHeapCache[entries: %d, allocated: %dMb, hitRate: %.3f, evictions: %d]",
+                getSize(), getAllocatedBytes() / PAGE_SIZE, total == 0 ? 0 : (double) h / total, getEvictionCount());
+    }
+
+    private static int sizeClass(final int entrySize) {
+        int idx = Arrays.binarySearch(SLOT_SIZES, entrySize);
+        if (idx < 0) idx = -idx - 1;
+        return idx < SLOT_SIZES.length ? idx : -1;
+    }
+
+    private static long tag(final byte[] key) {
+        long ret = 0;
+        for (int i = 0; i < 8; i++) {
+            ret = (ret << 8) | (key[i] & 0xFF);
+        }
+        return ret;
+    }
+
+    /**
+     * Pages of a single slot size. Slots are numbered within the class
+     */
+    private static final class SizeClass {
+        final int slotSize;
+        final int slotsPerPage;
+        int[] pages = new int[16];
+        int pageCount;
+        // number of slots ever handed out, slots above are untouched
+        int allocated;
+        int[] free = new int[16];
+        int freeCount;
+        int live;
+        final BitSet liveSlots = new BitSet();
+        final BitSet referenced = new BitSet();
+        int hand;
+
+        SizeClass(final int slotSize) {
+            this.slotSize = slotSize;
+            this.slotsPerPage = PAGE_SIZE / slotSize;
+        }
+
+        int address(final int slot) {
+            return (pages[slot / slotsPerPage] << SLOT_BITS) | (slot % slotsPerPage);
+        }
+
+        void addPage(final int page) {
+            if (pageCount == pages.length) pages = Arrays.copyOf(pages, pageCount * 2);
+            pages[pageCount++] = page;
+        }
+
+        void release(final int slot) {
+            liveSlots.clear(slot);
+            referenced.clear(slot);
+            live--;
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = slot;
+        }
+    }
+
+    private final class Shard {
+        private final int maxPages;
+        private final List<ByteBuffer> pages = new ArrayList<>();
+        // page -> size class, page -> slot number of the page start within the class
+        private int[] pageClass = new int[16];
+        private int[] pageFirstSlot = new int[16];
+        private final SizeClass[] classes = new SizeClass[SLOT_SIZES.length];
+
+        // index: the slot address + 1 (0 for empty) and the first 8 key bytes
+        private final int[] addrs;
+        private final long[] tags;
+        private final int mask;
+        private final int maxCount;
+        private int count;
+
+        Shard(final int maxPages) {
+            this.maxPages = maxPages;
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = new SizeClass(SLOT_SIZES[i]);
+            }
+            // 128 - approx min average entry size to size the index
+            final long expected = (long) maxPages * PAGE_SIZE / 128;
+            final int capacity = (int) Math.min(1 << 30, Long.highestOneBit(Math.max(expected, 16) - 1) << 1);
+            addrs = new int[capacity];
+            tags = new long[capacity];
+            mask = capacity - 1;
+            maxCount = capacity / 4 * 3;
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+
+        synchronized int getAllocatedPages() {
+            return pages.size();
+        }
+
+        synchronized byte[] get(final byte[] key) {
+            final int pos = find(key);
+            if (pos < 0) return null;
+            final int addr = addrs[pos] - 1;
+            final ByteBuffer page = pages.get(addr >>> SLOT_BITS);
+            final int cls = pageClass[addr >>> SLOT_BITS];
+            final int offset = (addr & ((1 << SLOT_BITS) - 1)) * classes[cls].slotSize;
+            final byte[] ret = new byte[page.getInt(offset + KEY_SIZE)];
+            page.position(offset + HEADER_SIZE);
+            page.get(ret);
+            classes[cls].referenced.set(slotOf(addr));
+            return ret;
+        }
+
+        synchronized void put(final byte[] key, final byte[] value) {
+            final int cls = sizeClass(HEADER_SIZE + value.length);
+            int pos = find(key);
+            if (pos >= 0) {
+                final int addr = addrs[pos] - 1;
+                if (pageClass[addr >>> SLOT_BITS] == cls) {
+                    // the same size class: overwriting in place
+                    write(addr, key, value);
+                    return;
+                }
+                removeAt(pos);
+            }
+            if (cls < 0) return;
+
+            if (count >= maxCount && !evict(classes[cls])) return;
+            final int slot = allocate(classes[cls], cls);
+            if (slot < 0) return;
+
+            final int addr = classes[cls].address(slot);
+            write(addr, key, value);
+            classes[cls].liveSlots.set(slot);
+            classes[cls].live++;
+
+            pos = (int) mix(tag(key)) & mask;
+            while (addrs[pos] != 0) pos = (pos + 1) & mask;
+            addrs[pos] = addr + 1;
+            tags[pos] = tag(key);
+            count++;
+        }
+
+        synchronized void remove(final byte[] key) {
+            final int pos = find(key);
+            if (pos >= 0) removeAt(pos);
+        }
+
+        private int allocate(final SizeClass sc, final int cls) {
+            if (sc.freeCount > 0) {
+                return sc.free[--sc.freeCount];
+            }
+            if (sc.allocated == sc.pageCount * sc.slotsPerPage) {
+                if (pages.size() < maxPages) {
+                    addPage(sc, cls);
+                } else {
+                    // the budget is exhausted: reusing own slots only
+                    return evict(sc) ? sc.free[--sc.freeCount] : -1;
+                }
+            }
+            return sc.allocated++;
+        }
+
+        private void addPage(final SizeClass sc, final int cls) {
+            final int page = pages.size();
+            pages.add(ByteBuffer.allocateDirect(PAGE_SIZE));
+            if (page == pageClass.length) {
+                pageClass = Arrays.copyOf(pageClass, page * 2);
+                pageFirstSlot = Arrays.copyOf(pageFirstSlot, page * 2);
+            }
+            pageClass[page] = cls;
+            pageFirstSlot[page] = sc.pageCount * sc.slotsPerPage;
+            sc.addPage(page);
+        }
+
+        /**
+         * Evicts an entry of the size class with the CLOCK algorithm: the slots referenced since
+         * the last hand pass get the second chance
+         * @return false if the class has no entries to evict
+         */
+        private boolean evict(final SizeClass sc) {
+            if (sc.live == 0) return false;
+            while (true) {
+                final int slot = sc.hand;
+                sc.hand = slot + 1 >= sc.allocated ? 0 : slot + 1;
+                if (!sc.liveSlots.get(slot)) continue;
+                if (sc.referenced.get(slot)) {
+                    sc.referenced.clear(slot);
+                    continue;
+                }
+                final byte[] key = readKey(sc.address(slot));
+                removeAt(find(key));
+                evictions.increment();
+                return true;
+            }
+        }
+
+        private void write(final int addr, final byte[] key, final byte[] value) {
+            final ByteBuffer page = pages.get(addr >>> SLOT_BITS);
+            final int offset = (addr & ((1 << SLOT_BITS) - 1)) * classes[pageClass[addr >>> SLOT_BITS]].slotSize;
+            page.position(offset);
+            page.put(key);
+            page.putInt(value.length);
+            page.put(value);
+        }
+
+        private byte[] readKey(final int addr) {
+            final ByteBuffer page = pages.get(addr >>> SLOT_BITS);
+            final int offset = (addr & ((1 << SLOT_BITS) - 1)) * classes[pageClass[addr >>> SLOT_BITS]].slotSize;
+            final byte[] ret = new byte[KEY_SIZE];
+            page.position(offset);
+            page.get(ret);
+            return ret;
+        }
+
+        private boolean keyEquals(final int addr, final byte[] key) {
+            final ByteBuffer page = pages.get(addr >>> SLOT_BITS);
+            final int offset = (addr & ((1 << SLOT_BITS) - 1)) * classes[pageClass[addr >>> SLOT_BITS]].slotSize;
+            for (int i = 8; i < KEY_SIZE; i++) {
+                if (page.get(offset + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        private int slotOf(final int addr) {
+            return pageFirstSlot[addr >>> SLOT_BITS] + (addr & ((1 << SLOT_BITS) - 1));
+        }
+
+        private int find(final byte[] key) {
+            final long tag = tag(key);
+            int pos = (int) mix(tag) & mask;
+            while (addrs[pos] != 0) {
+                if (tags[pos] == tag && keyEquals(addrs[pos] - 1, key)) return pos;
+                pos = (pos + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Frees the slot and removes the index entry shifting back the following
+         * entries of the probe sequence
+         */
+        private void removeAt(final int pos) {
+            final int addr = addrs[pos] - 1;
+            classes[pageClass[addr >>> SLOT_BITS]].release(slotOf(addr));
+            count--;
+
+            int hole = pos;
+            int i = pos;
+            while (true) {
+                i = (i + 1) & mask;
+                if (addrs[i] == 0) break;
+                final int home = (int) mix(tags[i]) & mask;
+                // the entry can be moved to the hole if its home is not within (hole, i]
+                final boolean inRange = hole <= i ? (home > hole && home <= i) : (home > hole || home <= i);
+                if (!inRange) {
+                    addrs[hole] = addrs[i];
+                    tags[hole] = tags[i];
+                    hole = i;
+                }
+            }
+            addrs[hole] = 0;
+        }
+    }
+
+    private static long mix(final long tag) {
+        final long h = tag * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+}
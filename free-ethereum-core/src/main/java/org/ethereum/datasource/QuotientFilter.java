@@ -330,7 +330,7 @@ private byte QUOTIENT_BITS;
 //        insert(hashFactory.hash64().hash(data, offset, length, 0));
 //    }
 
-    private long hash(final byte[] bytes) {
+    static long hash(final byte[] bytes) {
         return (bytes[0] & 0xFFL) << 56 |
                 (bytes[1] & 0xFFL) << 48 |
                 (bytes[2] & 0xFFL) << 40 |
@@ -434,6 +434,13 @@ private byte QUOTIENT_BITS;
     }
 
     public synchronized boolean maybeContains(final long hash) {
+        return lookup(hash);
+    }
+
+    /**
+     * Unsynchronized {@link #maybeContains(long)}, the caller guards against concurrent modifications
+     */
+    boolean lookup(final long hash) {
         if (overflowed) {
             //Can't check for existence after overflow occurred
             //and things are missing
@@ -465,6 +472,13 @@ private byte QUOTIENT_BITS;
     }
 
     private synchronized boolean maybeContainsXTimes(final long hash, final int num) {
+        return count(hash) >= num;
+    }
+
+    /**
+     * Unsynchronized number of stored copies of the hash, the caller guards against concurrent modifications
+     */
+    int count(final long hash) {
         if (overflowed) {
             //Can't check for existence after overflow occurred
             //and things are missing
@@ -477,7 +491,7 @@ private byte QUOTIENT_BITS;
 
         /* If this quotient has no run, give up. */
         if (!isElementOccupied(T_fq)) {
-            return false;
+            return 0;
         }
 
         /* Scan the sorted run for the target remainder. */
@@ -493,7 +507,7 @@ private byte QUOTIENT_BITS;
             s = incrementIndex(s);
         }
         while (isElementContinuation(getElement(s)));
-        return counter >= num;
+        return counter;
     }
 
     /* Remove the entry in QF[s] and slide the rest of the cluster forward. */
@@ -668,6 +682,17 @@ private byte QUOTIENT_BITS;
         return qf;
     }
 
+    /**
+     * @return true if the next insert would make the filter resize itself
+     */
+    boolean isFull() {
+        return entries >= MAX_INSERTIONS;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
     public int getAllocatedBytes() {
         return table.length << 3;
     }
@@ -796,11 +821,11 @@ private byte QUOTIENT_BITS;
         }
     }
 
-    public class OverflowedError extends AssertionError {
+    public static class OverflowedError extends AssertionError {
 
     }
 
-    public class NoSuchElementError extends AssertionError {
+    public static class NoSuchElementError extends AssertionError {
 
     }
 }
@@ -29,11 +29,10 @@ package org.ethereum.datasource;
 import org.apache.commons.collections4.map.LRUMap;
 import org.ethereum.db.ByteArrayWrapper;
 import org.ethereum.util.ByteArrayMap;
+import org.ethereum.util.HashKeyMap;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.function.BiConsumer;
 
 /**
  * Caches entries get/updated and use LRU algo to purge them if the number
@@ -54,6 +53,8 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
     private final Value NULL = (Value) new Object();
 
     private Map<Key, Value> cache;
+    private TinyLfuCache<?, Value> lfuCache;
+    private BiConsumer<Key, Value> cacheFiller;
     private boolean byteKeyMap;
     // the guard against incorrect Map implementation for byte[] keys
     private boolean checked = false;
@@ -67,8 +68,23 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
      * Installs the specific cache Map implementation
      */
     ReadCache<Key, Value> withCache(final Map<Key, Value> cache) {
-        byteKeyMap = cache instanceof ByteArrayMap;
+        byteKeyMap = cache instanceof ByteArrayMap || cache instanceof HashKeyMap;
         this.cache = Collections.synchronizedMap(cache);
+        lfuCache = null;
+        cacheFiller = this.cache::put;
+        return this;
+    }
+
+    /**
+     * Installs the thread-safe cache Map which doesn't need external synchronization
+     */
+    ReadCache<Key, Value> withConcurrentCache(final Map<Key, Value> cache, final TinyLfuCache<?, Value> lfuCache,
+                                              final BiConsumer<Key, Value> cacheFiller) {
+        byteKeyMap = cache instanceof ByteArrayMap || cache instanceof HashKeyMap;
+        this.cache = cache;
+        this.lfuCache = lfuCache;
+        this.cacheFiller = cacheFiller;
+        cacheCleared();
         return this;
     }
 
@@ -79,12 +95,55 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         return withCache(new LRUMap<Key, Value>(maxCapacity) {
             @Override
             protected boolean removeLRU(final LinkEntry<Key, Value> entry) {
-                cacheRemoved(entry.getKey(), entry.getValue());
+                cacheRemoved(entry.getKey(), unwrapNull(entry.getValue()));
                 return super.removeLRU(entry);
             }
         });
     }
 
+    /**
+     * Sets the max total size of cached entries. The entries are weighted with the
+     * size estimators if they were set (see {@link #withSizeEstimators}) else each entry
+     * counts as 1 and the maxSize is the max number of entries.
+     * The {@link TinyLfuCache} is used which doesn't block concurrent readers of different
+     * keys and doesn't let rarely read entries to wash out the frequently used ones
+     */
+    public ReadCache<Key, Value> withMaxSize(final long maxSize) {
+        final TinyLfuCache<Key, Value> lfu = new TinyLfuCache<>(maxSize, expectedEntries(maxSize),
+                this::weigh, (k, v) -> cacheRemoved(k, unwrapNull(v)));
+        return withConcurrentCache(lfu, lfu, lfu::admit);
+    }
+
+    int expectedEntries(final long maxSize) {
+        // 256 - rough average size of an entry
+        final long ret = keySizeEstimator == null && valueSizeEstimator == null ? maxSize : maxSize / 256;
+        return (int) Math.min(Integer.MAX_VALUE, ret);
+    }
+
+    long weigh(final Key key, final Value value) {
+        if (keySizeEstimator == null && valueSizeEstimator == null) return 1;
+        long ret = 0;
+        if (keySizeEstimator != null) {
+            ret += keySizeEstimator.estimateSize(key);
+        }
+        if (valueSizeEstimator != null) {
+            ret += valueSizeEstimator.estimateSize(unwrapNull(value));
+        }
+        return ret;
+    }
+
+    Value unwrapNull(final Value value) {
+        return value == NULL ? null : value;
+    }
+
+    /**
+     * Returns the cache statistics if the cache was created with {@link #withMaxSize}
+     * or null otherwise
+     */
+    public TinyLfuCache<?, Value> getLfuCache() {
+        return lfuCache;
+    }
+
     private void checkByteArrKey(final Key key) {
         if (checked) return;
 
@@ -117,17 +176,43 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         }
         if (ret == null) {
             ret = getSource().get(key);
-            cache.put(key, ret == null ? NULL : ret);
+            cacheFiller.accept(key, ret == null ? NULL : ret);
             cacheAdded(key, ret);
         }
         return ret;
     }
 
+    @Override
+    public List<Value> getBatch(final Collection<Key> keys) {
+        final List<Value> ret = new ArrayList<>(keys.size());
+        final List<Key> missedKeys = new ArrayList<>();
+        final List<Integer> missedIdx = new ArrayList<>();
+        for (final Key key : keys) {
+            checkByteArrKey(key);
+            final Value value = cache.get(key);
+            if (value == null) {
+                missedIdx.add(ret.size());
+                missedKeys.add(key);
+            }
+            ret.add(value == NULL ? null : value);
+        }
+        if (!missedKeys.isEmpty()) {
+            final List<Value> loaded = getBatch(getSource(), missedKeys);
+            for (int i = 0; i < loaded.size(); i++) {
+                final Value value = loaded.get(i);
+                ret.set(missedIdx.get(i), value);
+                cacheFiller.accept(missedKeys.get(i), value == null ? NULL : value);
+                cacheAdded(missedKeys.get(i), value);
+            }
+        }
+        return ret;
+    }
+
     @Override
     public void delete(final Key key) {
         checkByteArrKey(key);
         final Value value = cache.remove(key);
-        cacheRemoved(key, value);
+        cacheRemoved(key, unwrapNull(value));
         getSource().delete(key);
     }
 
@@ -159,18 +244,26 @@ public class ReadCache<Key, Value> extends AbstractCachedSource<Key, Value> {
 
         public BytesKey(final Source<byte[], V> src) {
             super(src);
-            withCache(new ByteArrayMap<>());
+            withCache(new HashKeyMap<>());
         }
 
         public ReadCache.BytesKey<V> withMaxCapacity(final int maxCapacity) {
             withCache(new ByteArrayMap<>(new LRUMap<ByteArrayWrapper, V>(maxCapacity) {
                 @Override
                 protected boolean removeLRU(final LinkEntry<ByteArrayWrapper, V> entry) {
-                    cacheRemoved(entry.getKey().getData(), entry.getValue());
+                    cacheRemoved(entry.getKey().getData(), unwrapNull(entry.getValue()));
                     return super.removeLRU(entry);
                 }
             }));
             return this;
         }
+
+        @Override
+        public ReadCache.BytesKey<V> withMaxSize(final long maxSize) {
+            final TinyLfuCache<ByteArrayWrapper, V> lfu = new TinyLfuCache<>(maxSize, expectedEntries(maxSize),
+                    (k, v) -> weigh(k.getData(), v), (k, v) -> cacheRemoved(k.getData(), unwrapNull(v)));
+            withConcurrentCache(new ByteArrayMap<>(lfu), lfu, (k, v) -> lfu.admit(new ByteArrayWrapper(k), v));
+            return this;
+        }
     }
 }
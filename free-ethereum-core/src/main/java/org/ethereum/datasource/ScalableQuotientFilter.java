@@ -0,0 +1,268 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.util.ByteUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Growing {@link QuotientFilter} built of stacked segments.
+ *
+ * New elements go to the newest segment, when it fills up a twice larger segment
+ * is stacked on top instead of resizing (and rewriting) the whole filter. Lookups
+ * check all segments under a shared lock so readers don't block each other.
+ *
+ * Each segment is persisted under its own key and only segments modified since the
+ * last {@link #flush(Source, byte[])} are rewritten. The root key keeps the segment
+ * count. A single serialized {@link QuotientFilter} stored under the root key by older
+ * versions is picked up as the first segment.
+ */
+public class ScalableQuotientFilter {
+
+    private static final byte META_MAGIC = (byte) 0xFF;
+    private static final int REMAINDER_BITS_SHIFT = 8;
+    public static final int MAX_SEGMENTS = 64;
+
+    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final List<Segment> segments = new ArrayList<>();
+    private final long initialCapacity;
+    private int maxDuplicates = 2;
+    private boolean metaDirty = false;
+
+    private static class Segment {
+        final QuotientFilter filter;
+        boolean dirty = true;
+
+        Segment(final QuotientFilter filter) {
+            this.filter = filter;
+        }
+    }
+
+    public ScalableQuotientFilter(final long initialCapacity) {
+        this.initialCapacity = initialCapacity;
+    }
+
+    public ScalableQuotientFilter withMaxDuplicates(final int maxDuplicates) {
+        this.maxDuplicates = maxDuplicates;
+        for (final Segment segment : segments) segment.filter.withMaxDuplicates(maxDuplicates);
+        return this;
+    }
+
+    /**
+     * Loads the filter persisted under the key or creates a new one if there is nothing stored
+     */
+    public static ScalableQuotientFilter load(final Source<byte[], byte[]> src, final byte[] key, final long initialCapacity) {
+        final byte[] meta = src.get(key);
+        if (meta == null || meta.length == 0) return new ScalableQuotientFilter(initialCapacity);
+
+        if (meta[0] != META_MAGIC) {
+            // legacy single filter format, it is rewritten as the first segment on the next flush
+            final ScalableQuotientFilter ret = new ScalableQuotientFilter(initialCapacity);
+            ret.segments.add(new Segment(QuotientFilter.deserialize(meta).withMaxDuplicates(ret.maxDuplicates)));
+            ret.metaDirty = true;
+            return ret;
+        }
+
+        final ByteBuffer buf = ByteBuffer.wrap(meta, 1, meta.length - 1);
+        final int count = buf.getInt();
+        final ScalableQuotientFilter ret = new ScalableQuotientFilter(buf.getLong());
+        ret.maxDuplicates = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            final byte[] bytes = src.get(segmentKey(key, i));
+            if (bytes == null) {
+                throw new RuntimeException("Filter segment #" + i + " of " + count + " is missing");
+            }
+            final Segment segment = new Segment(QuotientFilter.deserialize(bytes).withMaxDuplicates(ret.maxDuplicates));
+            segment.dirty = false;
+            ret.segments.add(segment);
+        }
+        return ret;
+    }
+
+    /**
+     * @return the key the segment #idx of the filter stored under the root key is persisted with
+     */
+    public static byte[] segmentKey(final byte[] key, final int idx) {
+        return HashUtil.INSTANCE.sha3(ByteUtil.merge(key, ByteUtil.intToBytes(idx)));
+    }
+
+    public void insert(final byte[] hash) {
+        insert(QuotientFilter.hash(hash));
+    }
+
+    public void insert(final long hash) {
+        rwLock.writeLock().lock();
+        try {
+            if (count(hash) >= maxDuplicates) return;
+            final Segment segment = activeSegment();
+            segment.filter.insert(hash);
+            segment.dirty = true;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public boolean maybeContains(final byte[] hash) {
+        return maybeContains(QuotientFilter.hash(hash));
+    }
+
+    public boolean maybeContains(final long hash) {
+        rwLock.readLock().lock();
+        try {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                if (segments.get(i).filter.lookup(hash)) return true;
+            }
+            return false;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    public void remove(final byte[] hash) {
+        remove(QuotientFilter.hash(hash));
+    }
+
+    public void remove(final long hash) {
+        rwLock.writeLock().lock();
+        try {
+            // saturated entries are never removed, same as in a single filter
+            if (count(hash) >= maxDuplicates) return;
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                final Segment segment = segments.get(i);
+                if (segment.filter.lookup(hash)) {
+                    segment.filter.remove(hash);
+                    segment.dirty = true;
+                    return;
+                }
+            }
+            throw new QuotientFilter.NoSuchElementError();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes modified segments and the segment count to the source
+     * @return true if anything was written
+     */
+    public boolean flush(final Source<byte[], byte[]> dest, final byte[] key) {
+        final List<byte[]> keys = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+        byte[] meta = null;
+        rwLock.readLock().lock();
+        try {
+            for (int i = 0; i < segments.size(); i++) {
+                final Segment segment = segments.get(i);
+                if (segment.dirty) {
+                    keys.add(segmentKey(key, i));
+                    values.add(segment.filter.serialize());
+                    segment.dirty = false;
+                }
+            }
+            if (metaDirty) {
+                meta = ByteBuffer.allocate(1 + 4 + 8 + 4).put(META_MAGIC).putInt(segments.size())
+                        .putLong(initialCapacity).putInt(maxDuplicates).array();
+                metaDirty = false;
+            }
+        } finally {
+            rwLock.readLock().unlock();
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            dest.put(keys.get(i), values.get(i));
+        }
+        // the root entry goes last so it never refers segments which are not stored yet
+        if (meta != null) dest.put(key, meta);
+        return meta != null || !keys.isEmpty();
+    }
+
+    public int getSegmentCount() {
+        rwLock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    public long getEntries() {
+        rwLock.readLock().lock();
+        try {
+            long ret = 0;
+            for (final Segment segment : segments) ret += segment.filter.getEntries();
+            return ret;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    public long getAllocatedBytes() {
+        rwLock.readLock().lock();
+        try {
+            long ret = 0;
+            for (final Segment segment : segments) ret += segment.filter.getAllocatedBytes();
+            return ret;
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    private int count(final long hash) {
+        int ret = 0;
+        for (final Segment segment : segments) {
+            ret += segment.filter.count(hash);
+        }
+        return ret;
+    }
+
+    private Segment activeSegment() {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last == null || last.filter.isFull()) {
+            if (segments.size() >= MAX_SEGMENTS) {
+                throw new RuntimeException("Too many filter segments: " + segments.size());
+            }
+            final long capacity = initialCapacity << segments.size();
+            last = new Segment(QuotientFilter.create(capacity << REMAINDER_BITS_SHIFT, capacity)
+                    .withMaxDuplicates(maxDuplicates));
+            segments.add(last);
+            metaDirty = true;
+        }
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return "ScalableQuotientFilter{segments: " + getSegmentCount() + ", entries: " + getEntries() +
+                ", bytes: " + getAllocatedBytes() + "}";
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link WriteCache} which partitions the entries by key hash into independent
+ * WriteCache segments each with its own lock. The segments are flushed one by one
+ * so only the readers and writers of the segment being flushed have to wait.
+ *
+ * The backing Source is flushed once after all the segments are flushed, thus it should
+ * make the put entries visible to readers without the flush (like the caches do),
+ * else an entry may be missing between the segment and the source flushes.
+ * Unlike the {@link WriteCache} the whole flush is not atomic relative to concurrent updates
+ */
+public class ShardedWriteCache<Key, Value> extends WriteCache<Key, Value> {
+
+    private final WriteCache<Key, Value>[] shards;
+
+    @SuppressWarnings("unchecked")
+    public ShardedWriteCache(final Source<Key, Value> src, final CacheType cacheType, final int shardCount) {
+        super(src, cacheType);
+        if (Integer.bitCount(shardCount) != 1) throw new RuntimeException("Shard count should be a power of 2: " + shardCount);
+        shards = new WriteCache[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = createShard(src, cacheType);
+        }
+    }
+
+    protected WriteCache<Key, Value> createShard(final Source<Key, Value> src, final CacheType cacheType) {
+        return new WriteCache<>(src, cacheType);
+    }
+
+    private WriteCache<Key, Value> shard(final Key key) {
+        final int h = (key instanceof byte[] ? Arrays.hashCode((byte[]) key) : key.hashCode()) * 0x9E3779B9;
+        return shards[(h ^ (h >>> 16)) & (shards.length - 1)];
+    }
+
+    @Override
+    public void put(final Key key, final Value val) {
+        shard(key).put(key, val);
+    }
+
+    @Override
+    public Value get(final Key key) {
+        return shard(key).get(key);
+    }
+
+    @Override
+    public void delete(final Key key) {
+        shard(key).delete(key);
+    }
+
+    @Override
+    WriteCache<Key, Value> lookupShard(final Key key) {
+        return shard(key);
+    }
+
+    @Override
+    public Entry<Value> getCached(final Key key) {
+        return shard(key).getCached(key);
+    }
+
+    @Override
+    public boolean flush() {
+        boolean ret = false;
+        for (final WriteCache<Key, Value> shard : shards) {
+            ret |= shard.flush();
+        }
+        if (flushSource) {
+            getSource().flush();
+        }
+        return ret;
+    }
+
+    @Override
+    void moveFrom(final WriteCache<Key, Value> other) {
+        final ShardedWriteCache<Key, Value> src = (ShardedWriteCache<Key, Value>) other;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].moveFrom(src.shards[i]);
+        }
+    }
+
+    /**
+     * Returns the snapshot of modified keys
+     */
+    @Override
+    public Collection<Key> getModified() {
+        final List<Key> ret = new ArrayList<>();
+        for (final WriteCache<Key, Value> shard : shards) {
+            ret.addAll(shard.getModified());
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean hasModified() {
+        for (final WriteCache<Key, Value> shard : shards) {
+            if (shard.hasModified()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public AbstractCachedSource<Key, Value> withSizeEstimators(final MemSizeEstimator<Key> keySizeEstimator,
+                                                             final MemSizeEstimator<Value> valueSizeEstimator) {
+        for (final WriteCache<Key, Value> shard : shards) {
+            shard.withSizeEstimators(keySizeEstimator, valueSizeEstimator);
+        }
+        return super.withSizeEstimators(keySizeEstimator, valueSizeEstimator);
+    }
+
+    @Override
+    public long estimateCacheSize() {
+        long ret = 0;
+        for (final WriteCache<Key, Value> shard : shards) {
+            ret += shard.estimateCacheSize();
+        }
+        return ret;
+    }
+
+    @Override
+    public long debugCacheSize() {
+        long ret = 0;
+        for (final WriteCache<Key, Value> shard : shards) {
+            ret += shard.debugCacheSize();
+        }
+        return ret;
+    }
+
+    /**
+     * Shortcut for ShardedWriteCache with byte[] keys
+     */
+    public static class BytesKey<V> extends ShardedWriteCache<byte[], V> implements CachedSource.BytesKey<V> {
+
+        public BytesKey(final Source<byte[], V> src, final CacheType cacheType, final int shardCount) {
+            super(src, cacheType, shardCount);
+        }
+
+        @Override
+        protected WriteCache<byte[], V> createShard(final Source<byte[], V> src, final CacheType cacheType) {
+            return new WriteCache.BytesKey<>(src, cacheType);
+        }
+    }
+}
@@ -27,6 +27,7 @@
 package org.ethereum.datasource;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -67,6 +68,11 @@ public class SourceChainBox<Key, Value, SourceKey, SourceValue>
         return lastSource.get(key);
     }
 
+    @Override
+    public List<Value> getBatch(final Collection<Key> keys) {
+        return getBatch(lastSource, keys);
+    }
+
     @Override
     public void delete(final Key key) {
         lastSource.delete(key);
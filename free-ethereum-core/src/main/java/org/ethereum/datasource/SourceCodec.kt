@@ -56,6 +56,11 @@ open class SourceCodec<Key, Value, SourceKey, SourceValue>
         return valSerializer.deserialize(source[keySerializer.serialize(key)])
     }
 
+    override fun getBatch(keys: Collection<Key>): List<Value> {
+        return AbstractChainedSource.getBatch(source, keys.map { keySerializer.serialize(it) })
+                .map { valSerializer.deserialize(it) }
+    }
+
     override fun delete(key: Key) {
         source.delete(keySerializer.serialize(key))
     }
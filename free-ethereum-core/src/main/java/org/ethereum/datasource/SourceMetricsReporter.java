@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the {@link MetricsSource} decorators, registers them in JMX
+ * (org.ethereum:type=SourceMetrics,name=[layer]) and logs their counters periodically
+ */
+public class SourceMetricsReporter {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private final List<MetricsSource<?, ?>> sources = new CopyOnWriteArrayList<>();
+    private final List<ObjectName> objectNames = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param logInterval seconds between the log lines, 0 disables the logging
+     */
+    public SourceMetricsReporter(final int logInterval) {
+        if (logInterval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "SourceMetricsReporter");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.scheduleWithFixedDelay(this::log, logInterval, logInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Wraps the byte[] Source with the decorator named after the layer it measures
+     */
+    public Source<byte[], byte[]> wrap(final String name, final Source<byte[], byte[]> src) {
+        final MetricsSource<byte[], byte[]> ret = new MetricsSource<>(name, src, MemSizeEstimator.ByteArrayEstimator);
+        register(ret);
+        return ret;
+    }
+
+    public void register(final MetricsSource<?, ?> src) {
+        sources.add(src);
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("org.ethereum:type=SourceMetrics,name=" + ObjectName.quote(src.getName()));
+            // the prototype sources might be created more than once for the same name
+            for (int i = 2; server.isRegistered(objectName); i++) {
+                objectName = new ObjectName("org.ethereum:type=SourceMetrics,name=" + ObjectName.quote(src.getName() + "#" + i));
+            }
+            server.registerMBean(src, objectName);
+            objectNames.add(objectName);
+        } catch (final Exception e) {
+            logger.warn("Couldn't register JMX bean for Source metrics " + src.getName(), e);
+        }
+    }
+
+    public List<MetricsSource<?, ?>> getSources() {
+        return sources;
+    }
+
+    public void log() {
+        final StringBuilder sb = new StringBuilder();
+        for (final MetricsSource<?, ?> src : sources) {
+            final String s = src.summary();
+            if (s != null) sb.append(sb.length() == 0 ? "" : ", ").append(s);
+        }
+        if (sb.length() > 0) logger.info("Source metrics: " + sb);
+    }
+
+    public void close() {
+        if (executor != null) executor.shutdownNow();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (final ObjectName name : objectNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (final Exception e) {
+                logger.warn("Couldn't unregister Source metrics JMX bean " + name, e);
+            }
+        }
+        objectNames.clear();
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Concurrent cache Map bounded by the total weight of entries.
+ *
+ * Entries are spread across independently locked LRU segments, so concurrent readers
+ * contend only when hitting the same segment. Entries inserted with {@link #put} always
+ * evict the segment LRU victims while entries inserted with {@link #admit} are subject to
+ * the TinyLFU admission policy: the entry evicts the LRU victims only if it was accessed more
+ * frequently than them, otherwise the new entry is rejected. This way a scan over rarely
+ * used keys doesn't wash out the hot entries. The access frequencies are approximated with a
+ * shared count-min sketch of 4-bit counters which are periodically halved, so the old
+ * popularity fades.
+ *
+ * Replacing the value of an already cached key is always accepted.
+ * Evicted, rejected and replaced entries are reported to the removal listener.
+ * The {@link #entrySet} (and so the key and value views) is a weakly consistent read-only snapshot.
+ */
+public class TinyLfuCache<K, V> extends AbstractMap<K, V> {
+
+    private final Segment[] segments;
+    private final FrequencySketch sketch;
+    private final ToLongBiFunction<K, V> weigher;
+    private final BiConsumer<K, V> removalListener;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param maxWeight max total weight of the cached entries
+     * @param expectedEntries approximate number of entries in the full cache to size the sketch
+     * @param weigher calculates the entry weight
+     * @param removalListener receives evicted, rejected and replaced entries (may be null)
+     */
+    public TinyLfuCache(final long maxWeight, final int expectedEntries, final ToLongBiFunction<K, V> weigher,
+                        final BiConsumer<K, V> removalListener) {
+        this.weigher = weigher;
+        this.removalListener = removalListener;
+        this.sketch = new FrequencySketch(Math.max(expectedEntries, 16));
+        // small caches are not split since the segment LRU would be too short
+        final int segmentCount = expectedEntries >= 1024 ? 16 : 1;
+        segments = new TinyLfuCache.Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(maxWeight / segmentCount);
+        }
+    }
+
+    private static int spread(final int h) {
+        final int x = h * 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+
+    private Segment segmentFor(final int hash) {
+        return segments[(hash >>> 8) & (segments.length - 1)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        final int hash = spread(key.hashCode());
+        sketch.increment(hash);
+        final V ret = segmentFor(hash).get((K) key);
+        if (ret == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return ret;
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        final int hash = spread(key.hashCode());
+        sketch.increment(hash);
+        return segmentFor(hash).put(key, hash, value, weigher.applyAsLong(key, value), true);
+    }
+
+    /**
+     * Puts the entry if it passes the admission policy or if the key is already cached
+     * The frequency of the key is not incremented: the preceding {@link #get} miss has already
+     * accounted the access
+     */
+    public void admit(final K key, final V value) {
+        final int hash = spread(key.hashCode());
+        segmentFor(hash).put(key, hash, value, weigher.applyAsLong(key, value), false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(final Object key) {
+        return segmentFor(spread(key.hashCode())).remove((K) key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return segmentFor(spread(key.hashCode())).contains(key);
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int ret = 0;
+        for (final Segment segment : segments) {
+            ret += segment.size();
+        }
+        return ret;
+    }
+
+    /**
+     * @return the read-only snapshot of the entries, each segment is copied atomically
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        final Set<Entry<K, V>> ret = new LinkedHashSet<>();
+        for (final Segment segment : segments) {
+            segment.snapshot(ret);
+        }
+        return Collections.unmodifiableSet(ret);
+    }
+
+    public long getWeight() {
+        long ret = 0;
+        for (final Segment segment : segments) {
+            ret += segment.weight();
+        }
+        return ret;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    public double getHitRate() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TinyLfuCache[entries: %d, weight: %d, hitRate: %.3f, evictions: %d, rejections: %d]",
+                size(), getWeight(), getHitRate(), getEvictionCount(), getRejectionCount());
+    }
+
+    private void removed(final K key, final V value) {
+        if (removalListener != null) removalListener.accept(key, value);
+    }
+
+    private static final class Node<V> {
+        final V value;
+        final long weight;
+        final int hash;
+
+        Node(final V value, final long weight, final int hash) {
+            this.value = value;
+            this.weight = weight;
+            this.hash = hash;
+        }
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+        private final long maxWeight;
+        private long weight;
+
+        Segment(final long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized V get(final K key) {
+            final Node<V> node = map.get(key);
+            return node == null ? null : node.value;
+        }
+
+        synchronized boolean contains(final Object key) {
+            return map.containsKey(key);
+        }
+
+        synchronized V put(final K key, final int hash, final V value, final long entryWeight, final boolean force) {
+            final Node<V> old = map.get(key);
+            if (old == null) {
+                if (entryWeight > maxWeight || !(force || admit(hash, entryWeight))) {
+                    rejections.increment();
+                    removed(key, value);
+                    return null;
+                }
+            } else {
+                weight -= old.weight;
+                removed(key, old.value);
+            }
+            map.put(key, new Node<>(value, entryWeight, hash));
+            weight += entryWeight;
+            // the replaced value may be heavier
+            evictWhileOverweight(key);
+            return old == null ? null : old.value;
+        }
+
+        /**
+         * Evicts the LRU victims if the candidate is more frequent than each of them
+         * @return false if the candidate should be rejected
+         */
+        private boolean admit(final int hash, final long entryWeight) {
+            if (weight + entryWeight <= maxWeight) return true;
+            final int candidateFreq = sketch.frequency(hash);
+            long freed = 0;
+            int victims = 0;
+            for (final Node<V> victim : map.values()) {
+                if (sketch.frequency(victim.hash) >= candidateFreq) return false;
+                freed += victim.weight;
+                victims++;
+                if (weight - freed + entryWeight <= maxWeight) break;
+            }
+            final Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator();
+            for (int i = 0; i < victims; i++) {
+                final Map.Entry<K, Node<V>> e = it.next();
+                it.remove();
+                weight -= e.getValue().weight;
+                evictions.increment();
+                removed(e.getKey(), e.getValue().value);
+            }
+            return true;
+        }
+
+        private void evictWhileOverweight(final K keep) {
+            final Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                final Map.Entry<K, Node<V>> e = it.next();
+                if (e.getKey().equals(keep)) continue;
+                it.remove();
+                weight -= e.getValue().weight;
+                evictions.increment();
+                removed(e.getKey(), e.getValue().value);
+            }
+        }
+
+        synchronized V remove(final K key) {
+            final Node<V> node = map.remove(key);
+            if (node == null) return null;
+            weight -= node.weight;
+            return node.value;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            weight = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized void snapshot(final Set<Entry<K, V>> entries) {
+            for (final Map.Entry<K, Node<V>> e : map.entrySet()) {
+                entries.add(new SimpleImmutableEntry<>(e.getKey(), e.getValue().value));
+            }
+        }
+
+        synchronized long weight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4 rows of 4-bit saturating counters
+     * The counters are halved each time the number of increments reaches 10x of the table size
+     */
+    static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb1b3e8d1, 0x6ac1e2b1, 0x25b6d25d};
+
+        private final AtomicIntegerArray table;
+        private final int mask;
+        private final long sampleSize;
+        private final AtomicLong additions = new AtomicLong();
+
+        FrequencySketch(final int expectedEntries) {
+            // each int holds 8 counters
+            final int counters = Integer.highestOneBit(Math.max(expectedEntries, 8) - 1) << 1;
+            table = new AtomicIntegerArray(counters / 8 * SEEDS.length);
+            mask = counters - 1;
+            sampleSize = 10L * counters;
+        }
+
+        private int index(final int hash, final int row) {
+            int h = (hash ^ SEEDS[row]) * 0x85ebca6b;
+            h ^= h >>> 15;
+            return (h & mask) + row * (mask + 1);
+        }
+
+        int frequency(final int hash) {
+            int ret = Integer.MAX_VALUE;
+            for (int row = 0; row < SEEDS.length; row++) {
+                ret = Math.min(ret, get(index(hash, row)));
+            }
+            return ret;
+        }
+
+        void increment(final int hash) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                added |= incrementAt(index(hash, row));
+            }
+            if (added && additions.incrementAndGet() == sampleSize) {
+                reset();
+            }
+        }
+
+        private int get(final int counter) {
+            return (table.get(counter >>> 3) >>> ((counter & 7) << 2)) & 0xF;
+        }
+
+        private boolean incrementAt(final int counter) {
+            final int idx = counter >>> 3;
+            final int shift = (counter & 7) << 2;
+            while (true) {
+                final int cur = table.get(idx);
+                if (((cur >>> shift) & 0xF) == 0xF) return false;
+                if (table.compareAndSet(idx, cur, cur + (1 << shift))) return true;
+            }
+        }
+
+        private synchronized void reset() {
+            for (int i = 0; i < table.length(); i++) {
+                while (true) {
+                    final int cur = table.get(i);
+                    // halving each 4-bit counter
+                    if (table.compareAndSet(i, cur, (cur >>> 1) & 0x77777777)) break;
+                }
+            }
+            additions.set(sampleSize / 2);
+        }
+    }
+}
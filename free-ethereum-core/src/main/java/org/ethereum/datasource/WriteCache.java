@@ -30,10 +30,9 @@ import com.googlecode.concurentlocks.ReadWriteUpdateLock;
 import com.googlecode.concurentlocks.ReentrantReadWriteUpdateLock;
 import org.ethereum.util.ALock;
 import org.ethereum.util.ByteArrayMap;
+import org.ethereum.util.HashKeyMap;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Collects changes and propagate them to the backing Source when flush() is called
@@ -71,6 +70,14 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         return this;
     }
 
+    /**
+     * Takes over the entries of another cache of the same kind
+     * The other cache should not be used after that
+     */
+    void moveFrom(final WriteCache<Key, Value> other) {
+        this.cache = other.cache;
+    }
+
     @Override
     public Collection<Key> getModified() {
         try (ALock l = readLock.lock()){
@@ -135,6 +142,52 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         }
     }
 
+    /**
+     * @return the cached value (null if deleted) or the {@link CacheEntry#UNKNOWN_VALUE}
+     * if the value should be looked up in the backing Source
+     */
+    Value lookup(final Key key) {
+        checkByteArrKey(key);
+        try (ALock l = readLock.lock()){
+            final CacheEntry<Value> curVal = cache.get(key);
+            return curVal == null ? unknownValue() : curVal.getValue();
+        }
+    }
+
+    /**
+     * Looks up the keys in the cache and reads the rest from the backing Source as a batch
+     */
+    @Override
+    public List<Value> getBatch(final Collection<Key> keys) {
+        final List<Value> ret = new ArrayList<>(keys.size());
+        final List<Key> missedKeys = new ArrayList<>();
+        final List<Integer> missedIdx = new ArrayList<>();
+        for (final Key key : keys) {
+            final Value value = lookupShard(key).lookup(key);
+            if (value == unknownValue()) {
+                missedIdx.add(ret.size());
+                missedKeys.add(key);
+                ret.add(null);
+            } else {
+                ret.add(value);
+            }
+        }
+        if (!missedKeys.isEmpty() && getSource() != null) {
+            final List<Value> loaded = getBatch(getSource(), missedKeys);
+            for (int i = 0; i < loaded.size(); i++) {
+                ret.set(missedIdx.get(i), loaded.get(i));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the cache containing the key entry (overridden by the sharded cache)
+     */
+    WriteCache<Key, Value> lookupShard(final Key key) {
+        return this;
+    }
+
     @Override
     public void delete(final Key key) {
         checkByteArrKey(key);
@@ -207,7 +260,7 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
         if (checked) return;
 
         if (key instanceof byte[]) {
-            if (!(cache instanceof ByteArrayMap)) {
+            if (!(cache instanceof ByteArrayMap || cache instanceof HashKeyMap)) {
                 throw new RuntimeException("Wrong map/set for byte[] key");
             }
         }
@@ -316,7 +369,7 @@ public class WriteCache<Key, Value> extends AbstractCachedSource<Key, Value> {
 
         public BytesKey(final Source<byte[], V> src, final CacheType cacheType) {
             super(src, cacheType);
-            withCache(new ByteArrayMap<>());
+            withCache(new HashKeyMap<>());
         }
     }
 }
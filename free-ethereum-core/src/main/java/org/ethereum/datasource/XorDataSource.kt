@@ -50,6 +50,10 @@ class XorDataSource<V>
         return source[convertKey(key)]
     }
 
+    override fun getBatch(keys: Collection<ByteArray>): List<V> {
+        return AbstractChainedSource.getBatch(source, keys.map { convertKey(it) })
+    }
+
     override fun put(key: ByteArray, value: V) {
         source.put(convertKey(key), value)
     }
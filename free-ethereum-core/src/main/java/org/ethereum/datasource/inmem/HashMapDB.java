@@ -32,6 +32,7 @@ import org.ethereum.util.ByteArrayMap;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -108,6 +109,13 @@ public class HashMapDB<V> implements DbSource<V> {
         }
     }
 
+    @Override
+    public void forEachEntry(final BiConsumer<byte[], V> consumer) {
+        try (ALock l = readLock.lock()) {
+            storage.forEach(consumer);
+        }
+    }
+
     @Override
     public void updateBatch(final Map<byte[], V> rows) {
         try (ALock l = writeLock.lock()) {
@@ -31,6 +31,7 @@ import org.ethereum.util.ByteArrayMap;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 
 public class HashMapDBSimple<V> implements DbSource<V> {
 
@@ -93,6 +94,11 @@ public class HashMapDBSimple<V> implements DbSource<V> {
         return getStorage().keySet();
     }
 
+    @Override
+    public void forEachEntry(final BiConsumer<byte[], V> consumer) {
+        storage.forEach(consumer);
+    }
+
     @Override
     public void updateBatch(final Map<byte[], V> rows) {
         for (final Map.Entry<byte[], V> entry : rows.entrySet()) {
@@ -26,8 +26,11 @@
 
 package org.ethereum.datasource.leveldb;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
 import org.ethereum.config.SystemProperties;
 import org.ethereum.datasource.DbSource;
+import org.ethereum.util.FastByteComparisons;
 import org.ethereum.util.FileUtil;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
@@ -40,9 +43,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -62,6 +68,13 @@ public class LevelDbDataSource implements DbSource<byte[]> {
     // This ReadWriteLock still permits concurrent execution of insert/delete/update operations
     // however blocks them on init/close/delete operations
     private final ReadWriteLock resetDbLock = new ReentrantReadWriteLock();
+    // min number of keys in getBatch to split reading among several threads
+    private static final int PARALLEL_READ_THRESHOLD = 256;
+    private static final int PARALLEL_READ_CHUNK = 64;
+    // the blocking reads don't go to the common ForkJoinPool
+    private static final ExecutorService readExecutor = Executors.newFixedThreadPool(4,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LevelDbReadThread-%d").build());
+    private boolean parallelReads = true;
     private 
     SystemProperties config = SystemProperties.getDefault(); // initialized for standalone test
     private String name;
@@ -91,15 +104,7 @@ public class LevelDbDataSource implements DbSource<byte[]> {
 
             if (name == null) throw new NullPointerException("no name set to the db");
 
-            final Options options = new Options();
-            options.createIfMissing(true);
-            options.compressionType(CompressionType.NONE);
-            options.blockSize(10 * 1024 * 1024);
-            options.writeBufferSize(10 * 1024 * 1024);
-            options.cacheSize(0);
-            options.paranoidChecks(true);
-            options.verifyChecksums(true);
-            options.maxOpenFiles(32);
+            final Options options = createOptions();
 
             try {
                 logger.debug("Opening database");
@@ -138,6 +143,40 @@ public class LevelDbDataSource implements DbSource<byte[]> {
         }
     }
 
+    /**
+     * Creates the DB options from the 'database.stores.[name]' config
+     * with the missing values taken from 'database.stores.default'
+     */
+    private Options createOptions() {
+        final Options options = new Options();
+        options.createIfMissing(true);
+
+        final Config cfg = config.getConfig();
+        if (!cfg.hasPath("database.stores.default")) {
+            options.paranoidChecks(false);
+            options.verifyChecksums(false);
+            options.compressionType(CompressionType.NONE);
+            options.blockSize(10 * 1024 * 1024);
+            options.writeBufferSize(10 * 1024 * 1024);
+            options.cacheSize(0);
+            options.maxOpenFiles(32);
+            return options;
+        }
+        Config storeCfg = cfg.getConfig("database.stores.default");
+        final String path = "database.stores.\"" + name + "\"";
+        if (cfg.hasPath(path)) {
+            storeCfg = cfg.getConfig(path).withFallback(storeCfg);
+        }
+        options.compressionType(storeCfg.getBoolean("compression") ? CompressionType.SNAPPY : CompressionType.NONE);
+        options.blockSize(storeCfg.getInt("blockSize") * 1024);
+        options.writeBufferSize(storeCfg.getInt("writeBufferSize") * 1024 * 1024);
+        options.cacheSize(storeCfg.getLong("cacheSize") * 1024 * 1024);
+        options.maxOpenFiles(storeCfg.getInt("maxOpenFiles"));
+        options.paranoidChecks(storeCfg.getBoolean("paranoidChecks"));
+        options.verifyChecksums(storeCfg.getBoolean("verifyChecksums"));
+        return options;
+    }
+
     private Path getPath() {
         return Paths.get(config.databaseDir(), name);
     }
@@ -243,6 +282,26 @@ public class LevelDbDataSource implements DbSource<byte[]> {
         }
     }
 
+    @Override
+    public void forEachEntry(final BiConsumer<byte[], byte[]> consumer) {
+        resetDbLock.readLock().lock();
+        try {
+            if (logger.isTraceEnabled()) logger.trace("~> LevelDbDataSource.forEachEntry(): " + name);
+            try (DBIterator iterator = db.iterator()) {
+                for (iterator.seekToFirst(); iterator.hasNext(); iterator.next()) {
+                    final Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                    consumer.accept(entry.getKey(), entry.getValue());
+                }
+                if (logger.isTraceEnabled()) logger.trace("<~ LevelDbDataSource.forEachEntry(): " + name);
+            } catch (final IOException e) {
+                logger.error("Unexpected", e);
+                throw new RuntimeException(e);
+            }
+        } finally {
+            resetDbLock.readLock().unlock();
+        }
+    }
+
     private void updateBatchInternal(final Map<byte[], byte[]> rows) throws IOException {
         try (WriteBatch batch = db.createWriteBatch()) {
             for (final Map.Entry<byte[], byte[]> entry : rows.entrySet()) {
@@ -280,6 +339,76 @@ public class LevelDbDataSource implements DbSource<byte[]> {
         }
     }
 
+    /**
+     * Reads the keys in the sorted order so the consecutive reads mostly hit
+     * the same (already cached) SST blocks. Large batches are split to contiguous
+     * key ranges which are read in parallel if enabled
+     */
+    @Override
+    public List<byte[]> getBatch(final Collection<byte[]> keys) {
+        final byte[][] keyArr = keys.toArray(new byte[keys.size()][]);
+        final Integer[] order = new Integer[keyArr.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (i1, i2) -> FastByteComparisons.compareTo(
+                keyArr[i1], 0, keyArr[i1].length, keyArr[i2], 0, keyArr[i2].length));
+
+        final byte[][] ret = new byte[keyArr.length][];
+        resetDbLock.readLock().lock();
+        try {
+            if (logger.isTraceEnabled()) logger.trace("~> LevelDbDataSource.getBatch(): " + name + ", " + keyArr.length);
+            if (parallelReads && keyArr.length >= PARALLEL_READ_THRESHOLD) {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int start = PARALLEL_READ_CHUNK; start < keyArr.length; start += PARALLEL_READ_CHUNK) {
+                    final int from = start;
+                    futures.add(readExecutor.submit(() -> readChunk(keyArr, order, ret, from)));
+                }
+                // the first chunk is read by the calling thread
+                readChunk(keyArr, order, ret, 0);
+                for (final Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    } catch (final ExecutionException e) {
+                        throw new RuntimeException("Error reading the batch from " + name, e.getCause());
+                    }
+                }
+            } else {
+                for (final Integer idx : order) {
+                    ret[idx] = getInternal(keyArr[idx]);
+                }
+            }
+            if (logger.isTraceEnabled()) logger.trace("<~ LevelDbDataSource.getBatch(): " + name + ", " + keyArr.length);
+        } finally {
+            resetDbLock.readLock().unlock();
+        }
+        return Arrays.asList(ret);
+    }
+
+    private void readChunk(final byte[][] keyArr, final Integer[] order, final byte[][] ret, final int start) {
+        final int end = Math.min(keyArr.length, start + PARALLEL_READ_CHUNK);
+        for (int i = start; i < end; i++) {
+            ret[order[i]] = getInternal(keyArr[order[i]]);
+        }
+    }
+
+    private byte[] getInternal(final byte[] key) {
+        try {
+            return db.get(key);
+        } catch (final DBException e) {
+            logger.warn("Exception. Retrying again...", e);
+            return db.get(key);
+        }
+    }
+
+    /**
+     * Enables/disables reading large {@link #getBatch} requests in several threads
+     */
+    public void setParallelReads(final boolean parallelReads) {
+        this.parallelReads = parallelReads;
+    }
+
     @Override
     public boolean flush() {
         return false;
@@ -0,0 +1,937 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource.segment;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.ethereum.config.SystemProperties;
+import org.ethereum.datasource.DbSource;
+import org.ethereum.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Pure Java append-only DB designed for hash keyed immutable data (state trie nodes, code)
+ *
+ * Records are appended to the memory mapped segment files:
+ *   [crc (4)] [key length (2)] [value length (4), -1 for deleted] [key] [value]
+ * and located via the on-disk open addressing hash index (memory mapped as well):
+ *   [key hash (8)] [segment id (4) | offset in segment (4)]
+ *
+ * The index is persisted with the log position it is consistent with (checkpoint)
+ * on each flush(). On start the log tail after the checkpoint is scanned and applied
+ * to the index, the scan stops at the first incomplete or corrupted record.
+ * The index pages changed between the checkpoints are copied to the heap, on flush()
+ * they are written to the journal before the index file, so the index on disk matches
+ * its checkpoint after an OS crash as well.
+ *
+ * Sealed segments having less than compactionRatio live data are rewritten in background:
+ * live records are appended to the active segment and the old segment file is removed.
+ * Delete markers are dropped by the compaction, so deleted keys may reappear only if
+ * the index is lost and rebuilt from scratch which is harmless for content addressed data
+ */
+public class SegmentLogDataSource implements DbSource<byte[]> {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final int HEADER_SIZE = 10;
+    private static final int DELETED = -1;
+    private static final int SLOT_SIZE = 16;
+    private static final int CHUNK_SLOTS = 1 << 22;
+    private static final long INITIAL_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD = 0.7;
+    private static final int META_MAGIC = 0x5E6106;
+    private static final int JOURNAL_MAGIC = 0x5E6107;
+    private static final int PAGE_SLOTS = 16;
+    private static final int COMPACTION_STEP = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private SystemProperties config = SystemProperties.getDefault();
+    private String name;
+    private Path dir;
+    private boolean alive;
+    private int segmentSize = 256 * 1024 * 1024;
+    private double compactionRatio = 0.5;
+    private boolean backgroundCompaction = true;
+    private ExecutorService compactor;
+
+    private Segment active;
+    private FileChannel indexChannel;
+    private MappedByteBuffer[] indexChunks;
+    // the index pages changed after the checkpoint
+    private final Map<Long, ByteBuffer> dirtyPages = new HashMap<>();
+    // the index without the saved meta is rebuilt on start anyway, so it is written in place
+    private boolean directIndex;
+    // number of index slots, power of 2
+    private long capacity;
+    private long count;
+    // the log location the index is consistent with
+    private long checkpoint;
+
+    public SegmentLogDataSource() {
+    }
+
+    public SegmentLogDataSource(final String name) {
+        this.name = name;
+    }
+
+    public SegmentLogDataSource(final SystemProperties config) {
+        this.config = config;
+    }
+
+    private static long location(final int segment, final int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int segmentId(final long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(final long location) {
+        return (int) location;
+    }
+
+    private static long hash(final byte[] key) {
+        long h = 0xcbf29ce484222325L ^ key.length;
+        for (final byte b : key) {
+            h = (h ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        return h ^ (h >>> 31);
+    }
+
+    private static int crc(final ByteBuffer buf, final int offset, final int size) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer b = buf.duplicate();
+        b.limit(offset + size).position(offset + 4);
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Sets the size of new segment files
+     */
+    public void setSegmentSize(final int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Sets the live data ratio below which the sealed segment is compacted
+     */
+    public void setCompactionRatio(final double compactionRatio) {
+        this.compactionRatio = compactionRatio;
+    }
+
+    public void setBackgroundCompaction(final boolean backgroundCompaction) {
+        this.backgroundCompaction = backgroundCompaction;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void init() {
+        lock.writeLock().lock();
+        try {
+            if (alive) return;
+            if (name == null) throw new NullPointerException("no name set to the db");
+
+            dir = Paths.get(config.databaseDir(), name);
+            Files.createDirectories(dir);
+            openSegments();
+            final boolean indexLoaded = loadIndex();
+            if (!indexLoaded) {
+                logger.info("SegmentLogDataSource: building index for '{}'", name);
+                createIndex(INITIAL_CAPACITY);
+                for (final Segment segment : segments.values()) {
+                    segment.liveBytes = 0;
+                }
+                checkpoint = 0;
+            }
+            recover();
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("SegmentLogCompactor-" + name).build());
+            alive = true;
+            logger.debug("SegmentLogDataSource: '{}' opened, {} keys, {} segments", name, count, segments.size());
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't initialize database " + name, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void openSegments() throws IOException {
+        segments.clear();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (final Path file : files) {
+                final String fileName = file.getFileName().toString();
+                final int id = Integer.parseInt(fileName.substring(0, fileName.length() - 4));
+                segments.put(id, null);
+            }
+        }
+        for (final Integer id : new ArrayList<>(segments.keySet())) {
+            final Path path = segmentPath(id);
+            final boolean last = id.equals(segments.lastKey());
+            segments.put(id, new Segment(id, path, last ? Math.max(segmentSize, (int) Files.size(path)) : (int) Files.size(path)));
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+    }
+
+    private Path segmentPath(final int id) {
+        return dir.resolve(String.format("%08d.seg", id));
+    }
+
+    /**
+     * Scans the log after the checkpoint applying the records to the index
+     */
+    private void recover() throws IOException {
+        final int fromSegment = segmentId(checkpoint);
+        for (final Segment segment : segments.values()) {
+            if (segment.id < fromSegment) continue;
+            final int start = segment.id == fromSegment ? offset(checkpoint) : 0;
+            final int end = scan(segment, start);
+            segment.end = end;
+            if (segment != active) {
+                segment.seal();
+            } else if (end + HEADER_SIZE <= segment.capacity() && segment.buf.getShort(end + 4) != 0) {
+                // incomplete record in the tail
+                logger.warn("SegmentLogDataSource: '{}' truncated at segment {} offset {}", name, segment.id, end);
+                final ByteBuffer b = segment.buf.duplicate();
+                b.position(end);
+                while (b.hasRemaining()) b.put((byte) 0);
+            }
+        }
+        if (active != null) {
+            checkpoint = location(active.id, active.end);
+        }
+    }
+
+    private int scan(final Segment segment, final int start) {
+        final ByteBuffer buf = segment.buf;
+        int off = start;
+        while (off + HEADER_SIZE <= segment.capacity()) {
+            final int keyLen = buf.getShort(off + 4) & 0xFFFF;
+            final int valLen = buf.getInt(off + 6);
+            if (keyLen == 0 || valLen < DELETED) break;
+            final int size = HEADER_SIZE + keyLen + Math.max(valLen, 0);
+            if (off + size > segment.capacity() || off + size < 0) break;
+            if (buf.getInt(off) != crc(buf, off, size)) break;
+
+            final byte[] key = readBytes(buf, off + HEADER_SIZE, keyLen);
+            if (valLen == DELETED) {
+                indexDelete(key);
+            } else {
+                indexPut(key, location(segment.id, off), size);
+            }
+            off += size;
+        }
+        return off;
+    }
+
+    private static byte[] readBytes(final ByteBuffer buf, final int offset, final int len) {
+        final byte[] ret = new byte[len];
+        final ByteBuffer b = buf.duplicate();
+        b.position(offset);
+        b.get(ret);
+        return ret;
+    }
+
+    /*  ---------------- index  ---------------- */
+
+    private boolean loadIndex() throws IOException {
+        final Path metaFile = dir.resolve("index.meta");
+        final Path indexFile = dir.resolve("index");
+        if (!Files.exists(metaFile) || !Files.exists(indexFile)) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(metaFile)))) {
+            if (in.readInt() != META_MAGIC) return false;
+            final long cap = in.readLong();
+            if (Files.size(indexFile) != cap * SLOT_SIZE) return false;
+            final long cnt = in.readLong();
+            final long chk = in.readLong();
+            if (chk != 0 && !segments.containsKey(segmentId(chk))) return false;
+            final int segCount = in.readInt();
+            for (int i = 0; i < segCount; i++) {
+                final Segment segment = segments.get(in.readInt());
+                final long live = in.readLong();
+                if (segment != null) segment.liveBytes = live;
+            }
+            mapIndex(indexFile, cap);
+            count = cnt;
+            checkpoint = chk;
+            replayJournal();
+            return true;
+        } catch (final EOFException e) {
+            logger.warn("SegmentLogDataSource: corrupted index meta for '{}'", name);
+            return false;
+        }
+    }
+
+    private void saveIndexMeta() throws IOException {
+        final Path tmp = dir.resolve("index.meta.tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(META_MAGIC);
+            out.writeLong(capacity);
+            out.writeLong(count);
+            out.writeLong(checkpoint);
+            out.writeInt(segments.size());
+            for (final Segment segment : segments.values()) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.liveBytes);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, dir.resolve("index.meta"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the changed index pages along with the checkpoint they belong to
+     */
+    private void writeJournal() throws IOException {
+        final CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(dir.resolve("index.journal").toFile());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), crc))) {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeLong(capacity);
+            out.writeLong(checkpoint);
+            out.writeInt(dirtyPages.size());
+            for (final Map.Entry<Long, ByteBuffer> page : dirtyPages.entrySet()) {
+                out.writeLong(page.getKey());
+                out.write(page.getValue().array());
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    private void writePages() {
+        for (final Map.Entry<Long, ByteBuffer> page : dirtyPages.entrySet()) {
+            final long slot = page.getKey() * PAGE_SLOTS;
+            final ByteBuffer chunk = indexChunks[(int) (slot / CHUNK_SLOTS)].duplicate();
+            chunk.position((int) (slot % CHUNK_SLOTS) * SLOT_SIZE);
+            chunk.put(page.getValue().array());
+        }
+        for (final MappedByteBuffer chunk : indexChunks) chunk.force();
+        dirtyPages.clear();
+    }
+
+    /**
+     * Completes writing of the index pages if the checkpoint was interrupted after the meta was saved,
+     * otherwise the index file is untouched and the journal is dropped
+     */
+    private void replayJournal() throws IOException {
+        final Path journal = dir.resolve("index.journal");
+        if (!Files.exists(journal)) return;
+        final CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(journal)), crc))) {
+            if (in.readInt() == JOURNAL_MAGIC && in.readLong() == capacity && in.readLong() == checkpoint) {
+                final int pages = in.readInt();
+                for (int i = 0; i < pages; i++) {
+                    final long page = in.readLong();
+                    final byte[] data = new byte[PAGE_SLOTS * SLOT_SIZE];
+                    in.readFully(data);
+                    if (page < 0 || page >= capacity / PAGE_SLOTS) break;
+                    dirtyPages.put(page, ByteBuffer.wrap(data));
+                }
+                final int expected = (int) crc.getValue();
+                if (dirtyPages.size() == pages && in.readInt() == expected) {
+                    logger.info("SegmentLogDataSource: completing index checkpoint of '{}'", name);
+                    writePages();
+                }
+            }
+        } catch (final EOFException e) {
+            logger.warn("SegmentLogDataSource: incomplete index journal of '{}'", name);
+        }
+        dirtyPages.clear();
+        Files.delete(journal);
+    }
+
+    private void createIndex(final long cap) throws IOException {
+        final Path indexFile = dir.resolve("index");
+        Files.deleteIfExists(dir.resolve("index.meta"));
+        Files.deleteIfExists(dir.resolve("index.journal"));
+        Files.deleteIfExists(indexFile);
+        mapIndex(indexFile, cap);
+        count = 0;
+        directIndex = true;
+    }
+
+    private void mapIndex(final Path file, final long cap) throws IOException {
+        if (indexChannel != null) indexChannel.close();
+        indexChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChunks = mapChunks(indexChannel, cap);
+        capacity = cap;
+        dirtyPages.clear();
+    }
+
+    private static MappedByteBuffer[] mapChunks(final FileChannel channel, final long cap) throws IOException {
+        final int chunks = (int) Math.max(1, cap / CHUNK_SLOTS);
+        final long chunkBytes = Math.min(cap, CHUNK_SLOTS) * SLOT_SIZE;
+        final MappedByteBuffer[] ret = new MappedByteBuffer[chunks];
+        for (int i = 0; i < chunks; i++) {
+            ret[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * chunkBytes, chunkBytes);
+        }
+        return ret;
+    }
+
+    private static long slotHash(final MappedByteBuffer[] chunks, final long slot) {
+        return chunks[(int) (slot / CHUNK_SLOTS)].getLong((int) (slot % CHUNK_SLOTS) * SLOT_SIZE);
+    }
+
+    private static long slotLocation(final MappedByteBuffer[] chunks, final long slot) {
+        return chunks[(int) (slot / CHUNK_SLOTS)].getLong((int) (slot % CHUNK_SLOTS) * SLOT_SIZE + 8);
+    }
+
+    private static void setSlot(final MappedByteBuffer[] chunks, final long slot, final long hash, final long location) {
+        final MappedByteBuffer chunk = chunks[(int) (slot / CHUNK_SLOTS)];
+        final int off = (int) (slot % CHUNK_SLOTS) * SLOT_SIZE;
+        chunk.putLong(off, hash);
+        chunk.putLong(off + 8, location);
+    }
+
+    private long slotHash(final long slot) {
+        final ByteBuffer page = dirtyPages.isEmpty() ? null : dirtyPages.get(slot / PAGE_SLOTS);
+        return page == null ? slotHash(indexChunks, slot) : page.getLong((int) (slot % PAGE_SLOTS) * SLOT_SIZE);
+    }
+
+    private long slotLocation(final long slot) {
+        final ByteBuffer page = dirtyPages.isEmpty() ? null : dirtyPages.get(slot / PAGE_SLOTS);
+        return page == null ? slotLocation(indexChunks, slot) : page.getLong((int) (slot % PAGE_SLOTS) * SLOT_SIZE + 8);
+    }
+
+    /**
+     * Copy-on-write update of the index page, the mapped index is only changed on the checkpoint
+     */
+    private void setSlot(final long slot, final long hash, final long location) {
+        if (directIndex) {
+            setSlot(indexChunks, slot, hash, location);
+            return;
+        }
+        final Long pageNum = slot / PAGE_SLOTS;
+        ByteBuffer page = dirtyPages.get(pageNum);
+        if (page == null) {
+            final long first = pageNum * PAGE_SLOTS;
+            final ByteBuffer chunk = indexChunks[(int) (first / CHUNK_SLOTS)].duplicate();
+            chunk.position((int) (first % CHUNK_SLOTS) * SLOT_SIZE);
+            final byte[] data = new byte[PAGE_SLOTS * SLOT_SIZE];
+            chunk.get(data);
+            page = ByteBuffer.wrap(data);
+            dirtyPages.put(pageNum, page);
+        }
+        final int off = (int) (slot % PAGE_SLOTS) * SLOT_SIZE;
+        page.putLong(off, hash);
+        page.putLong(off + 8, location);
+    }
+
+    /**
+     * @return the slot of the key or (-1 - emptySlot) if the key is absent
+     */
+    private long findSlot(final byte[] key, final long hash) {
+        final long mask = capacity - 1;
+        long i = hash & mask;
+        for (long n = 0; n < capacity; n++, i = (i + 1) & mask) {
+            final long loc = slotLocation(i);
+            if (loc == 0) return -1 - i;
+            if (slotHash(i) == hash && keyEquals(loc, key)) return i;
+        }
+        throw new RuntimeException("Index of " + name + " is full");
+    }
+
+    private void indexPut(final byte[] key, final long location, final int size) {
+        final long hash = hash(key);
+        final long slot = findSlot(key, hash);
+        if (slot >= 0) {
+            release(slotLocation(slot));
+            setSlot(slot, hash, location);
+        } else {
+            setSlot(-1 - slot, hash, location);
+            if (++count > capacity * MAX_LOAD) resizeIndex(capacity * 2);
+        }
+        segments.get(segmentId(location)).liveBytes += size;
+    }
+
+    private boolean indexDelete(final byte[] key) {
+        final long slot = findSlot(key, hash(key));
+        if (slot < 0) return false;
+        release(slotLocation(slot));
+        removeSlot(slot);
+        count--;
+        return true;
+    }
+
+    private void release(final long location) {
+        final Segment segment = segments.get(segmentId(location));
+        if (segment != null) segment.liveBytes -= recordSize(segment, offset(location));
+    }
+
+    /**
+     * Linear probing deletion: shifts back the following entries of the probe sequence
+     */
+    private void removeSlot(long slot) {
+        final long mask = capacity - 1;
+        long j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            final long loc = slotLocation(j);
+            if (loc == 0) break;
+            final long hash = slotHash(j);
+            final long ideal = hash & mask;
+            final boolean inRange = slot <= j ? (slot < ideal && ideal <= j) : (slot < ideal || ideal <= j);
+            if (inRange) continue;
+            setSlot(slot, hash, loc);
+            slot = j;
+        }
+        setSlot(slot, 0, 0);
+    }
+
+    private void resizeIndex(final long newCapacity) {
+        try {
+            final Path tmp = dir.resolve("index.tmp");
+            Files.deleteIfExists(tmp);
+            final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final MappedByteBuffer[] chunks = mapChunks(channel, newCapacity);
+            final long mask = newCapacity - 1;
+            for (long i = 0; i < capacity; i++) {
+                final long loc = slotLocation(i);
+                if (loc == 0) continue;
+                final long hash = slotHash(i);
+                long j = hash & mask;
+                while (slotLocation(chunks, j) != 0) j = (j + 1) & mask;
+                setSlot(chunks, j, hash, loc);
+            }
+            for (final MappedByteBuffer chunk : chunks) chunk.force();
+            Files.move(tmp, dir.resolve("index"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexChannel.close();
+            indexChannel = channel;
+            indexChunks = chunks;
+            capacity = newCapacity;
+            // the new index already has the changes after the checkpoint which are idempotent for the replay
+            dirtyPages.clear();
+            if (!directIndex) saveIndexMeta();
+        } catch (final IOException e) {
+            throw new RuntimeException("Error resizing index of " + name, e);
+        }
+    }
+
+    /*  ---------------- log  ---------------- */
+
+    private boolean keyEquals(final long location, final byte[] key) {
+        final Segment segment = segments.get(segmentId(location));
+        if (segment == null) return false;
+        final int off = offset(location);
+        if (off + HEADER_SIZE + key.length > segment.capacity()) return false;
+        final ByteBuffer buf = segment.buf;
+        if ((buf.getShort(off + 4) & 0xFFFF) != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(off + HEADER_SIZE + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static int recordSize(final Segment segment, final int off) {
+        final ByteBuffer buf = segment.buf;
+        return HEADER_SIZE + (buf.getShort(off + 4) & 0xFFFF) + Math.max(buf.getInt(off + 6), 0);
+    }
+
+    private byte[] readValue(final long location) {
+        final Segment segment = segments.get(segmentId(location));
+        final int off = offset(location);
+        final int keyLen = segment.buf.getShort(off + 4) & 0xFFFF;
+        final int valLen = segment.buf.getInt(off + 6);
+        return valLen < 0 ? null : readBytes(segment.buf, off + HEADER_SIZE + keyLen, valLen);
+    }
+
+    private long append(final byte[] key, final byte[] value) {
+        if (key.length == 0 || key.length > 0xFFFF) throw new RuntimeException("Invalid key length: " + key.length);
+        final int size = HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+        if (active == null || active.end + size > active.capacity()) roll(size);
+
+        final int off = active.end;
+        final ByteBuffer b = active.buf.duplicate();
+        b.position(off + 4);
+        b.putShort((short) key.length);
+        b.putInt(value == null ? DELETED : value.length);
+        b.put(key);
+        if (value != null) b.put(value);
+        active.buf.putInt(off, crc(active.buf, off, size));
+        active.end += size;
+        return location(active.id, off);
+    }
+
+    private void roll(final int minSize) {
+        try {
+            final int id;
+            if (active != null) {
+                active.seal();
+                id = active.id + 1;
+            } else {
+                id = 1;
+            }
+            active = new Segment(id, segmentPath(id), Math.max(segmentSize, minSize + HEADER_SIZE));
+            segments.put(id, active);
+            scheduleCompaction();
+        } catch (final IOException e) {
+            throw new RuntimeException("Error creating segment of " + name, e);
+        }
+    }
+
+    /*  ---------------- DbSource  ---------------- */
+
+    @Override
+    public byte[] get(final byte[] key) {
+        lock.readLock().lock();
+        try {
+            checkAlive();
+            final long slot = findSlot(key, hash(key));
+            return slot < 0 ? null : readValue(slotLocation(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<byte[]> getBatch(final Collection<byte[]> keys) {
+        final List<byte[]> ret = new ArrayList<>(keys.size());
+        lock.readLock().lock();
+        try {
+            checkAlive();
+            for (final byte[] key : keys) {
+                final long slot = findSlot(key, hash(key));
+                ret.add(slot < 0 ? null : readValue(slotLocation(slot)));
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(final byte[] key, final byte[] val) {
+        updateBatch(Collections.singletonMap(key, val));
+    }
+
+    @Override
+    public void delete(final byte[] key) {
+        updateBatch(Collections.singletonMap(key, null));
+    }
+
+    @Override
+    public void updateBatch(final Map<byte[], byte[]> rows) {
+        lock.writeLock().lock();
+        try {
+            checkAlive();
+            for (final Map.Entry<byte[], byte[]> entry : rows.entrySet()) {
+                final byte[] key = entry.getKey();
+                final byte[] value = entry.getValue();
+                if (value == null) {
+                    if (findSlot(key, hash(key)) >= 0) {
+                        append(key, null);
+                        indexDelete(key);
+                    }
+                } else {
+                    final long slot = findSlot(key, hash(key));
+                    // the same value for the same hash key is the most common case
+                    if (slot >= 0 && Arrays.equals(value, readValue(slotLocation(slot)))) continue;
+                    final long loc = append(key, value);
+                    indexPut(key, loc, HEADER_SIZE + key.length + value.length);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<byte[]> keys() {
+        final Set<byte[]> ret = new HashSet<>();
+        forEachEntry((k, v) -> ret.add(k));
+        return ret;
+    }
+
+    @Override
+    public void forEachEntry(final BiConsumer<byte[], byte[]> consumer) {
+        lock.readLock().lock();
+        try {
+            checkAlive();
+            for (long i = 0; i < capacity; i++) {
+                final long loc = slotLocation(i);
+                if (loc == 0) continue;
+                final Segment segment = segments.get(segmentId(loc));
+                final int off = offset(loc);
+                final int keyLen = segment.buf.getShort(off + 4) & 0xFFFF;
+                consumer.accept(readBytes(segment.buf, off + HEADER_SIZE, keyLen), readValue(loc));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Syncs the log and the index to the disk
+     */
+    @Override
+    public boolean flush() {
+        lock.writeLock().lock();
+        try {
+            if (!alive) return false;
+            flushImpl();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleCompaction();
+        return true;
+    }
+
+    private void flushImpl() {
+        try {
+            if (active != null) {
+                active.buf.force();
+                checkpoint = location(active.id, active.end);
+            }
+            if (dirtyPages.isEmpty()) {
+                for (final MappedByteBuffer chunk : indexChunks) chunk.force();
+                saveIndexMeta();
+            } else {
+                // the journal completes the index update interrupted after the meta is saved
+                writeJournal();
+                saveIndexMeta();
+                writePages();
+                Files.delete(dir.resolve("index.journal"));
+            }
+            directIndex = false;
+        } catch (final IOException e) {
+            throw new RuntimeException("Error flushing " + name, e);
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (!backgroundCompaction || compactor == null) return;
+        if (!compactionScheduled.compareAndSet(false, true)) return;
+        compactor.submit(() -> {
+            try {
+                compact();
+            } catch (final Exception e) {
+                logger.error("SegmentLogDataSource: compaction of '" + name + "' failed", e);
+            } finally {
+                compactionScheduled.set(false);
+            }
+        });
+    }
+
+    /**
+     * Rewrites the sealed segments having less than compactionRatio of live data
+     * @return number of compacted segments
+     */
+    public int compact() {
+        final List<Segment> candidates = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (!alive) return 0;
+            for (final Segment segment : segments.values()) {
+                // the segments after the checkpoint may be needed for the recovery
+                if (segment == active || segment.id >= segmentId(checkpoint)) continue;
+                if (segment.liveBytes == 0 || segment.liveBytes < segment.end * compactionRatio) candidates.add(segment);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        int ret = 0;
+        for (final Segment segment : candidates) {
+            if (compactSegment(segment)) ret++;
+        }
+        return ret;
+    }
+
+    private boolean compactSegment(final Segment segment) {
+        logger.debug("SegmentLogDataSource: compacting segment {} of '{}', live {} of {} bytes",
+                segment.id, name, segment.liveBytes, segment.end);
+        int off = 0;
+        while (off < segment.end) {
+            lock.writeLock().lock();
+            try {
+                if (!alive) return false;
+                for (int n = 0; n < COMPACTION_STEP && off < segment.end; n++) {
+                    final int size = recordSize(segment, off);
+                    if (segment.buf.getInt(off + 6) != DELETED) {
+                        final long loc = location(segment.id, off);
+                        final byte[] key = readBytes(segment.buf, off + HEADER_SIZE, segment.buf.getShort(off + 4) & 0xFFFF);
+                        final long hash = hash(key);
+                        final long slot = findSlot(key, hash);
+                        if (slot >= 0 && slotLocation(slot) == loc) {
+                            final long newLoc = append(key, readValue(loc));
+                            setSlot(slot, hash, newLoc);
+                            segment.liveBytes -= size;
+                            segments.get(segmentId(newLoc)).liveBytes += size;
+                        }
+                    }
+                    off += size;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            if (!alive) return false;
+            flushImpl();
+            segments.remove(segment.id);
+            segment.close();
+            Files.delete(segment.path);
+            saveIndexMeta();
+            return true;
+        } catch (final IOException e) {
+            throw new RuntimeException("Error removing segment of " + name, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of the keys in the index
+     */
+    public long getKeyCount() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of segment files
+     */
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void checkAlive() {
+        if (!alive) throw new RuntimeException("Database " + name + " is closed");
+    }
+
+    @Override
+    public boolean isAlive() {
+        return alive;
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (!alive) return;
+            flushImpl();
+            alive = false;
+            compactor.shutdownNow();
+            for (final Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            active = null;
+            indexChannel.close();
+            indexChannel = null;
+            indexChunks = null;
+        } catch (final IOException e) {
+            logger.error("Failed to close " + name, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all the DB files and opens an empty DB
+     */
+    public void reset() {
+        close();
+        FileUtil.recursiveDelete(Paths.get(config.databaseDir(), name).toString());
+        init();
+    }
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        MappedByteBuffer buf;
+        int end;
+        long liveBytes;
+
+        Segment(final int id, final Path path, final int size) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // the sealed segments are truncated to their end, the active segment end is found by the scan
+            this.end = (int) channel.size();
+            this.buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        int capacity() {
+            return buf.capacity();
+        }
+
+        /**
+         * Truncates the preallocated file space of the filled segment
+         */
+        void seal() throws IOException {
+            buf.force();
+            channel.truncate(end);
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
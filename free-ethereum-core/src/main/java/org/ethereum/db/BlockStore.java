@@ -58,6 +58,12 @@ public interface BlockStore {
 
     List<Block> getListBlocksEndWith(byte[] hash, long qty);
 
+    /**
+     * Reads several blocks at once
+     * @return blocks in the order of hashes, null for not found blocks
+     */
+    List<Block> getBlocksByHashes(List<byte[]> hashes);
+
     void saveBlock(Block block, BigInteger cummDifficulty, boolean mainChain);
 
     BigInteger getTotalDifficultyForHash(byte[] hash);
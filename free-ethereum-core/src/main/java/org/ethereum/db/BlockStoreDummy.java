@@ -31,6 +31,7 @@ import org.ethereum.core.BlockHeader;
 import org.ethereum.crypto.HashUtil;
 
 import java.math.BigInteger;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -81,6 +82,11 @@ public class BlockStoreDummy implements BlockStore {
         return null;
     }
 
+    @Override
+    public List<Block> getBlocksByHashes(final List<byte[]> hashes) {
+        return Collections.nCopies(hashes.size(), null);
+    }
+
     @Override
     public void saveBlock(final Block block, final BigInteger cummDifficulty, final boolean mainChain) {
 
@@ -0,0 +1,212 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Memory mapped canonical chain index: fixed-width entry per block number
+ * holding the main chain block hash (32 bytes) and its total difficulty (32 bytes, unsigned).
+ *
+ * The file has the entry count header followed by the entries, an entry with the zero hash
+ * means there is no main chain block on that level. Writes go directly to the mapped pages
+ * and become durable on {@link #flush()}. The index is derived data and is reconciled against
+ * the block index by {@link IndexedBlockStore#setCanonicalIndex(CanonicalIndex)} on startup.
+ */
+public class CanonicalIndex implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    static final int HASH_SIZE = 32;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 64;
+    private static final int CHUNK_ENTRIES = 1 << 16;
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+    private volatile long count;
+    private boolean closed = false;
+
+    public CanonicalIndex(final File file) {
+        this.file = file;
+        try {
+            if (file.getParentFile() != null) file.getParentFile().mkdirs();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            count = header.getLong(0);
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't open canonical index " + file, e);
+        }
+    }
+
+    private ByteBuffer entry(final long number) {
+        final int chunk = (int) (number / CHUNK_ENTRIES);
+        MappedByteBuffer buf = chunk < chunks.size() ? chunks.get(chunk) : null;
+        if (buf == null) {
+            synchronized (chunks) {
+                try {
+                    while (chunks.size() <= chunk) {
+                        final long pos = HEADER_SIZE + (long) chunks.size() * CHUNK_ENTRIES * ENTRY_SIZE;
+                        chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, pos, (long) CHUNK_ENTRIES * ENTRY_SIZE));
+                    }
+                } catch (final IOException e) {
+                    throw new RuntimeException("Can't map canonical index " + file, e);
+                }
+                buf = chunks.get(chunk);
+            }
+        }
+        final ByteBuffer ret = buf.duplicate();
+        ret.position((int) (number % CHUNK_ENTRIES) * ENTRY_SIZE);
+        return ret;
+    }
+
+    private static boolean isEmpty(final byte[] hash) {
+        for (final byte b : hash) if (b != 0) return false;
+        return true;
+    }
+
+    /**
+     * @return the number of the highest canonical block plus one
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @return the canonical block hash or null if there is no main chain block on that level
+     */
+    public byte[] getHash(final long number) {
+        if (number < 0 || number >= count) return null;
+        final byte[] ret = new byte[HASH_SIZE];
+        entry(number).get(ret);
+        return isEmpty(ret) ? null : ret;
+    }
+
+    /**
+     * @return the total difficulty of the canonical block or null if there is no main chain block on that level
+     */
+    public BigInteger getTotalDifficulty(final long number) {
+        if (number < 0 || number >= count) return null;
+        final ByteBuffer buf = entry(number);
+        final byte[] hash = new byte[HASH_SIZE];
+        buf.get(hash);
+        if (isEmpty(hash)) return null;
+        final byte[] td = new byte[ENTRY_SIZE - HASH_SIZE];
+        buf.get(td);
+        return new BigInteger(1, td);
+    }
+
+    /**
+     * @return up to maxCount consecutive canonical hashes starting from the number,
+     *         stops at the first level without the main chain block
+     */
+    public List<byte[]> getHashes(final long number, final int maxCount) {
+        final List<byte[]> ret = new ArrayList<>();
+        for (long i = Math.max(number, 0); i < count && ret.size() < maxCount; i++) {
+            final byte[] hash = getHash(i);
+            if (hash == null) break;
+            ret.add(hash);
+        }
+        return ret;
+    }
+
+    /**
+     * Sets the main chain block of the level
+     */
+    public synchronized void set(final long number, final byte[] hash, final BigInteger totalDifficulty) {
+        if (hash.length != HASH_SIZE) throw new RuntimeException("Invalid block hash length: " + hash.length);
+        final byte[] td = totalDifficulty.toByteArray();
+        final int tdLen = td[0] == 0 && td.length > 1 ? td.length - 1 : td.length;
+        if (totalDifficulty.signum() < 0 || tdLen > ENTRY_SIZE - HASH_SIZE) {
+            throw new RuntimeException("Total difficulty doesn't fit canonical index: " + totalDifficulty);
+        }
+        final ByteBuffer buf = entry(number);
+        buf.put(hash);
+        buf.put(new byte[ENTRY_SIZE - HASH_SIZE - tdLen]);
+        buf.put(td, td.length - tdLen, tdLen);
+        if (number >= count) setCount(number + 1);
+    }
+
+    /**
+     * Clears the level, the trailing empty levels are dropped
+     */
+    public synchronized void clear(final long number) {
+        if (number < 0 || number >= count) return;
+        entry(number).put(new byte[ENTRY_SIZE]);
+        long newCount = count;
+        while (newCount > 0 && getHash(newCount - 1) == null) newCount--;
+        if (newCount != count) setCount(newCount);
+    }
+
+    /**
+     * Drops the levels starting from the number
+     */
+    public synchronized void truncate(final long newCount) {
+        if (newCount >= count) return;
+        for (long i = newCount; i < count; i++) entry(i).put(new byte[ENTRY_SIZE]);
+        setCount(newCount);
+    }
+
+    private void setCount(final long newCount) {
+        count = newCount;
+        header.putLong(0, newCount);
+    }
+
+    /**
+     * Flushes the mapped pages to the disk
+     */
+    public synchronized void flush() {
+        for (final MappedByteBuffer chunk : chunks) chunk.force();
+        header.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            flush();
+            channel.close();
+        } catch (final IOException e) {
+            logger.error("Failed to close canonical index " + file, e);
+        }
+    }
+}
@@ -29,28 +29,50 @@ package org.ethereum.db;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.AbstractCachedSource;
 import org.ethereum.datasource.AsyncFlushable;
 import org.ethereum.datasource.DbSource;
 import org.ethereum.listener.CompositeEthereumListener;
 import org.ethereum.listener.EthereumListenerAdapter;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.ethereum.util.RLPList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.spongycastle.util.encoders.Hex;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.Predicate;
 
+/**
+ * Flushes the write caches to the DBs.
+ *
+ * Each flush writes the {@link CommitMarker} of the last block passed to {@link #setCommitted(Block)}
+ * (the last block which state is fully written to the caches) after all the other data of the flush:
+ * with the combined layout it goes to the DB in the same atomic batch, with the separate layout
+ * the 'blockchain' DB is written after the store DBs. So after the unclean shutdown the data
+ * up to the marked block is complete and the startup only needs to roll back the blocks above it
+ */
 public class DbFlushManager {
     private static final Logger logger = LoggerFactory.getLogger("db");
+    public static final byte[] COMMIT_MARKER_KEY = HashUtil.INSTANCE.sha3("Key in blockchain DB with the last fully flushed block".getBytes());
     private final BlockingQueue<Runnable> executorQueue = new ArrayBlockingQueue<>(1);
     private final ExecutorService flushThread = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
             executorQueue, new ThreadFactoryBuilder().setNameFormat("DbFlushManagerThread-%d").build());
     private final List<AbstractCachedSource<byte[], byte[]>> writeCaches = new ArrayList<>();
-    private final AbstractCachedSource<byte[], byte[]> stateDbCache;
+    // the DB level caches flushed after all the write caches
+    private final List<AbstractCachedSource<byte[], byte[]>> dbCaches = new CopyOnWriteArrayList<>();
+    // the 'blockchain' DB cache flushed the last with the commit marker
+    private final AbstractCachedSource<byte[], byte[]> blockchainDbCache;
     private final int commitsCountThreshold;
     private final boolean flushAfterSyncDone;
     private Set<DbSource> dbSources = new HashSet<>();
@@ -58,6 +80,24 @@ public class DbFlushManager {
     private boolean syncDone = false;
     private int commitCount = 0;
     private Future<Boolean> lastFlush = Futures.immediateFuture(false);
+    private CommitMarker lastCommitted;
+
+    // continuous mode: caches are flushed in background by batches of continuousBatchSize
+    // and the sizeThreshold is the hard limit when the import waits for the running flush
+    private boolean continuous;
+    private long continuousBatchSize;
+    // max average DB write rate, bytes per second, 0 - unlimited
+    private long continuousRate;
+    private volatile long nextFlushAllowed = 0;
+
+    // metrics
+    private volatile long flushCount = 0;
+    private volatile long lastFlushBytes = 0;
+    private volatile long lastFlushTime = 0;
+    private volatile long maxFlushTime = 0;
+    private volatile long totalFlushTime = 0;
+    private volatile long backpressureCount = 0;
+    private volatile long backpressureTime = 0;
 
     public DbFlushManager(final SystemProperties config, final Set<DbSource> dbSources, final AbstractCachedSource<byte[], byte[]> stateDbCache) {
         final SystemProperties config1 = config;
@@ -65,7 +105,10 @@ public class DbFlushManager {
         sizeThreshold = config.getConfig().getInt("cache.flush.writeCacheSize") * 1024 * 1024;
         commitsCountThreshold = config.getConfig().getInt("cache.flush.blocks");
         flushAfterSyncDone = config.getConfig().getBoolean("cache.flush.shortSyncFlush");
-        this.stateDbCache = stateDbCache;
+        continuous = config.getConfig().getBoolean("cache.flush.continuous.enabled");
+        continuousBatchSize = config.getConfig().getInt("cache.flush.continuous.batchSize") * 1024L * 1024;
+        continuousRate = config.getConfig().getInt("cache.flush.continuous.rate") * 1024L * 1024;
+        blockchainDbCache = stateDbCache;
     }
 
     @Autowired
@@ -86,10 +129,28 @@ public class DbFlushManager {
         this.sizeThreshold = sizeThreshold;
     }
 
+    /**
+     * Switches the continuous background flushing mode
+     * @param batchSize the write caches size which triggers background flush
+     * @param rate max average DB write rate in bytes per second, 0 - unlimited
+     */
+    public synchronized void setContinuous(final boolean continuous, final long batchSize, final long rate) {
+        this.continuous = continuous;
+        this.continuousBatchSize = batchSize;
+        this.continuousRate = rate;
+    }
+
     public void addCache(final AbstractCachedSource<byte[], byte[]> cache) {
         writeCaches.add(cache);
     }
 
+    /**
+     * Adds the cache sitting right above the DB which is flushed after all the write caches
+     */
+    public void addDbCache(final AbstractCachedSource<byte[], byte[]> cache) {
+        dbCaches.add(cache);
+    }
+
     private long getCacheSize() {
         long ret = 0;
         for (final AbstractCachedSource<byte[], byte[]> writeCache : writeCaches) {
@@ -103,7 +164,20 @@ public class DbFlushManager {
         commit();
     }
 
+    /**
+     * Moves the commit marker to the block with the next flush. Should be called within the
+     * atomic update once the block and its whole state are written to the caches
+     */
+    public synchronized void setCommitted(final Block block) {
+        lastCommitted = new CommitMarker(block.getNumber(), block.getHash(), block.getStateRoot());
+    }
+
     public synchronized void commit() {
+        if (continuous) {
+            commitContinuous();
+            commitCount++;
+            return;
+        }
         final long cacheSize = getCacheSize();
         if (sizeThreshold >= 0 && cacheSize >= sizeThreshold) {
             logger.info("DbFlushManager: flushing db due to write cache size (" + cacheSize + ") reached threshold (" + sizeThreshold + ")");
@@ -119,6 +193,38 @@ public class DbFlushManager {
         commitCount++;
     }
 
+    /**
+     * Starts the background flush if the previous one is complete and there is enough data
+     * collected. Blocks only when the write caches exceed the hard limit
+     * and the previous flush is still running (backpressure)
+     */
+    private void commitContinuous() {
+        final long cacheSize = getCacheSize();
+        if (sizeThreshold >= 0 && cacheSize >= sizeThreshold) {
+            if (!lastFlush.isDone()) {
+                logger.info("DbFlushManager: write cache size (" + cacheSize + ") reached hard limit (" + sizeThreshold + "), waiting for flush");
+                final long s = System.nanoTime();
+                flush();
+                backpressureCount++;
+                backpressureTime += System.nanoTime() - s;
+            } else {
+                flush();
+            }
+            commitCount = 0;
+            return;
+        }
+
+        if (!lastFlush.isDone() || System.currentTimeMillis() < nextFlushAllowed) return;
+
+        if (cacheSize >= continuousBatchSize ||
+                (commitsCountThreshold > 0 && commitCount >= commitsCountThreshold) ||
+                (flushAfterSyncDone && syncDone && cacheSize > 0)) {
+            logger.debug("DbFlushManager: background flush of " + cacheSize + " bytes");
+            flush();
+            commitCount = 0;
+        }
+    }
+
     public synchronized void flushSync() {
         try {
             flush().get();
@@ -136,6 +242,9 @@ public class DbFlushManager {
                 logger.error("Error during last flush", e);
             }
         }
+        final long flushBytes = getCacheSize();
+        // all the data of the committed blocks is in the caches being flushed
+        final CommitMarker marker = lastCommitted;
         logger.debug("Flipping async storages");
         for (final AbstractCachedSource<byte[], byte[]> writeCache : writeCaches) {
             try {
@@ -164,16 +273,132 @@ public class DbFlushManager {
                     ret |= writeCache.flush();
                 }
             }
-            if (stateDbCache != null) {
-                logger.debug("Flushing to DB");
-                stateDbCache.flush();
+            logger.debug("Flushing to DB");
+            for (final AbstractCachedSource<byte[], byte[]> dbCache : dbCaches) {
+                dbCache.flush();
+            }
+            if (blockchainDbCache != null) {
+                if (marker != null) blockchainDbCache.put(COMMIT_MARKER_KEY, marker.getEncoded());
+                blockchainDbCache.flush();
+            }
+            // the DBs syncing their own files (e.g. the segment log index checkpoint)
+            for (final DbSource dbSource : dbSources) {
+                dbSource.flush();
             }
-            logger.info("Flush completed in " + (System.nanoTime() - s) / 1000000 + " ms");
+            final long time = System.nanoTime() - s;
+            logger.info("Flush completed in " + time / 1000000 + " ms");
+            updateFlushStats(flushBytes, time);
 
             return ret;
         });
     }
 
+    private void updateFlushStats(final long bytes, final long time) {
+        lastFlushBytes = bytes;
+        lastFlushTime = time;
+        maxFlushTime = Math.max(maxFlushTime, time);
+        totalFlushTime += time;
+        flushCount++;
+        if (continuousRate > 0) {
+            nextFlushAllowed = System.currentTimeMillis() - time / 1_000_000 + bytes * 1000 / continuousRate;
+        }
+    }
+
+    /**
+     * @return the marker of the last block flushed to the DB or null if there is no one
+     */
+    public CommitMarker getCommitMarker() {
+        if (blockchainDbCache == null) return null;
+        final byte[] encoded = blockchainDbCache.get(COMMIT_MARKER_KEY);
+        return encoded == null ? null : CommitMarker.decode(encoded);
+    }
+
+    /**
+     * Rolls the block store back to the commit marker if the best block is above it,
+     * i.e. the data of the blocks after the marked one might be lost due to the unclean shutdown
+     * @param stateExists checks that the state root node is in the DB
+     * @return true if the blocks were rolled back
+     */
+    public boolean rollbackToCommitMarker(final IndexedBlockStore blockStore, final Predicate<byte[]> stateExists) {
+        final CommitMarker marker = getCommitMarker();
+        if (marker == null) return false;
+        final Block bestBlock = blockStore.getBestBlock();
+        if (bestBlock == null || bestBlock.getNumber() <= marker.getNumber()) return false;
+
+        final Block markerBlock = blockStore.getChainBlockByNumber(marker.getNumber());
+        if (markerBlock == null || !FastByteComparisons.equal(markerBlock.getHash(), marker.getHash()) ||
+                !FastByteComparisons.equal(markerBlock.getStateRoot(), marker.getStateRoot())) {
+            logger.warn("Commit marker {} doesn't match the main chain, rollback skipped", marker);
+            return false;
+        }
+        if (!stateExists.test(marker.getStateRoot())) {
+            throw new RuntimeException("State of the last flushed block " + marker + " is missing in the DB, " +
+                    "the database can't be recovered and has to be reset (database.reset = true)");
+        }
+        logger.warn("Best block #{} is above the last flushed block {}, rolling back", bestBlock.getNumber(), marker);
+        blockStore.rollback(marker.getNumber());
+        flushSync();
+        return true;
+    }
+
+    /**
+     * @return the estimated size of data waiting for flush in the write caches
+     */
+    public long getPendingSize() {
+        return getCacheSize();
+    }
+
+    public boolean isFlushing() {
+        return !lastFlush.isDone();
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * @return the duration of the last flush in nanoseconds
+     */
+    public long getLastFlushTime() {
+        return lastFlushTime;
+    }
+
+    public long getMaxFlushTime() {
+        return maxFlushTime;
+    }
+
+    public long getAvgFlushTime() {
+        final long cnt = flushCount;
+        return cnt == 0 ? 0 : totalFlushTime / cnt;
+    }
+
+    public long getLastFlushBytes() {
+        return lastFlushBytes;
+    }
+
+    /**
+     * @return the number of times the commit waited for a running flush
+     */
+    public long getBackpressureCount() {
+        return backpressureCount;
+    }
+
+    /**
+     * @return total nanoseconds the commits waited for running flushes
+     */
+    public long getBackpressureTime() {
+        return backpressureTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DbFlushManager[pending: %dKb, flushing: %b, flushes: %d, lastFlush: %dms (%dKb), " +
+                        "avgFlush: %dms, maxFlush: %dms, backpressure: %d (%dms)]",
+                getPendingSize() / 1024, isFlushing(), getFlushCount(), getLastFlushTime() / 1_000_000,
+                getLastFlushBytes() / 1024, getAvgFlushTime() / 1_000_000, getMaxFlushTime() / 1_000_000,
+                getBackpressureCount(), getBackpressureTime() / 1_000_000);
+    }
+
     /**
      * Flushes all caches and closes all databases
      */
@@ -190,5 +415,47 @@ public class DbFlushManager {
             }
         }
     }
-}
 
+    /**
+     * The last block which is fully flushed along with its state
+     */
+    public static class CommitMarker {
+        private final long number;
+        private final byte[] hash;
+        private final byte[] stateRoot;
+
+        public CommitMarker(final long number, final byte[] hash, final byte[] stateRoot) {
+            this.number = number;
+            this.hash = hash;
+            this.stateRoot = stateRoot;
+        }
+
+        static CommitMarker decode(final byte[] encoded) {
+            final RLPList rlp = (RLPList) RLP.decode2(encoded).get(0);
+            return new CommitMarker(ByteUtil.byteArrayToLong(rlp.get(0).getRLPData()),
+                    rlp.get(1).getRLPData(), rlp.get(2).getRLPData());
+        }
+
+        public byte[] getEncoded() {
+            return RLP.encodeList(RLP.encodeBigInteger(BigInteger.valueOf(number)),
+                    RLP.encodeElement(hash), RLP.encodeElement(stateRoot));
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public byte[] getStateRoot() {
+            return stateRoot;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number + " (" + Hex.toHexString(hash).substring(0, 6) + ")";
+        }
+    }
+}
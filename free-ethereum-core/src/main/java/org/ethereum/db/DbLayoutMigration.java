@@ -0,0 +1,295 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.core.TransactionInfo;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.CompressionSerializer;
+import org.ethereum.datasource.DataSourceArray;
+import org.ethereum.datasource.DbSource;
+import org.ethereum.datasource.ScalableQuotientFilter;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.XorDataSource;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.util.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Function;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Converts the combined database layout, where all the logical stores share
+ * the single 'blockchain' DB with keys XORed with the store name hash, to the
+ * separate layout where each store has its own DB ('database.layout = separate')
+ *
+ * The separate layout keeps the same key XORing, so the entries are copied as is,
+ * only the store of each entry has to be recognized:
+ * - short keys (array indexes, precompile addresses) have leading zeroes after XORing back
+ * - state entry key is the hash of its value
+ * - block key is the hash of its header
+ * - transaction and journal entries refer to the stored blocks,
+ *   transaction locations refer to the stored receipts
+ * - snapshot keys are longer than hashes
+ * - value compression markers have the known key
+ *
+ * Unrecognized entries are left in the 'blockchain' DB.
+ * Must be run while the node is stopped
+ */
+public class DbLayoutMigration {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    /**
+     * The logical stores created via CommonConfig.blockchainSource()
+     */
+    public static final List<String> STORES = asList("state", "snapshot", "block", "index", "transactions", "journal");
+
+    private static final byte[] SNAPSHOT_META_KEY = HashUtil.INSTANCE.sha3("snapshotRoot".getBytes());
+    private static final byte[] STATE_FILTER_KEY = HashUtil.INSTANCE.sha3("countingStateFilter".getBytes());
+    private static final byte[] STATE_BLOOM_KEY = HashUtil.INSTANCE.sha3("filterKey".getBytes());
+    private static final Set<ByteArrayWrapper> STATE_FILTER_SEGMENT_KEYS = new HashSet<>();
+
+    static {
+        for (int i = 0; i < ScalableQuotientFilter.MAX_SEGMENTS; i++) {
+            STATE_FILTER_SEGMENT_KEYS.add(new ByteArrayWrapper(ScalableQuotientFilter.segmentKey(STATE_FILTER_KEY, i)));
+            STATE_FILTER_SEGMENT_KEYS.add(new ByteArrayWrapper(ScalableQuotientFilter.segmentKey(STATE_BLOOM_KEY, i)));
+        }
+    }
+    private static final int SHORT_KEY_ZEROES = 12;
+    private static final int BATCH_SIZE = 10_000;
+    private static final String BACKUP_DB = "blockchain-combined";
+
+    private final DbSource<byte[]> db;
+    private final Map<String, byte[]> storeKeys = new HashMap<>();
+    private final Map<String, Long> counts = new TreeMap<>();
+
+    public DbLayoutMigration(final DbSource<byte[]> db) {
+        this.db = db;
+        for (final String store : STORES) {
+            storeKeys.put(store, storeKey(store));
+        }
+    }
+
+    public static byte[] storeKey(final String store) {
+        return HashUtil.INSTANCE.sha3(store.getBytes());
+    }
+
+    /**
+     * @return true if the DB contains the block index of the combined layout
+     */
+    public static boolean hasCombinedData(final Source<byte[], byte[]> blockchainDb) {
+        return new XorDataSource<>(blockchainDb, storeKey("index")).get(DataSourceArray.SIZE_KEY) != null;
+    }
+
+    /**
+     * @return true if any of the separate store DBs exists in the database dir
+     */
+    public static boolean hasSeparateData(final SystemProperties config) {
+        for (final String store : STORES) {
+            if (new File(config.databaseDir(), store).isDirectory()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Migrates the 'blockchain' DB in the configured database dir.
+     * The original DB is kept as 'blockchain-combined' to be deleted manually
+     */
+    public static void migrateOffline(final SystemProperties config) {
+        final Path dir = Paths.get(config.databaseDir());
+        if (Files.exists(dir.resolve(BACKUP_DB))) {
+            throw new RuntimeException("The backup of the previous migration '" + dir.resolve(BACKUP_DB) +
+                    "' exists, delete it first");
+        }
+        final LevelDbDataSource srcDb = openDb(config, "blockchain", false);
+        final LevelDbDataSource restDb = openDb(config, "blockchain-migrated", true);
+        final Map<String, DbSource<byte[]>> storeDbs = new HashMap<>();
+
+        new DbLayoutMigration(srcDb).migrate(store -> storeDbs.computeIfAbsent(store, s -> openDb(config, s, true)), restDb);
+
+        srcDb.close();
+        restDb.close();
+        for (final DbSource<byte[]> storeDb : storeDbs.values()) {
+            storeDb.close();
+        }
+
+        try {
+            Files.move(dir.resolve("blockchain"), dir.resolve(BACKUP_DB));
+            Files.move(dir.resolve("blockchain-migrated"), dir.resolve("blockchain"));
+        } catch (final IOException e) {
+            throw new RuntimeException("Error replacing the migrated DB", e);
+        }
+        // the stores of the entries are recognized heuristically, so the original is not deleted
+        logger.info("Database layout migration complete, set 'database.layout = separate' to use it. " +
+                "The original DB is kept in '{}', delete it once the node works fine", dir.resolve(BACKUP_DB));
+    }
+
+    private static LevelDbDataSource openDb(final SystemProperties config, final String name, final boolean reset) {
+        final LevelDbDataSource ret = new LevelDbDataSource(config);
+        ret.setName(name);
+        if (reset) {
+            ret.reset();
+        } else {
+            ret.init();
+        }
+        return ret;
+    }
+
+    /**
+     * Copies the entries of the recognized stores to their DBs and all other entries to the restDb
+     * @return number of copied entries per store, 'unknown' - entries copied to the restDb
+     */
+    public Map<String, Long> migrate(final Function<String, DbSource<byte[]>> storeDbs, final DbSource<byte[]> restDb) {
+        final Map<String, Map<byte[], byte[]>> batches = new HashMap<>();
+        final long[] total = new long[1];
+        counts.clear();
+        db.forEachEntry((key, value) -> {
+            String store = detectStore(key, value);
+            if (store == null) store = "unknown";
+            counts.merge(store, 1L, Long::sum);
+            final Map<byte[], byte[]> batch = batches.computeIfAbsent(store, s -> new HashMap<>());
+            batch.put(key, value);
+            if (batch.size() >= BATCH_SIZE) {
+                writeBatch(store, batch, storeDbs, restDb);
+            }
+            if (++total[0] % 1_000_000 == 0) {
+                logger.info("Migrating DB layout: {} entries copied {}", total[0], counts);
+            }
+        });
+        for (final Map.Entry<String, Map<byte[], byte[]>> entry : batches.entrySet()) {
+            writeBatch(entry.getKey(), entry.getValue(), storeDbs, restDb);
+        }
+        logger.info("Migrating DB layout: {} entries copied {}", total[0], counts);
+        if (counts.containsKey("unknown")) {
+            logger.warn("Migrating DB layout: {} unrecognized entries left in the 'blockchain' DB", counts.get("unknown"));
+        }
+        return counts;
+    }
+
+    private static void writeBatch(final String store, final Map<byte[], byte[]> batch,
+                                   final Function<String, DbSource<byte[]>> storeDbs, final DbSource<byte[]> restDb) {
+        if (batch.isEmpty()) return;
+        ("unknown".equals(store) ? restDb : storeDbs.apply(store)).updateBatch(batch);
+        batch.clear();
+    }
+
+    /**
+     * @return the store name of the combined DB entry or null if not recognized
+     */
+    String detectStore(final byte[] key, final byte[] value) {
+        if (key.length > 32) return "snapshot";
+        if (key.length < 32) return null;
+
+        for (final String store : STORES) {
+            final byte[] storeKey = unxor(key, store);
+            if (leadingZeroes(storeKey) >= SHORT_KEY_ZEROES ||
+                    FastByteComparisons.equal(storeKey, CompressionSerializer.MARKER_KEY)) return store;
+        }
+
+        final byte[] stateKey = unxor(key, "state");
+        if (isStateEntry(stateKey, value) || FastByteComparisons.equal(stateKey, STATE_FILTER_KEY) ||
+                FastByteComparisons.equal(stateKey, STATE_BLOOM_KEY) ||
+                STATE_FILTER_SEGMENT_KEYS.contains(new ByteArrayWrapper(stateKey))) return "state";
+        if (FastByteComparisons.equal(unxor(key, "snapshot"), SNAPSHOT_META_KEY)) return "snapshot";
+        if (isBlock(unxor(key, "block"), value)) return "block";
+        if (isTransactionLocations(value) || isTransactionInfos(value)) return "transactions";
+        if (blockExists(unxor(key, "journal"))) return "journal";
+        return null;
+    }
+
+    private byte[] unxor(final byte[] key, final String store) {
+        return ByteUtil.xor(key, storeKeys.get(store));
+    }
+
+    private boolean blockExists(final byte[] hash) {
+        return db.get(ByteUtil.xor(hash, storeKeys.get("block"))) != null;
+    }
+
+    private static int leadingZeroes(final byte[] key) {
+        int i = 0;
+        while (i < key.length && key[i] == 0) i++;
+        return i;
+    }
+
+    private static boolean isStateEntry(final byte[] key, final byte[] value) {
+        if (value.length == 0) return false;
+        try {
+            // the state values are prefixed with the reference counter
+            final int valueStart = RLP.decode(value, 0).getPos();
+            return FastByteComparisons.equal(key, HashUtil.INSTANCE.sha3(value, valueStart, value.length - valueStart));
+        } catch (final RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBlock(final byte[] key, final byte[] value) {
+        try {
+            return FastByteComparisons.equal(key, new Block(value).getHash());
+        } catch (final RuntimeException e) {
+            return false;
+        }
+    }
+
+    private boolean isTransactionLocations(final byte[] value) {
+        if (value.length == 0 || value.length % TransactionStore.LOCATION_SIZE != 0) return false;
+        final ByteBuffer buf = ByteBuffer.wrap(value);
+        for (int i = 0; i < value.length; i += TransactionStore.LOCATION_SIZE) {
+            final byte[] receiptsKey = TransactionStore.receiptsKey(buf.getLong(i), buf.getLong(i + 8));
+            if (db.get(ByteUtil.xorAlignRight(receiptsKey, storeKeys.get("transactions"))) == null) return false;
+        }
+        return true;
+    }
+
+    private boolean isTransactionInfos(final byte[] value) {
+        try {
+            final RLPList infoList = (RLPList) RLP.decode2(value).get(0);
+            if (infoList.isEmpty()) return false;
+            for (final RLPElement info : infoList) {
+                if (!blockExists(new TransactionInfo(info.getRLPData()).getBlockHash())) return false;
+            }
+            return true;
+        } catch (final RuntimeException e) {
+            return false;
+        }
+    }
+
+    public static void main(final String[] args) {
+        final SystemProperties config = SystemProperties.getDefault();
+        if (args.length > 0) config.setDataBaseDir(args[0]);
+        migrateOffline(config);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.datasource.DbSource;
+import org.ethereum.util.ByteArraySet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Set of byte[] keys which may not fit into memory.
+ * Added keys are collected in memory and are written to the backing DB
+ * in batches when the buffer limit is reached
+ */
+public class DiskHashSet {
+    private static final byte[] PRESENT = {1};
+
+    private final DbSource<byte[]> db;
+    private final int bufferSize;
+    private ByteArraySet buffer = new ByteArraySet();
+    private long size;
+
+    public DiskHashSet(final DbSource<byte[]> db, final int bufferSize) {
+        this.db = db;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return true if the key was not in the set
+     */
+    public synchronized boolean add(final byte[] key) {
+        if (contains(key)) return false;
+        buffer.add(key);
+        size++;
+        if (buffer.size() >= bufferSize) flush();
+        return true;
+    }
+
+    public synchronized boolean contains(final byte[] key) {
+        return buffer.contains(key) || db.get(key) != null;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized void flush() {
+        if (buffer.isEmpty()) return;
+        final Map<byte[], byte[]> batch = new HashMap<>();
+        for (final byte[] key : buffer) {
+            batch.put(key, PRESENT);
+        }
+        db.updateBatch(batch);
+        buffer = new ByteArraySet();
+    }
+}
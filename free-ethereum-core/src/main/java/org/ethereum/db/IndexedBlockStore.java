@@ -26,6 +26,7 @@
 
 package org.ethereum.db;
 
+import org.apache.commons.collections4.map.LRUMap;
 import org.ethereum.core.Block;
 import org.ethereum.core.BlockHeader;
 import org.ethereum.crypto.HashUtil;
@@ -33,6 +34,7 @@ import org.ethereum.datasource.DataSourceArray;
 import org.ethereum.datasource.ObjectDataSource;
 import org.ethereum.datasource.Serializer;
 import org.ethereum.datasource.Source;
+import org.ethereum.db.freezer.BlockFreezer;
 import org.ethereum.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,7 +42,12 @@ import org.slf4j.LoggerFactory;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 import static java.math.BigInteger.ZERO;
 import static org.spongycastle.util.Arrays.areEqual;
@@ -88,10 +95,31 @@ public class IndexedBlockStore extends AbstractBlockstore{
         }
     };
     private static final Logger logger = LoggerFactory.getLogger("general");
+    private static final byte FROZEN_REF_PREFIX = 0;
+    private static final int DEFAULT_CACHE_SIZE = 512;
     Source<byte[], byte[]> indexDS;
     Source<byte[], byte[]> blocksDS;
     private DataSourceArray<List<BlockInfo>> index;
     private ObjectDataSource<Block> blocks;
+    private BlockFreezer freezer;
+    private CanonicalIndex canonical;
+
+    /**
+     * Decoded main chain blocks by number, a level is evicted when it's written.
+     * The version is bumped on each eviction so a reader which looked up the block
+     * before a concurrent mutation doesn't put the stale block back
+     */
+    private Map<Long, Block> chainBlockCache = new LRUMap<>(DEFAULT_CACHE_SIZE);
+    private long chainBlockCacheVersion = 0;
+    private Map<ByteArrayWrapper, BlockHeader> headerCache = Collections.synchronizedMap(new LRUMap<>(DEFAULT_CACHE_SIZE));
+
+    /**
+     * Mutations are serialized by the write lock. The level lists returned by the index are never
+     * modified in place (writers put a modified copy) so readers either go optimistically without
+     * blocking or fall back to the read lock when a mutation interleaved.
+     * Blocks are immutable and addressed by hash, hash lookups don't take the lock at all
+     */
+    private final StampedLock lock = new StampedLock();
 
     public IndexedBlockStore(){
     }
@@ -105,6 +133,17 @@ public class IndexedBlockStore extends AbstractBlockstore{
     }
 
     public void init(final Source<byte[], byte[]> index, final Source<byte[], byte[]> blocks) {
+        init(index, blocks, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param blockCacheSize the number of decoded blocks cached by hash and separately by main chain number
+     * @param headerCacheSize the number of block headers cached by hash
+     */
+    public void init(final Source<byte[], byte[]> index, final Source<byte[], byte[]> blocks,
+                     final int blockCacheSize, final int headerCacheSize) {
+        chainBlockCache = new LRUMap<>(blockCacheSize);
+        headerCache = Collections.synchronizedMap(new LRUMap<>(headerCacheSize));
         indexDS = index;
         this.index = new DataSourceArray<>(
                 new ObjectDataSource<>(index, BLOCK_INFO_SERIALIZER, 512));
@@ -117,52 +156,225 @@ public class IndexedBlockStore extends AbstractBlockstore{
 
             @Override
             public Block deserialize(final byte[] bytes) {
-                return bytes == null ? null : new Block(bytes);
+                if (bytes == null) return null;
+                final long frozenNumber = decodeFrozenRef(bytes);
+                return frozenNumber < 0 ? new Block(bytes) : getFrozenBlock(frozenNumber);
+            }
+        }, blockCacheSize);
+    }
+
+    /**
+     * Runs the reader optimistically, repeats it under the read lock
+     * if a mutation happened meanwhile
+     */
+    private <T> T read(final Supplier<T> reader) {
+        final long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                final T ret = reader.get();
+                if (lock.validate(stamp)) return ret;
+            } catch (final RuntimeException e) {
+                // inconsistent view of a concurrent mutation
+                if (lock.validate(stamp)) throw e;
+            }
+        }
+        final long readStamp = lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(readStamp);
+        }
+    }
+
+    private void write(final Runnable writer) {
+        final long stamp = lock.writeLock();
+        try {
+            writer.run();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sets the ancient store which keeps the old canonical blocks
+     */
+    public void setFreezer(final BlockFreezer freezer) {
+        this.freezer = freezer;
+    }
+
+    /**
+     * Sets the memory mapped main chain index used for the lookups by number.
+     * The index is brought in line with the block index: the levels which
+     * were not flushed together with the block index are rewritten
+     */
+    public void setCanonicalIndex(final CanonicalIndex canonical) {
+        write(() -> {
+            this.canonical = canonical;
+            if (canonical == null) return;
+
+            final long size = index.size();
+            canonical.truncate(size);
+
+            long fixed = 0;
+            for (long level = canonical.size() - 1; level >= 0; level--) {
+                final BlockInfo main = getMainChainInfo(getBlockInfoForLevel(level));
+                if (main != null && FastByteComparisons.equal(main.getHash(), canonical.getHash(level)) &&
+                        main.getCummDifficulty().equals(canonical.getTotalDifficulty(level))) {
+                    break;
+                }
+                updateCanonical(level, main);
+                fixed++;
+            }
+            for (long level = canonical.size(); level < size; level++) {
+                updateCanonical(level, getMainChainInfo(getBlockInfoForLevel(level)));
+                fixed++;
+            }
+            if (fixed > 0) {
+                logger.info("Canonical index updated: {} levels rewritten, {} levels total", fixed, canonical.size());
+                canonical.flush();
+            }
+        });
+    }
+
+    private static BlockInfo getMainChainInfo(final List<BlockInfo> infos) {
+        if (infos == null) return null;
+        for (final BlockInfo info : infos) {
+            if (info.isMainChain()) return info;
+        }
+        return null;
+    }
+
+    private void updateCanonical(final long level, final BlockInfo main) {
+        if (main == null) {
+            canonical.clear(level);
+        } else {
+            canonical.set(level, main.getHash(), main.getCummDifficulty());
+        }
+    }
+
+    /**
+     * The frozen block entry in the blocks store is replaced with its number
+     * prefixed with zero byte (can't be a valid block RLP)
+     */
+    private static byte[] encodeFrozenRef(final long number) {
+        return ByteUtil.merge(new byte[] {FROZEN_REF_PREFIX}, ByteUtil.longToBytes(number));
+    }
+
+    private static long decodeFrozenRef(final byte[] bytes) {
+        return bytes.length == 9 && bytes[0] == FROZEN_REF_PREFIX ? ByteUtil.byteArrayToLong(Arrays.copyOfRange(bytes, 1, 9)) : -1;
+    }
+
+    private Block getFrozenBlock(final long number) {
+        if (freezer == null) throw new RuntimeException("Block #" + number + " is frozen but the freezer is disabled");
+        return freezer.getBlock(number);
+    }
+
+    /**
+     * Replaces the canonical block of the frozen level with the reference to the freezer
+     * and drops the fork blocks of that level
+     * @return hashes of the dropped fork blocks
+     */
+    public List<byte[]> blockFrozen(final long number, final byte[] hash) {
+        final List<byte[]> dropped = new ArrayList<>();
+        write(() -> {
+            final List<BlockInfo> infos = getBlockInfoForLevel(number);
+            if (infos == null) return;
+            final List<BlockInfo> canonical = new ArrayList<>(1);
+            for (final BlockInfo info : infos) {
+                if (FastByteComparisons.equal(info.getHash(), hash)) {
+                    canonical.add(info);
+                    blocksDS.put(hash, encodeFrozenRef(number));
+                } else {
+                    blocks.delete(info.getHash());
+                    headerCache.remove(new ByteArrayWrapper(info.getHash()));
+                    dropped.add(info.getHash());
+                }
             }
-        }, 512);
+            setBlockInfoForLevel(number, canonical);
+        });
+        return dropped;
     }
 
-    public synchronized Block getBestBlock(){
+    /**
+     * Drops all the blocks above the number, so the block of that number on the main chain
+     * becomes the best one. The blocks are not frozen yet since they are above the best block
+     */
+    public void rollback(final long number) {
+        write(() -> {
+            final long size = index.size();
+            for (long level = number + 1; level < size; level++) {
+                final List<BlockInfo> infos = getBlockInfoForLevel(level);
+                if (infos == null) continue;
+                for (final BlockInfo info : infos) {
+                    blocks.delete(info.getHash());
+                    headerCache.remove(new ByteArrayWrapper(info.getHash()));
+                }
+            }
+            index.truncate((int) (number + 1));
+            if (canonical != null) canonical.truncate(number + 1);
+            synchronized (chainBlockCache) {
+                chainBlockCache.clear();
+                chainBlockCacheVersion++;
+            }
+        });
+    }
+
+    public Block getBestBlock(){
+        return read(this::getBestBlockInner);
+    }
+
+    private Block getBestBlockInner() {
 
         Long maxLevel = getMaxNumber();
         if (maxLevel < 0) return null;
 
-        Block bestBlock = getChainBlockByNumber(maxLevel);
+        Block bestBlock = getChainBlockByNumberInner(maxLevel);
         if (bestBlock != null) return  bestBlock;
 
         // That scenario can happen
         // if there is a fork branch that is
         // higher than main branch but has
         // less TD than the main branch TD
-        while (bestBlock == null){
+        while (bestBlock == null && maxLevel > 0){
             --maxLevel;
-            bestBlock = getChainBlockByNumber(maxLevel);
+            bestBlock = getChainBlockByNumberInner(maxLevel);
         }
 
         return bestBlock;
     }
 
-    public synchronized byte[] getBlockHashByNumber(final long blockNumber) {
-        final Block chainBlock = getChainBlockByNumber(blockNumber);
-        return chainBlock == null ? null : chainBlock.getHash(); // FIXME: can be improved by accessing the hash directly in the index
+    public byte[] getBlockHashByNumber(final long blockNumber) {
+        return read(() -> {
+            if (canonical != null) return canonical.getHash(blockNumber);
+            if (freezer != null && freezer.isFrozen(blockNumber)) return freezer.getHash(blockNumber);
+            final Block chainBlock = getChainBlockByNumberInner(blockNumber);
+            return chainBlock == null ? null : chainBlock.getHash(); // FIXME: can be improved by accessing the hash directly in the index
+        });
     }
 
     @Override
-    public synchronized void flush(){
-        blocks.flush();
-        index.flush();
-        blocksDS.flush();
-        indexDS.flush();
+    public void flush(){
+        // doesn't change the content, only excludes the mutations
+        final long stamp = lock.readLock();
+        try {
+            blocks.flush();
+            index.flush();
+            blocksDS.flush();
+            indexDS.flush();
+            if (canonical != null) canonical.flush();
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     @Override
-    public synchronized void saveBlock(final Block block, final BigInteger cummDifficulty, final boolean mainChain) {
-        addInternalBlock(block, cummDifficulty, mainChain);
+    public void saveBlock(final Block block, final BigInteger cummDifficulty, final boolean mainChain) {
+        write(() -> addInternalBlock(block, cummDifficulty, mainChain));
     }
 
     private void addInternalBlock(final Block block, final BigInteger cummDifficulty, final boolean mainChain) {
 
-        List<BlockInfo> blockInfos = block.getNumber() >= index.size() ?  null : index.get((int) block.getNumber());
+        List<BlockInfo> blockInfos = block.getNumber() >= index.size() ?  null : copyLevel(index.get((int) block.getNumber()));
         blockInfos = blockInfos == null ? new ArrayList<>() : blockInfos;
 
         final BlockInfo blockInfo = new BlockInfo();
@@ -171,7 +383,7 @@ public class IndexedBlockStore extends AbstractBlockstore{
         blockInfo.setMainChain(mainChain); // FIXME:maybe here I should force reset main chain for all uncles on that level
 
         putBlockInfo(blockInfos, blockInfo);
-        index.set((int) block.getNumber(), blockInfos);
+        setBlockInfoForLevel(block.getNumber(), blockInfos);
 
         blocks.put(block.getHash(), block);
     }
@@ -187,32 +399,59 @@ public class IndexedBlockStore extends AbstractBlockstore{
         blockInfos.add(blockInfo);
     }
 
-    public synchronized List<Block> getBlocksByNumber(final long number) {
+    public List<Block> getBlocksByNumber(final long number) {
+        return read(() -> {
 
-        final List<Block> result = new ArrayList<>();
+            final List<Block> result = new ArrayList<>();
 
-        if (number >= index.size()) {
-            return result;
-        }
+            if (number >= index.size()) {
+                return result;
+            }
 
-        final List<BlockInfo> blockInfos = index.get((int) number);
+            final List<BlockInfo> blockInfos = index.get((int) number);
 
-        if (blockInfos == null) {
-            return result;
-        }
+            if (blockInfos == null) {
+                return result;
+            }
 
-        for (final BlockInfo blockInfo : blockInfos) {
+            for (final BlockInfo blockInfo : blockInfos) {
 
-            final byte[] hash = blockInfo.getHash();
-            final Block block = blocks.get(hash);
+                final byte[] hash = blockInfo.getHash();
+                final Block block = blocks.get(hash);
 
-            result.add(block);
-        }
-        return result;
+                result.add(block);
+            }
+            return result;
+        });
     }
 
     @Override
-    public synchronized Block getChainBlockByNumber(final long number) {
+    public Block getChainBlockByNumber(final long number) {
+        return read(() -> getChainBlockByNumberInner(number));
+    }
+
+    private Block getChainBlockByNumberInner(final long number) {
+        final long version;
+        synchronized (chainBlockCache) {
+            final Block cached = chainBlockCache.get(number);
+            if (cached != null) return cached;
+            version = chainBlockCacheVersion;
+        }
+        final Block ret = getChainBlockByNumberUncached(number);
+        if (ret != null) {
+            synchronized (chainBlockCache) {
+                if (version == chainBlockCacheVersion) chainBlockCache.put(number, ret);
+            }
+        }
+        return ret;
+    }
+
+    private Block getChainBlockByNumberUncached(final long number) {
+        if (freezer != null && freezer.isFrozen(number)) return freezer.getBlock(number);
+        if (canonical != null) {
+            final byte[] hash = canonical.getHash(number);
+            return hash == null ? null : blocks.get(hash);
+        }
         if (number >= index.size()){
             return null;
         }
@@ -236,78 +475,86 @@ public class IndexedBlockStore extends AbstractBlockstore{
     }
 
     @Override
-    public synchronized Block getBlockByHash(final byte[] hash) {
+    public Block getBlockByHash(final byte[] hash) {
         return blocks.get(hash);
     }
 
     @Override
-    public synchronized boolean isBlockExist(final byte[] hash) {
+    public boolean isBlockExist(final byte[] hash) {
         return blocks.get(hash) != null;
     }
 
     @Override
-    public synchronized BigInteger getTotalDifficultyForHash(final byte[] hash) {
+    public BigInteger getTotalDifficultyForHash(final byte[] hash) {
         final Block block = this.getBlockByHash(hash);
         if (block == null) return ZERO;
 
-        final Long level = block.getNumber();
-        final List<BlockInfo> blockInfos = index.get(level.intValue());
-        for (final BlockInfo blockInfo : blockInfos)
-                 if (areEqual(blockInfo.getHash(), hash)) {
-                     return blockInfo.cummDifficulty;
-                 }
+        return read(() -> {
+            final List<BlockInfo> blockInfos = getBlockInfoForLevel(block.getNumber());
+            for (final BlockInfo blockInfo : blockInfos)
+                     if (areEqual(blockInfo.getHash(), hash)) {
+                         return blockInfo.cummDifficulty;
+                     }
 
-        return ZERO;
+            return ZERO;
+        });
     }
 
     @Override
-    public synchronized BigInteger getTotalDifficulty(){
-        long maxNumber = getMaxNumber();
+    public BigInteger getTotalDifficulty(){
+        return read(() -> {
+            if (canonical != null && canonical.size() > 0) return canonical.getTotalDifficulty(canonical.size() - 1);
 
-        final List<BlockInfo> blockInfos = index.get((int) maxNumber);
-        for (final BlockInfo blockInfo : blockInfos) {
-            if (blockInfo.isMainChain()){
-                return blockInfo.getCummDifficulty();
+            long maxNumber = getMaxNumber();
+
+            final List<BlockInfo> blockInfos = index.get((int) maxNumber);
+            for (final BlockInfo blockInfo : blockInfos) {
+                if (blockInfo.isMainChain()){
+                    return blockInfo.getCummDifficulty();
+                }
             }
-        }
 
-        while (true){
-            --maxNumber;
-            final List<BlockInfo> infos = getBlockInfoForLevel(maxNumber);
+            while (true){
+                --maxNumber;
+                final List<BlockInfo> infos = getBlockInfoForLevel(maxNumber);
 
-            for (final BlockInfo blockInfo : infos) {
-                if (blockInfo.isMainChain()) {
-                    return blockInfo.getCummDifficulty();
+                for (final BlockInfo blockInfo : infos) {
+                    if (blockInfo.isMainChain()) {
+                        return blockInfo.getCummDifficulty();
+                    }
                 }
             }
-        }
+        });
     }
 
-    public synchronized void updateTotDifficulties(final long index) {
-        final List<BlockInfo> level = getBlockInfoForLevel(index);
-        for (final BlockInfo blockInfo : level) {
-            final Block block = getBlockByHash(blockInfo.getHash());
-            final List<BlockInfo> parentInfos = getBlockInfoForLevel(index - 1);
-            final BlockInfo parentInfo = getBlockInfoForHash(parentInfos, block.getParentHash());
-            blockInfo.setCummDifficulty(parentInfo.getCummDifficulty().add(block.getDifficultyBI()));
-        }
-        this.index.set((int) index, level);
+    public void updateTotDifficulties(final long index) {
+        write(() -> {
+            final List<BlockInfo> level = copyLevel(getBlockInfoForLevel(index));
+            for (final BlockInfo blockInfo : level) {
+                final Block block = getBlockByHash(blockInfo.getHash());
+                final List<BlockInfo> parentInfos = getBlockInfoForLevel(index - 1);
+                final BlockInfo parentInfo = getBlockInfoForHash(parentInfos, block.getParentHash());
+                blockInfo.setCummDifficulty(parentInfo.getCummDifficulty().add(block.getDifficultyBI()));
+            }
+            setBlockInfoForLevel(index, level);
+        });
     }
 
     @Override
-    public synchronized long getMaxNumber(){
+    public long getMaxNumber(){
 
         Long bestIndex = 0L;
 
-        if (index.size() > 0){
-            bestIndex = (long) index.size();
+        final int size = index.size();
+        if (size > 0){
+            bestIndex = (long) size;
         }
 
         return bestIndex - 1L;
     }
 
     @Override
-    public synchronized List<byte[]> getListHashesEndWith(final byte[] hash, final long number) {
+    public List<byte[]> getListHashesEndWith(final byte[] hash, final long number) {
 
         final List<Block> blocks = getListBlocksEndWith(hash, number);
         final List<byte[]> hashes = new ArrayList<>(blocks.size());
@@ -320,20 +567,44 @@ public class IndexedBlockStore extends AbstractBlockstore{
     }
 
     @Override
-    public synchronized List<BlockHeader> getListHeadersEndWith(final byte[] hash, final long qty) {
+    public List<BlockHeader> getListHeadersEndWith(final byte[] hash, final long qty) {
 
-        final List<Block> blocks = getListBlocksEndWith(hash, qty);
-        final List<BlockHeader> headers = new ArrayList<>(blocks.size());
+        BlockHeader header = getHeaderByHash(hash);
+        if (header == null) return new ArrayList<>();
 
-        for (final Block b : blocks) {
-            headers.add(b.getHeader());
+        final List<BlockHeader> headers = new ArrayList<>((int) qty);
+
+        for (int i = 0; i < qty; ++i) {
+            headers.add(header);
+            header = getHeaderByHash(header.getParentHash());
+            if (header == null) break;
         }
 
         return headers;
     }
 
+    /**
+     * @return the header of any stored block, the recent headers are served from the cache
+     */
+    public BlockHeader getHeaderByHash(final byte[] hash) {
+        final ByteArrayWrapper key = new ByteArrayWrapper(hash);
+        BlockHeader ret = headerCache.get(key);
+        if (ret == null) {
+            final Block block = blocks.get(hash);
+            if (block == null) return null;
+            ret = block.getHeader();
+            headerCache.put(key, ret);
+        }
+        return ret;
+    }
+
+    @Override
+    public List<Block> getBlocksByHashes(final List<byte[]> hashes) {
+        return blocks.getBatch(hashes);
+    }
+
     @Override
-    public synchronized List<Block> getListBlocksEndWith(final byte[] hash, final long qty) {
+    public List<Block> getListBlocksEndWith(final byte[] hash, final long qty) {
         return getListBlocksEndWithInner(hash, qty);
     }
 
@@ -355,9 +626,13 @@ public class IndexedBlockStore extends AbstractBlockstore{
     }
 
     @Override
-    public synchronized void reBranch(final Block forkBlock) {
+    public void reBranch(final Block forkBlock) {
+        write(() -> reBranchInner(forkBlock));
+    }
+
+    private void reBranchInner(final Block forkBlock) {
 
-        final Block bestBlock = getBestBlock();
+        final Block bestBlock = getBestBlockInner();
 
         final long maxLevel = Math.max(bestBlock.getNumber(), forkBlock.getNumber());
 
@@ -367,7 +642,7 @@ public class IndexedBlockStore extends AbstractBlockstore{
         if (forkBlock.getNumber() > bestBlock.getNumber()){
 
             while(currentLevel > bestBlock.getNumber()){
-                final List<BlockInfo> blocks = getBlockInfoForLevel(currentLevel);
+                final List<BlockInfo> blocks = copyLevel(getBlockInfoForLevel(currentLevel));
                 final BlockInfo blockInfo = getBlockInfoForHash(blocks, forkLine.getHash());
                 if (blockInfo != null)  {
                     blockInfo.setMainChain(true);
@@ -383,7 +658,7 @@ public class IndexedBlockStore extends AbstractBlockstore{
 
             while(currentLevel > forkBlock.getNumber()){
 
-                final List<BlockInfo> blocks = getBlockInfoForLevel(currentLevel);
+                final List<BlockInfo> blocks = copyLevel(getBlockInfoForLevel(currentLevel));
                 final BlockInfo blockInfo = getBlockInfoForHash(blocks, bestLine.getHash());
                 if (blockInfo != null)  {
                     blockInfo.setMainChain(false);
@@ -398,7 +673,7 @@ public class IndexedBlockStore extends AbstractBlockstore{
         // 2. Loop back on each level until common block
         while( !bestLine.isEqual(forkLine) ) {
 
-            final List<BlockInfo> levelBlocks = getBlockInfoForLevel(currentLevel);
+            final List<BlockInfo> levelBlocks = copyLevel(getBlockInfoForLevel(currentLevel));
             final BlockInfo bestInfo = getBlockInfoForHash(levelBlocks, bestLine.getHash());
             if (bestInfo != null) {
                 bestInfo.setMainChain(false);
@@ -421,7 +696,13 @@ public class IndexedBlockStore extends AbstractBlockstore{
 
     }
 
-    public synchronized List<byte[]> getListHashesStartWith(long number, long maxBlocks){
+    public List<byte[]> getListHashesStartWith(final long number, final long maxBlocks){
+        return read(() -> getListHashesStartWithInner(number, maxBlocks));
+    }
+
+    private List<byte[]> getListHashesStartWithInner(long number, long maxBlocks){
+
+        if (canonical != null) return canonical.getHashes(number, (int) Math.min(maxBlocks, Integer.MAX_VALUE));
 
         final List<byte[]> result = new ArrayList<>();
 
@@ -443,42 +724,68 @@ public class IndexedBlockStore extends AbstractBlockstore{
         return result;
     }
 
-    public synchronized void printChain(){
+    public void printChain(){
+        final long stamp = lock.readLock();
+        try {
 
-        final Long number = getMaxNumber();
+            final Long number = getMaxNumber();
 
-        for (int i = 0; i < number; ++i){
-            final List<BlockInfo> levelInfos = index.get(i);
+            for (int i = 0; i < number; ++i){
+                final List<BlockInfo> levelInfos = index.get(i);
 
-            if (levelInfos != null) {
-                System.out.print(i);
-                for (final BlockInfo blockInfo : levelInfos) {
-                    if (blockInfo.isMainChain())
-                        System.out.print(" [" + HashUtil.INSTANCE.shortHash(blockInfo.getHash()) + "] ");
-                    else
-                        System.out.print(" " + HashUtil.INSTANCE.shortHash(blockInfo.getHash()) + " ");
+                if (levelInfos != null) {
+                    System.out.print(i);
+                    for (final BlockInfo blockInfo : levelInfos) {
+                        if (blockInfo.isMainChain())
+                            System.out.print(" [" + HashUtil.INSTANCE.shortHash(blockInfo.getHash()) + "] ");
+                        else
+                            System.out.print(" " + HashUtil.INSTANCE.shortHash(blockInfo.getHash()) + " ");
+                    }
+                    System.out.println();
                 }
-                System.out.println();
-            }
 
+            }
+        } finally {
+            lock.unlockRead(stamp);
         }
 
     }
 
-    private synchronized List<BlockInfo> getBlockInfoForLevel(final long level) {
+    /**
+     * @return the level list which must not be modified, see {@link #copyLevel(List)}
+     */
+    private List<BlockInfo> getBlockInfoForLevel(final long level) {
         return index.get((int) level);
     }
 
-    private synchronized void setBlockInfoForLevel(final long level, final List<BlockInfo> infos) {
+    /**
+     * Writers modify the copy of the level so the concurrent readers never see a partial update
+     */
+    private static List<BlockInfo> copyLevel(final List<BlockInfo> infos) {
+        if (infos == null) return null;
+        final List<BlockInfo> ret = new ArrayList<>(infos.size());
+        for (final BlockInfo info : infos) ret.add(info.copy());
+        return ret;
+    }
+
+    private void setBlockInfoForLevel(final long level, final List<BlockInfo> infos) {
         index.set((int) level, infos);
+        if (canonical != null) updateCanonical(level, getMainChainInfo(infos));
+        synchronized (chainBlockCache) {
+            chainBlockCache.remove(level);
+            chainBlockCacheVersion++;
+        }
     }
 
     @Override
-    public synchronized void load() {
+    public void load() {
     }
 
     @Override
-    public synchronized void close() {
+    public void close() {
+        write(() -> {
+            if (canonical != null) canonical.close();
+        });
 //        logger.info("Closing IndexedBlockStore...");
 //        try {
 //            indexDS.close();
@@ -520,5 +827,13 @@ public class IndexedBlockStore extends AbstractBlockstore{
         public void setMainChain(final boolean mainChain) {
             this.mainChain = mainChain;
         }
+
+        BlockInfo copy() {
+            final BlockInfo ret = new BlockInfo();
+            ret.hash = hash;
+            ret.cummDifficulty = cummDifficulty;
+            ret.mainChain = mainChain;
+            return ret;
+        }
     }
 }
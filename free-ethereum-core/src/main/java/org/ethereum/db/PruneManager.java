@@ -29,6 +29,7 @@ package org.ethereum.db;
 import org.ethereum.config.SystemProperties;
 import org.ethereum.core.Block;
 import org.ethereum.core.BlockHeader;
+import org.ethereum.datasource.DiffLayerSource;
 import org.ethereum.datasource.JournalSource;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -39,6 +40,8 @@ public class PruneManager {
     private final int pruneBlocksCnt;
     private final IndexedBlockStore blockStore;
     private JournalSource journal;
+    // the last main chain block which diff layer is persisted
+    private Block persistedBlock;
 
     @Autowired
     private PruneManager(final SystemProperties config, IndexedBlockStore blockStore) {
@@ -70,10 +73,29 @@ public class PruneManager {
             if (journal.hasUpdate(pruneBlock.getHash())) {
                 if (chainBlock.isEqual(pruneBlock)) {
                     journal.persistUpdate(pruneBlock.getHash());
+                    persistedBlock = pruneBlock;
                 } else {
                     journal.revertUpdate(pruneBlock.getHash());
                 }
             }
         }
     }
+
+    /**
+     * @return the block which state is fully written to the DB caches: the committed block itself
+     * or the last main chain block which diff layer is persisted (null if there is no one yet)
+     * if the diff layers are kept in memory
+     */
+    public Block getStateBlock(final Block committed) {
+        return journal instanceof DiffLayerSource ? persistedBlock : committed;
+    }
+
+    /**
+     * Saves the in-memory diff layers (if any) to the DB
+     */
+    public void close() {
+        if (journal instanceof DiffLayerSource) {
+            ((DiffLayerSource) journal).spillLayers();
+        }
+    }
 }
@@ -28,10 +28,12 @@ package org.ethereum.db;
 
 import org.ethereum.core.AccountState;
 import org.ethereum.core.Repository;
+import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.*;
 import org.ethereum.trie.SecureTrie;
 import org.ethereum.trie.Trie;
 import org.ethereum.trie.TrieImpl;
+import org.ethereum.util.FastByteComparisons;
 import org.ethereum.vm.DataWord;
 
 public class RepositoryRoot extends RepositoryImpl {
@@ -40,9 +42,18 @@ public class RepositoryRoot extends RepositoryImpl {
     private final CachedSource.BytesKey<byte[]> trieCache;
     private final Trie<byte[]> stateTrie;
 
+    private final StateSnapshot snapshot;
+    // the state root the pendingDiff is based on
+    private byte[] snapshotRoot;
+    private StateSnapshot.Diff pendingDiff = new StateSnapshot.Diff();
+
     public RepositoryRoot(final Source<byte[], byte[]> stateDS) {
         this(stateDS, null);
     }
+
+    public RepositoryRoot(final Source<byte[], byte[]> stateDS, final byte[] root) {
+        this(stateDS, null, root);
+    }
     /**
      * Building the following structure for snapshot Repository:
      *
@@ -52,16 +63,24 @@ public class RepositoryRoot extends RepositoryImpl {
      *    \--> codeCache
      *
      *
+     * When the flat state snapshot is enabled the account and storage reads are served by the
+     * snapshot (if it covers the key) bypassing the tries, and all the trie changes are
+     * collected to the snapshot diff which is submitted on commit
+     *
      * @param stateDS
+     * @param snapshot flat state snapshot or null
      * @param root
      */
-    public RepositoryRoot(final Source<byte[], byte[]> stateDS, final byte[] root) {
+    public RepositoryRoot(final Source<byte[], byte[]> stateDS, final StateSnapshot snapshot, final byte[] root) {
         this.stateDS = stateDS;
+        this.snapshot = snapshot != null && snapshot.isEnabled() ? snapshot : null;
+        this.snapshotRoot = root == null ? HashUtil.INSTANCE.getEMPTY_TRIE_HASH() : root;
 
         trieCache = new WriteCache.BytesKey<>(stateDS, WriteCache.CacheType.COUNTING);
         stateTrie = new SecureTrie(trieCache, root);
 
-        final SourceCodec.BytesKey<AccountState, byte[]> accountStateCodec = new SourceCodec.BytesKey<>(stateTrie, Serializers.INSTANCE.getAccountStateSerializer());
+        final Source<byte[], byte[]> accountSource = this.snapshot == null ? stateTrie : new SnapshotAccountSource();
+        final SourceCodec.BytesKey<AccountState, byte[]> accountStateCodec = new SourceCodec.BytesKey<>(accountSource, Serializers.INSTANCE.getAccountStateSerializer());
         final ReadWriteCache.BytesKey<AccountState> accountStateCache = new ReadWriteCache.BytesKey<>(accountStateCodec, WriteCache.CacheType.SIMPLE);
 
         final MultiCache<StorageCache> storageCache = new MultiStorageCache();
@@ -78,6 +97,15 @@ public class RepositoryRoot extends RepositoryImpl {
 
         stateTrie.flush();
         trieCache.flush();
+
+        if (snapshot != null) {
+            final byte[] newRoot = stateTrie.getRootHash();
+            if (!pendingDiff.isEmpty()) {
+                snapshot.update(snapshotRoot, newRoot, pendingDiff);
+            }
+            snapshotRoot = newRoot;
+            pendingDiff = new StateSnapshot.Diff();
+        }
     }
 
     @Override
@@ -93,9 +121,16 @@ public class RepositoryRoot extends RepositoryImpl {
         commit();
     }
 
+    /**
+     * @return true if the state root node is in the DB
+     */
+    public boolean hasState(final byte[] root) {
+        return FastByteComparisons.equal(root, HashUtil.INSTANCE.getEMPTY_TRIE_HASH()) || stateDS.get(root) != null;
+    }
+
     @Override
     public Repository getSnapshotTo(final byte[] root) {
-        return new RepositoryRoot(stateDS, root);
+        return new RepositoryRoot(stateDS, snapshot, root);
     }
 
     @Override
@@ -106,6 +141,8 @@ public class RepositoryRoot extends RepositoryImpl {
     @Override
     public synchronized void syncToRoot(final byte[] root) {
         stateTrie.setRoot(root);
+        snapshotRoot = root;
+        pendingDiff = new StateSnapshot.Diff();
     }
 
     private TrieImpl createTrie(final CachedSource.BytesKey<byte[]> trieCache, final byte[] root) {
@@ -114,13 +151,88 @@ public class RepositoryRoot extends RepositoryImpl {
 
     private static class StorageCache extends ReadWriteCache<DataWord, DataWord> {
         final Trie<byte[]> trie;
+        // the storage was empty when the cache was created
+        boolean fresh;
 
-        public StorageCache(final Trie<byte[]> trie) {
-            super(new SourceCodec<>(trie, Serializers.INSTANCE.getStorageKeySerializer(), Serializers.INSTANCE.getStorageValueSerializer()), WriteCache.CacheType.SIMPLE);
+        public StorageCache(final Source<byte[], byte[]> src, final Trie<byte[]> trie) {
+            super(new SourceCodec<>(src, Serializers.INSTANCE.getStorageKeySerializer(), Serializers.INSTANCE.getStorageValueSerializer()), WriteCache.CacheType.SIMPLE);
             this.trie = trie;
         }
     }
 
+    /**
+     * Reads accounts from the snapshot falling back to the state trie,
+     * writes to the trie recording changes to the pending snapshot diff
+     */
+    private class SnapshotAccountSource implements Source<byte[], byte[]> {
+        @Override
+        public void put(final byte[] key, final byte[] val) {
+            stateTrie.put(key, val);
+            pendingDiff.putAccount(HashUtil.INSTANCE.sha3(key), val);
+        }
+
+        @Override
+        public byte[] get(final byte[] key) {
+            final byte[] addrHash = HashUtil.INSTANCE.sha3(key);
+            AbstractCachedSource.Entry<byte[]> entry = pendingDiff.getAccount(addrHash);
+            if (entry == null) entry = snapshot.getAccount(snapshotRoot, addrHash);
+            return entry != null ? entry.value() : stateTrie.get(key);
+        }
+
+        @Override
+        public void delete(final byte[] key) {
+            stateTrie.delete(key);
+            pendingDiff.deleteAccount(HashUtil.INSTANCE.sha3(key));
+        }
+
+        @Override
+        public boolean flush() {
+            return stateTrie.flush();
+        }
+    }
+
+    /**
+     * The same as {@link SnapshotAccountSource} for the contract storage trie
+     */
+    private class SnapshotStorageSource implements Source<byte[], byte[]> {
+        private final byte[] addrHash;
+        private final Trie<byte[]> trie;
+        private final boolean fresh;
+
+        SnapshotStorageSource(final byte[] addrHash, final Trie<byte[]> trie, final boolean fresh) {
+            this.addrHash = addrHash;
+            this.trie = trie;
+            this.fresh = fresh;
+        }
+
+        @Override
+        public void put(final byte[] key, final byte[] val) {
+            trie.put(key, val);
+            pendingDiff.putStorage(addrHash, HashUtil.INSTANCE.sha3(key), val);
+        }
+
+        @Override
+        public byte[] get(final byte[] key) {
+            // the fresh storage trie is based on the empty root and is cheap to read
+            if (fresh) return trie.get(key);
+            final byte[] slotHash = HashUtil.INSTANCE.sha3(key);
+            AbstractCachedSource.Entry<byte[]> entry = pendingDiff.getStorage(addrHash, slotHash);
+            if (entry == null) entry = snapshot.getStorage(snapshotRoot, addrHash, slotHash);
+            return entry != null ? entry.value() : trie.get(key);
+        }
+
+        @Override
+        public void delete(final byte[] key) {
+            trie.delete(key);
+            pendingDiff.putStorage(addrHash, HashUtil.INSTANCE.sha3(key), null);
+        }
+
+        @Override
+        public boolean flush() {
+            return trie.flush();
+        }
+    }
+
     private class MultiStorageCache extends MultiCache<StorageCache> {
         public MultiStorageCache() {
             super(null);
@@ -130,11 +242,24 @@ public class RepositoryRoot extends RepositoryImpl {
         protected synchronized StorageCache create(final byte[] key, final StorageCache srcCache) {
             final AccountState accountState = accountStateCache.get(key);
             final TrieImpl storageTrie = createTrie(trieCache, accountState == null ? null : accountState.getStateRoot());
-            return new StorageCache(storageTrie);
+            if (snapshot == null) return new StorageCache(storageTrie, storageTrie);
+
+            final boolean fresh = accountState == null ||
+                    FastByteComparisons.equal(accountState.getStateRoot(), HashUtil.INSTANCE.getEMPTY_TRIE_HASH());
+            final StorageCache ret = new StorageCache(
+                    new SnapshotStorageSource(HashUtil.INSTANCE.sha3(key), storageTrie, fresh), storageTrie);
+            ret.fresh = fresh;
+            return ret;
         }
 
         @Override
         protected synchronized boolean flushChild(final byte[] key, final StorageCache childCache) {
+            if (snapshot != null && (childCache == null || childCache.fresh)) {
+                // the account was deleted or (re)created with empty storage:
+                // the old storage is not valid anymore
+                pendingDiff.destruct(HashUtil.INSTANCE.sha3(key));
+                if (childCache != null) childCache.fresh = false;
+            }
             if (super.flushChild(key, childCache)) {
                 if (childCache != null) {
                     final AccountState storageOwnerAcct = accountStateCache.get(key);
@@ -0,0 +1,354 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.AccountState;
+import org.ethereum.core.Block;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.CompressionSerializer;
+import org.ethereum.datasource.CountingBytesSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.trie.TrieKey;
+import org.ethereum.trie.TrieWalker;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Walks the state trie and all the storage tries in parallel and collects
+ * the state shape statistics: node depths, types and sizes, code sizes and contract
+ * storage sizes along with the largest contract storages.
+ *
+ * The state trie is split into subtrees by the branch node hexes at the top levels
+ * which are walked by a {@link ForkJoinPool}. Each contract storage trie is walked by
+ * the thread which has found the account. The memory is bounded by the trie depth
+ * and the number of the largest storages to report.
+ *
+ * Only nodes stored under their hashes are counted, small nodes embedded into
+ * their parents are not.
+ */
+public class StateAnalyzer {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final int SPLIT_DEPTH = 2;
+    private static final int PROGRESS_ACCOUNTS = 100_000;
+
+    private final Source<byte[], byte[]> stateSource;
+    private final TrieWalker walker;
+    private final int parallelism;
+    private final int topStorages;
+
+    private final TrieStats stateStats = new TrieStats();
+    private final TrieStats storageStats = new TrieStats();
+    private final AtomicLong accounts = new AtomicLong();
+    private final AtomicLong contracts = new AtomicLong();
+    private final AtomicLong codeBytes = new AtomicLong();
+    private final AtomicLongArray codeSizes = new AtomicLongArray(32);
+    private final AtomicLongArray storageSlots = new AtomicLongArray(32);
+    private final PriorityQueue<ContractStorage> largestStorages = new PriorityQueue<>();
+    private long startTime;
+
+    public StateAnalyzer(final Source<byte[], byte[]> stateSource, final int parallelism, final int topStorages) {
+        this.stateSource = stateSource;
+        this.walker = new TrieWalker(stateSource);
+        this.parallelism = parallelism;
+        this.topStorages = topStorages;
+    }
+
+    /**
+     * Analyzes the best block state in the 'blockchain' DB in the configured database dir.
+     * The node should not be running
+     */
+    public static String analyzeOffline(final SystemProperties config) {
+        if (config.databaseSeparateStores()) {
+            throw new RuntimeException("State analysis supports 'database.layout = combined' only");
+        }
+        final LevelDbDataSource db = new LevelDbDataSource(config);
+        db.setName("blockchain");
+        db.init();
+        try {
+            final IndexedBlockStore blockStore = new IndexedBlockStore();
+            blockStore.init(CompressionSerializer.storeSource(config, db, "index", false),
+                    CompressionSerializer.storeSource(config, db, "block", false));
+            final Block best = blockStore.getBestBlock();
+            if (best == null) throw new RuntimeException("No best block in the DB");
+            logger.info("Analyzing state of the block #{}", best.getNumber());
+
+            final Source<byte[], byte[]> stateSource = new CountingBytesSource(
+                    CompressionSerializer.storeSource(config, db, "state", false));
+            final String report = new StateAnalyzer(stateSource, Runtime.getRuntime().availableProcessors(), 50)
+                    .analyze(best.getStateRoot());
+            logger.info(report);
+            return report;
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Walks the state at the root
+     * @return the statistics report
+     */
+    public String analyze(final byte[] root) {
+        startTime = System.currentTimeMillis();
+        if (!FastByteComparisons.equal(root, HashUtil.INSTANCE.getEMPTY_TRIE_HASH())) {
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new SubtreeTask(root, ByteUtil.EMPTY_BYTE_ARRAY));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return getReport();
+    }
+
+    private class SubtreeTask extends RecursiveAction {
+        private final byte[] hash;
+        private final byte[] hexPath;
+
+        SubtreeTask(final byte[] hash, final byte[] hexPath) {
+            this.hash = hash;
+            this.hexPath = hexPath;
+        }
+
+        @Override
+        protected void compute() {
+            if (hexPath.length < SPLIT_DEPTH) {
+                final byte[] rlp = stateSource.get(hash);
+                final RLP.LList node = rlp == null ? null : RLP.decodeLazyList(rlp);
+                if (node != null && node.size() == 17 && node.getBytes(16).length == 0 && !hasEmbedded(node)) {
+                    stateStats.onNode(rlp, hexPath.length);
+                    final List<SubtreeTask> tasks = new ArrayList<>();
+                    for (int i = 0; i < 16; i++) {
+                        final byte[] child = node.getBytes(i);
+                        if (child.length > 0) {
+                            final byte[] childPath = Arrays.copyOf(hexPath, hexPath.length + 1);
+                            childPath[hexPath.length] = (byte) i;
+                            tasks.add(new SubtreeTask(child, childPath));
+                        }
+                    }
+                    invokeAll(tasks);
+                    return;
+                }
+            }
+            walker.walkSubtree(hash, hexPath, stateVisitor);
+        }
+
+        private boolean hasEmbedded(final RLP.LList node) {
+            for (int i = 0; i < 16; i++) {
+                if (node.isList(i)) return true;
+            }
+            return false;
+        }
+    }
+
+    private final TrieWalker.Visitor stateVisitor = new TrieWalker.Visitor() {
+        @Override
+        public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+            stateStats.onNode(rlp, depth);
+            return true;
+        }
+
+        @Override
+        public boolean onValue(final byte[] key, final byte[] value) {
+            stateStats.values.incrementAndGet();
+            onAccount(key, new AccountState(value));
+            return true;
+        }
+    };
+
+    private void onAccount(final byte[] addrHash, final AccountState account) {
+        if (!FastByteComparisons.equal(account.getCodeHash(), HashUtil.INSTANCE.getEMPTY_DATA_HASH())) {
+            contracts.incrementAndGet();
+            final byte[] code = stateSource.get(account.getCodeHash());
+            final int size = code == null ? 0 : code.length;
+            codeBytes.addAndGet(size);
+            codeSizes.incrementAndGet(bucket(size));
+        }
+
+        if (!FastByteComparisons.equal(account.getStateRoot(), HashUtil.INSTANCE.getEMPTY_TRIE_HASH())) {
+            final ContractStorage storage = new ContractStorage(addrHash);
+            walker.walk(account.getStateRoot(), new TrieWalker.Visitor() {
+                @Override
+                public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+                    storageStats.onNode(rlp, depth);
+                    storage.nodes++;
+                    storage.bytes += rlp.length;
+                    return true;
+                }
+
+                @Override
+                public boolean onValue(final byte[] key, final byte[] value) {
+                    storageStats.values.incrementAndGet();
+                    storage.slots++;
+                    return true;
+                }
+            });
+            storageSlots.incrementAndGet(bucket(storage.slots));
+            synchronized (largestStorages) {
+                largestStorages.add(storage);
+                if (largestStorages.size() > topStorages) largestStorages.poll();
+            }
+        }
+
+        final long cnt = accounts.incrementAndGet();
+        if (cnt % PROGRESS_ACCOUNTS == 0) {
+            logger.info("State analysis: {} accounts, {} state nodes, {} storage nodes, {} sec", cnt,
+                    stateStats.nodes.get(), storageStats.nodes.get(), (System.currentTimeMillis() - startTime) / 1000);
+        }
+    }
+
+    /**
+     * @return power of two bucket index: 0 for 0, 1 for 1, 2 for 2..3, 3 for 4..7 etc
+     */
+    private static int bucket(final long val) {
+        return 64 - Long.numberOfLeadingZeros(val);
+    }
+
+    private static String bucketName(final int bucket) {
+        return bucket == 0 ? "0" : bucket == 1 ? "1" : (1L << (bucket - 1)) + ".." + ((1L << bucket) - 1);
+    }
+
+    private static void appendHistogram(final StringBuilder sb, final String title, final AtomicLongArray hist) {
+        sb.append(title).append(":\n");
+        for (int i = 0; i < hist.length(); i++) {
+            if (hist.get(i) > 0) sb.append(String.format("  %-24s %d%n", bucketName(i), hist.get(i)));
+        }
+    }
+
+    public String getReport() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("State analysis (%d sec):%n", (System.currentTimeMillis() - startTime) / 1000));
+        sb.append(String.format("Accounts: %d, contracts: %d, code bytes: %d%n", accounts.get(), contracts.get(), codeBytes.get()));
+        stateStats.append(sb, "State trie");
+        storageStats.append(sb, "Storage tries");
+        appendHistogram(sb, "Contract code size", codeSizes);
+        appendHistogram(sb, "Contract storage slots", storageSlots);
+
+        final List<ContractStorage> largest;
+        synchronized (largestStorages) {
+            largest = new ArrayList<>(largestStorages);
+        }
+        largest.sort(Collections.reverseOrder());
+        sb.append("Largest contract storages (address hash, slots, nodes, bytes):\n");
+        for (final ContractStorage storage : largest) {
+            sb.append(String.format("  %s %d %d %d%n", ByteUtil.toHexString(storage.addrHash),
+                    storage.slots, storage.nodes, storage.bytes));
+        }
+        return sb.toString();
+    }
+
+    public TrieStats getStateStats() {
+        return stateStats;
+    }
+
+    public TrieStats getStorageStats() {
+        return storageStats;
+    }
+
+    public long getAccounts() {
+        return accounts.get();
+    }
+
+    public long getContracts() {
+        return contracts.get();
+    }
+
+    public static class TrieStats {
+        private static final String[] TYPES = {"branch", "extension", "leaf"};
+
+        final AtomicLong nodes = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong values = new AtomicLong();
+        final AtomicLongArray depths = new AtomicLongArray(65);
+        final AtomicLongArray types = new AtomicLongArray(TYPES.length);
+        final AtomicLongArray sizes = new AtomicLongArray(32);
+
+        void onNode(final byte[] rlp, final int depth) {
+            nodes.incrementAndGet();
+            bytes.addAndGet(rlp.length);
+            depths.incrementAndGet(Math.min(depth, depths.length() - 1));
+            sizes.incrementAndGet(bucket(rlp.length));
+            final RLP.LList node = RLP.decodeLazyList(rlp);
+            if (node.size() == 17) {
+                types.incrementAndGet(0);
+            } else {
+                types.incrementAndGet(TrieKey.fromPacked(node.getBytes(0)).isTerminal() ? 2 : 1);
+            }
+        }
+
+        public long getNodes() {
+            return nodes.get();
+        }
+
+        public long getValues() {
+            return values.get();
+        }
+
+        public long getNodes(final String type) {
+            return types.get(Arrays.asList(TYPES).indexOf(type));
+        }
+
+        void append(final StringBuilder sb, final String title) {
+            sb.append(String.format("%s: %d nodes, %d bytes, %d values%n", title, nodes.get(), bytes.get(), values.get()));
+            for (int i = 0; i < TYPES.length; i++) {
+                sb.append(String.format("  %-24s %d%n", TYPES[i], types.get(i)));
+            }
+            sb.append(title).append(" node depth (hexes):\n");
+            for (int i = 0; i < depths.length(); i++) {
+                if (depths.get(i) > 0) sb.append(String.format("  %-24d %d%n", i, depths.get(i)));
+            }
+            appendHistogram(sb, title + " node size", sizes);
+        }
+    }
+
+    private static class ContractStorage implements Comparable<ContractStorage> {
+        final byte[] addrHash;
+        long slots;
+        long nodes;
+        long bytes;
+
+        ContractStorage(final byte[] addrHash) {
+            this.addrHash = addrHash;
+        }
+
+        @Override
+        public int compareTo(final ContractStorage o) {
+            return Long.compare(slots, o.slots);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.db;
+
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.RLP;
+import org.ethereum.util.RLPElement;
+import org.ethereum.util.RLPList;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The state export file format:
+ *
+ *   [magic 'ETHSTATE' 8][version 4] chunk* manifest [manifest length 4][manifest crc32 8][manifest offset 8][magic 'ETHSTEND' 8]
+ *
+ *   chunk: [type 1][entries 4][raw length 4][stored length 4][crc32 of stored data 8][stored data]
+ *
+ * The stored data is the deflated sequence of [length 4][entry] records. The chunk types are:
+ *   STATE - trie node or contract code, the key is the entry hash so it is not stored
+ *   HEADER - block header RLP
+ *   BLOCK - RLP [block RLP, total difficulty]
+ *
+ * The manifest is RLP [version, block number, block hash, state root, total difficulty, [chunk*]]
+ * where chunk is RLP [type, entries, offset, raw length, stored length, crc32]. The chunks are
+ * appended in arbitrary order by parallel writers and can be read in parallel using the manifest.
+ */
+class StateArchive {
+
+    static final byte STATE = 1;
+    static final byte HEADER = 2;
+    static final byte BLOCK = 3;
+
+    static final int VERSION = 1;
+    static final int CHUNK_SIZE = 4 << 20;
+
+    private static final byte[] MAGIC = "ETHSTATE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_MAGIC = "ETHSTEND".getBytes(StandardCharsets.US_ASCII);
+    private static final int CHUNK_HEADER_SIZE = 21;
+    private static final int TRAILER_SIZE = 28;
+
+    static class Chunk {
+        final byte type;
+        final int entries;
+        final long offset;
+        final int rawLength;
+        final int storedLength;
+        final long crc;
+
+        Chunk(final byte type, final int entries, final long offset, final int rawLength, final int storedLength, final long crc) {
+            this.type = type;
+            this.entries = entries;
+            this.offset = offset;
+            this.rawLength = rawLength;
+            this.storedLength = storedLength;
+            this.crc = crc;
+        }
+
+        byte[] getEncoded() {
+            return RLP.encodeList(RLP.encodeByte(type), RLP.encodeInt(entries), RLP.encodeBigInteger(BigInteger.valueOf(offset)),
+                    RLP.encodeInt(rawLength), RLP.encodeInt(storedLength), RLP.encodeBigInteger(BigInteger.valueOf(crc)));
+        }
+
+        static Chunk decode(final RLPList rlp) {
+            return new Chunk((byte) ByteUtil.byteArrayToInt(rlp.get(0).getRLPData()),
+                    ByteUtil.byteArrayToInt(rlp.get(1).getRLPData()), ByteUtil.byteArrayToLong(rlp.get(2).getRLPData()),
+                    ByteUtil.byteArrayToInt(rlp.get(3).getRLPData()), ByteUtil.byteArrayToInt(rlp.get(4).getRLPData()),
+                    ByteUtil.byteArrayToLong(rlp.get(5).getRLPData()));
+        }
+    }
+
+    static class Manifest {
+        final long number;
+        final byte[] hash;
+        final byte[] stateRoot;
+        final BigInteger totalDifficulty;
+        final List<Chunk> chunks;
+
+        Manifest(final long number, final byte[] hash, final byte[] stateRoot, final BigInteger totalDifficulty,
+                 final List<Chunk> chunks) {
+            this.number = number;
+            this.hash = hash;
+            this.stateRoot = stateRoot;
+            this.totalDifficulty = totalDifficulty;
+            this.chunks = chunks;
+        }
+
+        byte[] getEncoded() {
+            final byte[][] encodedChunks = new byte[chunks.size()][];
+            for (int i = 0; i < chunks.size(); i++) {
+                encodedChunks[i] = chunks.get(i).getEncoded();
+            }
+            return RLP.encodeList(RLP.encodeInt(VERSION), RLP.encodeBigInteger(BigInteger.valueOf(number)),
+                    RLP.encodeElement(hash), RLP.encodeElement(stateRoot), RLP.encodeBigInteger(totalDifficulty),
+                    RLP.encodeList(encodedChunks));
+        }
+
+        static Manifest decode(final byte[] encoded) {
+            final RLPList rlp = (RLPList) RLP.decode2(encoded).get(0);
+            final int version = ByteUtil.byteArrayToInt(rlp.get(0).getRLPData());
+            if (version != VERSION) throw new RuntimeException("Unsupported state export version: " + version);
+            final List<Chunk> chunks = new ArrayList<>();
+            for (final RLPElement chunk : (RLPList) rlp.get(5)) {
+                chunks.add(Chunk.decode((RLPList) chunk));
+            }
+            final byte[] td = rlp.get(4).getRLPData();
+            return new Manifest(ByteUtil.byteArrayToLong(rlp.get(1).getRLPData()), rlp.get(2).getRLPData(),
+                    rlp.get(3).getRLPData(), td == null ? BigInteger.ZERO : ByteUtil.bytesToBigInteger(td), chunks);
+        }
+    }
+
+    /**
+     * Accumulates the entries of one type and writes them as a chunk once the chunk size is reached.
+     * Not thread safe, each writing thread has its own buffers
+     */
+    static class Buffer {
+        private final Writer writer;
+        private final byte type;
+        private byte[] data = new byte[64 * 1024];
+        private int size;
+        private int entries;
+
+        Buffer(final Writer writer, final byte type) {
+            this.writer = writer;
+            this.type = type;
+        }
+
+        void add(final byte[] entry) {
+            if (entries > 0 && size + 4 + entry.length > CHUNK_SIZE) flush();
+            if (size + 4 + entry.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + 4 + entry.length));
+            }
+            ByteBuffer.wrap(data, size, 4).putInt(entry.length);
+            System.arraycopy(entry, 0, data, size + 4, entry.length);
+            size += 4 + entry.length;
+            entries++;
+        }
+
+        void flush() {
+            if (entries == 0) return;
+            writer.write(type, entries, data, size);
+            size = 0;
+            entries = 0;
+        }
+    }
+
+    static class Writer implements Closeable {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final List<Chunk> chunks = new ArrayList<>();
+        private long position;
+
+        Writer(final File f) throws IOException {
+            file = new RandomAccessFile(f, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4);
+            header.put(MAGIC).putInt(VERSION).flip();
+            writeFully(header);
+        }
+
+        /**
+         * Compresses the chunk data in the calling thread and appends the chunk to the file
+         */
+        void write(final byte type, final int entries, final byte[] raw, final int rawLength) {
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            final byte[] stored;
+            try {
+                deflater.setInput(raw, 0, rawLength);
+                deflater.finish();
+                byte[] buf = new byte[rawLength / 2 + 64];
+                int len = 0;
+                while (!deflater.finished()) {
+                    if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                    len += deflater.deflate(buf, len, buf.length - len);
+                }
+                stored = Arrays.copyOf(buf, len);
+            } finally {
+                deflater.end();
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(stored);
+
+            final ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+            header.put(type).putInt(entries).putInt(rawLength).putInt(stored.length).putLong(crc.getValue()).flip();
+            synchronized (this) {
+                chunks.add(new Chunk(type, entries, position, rawLength, stored.length, crc.getValue()));
+                writeFully(header);
+                writeFully(ByteBuffer.wrap(stored));
+            }
+        }
+
+        synchronized void finish(final long number, final byte[] hash, final byte[] stateRoot,
+                                 final BigInteger totalDifficulty) throws IOException {
+            final byte[] manifest = new Manifest(number, hash, stateRoot, totalDifficulty, chunks).getEncoded();
+            final long manifestOffset = position;
+            final CRC32 crc = new CRC32();
+            crc.update(manifest);
+            writeFully(ByteBuffer.wrap(manifest));
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putInt(manifest.length).putLong(crc.getValue()).putLong(manifestOffset).put(END_MAGIC).flip();
+            writeFully(trailer);
+            channel.force(true);
+        }
+
+        List<Chunk> getChunks() {
+            return chunks;
+        }
+
+        private void writeFully(final ByteBuffer buf) {
+            try {
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException("Error writing state export", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    static class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final Manifest manifest;
+
+        Reader(final File f) throws IOException {
+            file = new RandomAccessFile(f, "r");
+            channel = file.getChannel();
+            final ByteBuffer header = read(0, MAGIC.length + 4);
+            final byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new RuntimeException("Not a state export file: " + f);
+            final int version = header.getInt();
+            if (version != VERSION) throw new RuntimeException("Unsupported state export version: " + version);
+
+            final long size = channel.size();
+            if (size < MAGIC.length + 4 + TRAILER_SIZE) throw new RuntimeException("Incomplete state export file: " + f);
+            final ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+            final int manifestLength = trailer.getInt();
+            final long manifestCrc = trailer.getLong();
+            final long manifestOffset = trailer.getLong();
+            final byte[] endMagic = new byte[END_MAGIC.length];
+            trailer.get(endMagic);
+            if (!Arrays.equals(endMagic, END_MAGIC)) throw new RuntimeException("Incomplete state export file: " + f);
+
+            final byte[] encoded = read(manifestOffset, manifestLength).array();
+            final CRC32 crc = new CRC32();
+            crc.update(encoded);
+            if (crc.getValue() != manifestCrc) throw new RuntimeException("State export manifest checksum mismatch: " + f);
+            manifest = Manifest.decode(encoded);
+        }
+
+        Manifest getManifest() {
+            return manifest;
+        }
+
+        /**
+         * Reads, verifies and unpacks the chunk, can be called concurrently
+         */
+        List<byte[]> read(final Chunk chunk) {
+            final ByteBuffer header = read(chunk.offset, CHUNK_HEADER_SIZE);
+            if (header.get() != chunk.type || header.getInt() != chunk.entries || header.getInt() != chunk.rawLength ||
+                    header.getInt() != chunk.storedLength || header.getLong() != chunk.crc) {
+                throw new RuntimeException("State export chunk header doesn't match the manifest at " + chunk.offset);
+            }
+            final byte[] stored = read(chunk.offset + CHUNK_HEADER_SIZE, chunk.storedLength).array();
+            final CRC32 crc = new CRC32();
+            crc.update(stored);
+            if (crc.getValue() != chunk.crc) throw new RuntimeException("State export chunk checksum mismatch at " + chunk.offset);
+
+            final byte[] raw = new byte[chunk.rawLength];
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored);
+                int len = 0;
+                while (len < raw.length && !inflater.finished()) {
+                    final int n = inflater.inflate(raw, len, raw.length - len);
+                    if (n == 0 && inflater.needsInput()) break;
+                    len += n;
+                }
+                if (len != raw.length) throw new RuntimeException("State export chunk is truncated at " + chunk.offset);
+            } catch (final DataFormatException e) {
+                throw new RuntimeException("State export chunk is corrupted at " + chunk.offset, e);
+            } finally {
+                inflater.end();
+            }
+
+            final List<byte[]> ret = new ArrayList<>(chunk.entries);
+            final ByteBuffer buf = ByteBuffer.wrap(raw);
+            for (int i = 0; i < chunk.entries; i++) {
+                final byte[] entry = new byte[buf.getInt()];
+                buf.get(entry);
+                ret.add(entry);
+            }
+            return ret;
+        }
+
+        private ByteBuffer read(final long position, final int length) {
+            final ByteBuffer ret = ByteBuffer.allocate(length);
+            try {
+                while (ret.hasRemaining()) {
+                    if (channel.read(ret, position + ret.position()) < 0) {
+                        throw new RuntimeException("Unexpected end of the state export file");
+                    }
+                }
+            } catch (final IOException e) {
+                throw new RuntimeException("Error reading state export", e);
+            }
+            ret.flip();
+            return ret;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.AccountState;
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockHeader;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.CompressionSerializer;
+import org.ethereum.datasource.CountingBytesSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.trie.TrieWalker;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exports the state of the block (all the state trie nodes, storage trie nodes and contract codes
+ * reachable from the block state root) along with the canonical headers chain and the recent blocks
+ * to the file in the {@link StateArchive} format, which can be imported with {@link StateImporter}
+ * to provision a node without syncing.
+ *
+ * The state trie is split into subtrees by the branch node hexes at the top levels which are
+ * walked and compressed in parallel by a {@link ForkJoinPool}, each thread appends its own chunks.
+ * The storage tries and codes shared by several accounts are exported once.
+ */
+public class StateExporter {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final int SPLIT_DEPTH = 2;
+    private static final int HEADERS_PER_TASK = 10_000;
+    private static final int PROGRESS_NODES = 1_000_000;
+
+    private final Source<byte[], byte[]> stateSource;
+    private final IndexedBlockStore blockStore;
+    private final int parallelism;
+    private final TrieWalker walker;
+
+    private final Set<ByteArrayWrapper> exported = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nodes = new AtomicLong();
+    private final AtomicLong codes = new AtomicLong();
+    private final AtomicLong accounts = new AtomicLong();
+    private long startTime;
+
+    public StateExporter(final Source<byte[], byte[]> stateSource, final IndexedBlockStore blockStore, final int parallelism) {
+        this.stateSource = stateSource;
+        this.blockStore = blockStore;
+        this.parallelism = parallelism;
+        this.walker = new TrieWalker(stateSource);
+    }
+
+    /**
+     * Exports the state of the canonical block from the 'blockchain' DB in the configured database dir.
+     * The node should not be running
+     * @param number the block number or -1 for the best block
+     */
+    public static void exportOffline(final SystemProperties config, final File file, final long number, final int recentBlocks) {
+        if (config.databaseSeparateStores()) {
+            throw new RuntimeException("State export supports 'database.layout = combined' only");
+        }
+        final LevelDbDataSource db = new LevelDbDataSource(config);
+        db.setName("blockchain");
+        db.init();
+        try {
+            final IndexedBlockStore blockStore = new IndexedBlockStore();
+            blockStore.init(CompressionSerializer.storeSource(config, db, "index", false),
+                    CompressionSerializer.storeSource(config, db, "block", false));
+            final Block block = number < 0 ? blockStore.getBestBlock() : blockStore.getChainBlockByNumber(number);
+            if (block == null) throw new RuntimeException("No canonical block #" + number);
+
+            final Source<byte[], byte[]> stateSource = new CountingBytesSource(
+                    CompressionSerializer.storeSource(config, db, "state", false));
+            new StateExporter(stateSource, blockStore, Runtime.getRuntime().availableProcessors())
+                    .export(block, file, recentBlocks);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Exports the block state, the canonical headers from genesis up to the block, the genesis block
+     * and [recentBlocks] blocks up to the block (which is needed to import and execute the next blocks)
+     */
+    public void export(final Block block, final File file, final int recentBlocks) {
+        startTime = System.currentTimeMillis();
+        logger.info("Exporting state of the block {} to {}", block.getShortDescr(), file);
+        final BigInteger totalDifficulty = blockStore.getTotalDifficultyForHash(block.getHash());
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (StateArchive.Writer writer = new StateArchive.Writer(file)) {
+            final List<RecursiveAction> tasks = new ArrayList<>();
+            tasks.add(new StateTask(writer, block.getStateRoot()));
+            for (long from = 0; from <= block.getNumber(); from += HEADERS_PER_TASK) {
+                tasks.add(new HeadersTask(writer, from, Math.min(block.getNumber() + 1, from + HEADERS_PER_TASK)));
+            }
+            tasks.add(new BlocksTask(writer, block, recentBlocks));
+            for (final RecursiveAction task : tasks) pool.execute(task);
+            for (final RecursiveAction task : tasks) task.join();
+
+            writer.finish(block.getNumber(), block.getHash(), block.getStateRoot(), totalDifficulty);
+            long size = 0;
+            for (final StateArchive.Chunk chunk : writer.getChunks()) size += chunk.storedLength;
+            logger.info("State export complete: {} accounts, {} trie nodes, {} codes, {} chunks, {} Mb, {} sec",
+                    accounts.get(), nodes.get(), codes.get(), writer.getChunks().size(), size >> 20,
+                    (System.currentTimeMillis() - startTime) / 1000);
+        } catch (final IOException e) {
+            throw new RuntimeException("Error exporting state to " + file, e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Walks the state trie at the root like the export does, checking that all
+     * the nodes and codes are present
+     */
+    public void verify(final byte[] root) {
+        startTime = System.currentTimeMillis();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new StateTask(null, root));
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("State verified: {} accounts, {} trie nodes, {} codes", accounts.get(), nodes.get(), codes.get());
+    }
+
+    private class StateTask extends RecursiveAction {
+        private final StateArchive.Writer writer;
+        private final byte[] root;
+
+        StateTask(final StateArchive.Writer writer, final byte[] root) {
+            this.writer = writer;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            if (FastByteComparisons.equal(root, HashUtil.INSTANCE.getEMPTY_TRIE_HASH())) return;
+            invokeAll(new SubtreeTask(writer, root, ByteUtil.EMPTY_BYTE_ARRAY));
+        }
+    }
+
+    private class SubtreeTask extends RecursiveAction {
+        private final StateArchive.Writer writer;
+        private final byte[] hash;
+        private final byte[] hexPath;
+
+        SubtreeTask(final StateArchive.Writer writer, final byte[] hash, final byte[] hexPath) {
+            this.writer = writer;
+            this.hash = hash;
+            this.hexPath = hexPath;
+        }
+
+        @Override
+        protected void compute() {
+            final StateArchive.Buffer out = writer == null ? null : new StateArchive.Buffer(writer, StateArchive.STATE);
+            if (hexPath.length < SPLIT_DEPTH) {
+                final byte[] rlp = stateSource.get(hash);
+                if (rlp == null) throw new RuntimeException("Invalid Trie state, can't resolve hash " + Hex.toHexString(hash));
+                final RLP.LList node = RLP.decodeLazyList(rlp);
+                if (node.size() == 17 && node.getBytes(16).length == 0 && !hasEmbedded(node)) {
+                    addNode(out, rlp);
+                    if (out != null) out.flush();
+                    final List<SubtreeTask> tasks = new ArrayList<>();
+                    for (int i = 0; i < 16; i++) {
+                        final byte[] child = node.getBytes(i);
+                        if (child.length > 0) {
+                            final byte[] childPath = Arrays.copyOf(hexPath, hexPath.length + 1);
+                            childPath[hexPath.length] = (byte) i;
+                            tasks.add(new SubtreeTask(writer, child, childPath));
+                        }
+                    }
+                    invokeAll(tasks);
+                    return;
+                }
+            }
+            walker.walkSubtree(hash, hexPath, new TrieWalker.Visitor() {
+                @Override
+                public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+                    addNode(out, rlp);
+                    return true;
+                }
+
+                @Override
+                public boolean onValue(final byte[] key, final byte[] value) {
+                    onAccount(out, new AccountState(value));
+                    return true;
+                }
+            });
+            if (out != null) out.flush();
+        }
+
+        private boolean hasEmbedded(final RLP.LList node) {
+            for (int i = 0; i < 16; i++) {
+                if (node.isList(i)) return true;
+            }
+            return false;
+        }
+    }
+
+    private void addNode(final StateArchive.Buffer out, final byte[] rlp) {
+        if (out != null) out.add(rlp);
+        if (nodes.incrementAndGet() % PROGRESS_NODES == 0) {
+            logger.info("State export: {} accounts, {} trie nodes, {} codes, {} sec", accounts.get(), nodes.get(),
+                    codes.get(), (System.currentTimeMillis() - startTime) / 1000);
+        }
+    }
+
+    private void onAccount(final StateArchive.Buffer out, final AccountState account) {
+        accounts.incrementAndGet();
+        final byte[] codeHash = account.getCodeHash();
+        if (!FastByteComparisons.equal(codeHash, HashUtil.INSTANCE.getEMPTY_DATA_HASH()) &&
+                exported.add(new ByteArrayWrapper(codeHash))) {
+            final byte[] code = stateSource.get(codeHash);
+            if (code == null) throw new RuntimeException("Invalid state, missing code " + Hex.toHexString(codeHash));
+            if (out != null) out.add(code);
+            codes.incrementAndGet();
+        }
+
+        final byte[] storageRoot = account.getStateRoot();
+        if (!FastByteComparisons.equal(storageRoot, HashUtil.INSTANCE.getEMPTY_TRIE_HASH()) &&
+                exported.add(new ByteArrayWrapper(storageRoot))) {
+            walker.walk(storageRoot, new TrieWalker.Visitor() {
+                @Override
+                public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+                    addNode(out, rlp);
+                    return true;
+                }
+
+                @Override
+                public boolean onValue(final byte[] key, final byte[] value) {
+                    return true;
+                }
+            });
+        }
+    }
+
+    private class HeadersTask extends RecursiveAction {
+        private final StateArchive.Writer writer;
+        private final long from;
+        private final long to;
+
+        HeadersTask(final StateArchive.Writer writer, final long from, final long to) {
+            this.writer = writer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            final StateArchive.Buffer out = new StateArchive.Buffer(writer, StateArchive.HEADER);
+            for (long number = from; number < to; number++) {
+                final byte[] hash = blockStore.getBlockHashByNumber(number);
+                final BlockHeader header = hash == null ? null : blockStore.getHeaderByHash(hash);
+                if (header == null) throw new RuntimeException("Canonical header #" + number + " is missing");
+                out.add(header.getEncoded());
+            }
+            out.flush();
+        }
+    }
+
+    private class BlocksTask extends RecursiveAction {
+        private final StateArchive.Writer writer;
+        private final Block block;
+        private final int recentBlocks;
+
+        BlocksTask(final StateArchive.Writer writer, final Block block, final int recentBlocks) {
+            this.writer = writer;
+            this.block = block;
+            this.recentBlocks = recentBlocks;
+        }
+
+        @Override
+        protected void compute() {
+            final StateArchive.Buffer out = new StateArchive.Buffer(writer, StateArchive.BLOCK);
+            final long from = Math.max(1, block.getNumber() - recentBlocks + 1);
+            // the genesis is checked on the node start
+            addBlock(out, blockStore.getChainBlockByNumber(0));
+            for (long number = from; number <= block.getNumber(); number++) {
+                addBlock(out, blockStore.getChainBlockByNumber(number));
+            }
+            out.flush();
+        }
+
+        private void addBlock(final StateArchive.Buffer out, final Block block) {
+            if (block == null) throw new RuntimeException("Canonical block is missing");
+            out.add(RLP.encodeList(block.getEncoded(),
+                    RLP.encodeBigInteger(blockStore.getTotalDifficultyForHash(block.getHash()))));
+        }
+    }
+}
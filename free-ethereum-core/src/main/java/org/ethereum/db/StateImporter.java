@@ -0,0 +1,308 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockHeader;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.*;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.ethereum.util.RLPList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Imports the state file created by {@link StateExporter} into the empty DB.
+ *
+ * The chunks are read, checked and unpacked in parallel. Each state entry is verified against
+ * its hash (which is its key) as it is read and the headers are checked to form the chain from
+ * the genesis to the exported block. The state entries are written in batches: the state Source
+ * is flushed after every [FLUSH_CHUNKS] chunks. When all the chunks are imported the genesis and
+ * the recent blocks are saved to the block store so the node continues from the exported block.
+ */
+public class StateImporter {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final int FLUSH_CHUNKS = 16;
+
+    private final Source<byte[], byte[]> stateSource;
+    private final IndexedBlockStore blockStore;
+    private final DataSourceArray<BlockHeader> headerStore;
+    private final int parallelism;
+
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+    private final AtomicLong stateEntries = new AtomicLong();
+    private final AtomicLong headers = new AtomicLong();
+    private final AtomicLong chunksDone = new AtomicLong();
+    private final AtomicBoolean rootFound = new AtomicBoolean();
+    private final Map<Long, byte[]> boundaryHashes = new ConcurrentHashMap<>();
+    private final Map<Long, byte[]> boundaryParents = new ConcurrentHashMap<>();
+    private final Map<Long, byte[]> blockHeaderHashes = new ConcurrentHashMap<>();
+
+    /**
+     * @param stateSource receives the state trie nodes and codes, flushed in between the chunks
+     * @param headerStore receives the headers chain, can be null
+     */
+    public StateImporter(final Source<byte[], byte[]> stateSource, final IndexedBlockStore blockStore,
+                         final DataSourceArray<BlockHeader> headerStore, final int parallelism) {
+        this.stateSource = stateSource;
+        this.blockStore = blockStore;
+        this.headerStore = headerStore;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Imports the state file into the empty 'blockchain' DB in the configured database dir.
+     * The node should not be running
+     * @param verify walk the whole imported state to check it once more
+     */
+    public static void importOffline(final SystemProperties config, final File file, final boolean verify) {
+        if (config.databaseSeparateStores()) {
+            throw new RuntimeException("State import supports 'database.layout = combined' only, the DB can be converted after the import");
+        }
+        final LevelDbDataSource db = new LevelDbDataSource(config);
+        db.setName("blockchain");
+        db.init();
+        final LevelDbDataSource headersDb = new LevelDbDataSource(config);
+        headersDb.setName("headers");
+        headersDb.init();
+        try {
+            if (DbLayoutMigration.hasCombinedData(db)) {
+                throw new RuntimeException("The DB in " + config.databaseDir() + " is not empty");
+            }
+            // the stores get the value compression markers as CommonConfig writes them to the new DB
+            final IndexedBlockStore blockStore = new IndexedBlockStore();
+            blockStore.init(CompressionSerializer.storeSource(config, db, "index", true),
+                    CompressionSerializer.storeSource(config, db, "block", true));
+
+            final WriteCache.BytesKey<byte[]> writeCache = new WriteCache.BytesKey<>(
+                    new BatchSourceWriter<>(db), WriteCache.CacheType.SIMPLE);
+            writeCache.setFlushSource(true);
+            final CountingBytesSource stateSource = new CountingBytesSource(
+                    CompressionSerializer.storeSource(config, writeCache, "state", true));
+            stateSource.setFlushSource(true);
+
+            final DataSourceArray<BlockHeader> headerStore = new DataSourceArray<>(
+                    new ObjectDataSource<>(headersDb, Serializers.INSTANCE.getBlockHeaderSerializer(), 0));
+
+            final StateImporter importer = new StateImporter(stateSource, blockStore, headerStore,
+                    Runtime.getRuntime().availableProcessors());
+            final Block block = importer.importFile(file, config.getGenesis().getHash());
+            if (verify) {
+                new StateExporter(stateSource, blockStore, Runtime.getRuntime().availableProcessors()).verify(block.getStateRoot());
+            }
+        } finally {
+            headersDb.close();
+            db.close();
+        }
+    }
+
+    /**
+     * @param genesisHash the expected genesis hash or null to skip the check
+     * @return the exported block which is the best block now
+     */
+    public Block importFile(final File file, final byte[] genesisHash) {
+        final long startTime = System.currentTimeMillis();
+        try (StateArchive.Reader reader = new StateArchive.Reader(file)) {
+            final StateArchive.Manifest manifest = reader.getManifest();
+            logger.info("Importing state of the block #{} ({}) from {}: {} chunks", manifest.number,
+                    Hex.toHexString(manifest.hash).substring(0, 6), file, manifest.chunks.size());
+
+            final List<Block> blocks = new ArrayList<>();
+            final List<BigInteger> difficulties = new ArrayList<>();
+            final List<StateArchive.Chunk> chunks = new ArrayList<>();
+            for (final StateArchive.Chunk chunk : manifest.chunks) {
+                if (chunk.type == StateArchive.BLOCK) {
+                    for (final byte[] entry : reader.read(chunk)) {
+                        final RLPList rlp = (RLPList) RLP.decode2(entry).get(0);
+                        blocks.add(new Block(rlp.get(0).getRLPData()));
+                        final byte[] td = rlp.get(1).getRLPData();
+                        difficulties.add(td == null ? BigInteger.ZERO : ByteUtil.bytesToBigInteger(td));
+                    }
+                } else {
+                    chunks.add(chunk);
+                }
+            }
+            final Block block = checkBlocks(manifest, blocks, difficulties);
+
+            final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (final StateArchive.Chunk chunk : chunks) {
+                    futures.add(executor.submit(() -> importChunk(reader, chunk, manifest, startTime)));
+                }
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (final ExecutionException e) {
+                throw new RuntimeException("Error importing state from " + file, e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } finally {
+                executor.shutdownNow();
+            }
+            stateSource.flush();
+            if (headerStore != null) headerStore.flush();
+
+            if (!rootFound.get() && !FastByteComparisons.equal(manifest.stateRoot, HashUtil.INSTANCE.getEMPTY_TRIE_HASH())) {
+                throw new RuntimeException("State root " + Hex.toHexString(manifest.stateRoot) + " is missing in the export");
+            }
+            checkHeaders(manifest, blocks, genesisHash);
+
+            for (int i = 0; i < blocks.size(); i++) {
+                blockStore.saveBlock(blocks.get(i), difficulties.get(i), true);
+            }
+            blockStore.flush();
+            logger.info("State import complete: block {}, {} state entries, {} headers, {} sec", block.getShortDescr(),
+                    stateEntries.get(), headers.get(), (System.currentTimeMillis() - startTime) / 1000);
+            return block;
+        } catch (final IOException e) {
+            throw new RuntimeException("Error importing state from " + file, e);
+        }
+    }
+
+    /**
+     * The recent blocks should be a chain ending with the exported block
+     */
+    private Block checkBlocks(final StateArchive.Manifest manifest, final List<Block> blocks,
+                              final List<BigInteger> difficulties) {
+        if (blocks.isEmpty()) throw new RuntimeException("No blocks in the state export");
+        final Block block = blocks.get(blocks.size() - 1);
+        if (!FastByteComparisons.equal(block.getHash(), manifest.hash) ||
+                !FastByteComparisons.equal(block.getStateRoot(), manifest.stateRoot) ||
+                !difficulties.get(difficulties.size() - 1).equals(manifest.totalDifficulty)) {
+            throw new RuntimeException("The exported block doesn't match the manifest");
+        }
+        for (int i = blocks.size() - 1; i > 1; i--) {
+            if (!FastByteComparisons.equal(blocks.get(i).getParentHash(), blocks.get(i - 1).getHash()) ||
+                    !difficulties.get(i).equals(difficulties.get(i - 1).add(blocks.get(i).getDifficultyBI()))) {
+                throw new RuntimeException("The exported blocks don't form a chain at #" + blocks.get(i).getNumber());
+            }
+        }
+        for (final Block b : blocks) {
+            blockHeaderHashes.put(b.getNumber(), b.getHash());
+        }
+        return block;
+    }
+
+    private void importChunk(final StateArchive.Reader reader, final StateArchive.Chunk chunk,
+                             final StateArchive.Manifest manifest, final long startTime) {
+        final List<byte[]> entries = reader.read(chunk);
+        if (chunk.type == StateArchive.STATE) {
+            final List<byte[]> keys = new ArrayList<>(entries.size());
+            for (final byte[] entry : entries) {
+                final byte[] key = HashUtil.INSTANCE.sha3(entry);
+                if (FastByteComparisons.equal(key, manifest.stateRoot)) rootFound.set(true);
+                keys.add(key);
+            }
+            flushLock.readLock().lock();
+            try {
+                for (int i = 0; i < entries.size(); i++) {
+                    stateSource.put(keys.get(i), entries.get(i));
+                }
+            } finally {
+                flushLock.readLock().unlock();
+            }
+            stateEntries.addAndGet(entries.size());
+        } else if (chunk.type == StateArchive.HEADER) {
+            importHeaders(entries);
+        }
+
+        final long done = chunksDone.incrementAndGet();
+        if (done % FLUSH_CHUNKS == 0) {
+            flushLock.writeLock().lock();
+            try {
+                stateSource.flush();
+            } finally {
+                flushLock.writeLock().unlock();
+            }
+            logger.info("State import: {} of {} chunks, {} state entries, {} headers, {} sec", done,
+                    manifest.chunks.size(), stateEntries.get(), headers.get(), (System.currentTimeMillis() - startTime) / 1000);
+        }
+    }
+
+    /**
+     * Checks the chunk headers form a chain and stores them, the links between
+     * the chunks are checked when all the chunks are imported
+     */
+    private void importHeaders(final List<byte[]> entries) {
+        BlockHeader prev = null;
+        for (final byte[] entry : entries) {
+            final BlockHeader header = new BlockHeader(entry);
+            if (prev == null) {
+                boundaryParents.put(header.getNumber(), header.getParentHash());
+            } else if (header.getNumber() != prev.getNumber() + 1 ||
+                    !FastByteComparisons.equal(header.getParentHash(), prev.getHash())) {
+                throw new RuntimeException("The exported headers don't form a chain at #" + header.getNumber());
+            }
+            final byte[] blockHash = blockHeaderHashes.get(header.getNumber());
+            if (blockHash != null && !FastByteComparisons.equal(blockHash, header.getHash())) {
+                throw new RuntimeException("The exported block #" + header.getNumber() + " doesn't match the header");
+            }
+            if (headerStore != null) headerStore.set((int) header.getNumber(), header);
+            prev = header;
+        }
+        if (prev != null) boundaryHashes.put(prev.getNumber(), prev.getHash());
+        headers.addAndGet(entries.size());
+    }
+
+    private void checkHeaders(final StateArchive.Manifest manifest, final List<Block> blocks, final byte[] genesisHash) {
+        if (headers.get() != manifest.number + 1) {
+            throw new RuntimeException("Expected " + (manifest.number + 1) + " headers in the export, found " + headers.get());
+        }
+        for (final Map.Entry<Long, byte[]> parent : boundaryParents.entrySet()) {
+            if (parent.getKey() == 0) continue;
+            final byte[] hash = boundaryHashes.get(parent.getKey() - 1);
+            if (hash == null || !FastByteComparisons.equal(hash, parent.getValue())) {
+                throw new RuntimeException("The exported headers don't form a chain at #" + parent.getKey());
+            }
+        }
+        final byte[] lastHash = boundaryHashes.get(manifest.number);
+        if (lastHash == null || !FastByteComparisons.equal(lastHash, manifest.hash)) {
+            throw new RuntimeException("The last exported header doesn't match the manifest");
+        }
+        final Block genesis = blocks.get(0);
+        if (genesis.getNumber() != 0 || genesisHash != null && !FastByteComparisons.equal(genesis.getHash(), genesisHash)) {
+            throw new RuntimeException("The exported genesis doesn't match the configured one");
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.AccountState;
+import org.ethereum.core.Block;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.CountingBytesSource;
+import org.ethereum.datasource.DbSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.XorDataSource;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.trie.TrieWalker;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.FileUtil;
+import org.ethereum.util.RLP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Offline state pruning by mark-and-copy.
+ *
+ * All the state trie, storage tries and code entries reachable from the recent
+ * state roots are marked in the {@link DiskHashSet}, then all the DB entries except
+ * unmarked state entries are copied to the fresh DB which replaces the original one.
+ *
+ * The state entries are stored in the shared DB along with other stores, so an entry is
+ * recognized as a state one when its key (with the 'state' namespace removed) is the
+ * hash of its value.
+ *
+ * Must be run while the node is stopped. This allows running the node with pruning
+ * disabled (thus without reference counting overhead on the state writes) and reclaim
+ * the space periodically
+ */
+public class StatePruner {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final byte[] STATE_KEY = HashUtil.INSTANCE.sha3("state".getBytes());
+    private static final int BATCH_SIZE = 10_000;
+
+    private final DbSource<byte[]> db;
+    private final DiskHashSet marked;
+    private final Source<byte[], byte[]> stateSource;
+
+    public StatePruner(final DbSource<byte[]> db, final DiskHashSet marked) {
+        this.db = db;
+        this.marked = marked;
+        this.stateSource = new CountingBytesSource(new XorDataSource<>(db, STATE_KEY));
+    }
+
+    /**
+     * Prunes the 'blockchain' DB in the configured database dir leaving only
+     * the state of the last keepBlocks blocks (including forks)
+     */
+    public static void pruneOffline(final SystemProperties config, final int keepBlocks) {
+        if (config.databaseSeparateStores()) {
+            throw new RuntimeException("Offline state pruning supports 'database.layout = combined' only");
+        }
+        for (final String store : new String[] {"state", "index", "block"}) {
+            // the state entries are recognized by their raw values
+            if (config.databaseStoreValueCompression(store) >= 0) {
+                throw new RuntimeException("Offline state pruning doesn't support the value compression " +
+                        "('database.stores." + store + ".valueCompression')");
+            }
+        }
+        final LevelDbDataSource srcDb = openDb(config, "blockchain", false);
+        final LevelDbDataSource markDb = openDb(config, "prune-marked", true);
+        final LevelDbDataSource dstDb = openDb(config, "blockchain-pruned", true);
+
+        final StatePruner pruner = new StatePruner(srcDb, new DiskHashSet(markDb, 1_000_000));
+        pruner.mark(pruner.getRecentRoots(keepBlocks));
+        pruner.copy(dstDb);
+
+        srcDb.close();
+        markDb.close();
+        dstDb.close();
+
+        final Path dir = Paths.get(config.databaseDir());
+        try {
+            Files.move(dir.resolve("blockchain"), dir.resolve("blockchain-unpruned"));
+            Files.move(dir.resolve("blockchain-pruned"), dir.resolve("blockchain"));
+        } catch (final IOException e) {
+            throw new RuntimeException("Error replacing the pruned DB", e);
+        }
+        FileUtil.recursiveDelete(dir.resolve("blockchain-unpruned").toString());
+        FileUtil.recursiveDelete(dir.resolve("prune-marked").toString());
+        logger.info("State pruning complete");
+    }
+
+    private static LevelDbDataSource openDb(final SystemProperties config, final String name, final boolean reset) {
+        final LevelDbDataSource ret = new LevelDbDataSource(config);
+        ret.setName(name);
+        if (reset) {
+            ret.reset();
+        } else {
+            ret.init();
+        }
+        return ret;
+    }
+
+    /**
+     * @return state roots of all the blocks (main chain and forks) within the last keepBlocks
+     */
+    public List<byte[]> getRecentRoots(final int keepBlocks) {
+        final IndexedBlockStore blockStore = new IndexedBlockStore();
+        blockStore.init(new XorDataSource<>(db, HashUtil.INSTANCE.sha3("index".getBytes())),
+                new XorDataSource<>(db, HashUtil.INSTANCE.sha3("block".getBytes())));
+        final long best = blockStore.getMaxNumber();
+        final List<byte[]> ret = new ArrayList<>();
+        for (long n = Math.max(0, best - keepBlocks + 1); n <= best; n++) {
+            for (final Block block : blockStore.getBlocksByNumber(n)) {
+                ret.add(block.getStateRoot());
+            }
+        }
+        logger.info("Pruning state: keeping {} roots of blocks {}..{}", ret.size(), Math.max(0, best - keepBlocks + 1), best);
+        return ret;
+    }
+
+    /**
+     * Marks all the state entries reachable from the roots
+     * @return number of marked entries
+     */
+    public long mark(final List<byte[]> roots) {
+        final TrieWalker walker = new TrieWalker(stateSource);
+        final TrieWalker.Visitor storageVisitor = new TrieWalker.Visitor() {
+            @Override
+            public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+                return markNode(hash);
+            }
+
+            @Override
+            public boolean onValue(final byte[] key, final byte[] value) {
+                return true;
+            }
+        };
+        final TrieWalker.Visitor stateVisitor = new TrieWalker.Visitor() {
+            @Override
+            public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+                return markNode(hash);
+            }
+
+            @Override
+            public boolean onValue(final byte[] key, final byte[] value) {
+                final AccountState account = new AccountState(value);
+                if (!FastByteComparisons.equal(account.getCodeHash(), HashUtil.INSTANCE.getEMPTY_DATA_HASH())) {
+                    marked.add(account.getCodeHash());
+                }
+                walker.walk(account.getStateRoot(), storageVisitor);
+                return true;
+            }
+        };
+        for (final byte[] root : roots) {
+            walker.walk(root, stateVisitor);
+        }
+        marked.flush();
+        logger.info("Pruning state: {} entries marked", marked.size());
+        return marked.size();
+    }
+
+    private boolean markNode(final byte[] hash) {
+        // already marked subtree is walked completely
+        if (!marked.add(hash)) return false;
+        if (marked.size() % 1_000_000 == 0) {
+            logger.info("Pruning state: {} entries marked", marked.size());
+        }
+        return true;
+    }
+
+    /**
+     * Copies all the entries except unmarked state entries to the dstDb
+     * @return number of dropped entries
+     */
+    public long copy(final DbSource<byte[]> dstDb) {
+        final Map<byte[], byte[]> batch = new HashMap<>();
+        final long[] counts = new long[2];
+        db.forEachEntry((key, value) -> {
+            if (isStateEntry(key, value) && !marked.contains(ByteUtil.xorAlignRight(key, STATE_KEY))) {
+                counts[1]++;
+                return;
+            }
+            batch.put(key, value);
+            if (batch.size() >= BATCH_SIZE) {
+                dstDb.updateBatch(batch);
+                batch.clear();
+            }
+            if (++counts[0] % 1_000_000 == 0) {
+                logger.info("Pruning state: {} entries copied, {} dropped", counts[0], counts[1]);
+            }
+        });
+        dstDb.updateBatch(batch);
+        logger.info("Pruning state: {} entries copied, {} dropped", counts[0], counts[1]);
+        return counts[1];
+    }
+
+    private static boolean isStateEntry(final byte[] key, final byte[] value) {
+        if (key.length != STATE_KEY.length || value.length == 0) return false;
+        try {
+            // the state values are prefixed with the reference counter
+            final int valueStart = RLP.decode(value, 0).getPos();
+            return FastByteComparisons.equal(ByteUtil.xorAlignRight(key, STATE_KEY),
+                    HashUtil.INSTANCE.sha3(value, valueStart, value.length - valueStart));
+        } catch (final RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.core.AccountState;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.AbstractCachedSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.trie.TrieWalker;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
+
+/**
+ * Flat snapshot of the account state which allows reading accounts and storage slots
+ * with a single key-value lookup instead of the trie traversal.
+ *
+ * The snapshot consists of the persistent disk layer which mirrors the state at some
+ * older root and in-memory diff layers (one per imported state root) stacked on top of it.
+ * When the diff layers chain gets deeper than the configured depth the bottom layer is
+ * flattened into the disk layer. Diff layers which are not descendants of the new disk
+ * layer (abandoned forks) are dropped.
+ *
+ * Disk layer keys (all hashed keys are the SecureTrie keys):
+ * - account: epoch(4 bytes) + sha3(address) => RLP [accountRLP, incarnation]
+ * - storage: incarnation(8 bytes) + sha3(storageKey) => storage trie value
+ *
+ * Storage slots are bound to the account incarnation, so the destructed account storage
+ * is dropped by just assigning a new incarnation to the account. The same way the whole
+ * disk layer is dropped by incrementing the epoch. The orphaned entries are left in the DB
+ * (the store has no key range removal), that's why the snapshot is off by default.
+ *
+ * When the disk layer is (re)created at some root it is generated from the state trie in
+ * background. Until the generation is complete only accounts with hashes up to the
+ * generation marker are covered by the disk layer.
+ *
+ * Any lookup which is not covered by the snapshot returns null and the caller
+ * should fall back to the state trie.
+ */
+public class StateSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final byte[] META_KEY = HashUtil.INSTANCE.sha3("snapshotRoot".getBytes());
+    private static final int GENERATE_BATCH_ACCOUNTS = 512;
+
+    private final Source<byte[], byte[]> stateSource;
+    private final Source<byte[], byte[]> db;
+    private final int depth;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<ByteArrayWrapper, DiffLayer> layers = new HashMap<>();
+
+    // disk layer state
+    private ByteArrayWrapper diskRoot;
+    private int epoch;
+    private final AtomicLong nextIncarnation = new AtomicLong();
+    // null when the disk layer is complete
+    private byte[] genMarker;
+    // accounts above the genMarker changed while the generation batch was in progress
+    private final Set<ByteArrayWrapper> genDirty = new HashSet<>();
+    private long genAccounts;
+
+    private ExecutorService generator;
+
+    public StateSnapshot(final Source<byte[], byte[]> stateSource, final Source<byte[], byte[]> db, final int depth) {
+        this.stateSource = stateSource;
+        this.db = db;
+        this.depth = depth;
+        if (isEnabled()) {
+            init();
+        }
+    }
+
+    public boolean isEnabled() {
+        return depth > 0;
+    }
+
+    private void init() {
+        final byte[] meta = db.get(META_KEY);
+        if (meta != null) {
+            final RLP.LList list = RLP.decodeLazyList(meta);
+            epoch = ByteUtil.byteArrayToInt(list.getBytes(1));
+            final boolean clean = ByteUtil.byteArrayToInt(list.getBytes(4)) != 0;
+            if (clean) {
+                diskRoot = list.getBytes(0).length == 0 ? null : new ByteArrayWrapper(list.getBytes(0));
+                nextIncarnation.set(ByteUtil.byteArrayToLong(list.getBytes(2)));
+                genMarker = list.isList(3) ? null : list.getBytes(3);
+            } else {
+                // the last shutdown was not clean, the disk layer is inconsistent
+                logger.warn("State snapshot was not closed properly, discarding it");
+                resetEpoch(null);
+            }
+        } else {
+            resetEpoch(null);
+        }
+        // the snapshot is marked clean only on close()
+        saveMeta(false);
+        if (diskRoot != null && genMarker != null) {
+            startGenerator();
+        }
+        logger.info("State snapshot: root {}, epoch {}, {}", diskRoot, epoch,
+                genMarker == null ? "complete" : "generating from " + ByteUtil.toHexString(genMarker));
+    }
+
+    private void resetEpoch(final ByteArrayWrapper newDiskRoot) {
+        epoch++;
+        nextIncarnation.set(((long) epoch << 32) + 1);
+        layers.clear();
+        genDirty.clear();
+        genAccounts = 0;
+        diskRoot = newDiskRoot;
+        genMarker = newDiskRoot == null || isEmptyRoot(newDiskRoot.getData()) ? null : EMPTY_BYTE_ARRAY;
+    }
+
+    private void saveMeta(final boolean clean) {
+        db.put(META_KEY, RLP.encodeList(
+                RLP.encodeElement(diskRoot == null ? EMPTY_BYTE_ARRAY : diskRoot.getData()),
+                RLP.encodeInt(epoch),
+                RLP.encodeElement(ByteUtil.longToBytesNoLeadZeroes(nextIncarnation.get())),
+                genMarker == null ? RLP.encodeList() : RLP.encodeElement(genMarker),
+                RLP.encodeInt(clean ? 1 : 0)));
+    }
+
+    /**
+     * Returns account RLP at the specified state root
+     * @return null if the account is not covered by the snapshot and the state trie should be
+     * consulted, Entry with null value if the account doesn't exist
+     */
+    public AbstractCachedSource.Entry<byte[]> getAccount(final byte[] root, final byte[] addrHash) {
+        if (!isEnabled()) return null;
+        final ByteArrayWrapper addrKey = new ByteArrayWrapper(addrHash);
+        lock.readLock().lock();
+        try {
+            ByteArrayWrapper cur = new ByteArrayWrapper(root);
+            while (!cur.equals(diskRoot)) {
+                final DiffLayer layer = layers.get(cur);
+                if (layer == null) return null;
+                if (layer.diff.accounts.containsKey(addrKey)) {
+                    return entry(layer.diff.accounts.get(addrKey));
+                }
+                cur = layer.parent;
+            }
+            if (!isGenerated(addrHash)) return null;
+            final RLP.LList diskAccount = getDiskAccount(addrHash);
+            return entry(diskAccount == null ? null : diskAccount.getBytes(0));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the raw storage trie value at the specified state root
+     * @return null if the slot is not covered by the snapshot and the storage trie should be
+     * consulted, Entry with null value if the slot is empty
+     */
+    public AbstractCachedSource.Entry<byte[]> getStorage(final byte[] root, final byte[] addrHash, final byte[] slotHash) {
+        if (!isEnabled()) return null;
+        final ByteArrayWrapper addrKey = new ByteArrayWrapper(addrHash);
+        final ByteArrayWrapper slotKey = new ByteArrayWrapper(slotHash);
+        lock.readLock().lock();
+        try {
+            ByteArrayWrapper cur = new ByteArrayWrapper(root);
+            while (!cur.equals(diskRoot)) {
+                final DiffLayer layer = layers.get(cur);
+                if (layer == null) return null;
+                final Map<ByteArrayWrapper, byte[]> storage = layer.diff.storage.get(addrKey);
+                if (storage != null && storage.containsKey(slotKey)) {
+                    return entry(storage.get(slotKey));
+                }
+                if (layer.diff.destructed.contains(addrKey)) return entry(null);
+                cur = layer.parent;
+            }
+            if (!isGenerated(addrHash)) return null;
+            final RLP.LList diskAccount = getDiskAccount(addrHash);
+            final long incarnation = diskAccount == null ? 0 : ByteUtil.byteArrayToLong(diskAccount.getBytes(1));
+            return entry(incarnation == 0 ? null : db.get(storageKey(incarnation, slotHash)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the diff layer for the new state root on top of the parent state root layer
+     * If the parent root is not covered by the snapshot all the layers are dropped and the disk
+     * layer is regenerated at the parent root
+     */
+    public void update(final byte[] parentRoot, final byte[] root, final Diff diff) {
+        if (!isEnabled() || FastByteComparisons.equal(parentRoot, root)) return;
+        final ByteArrayWrapper parentKey = new ByteArrayWrapper(parentRoot);
+        final ByteArrayWrapper rootKey = new ByteArrayWrapper(root);
+        lock.writeLock().lock();
+        try {
+            if (layers.containsKey(rootKey) || rootKey.equals(diskRoot)) return;
+
+            final int parentDepth;
+            if (parentKey.equals(diskRoot)) {
+                parentDepth = 0;
+            } else if (layers.containsKey(parentKey)) {
+                parentDepth = layers.get(parentKey).depth;
+            } else {
+                logger.info("State snapshot doesn't cover root " + parentKey + ", regenerating");
+                resetEpoch(parentKey);
+                saveMeta(false);
+                if (genMarker != null) startGenerator();
+                parentDepth = 0;
+            }
+
+            DiffLayer layer = new DiffLayer(parentKey, diff, parentDepth + 1);
+            layers.put(rootKey, layer);
+
+            if (layer.depth > depth) {
+                while (!layer.parent.equals(diskRoot)) {
+                    layer = layers.get(layer.parent);
+                }
+                flatten(layer);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flattens all the layers up to the headRoot into the disk layer and marks the snapshot
+     * as consistent on disk
+     */
+    public void close(final byte[] headRoot) {
+        if (!isEnabled()) return;
+        stopGenerator();
+        lock.writeLock().lock();
+        try {
+            final List<DiffLayer> chain = new ArrayList<>();
+            ByteArrayWrapper cur = headRoot == null ? null : new ByteArrayWrapper(headRoot);
+            while (cur != null && layers.containsKey(cur)) {
+                final DiffLayer layer = layers.get(cur);
+                chain.add(layer);
+                cur = layer.parent;
+            }
+            if (cur != null && cur.equals(diskRoot)) {
+                for (int i = chain.size() - 1; i >= 0; i--) {
+                    flatten(chain.get(i));
+                }
+            }
+            layers.clear();
+            saveMeta(true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void flatten(final DiffLayer layer) {
+        final Diff diff = layer.diff;
+        final Set<ByteArrayWrapper> addrs = new HashSet<>(diff.accounts.keySet());
+        addrs.addAll(diff.destructed);
+        addrs.addAll(diff.storage.keySet());
+
+        for (final ByteArrayWrapper addr : addrs) {
+            if (!isGenerated(addr.getData())) {
+                // will be picked up by the generator from the new disk root
+                genDirty.add(addr);
+                continue;
+            }
+            final RLP.LList diskAccount = getDiskAccount(addr.getData());
+            long incarnation = diskAccount == null || diff.destructed.contains(addr) ?
+                    0 : ByteUtil.byteArrayToLong(diskAccount.getBytes(1));
+
+            final Map<ByteArrayWrapper, byte[]> storage = diff.storage.get(addr);
+            if (storage != null && !storage.isEmpty()) {
+                if (incarnation == 0) incarnation = nextIncarnation.getAndIncrement();
+                for (final Map.Entry<ByteArrayWrapper, byte[]> slot : storage.entrySet()) {
+                    final byte[] key = storageKey(incarnation, slot.getKey().getData());
+                    if (slot.getValue() == null) {
+                        db.delete(key);
+                    } else {
+                        db.put(key, slot.getValue());
+                    }
+                }
+            }
+
+            final byte[] accountRlp = diff.accounts.containsKey(addr) ? diff.accounts.get(addr) :
+                    diskAccount == null ? null : diskAccount.getBytes(0);
+            if (accountRlp == null) {
+                db.delete(accountKey(addr.getData()));
+            } else {
+                putDiskAccount(addr.getData(), accountRlp, incarnation);
+            }
+        }
+
+        final ByteArrayWrapper newDiskRoot = rootOf(layer);
+        layers.remove(newDiskRoot);
+        diskRoot = newDiskRoot;
+
+        // dropping the layers which are not descendants of the new disk layer
+        boolean removed = true;
+        while (removed) {
+            removed = layers.values().removeIf(l -> !l.parent.equals(diskRoot) && !layers.containsKey(l.parent));
+        }
+        for (final DiffLayer l : layers.values()) {
+            l.depth--;
+        }
+        saveMeta(false);
+    }
+
+    private ByteArrayWrapper rootOf(final DiffLayer layer) {
+        for (final Map.Entry<ByteArrayWrapper, DiffLayer> e : layers.entrySet()) {
+            if (e.getValue() == layer) return e.getKey();
+        }
+        throw new RuntimeException("Layer not found");
+    }
+
+    private boolean isGenerated(final byte[] addrHash) {
+        return genMarker == null || FastByteComparisons.compareTo(addrHash, 0, addrHash.length,
+                genMarker, 0, genMarker.length) <= 0;
+    }
+
+    private RLP.LList getDiskAccount(final byte[] addrHash) {
+        final byte[] val = db.get(accountKey(addrHash));
+        return val == null ? null : RLP.decodeLazyList(val);
+    }
+
+    private void putDiskAccount(final byte[] addrHash, final byte[] accountRlp, final long incarnation) {
+        db.put(accountKey(addrHash), RLP.encodeList(RLP.encodeElement(accountRlp),
+                RLP.encodeElement(ByteUtil.longToBytesNoLeadZeroes(incarnation))));
+    }
+
+    private byte[] accountKey(final byte[] addrHash) {
+        return ByteUtil.merge(ByteUtil.intToBytes(epoch), addrHash);
+    }
+
+    private static byte[] storageKey(final long incarnation, final byte[] slotHash) {
+        return ByteUtil.merge(ByteUtil.longToBytes(incarnation), slotHash);
+    }
+
+    private static boolean isEmptyRoot(final byte[] root) {
+        return FastByteComparisons.equal(root, HashUtil.INSTANCE.getEMPTY_TRIE_HASH());
+    }
+
+    private static AbstractCachedSource.Entry<byte[]> entry(final byte[] value) {
+        return () -> value;
+    }
+
+    private synchronized void startGenerator() {
+        if (generator == null) {
+            generator = Executors.newSingleThreadExecutor(r -> {
+                final Thread t = new Thread(r, "StateSnapshotGenerator");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        generator.submit(this::generate);
+    }
+
+    private synchronized void stopGenerator() {
+        if (generator != null) {
+            generator.shutdownNow();
+            try {
+                generator.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            generator = null;
+        }
+    }
+
+    private void generate() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final int genEpoch;
+            final byte[] root;
+            final byte[] marker;
+            lock.readLock().lock();
+            try {
+                if (genMarker == null || diskRoot == null) return;
+                genEpoch = epoch;
+                root = diskRoot.getData();
+                marker = genMarker;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            final List<byte[][]> batch = new ArrayList<>();
+            final boolean complete;
+            try {
+                complete = new TrieWalker(stateSource).walk(root, marker, new TrieWalker.ValueVisitor() {
+                    @Override
+                    public boolean onValue(final byte[] key, final byte[] value) {
+                        if (Thread.currentThread().isInterrupted()) return false;
+                        if (FastByteComparisons.equal(key, marker)) return true;
+                        batch.add(new byte[][]{key, value, ByteUtil.longToBytes(generateStorage(value))});
+                        return batch.size() < GENERATE_BATCH_ACCOUNTS;
+                    }
+                });
+            } catch (final RuntimeException e) {
+                // the trie nodes of the old root may have been pruned, retry from the current root
+                logger.debug("State snapshot generation batch failed, retrying: " + e);
+                continue;
+            }
+
+            lock.writeLock().lock();
+            try {
+                if (genEpoch != epoch) return;
+                final ByteArrayWrapper minDirty = genDirty.isEmpty() ? null : Collections.min(genDirty);
+                boolean conflict = false;
+                for (final byte[][] account : batch) {
+                    if (minDirty != null && minDirty.compareTo(new ByteArrayWrapper(account[0])) <= 0) {
+                        conflict = true;
+                        break;
+                    }
+                    putDiskAccount(account[0], account[1], ByteUtil.byteArrayToLong(account[2]));
+                    genMarker = account[0];
+                    genAccounts++;
+                }
+                genDirty.clear();
+                if (complete && !conflict && !Thread.currentThread().isInterrupted()) {
+                    genMarker = null;
+                    logger.info("State snapshot generation complete: {} accounts", genAccounts);
+                } else if (!batch.isEmpty()) {
+                    logger.info("State snapshot generation: {} accounts, marker {}", genAccounts, ByteUtil.toHexString(genMarker));
+                }
+                saveMeta(false);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private long generateStorage(final byte[] accountRlp) {
+        final AccountState account = new AccountState(accountRlp);
+        if (isEmptyRoot(account.getStateRoot())) return 0;
+        final long incarnation = nextIncarnation.getAndIncrement();
+        new TrieWalker(stateSource).walk(account.getStateRoot(), new TrieWalker.ValueVisitor() {
+            @Override
+            public boolean onValue(final byte[] key, final byte[] value) {
+                db.put(storageKey(incarnation, key), value);
+                return true;
+            }
+        });
+        return incarnation;
+    }
+
+    private static final class DiffLayer {
+        final ByteArrayWrapper parent;
+        final Diff diff;
+        int depth;
+
+        DiffLayer(final ByteArrayWrapper parent, final Diff diff, final int depth) {
+            this.parent = parent;
+            this.diff = diff;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * The set of account and storage changes between two state roots.
+     * All keys are hashed (SecureTrie) keys, values are raw trie values (null for deleted)
+     */
+    public static class Diff {
+        final Map<ByteArrayWrapper, byte[]> accounts = new HashMap<>();
+        final Set<ByteArrayWrapper> destructed = new HashSet<>();
+        final Map<ByteArrayWrapper, Map<ByteArrayWrapper, byte[]>> storage = new HashMap<>();
+
+        public synchronized void putAccount(final byte[] addrHash, final byte[] accountRlp) {
+            accounts.put(new ByteArrayWrapper(addrHash), accountRlp);
+        }
+
+        public synchronized void deleteAccount(final byte[] addrHash) {
+            accounts.put(new ByteArrayWrapper(addrHash), null);
+            destruct(addrHash);
+        }
+
+        /**
+         * Marks all the account storage as cleared
+         */
+        public synchronized void destruct(final byte[] addrHash) {
+            final ByteArrayWrapper addrKey = new ByteArrayWrapper(addrHash);
+            destructed.add(addrKey);
+            storage.remove(addrKey);
+        }
+
+        public synchronized void putStorage(final byte[] addrHash, final byte[] slotHash, final byte[] value) {
+            storage.computeIfAbsent(new ByteArrayWrapper(addrHash), k -> new HashMap<>())
+                    .put(new ByteArrayWrapper(slotHash), value);
+        }
+
+        /**
+         * @return null if the account is not changed
+         */
+        public synchronized AbstractCachedSource.Entry<byte[]> getAccount(final byte[] addrHash) {
+            final ByteArrayWrapper addrKey = new ByteArrayWrapper(addrHash);
+            return accounts.containsKey(addrKey) ? entry(accounts.get(addrKey)) : null;
+        }
+
+        /**
+         * @return null if the slot is not changed
+         */
+        public synchronized AbstractCachedSource.Entry<byte[]> getStorage(final byte[] addrHash, final byte[] slotHash) {
+            final ByteArrayWrapper addrKey = new ByteArrayWrapper(addrHash);
+            final Map<ByteArrayWrapper, byte[]> accStorage = storage.get(addrKey);
+            final ByteArrayWrapper slotKey = new ByteArrayWrapper(slotHash);
+            if (accStorage != null && accStorage.containsKey(slotKey)) return entry(accStorage.get(slotKey));
+            return destructed.contains(addrKey) ? entry(null) : null;
+        }
+
+        public synchronized boolean isEmpty() {
+            return accounts.isEmpty() && destructed.isEmpty() && storage.isEmpty();
+        }
+    }
+}
@@ -40,6 +40,7 @@ public class StateSource extends SourceChainBox<byte[], byte[], byte[], byte[]>
     private final ReadCache<byte[], byte[]> readCache;
     private final AbstractCachedSource<byte[], byte[]> writeCache;
     private final BloomedSource bloomedSource;
+    private final OffHeapCache offHeapCache;
     private JournalSource<byte[]> journalSource;
 
     public StateSource(final Source<byte[], byte[]> src, final boolean pruningEnabled) {
@@ -47,19 +48,39 @@ public class StateSource extends SourceChainBox<byte[], byte[], byte[], byte[]>
     }
 
     public StateSource(final Source<byte[], byte[]> src, final boolean pruningEnabled, final int maxBloomSize) {
+        this(src, pruningEnabled, false, maxBloomSize);
+    }
+
+    /**
+     * @param diffLayers keep the pruning journal as in-memory {@link DiffLayerSource}
+     */
+    public StateSource(final Source<byte[], byte[]> src, final boolean pruningEnabled, final boolean diffLayers,
+                       final int maxBloomSize) {
+        this(src, pruningEnabled, diffLayers, maxBloomSize, null);
+    }
+
+    /**
+     * @param metrics when not null the {@link MetricsSource} decorators are inserted below each layer
+     *                (named after the layer below) and on top of the chain
+     */
+    public StateSource(final Source<byte[], byte[]> src, final boolean pruningEnabled, final boolean diffLayers,
+                       final int maxBloomSize, final SourceMetricsReporter metrics) {
         super(src);
         final StateSource INST = this;
-        add(bloomedSource = new BloomedSource(src, maxBloomSize));
+        add(offHeapCache = new OffHeapCache(metered(metrics, "state.source", src), 0));
+        add(bloomedSource = new BloomedSource(metered(metrics, "state.offHeapCache", offHeapCache), maxBloomSize));
         bloomedSource.setFlushSource(false);
-        add(readCache = new ReadCache.BytesKey<>(bloomedSource).withMaxCapacity(16 * 1024 * 1024 / 512)); // 512 - approx size of a node
+        add(readCache = new ReadCache.BytesKey<>(metered(metrics, "state.bloom", bloomedSource)));
+        readCache.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
+        readCache.withMaxSize(16 * 1024 * 1024);
         readCache.setFlushSource(true);
         final CountingBytesSource countingSource;
-        add(countingSource = new CountingBytesSource(readCache, true));
+        add(countingSource = new CountingBytesSource(metered(metrics, "state.readCache", readCache), true));
         countingSource.setFlushSource(true);
-        writeCache = new AsyncWriteCache<byte[], byte[]>(countingSource) {
+        writeCache = new AsyncWriteCache<byte[], byte[]>(metered(metrics, "state.counting", countingSource)) {
             @Override
             protected WriteCache<byte[], byte[]> createCache(final Source<byte[], byte[]> source) {
-                final WriteCache.BytesKey<byte[]> ret = new WriteCache.BytesKey<>(source, WriteCache.CacheType.COUNTING);
+                final WriteCache<byte[], byte[]> ret = new ShardedWriteCache.BytesKey<>(source, WriteCache.CacheType.COUNTING, 16);
                 ret.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
                 ret.setFlushSource(true);
                 return ret;
@@ -68,18 +89,30 @@ public class StateSource extends SourceChainBox<byte[], byte[], byte[], byte[]>
 
         add(writeCache);
 
+        final Source<byte[], byte[]> meteredWriteCache = metered(metrics, "state.writeCache", writeCache);
+        final Source<byte[], byte[]> top;
         if (pruningEnabled) {
-            add(journalSource = new JournalSource<>(writeCache));
+            add(journalSource = diffLayers ? new DiffLayerSource<>(meteredWriteCache) : new JournalSource<>(meteredWriteCache));
+            top = journalSource;
         } else {
             final NoDeleteSource<byte[], byte[]> noDeleteSource;
-            add(noDeleteSource = new NoDeleteSource<>(writeCache));
+            add(noDeleteSource = new NoDeleteSource<>(meteredWriteCache));
+            top = noDeleteSource;
         }
+        if (metrics != null) add(metrics.wrap("state", top));
+    }
+
+    private static Source<byte[], byte[]> metered(final SourceMetricsReporter metrics, final String name,
+                                                  final Source<byte[], byte[]> src) {
+        return metrics == null ? src : metrics.wrap(name, src);
     }
 
     @Autowired
     public void setConfig(final SystemProperties config) {
         final int size = config.getConfig().getInt("cache.stateCacheSize");
-        readCache.withMaxCapacity(size * 1024 * 1024 / 512); // 512 - approx size of a node
+        readCache.withMaxSize(size * 1024L * 1024);
+        final int offHeapSize = config.getConfig().getInt("cache.offHeapStateCacheSize");
+        offHeapCache.setMaxSize(offHeapSize * 1024L * 1024);
     }
 
     @Autowired
@@ -93,6 +126,10 @@ public class StateSource extends SourceChainBox<byte[], byte[], byte[], byte[]>
         return journalSource;
     }
 
+    public OffHeapCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
     public BloomedSource getBloomedSource() {
         return bloomedSource;
     }
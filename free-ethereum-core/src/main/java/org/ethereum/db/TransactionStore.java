@@ -27,10 +27,14 @@
 package org.ethereum.db;
 
 import org.apache.commons.collections4.map.LRUMap;
+import org.ethereum.core.Block;
+import org.ethereum.core.Transaction;
 import org.ethereum.core.TransactionInfo;
-import org.ethereum.datasource.ObjectDataSource;
-import org.ethereum.datasource.Serializer;
+import org.ethereum.core.TransactionReceipt;
+import org.ethereum.datasource.AbstractChainedSource;
 import org.ethereum.datasource.Source;
+import org.ethereum.db.freezer.BlockFreezer;
+import org.ethereum.util.ByteUtil;
 import org.ethereum.util.FastByteComparisons;
 import org.ethereum.util.RLP;
 import org.ethereum.util.RLPElement;
@@ -40,15 +44,25 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
 /**
- * Storage (tx hash) => List of (block idx, tx idx, TransactionReceipt)
+ * Storage of the transaction receipts and the transaction locations:
  *
- * Since a transaction could be included into blocks from different forks and
- * have different receipts the class stores all of them (the same manner fork blocks are stored)
+ *  (block number, block hash prefix) => block hash, receipts of the block
+ *  (tx hash) => list of (block number, block hash prefix, tx idx)
+ *
+ * The receipts of a block are stored once as a single record with the offset table so a
+ * single receipt is sliced out without decoding the others. A transaction location is 20 bytes
+ * and since a transaction could be included into blocks from different forks all the locations
+ * are kept (the same manner fork blocks are stored). The keys of the two kinds have different length.
+ *
+ * The entries written by the previous versions (tx hash => RLP list of TransactionInfo) are still read.
  *
  * NOTE: the TransactionInfo instances returned contains TransactionReceipt which
  * has no initialized Transaction object. If needed use BlockStore to retrieve and setup
@@ -57,86 +71,277 @@ import java.util.List;
  * Created by Anton Nashatyrev on 07.04.2016.
  */
 @Component
-public class TransactionStore extends ObjectDataSource<List<TransactionInfo>> {
+public class TransactionStore {
     private static final Logger logger = LoggerFactory.getLogger("db");
-    private final static Serializer<List<TransactionInfo>, byte[]> serializer =
-            new Serializer<List<TransactionInfo>, byte[]>() {
-        @Override
-        public byte[] serialize(final List<TransactionInfo> object) {
-            final byte[][] txsRlp = new byte[object.size()][];
-            for (int i = 0; i < txsRlp.length; i++) {
-                txsRlp[i] = object.get(i).getEncoded();
-            }
-            return RLP.encodeList(txsRlp);
-        }
 
-        @Override
-        public List<TransactionInfo> deserialize(final byte[] stream) {
-            try {
-                if (stream == null) return null;
-                final RLPList params = RLP.decode2(stream);
-                final RLPList infoList = (RLPList) params.get(0);
-                final List<TransactionInfo> ret = new ArrayList<>();
-                for (final RLPElement anInfoList : infoList) {
-                    ret.add(new TransactionInfo(anInfoList.getRLPData()));
-                }
-                return ret;
-            } catch (final Exception e) {
-                // fallback to previous DB version
-                return Collections.singletonList(new TransactionInfo(stream));
-            }
-        }
-    };
+    static final int LOCATION_SIZE = 8 + 8 + 4;
+    private static final int HASH_SIZE = 32;
+
+    private final Source<byte[], byte[]> src;
     private final LRUMap<ByteArrayWrapper, Object> lastSavedTxHash = new LRUMap<>(5000);
     private final Object object = new Object();
+    private BlockFreezer freezer;
 
     public TransactionStore(final Source<byte[], byte[]> src) {
-        super(src, serializer, 256);
+        this.src = src;
+    }
+
+    private static long hashPrefix(final byte[] blockHash) {
+        return ByteUtil.byteArrayToLong(Arrays.copyOf(blockHash, 8));
+    }
+
+    static byte[] receiptsKey(final long blockNumber, final long hashPrefix) {
+        return ByteBuffer.allocate(16).putLong(blockNumber).putLong(hashPrefix).array();
+    }
+
+    private static boolean isLocations(final byte[] entry) {
+        // legacy entries are RLP lists
+        return entry.length % LOCATION_SIZE == 0 && (entry[0] & 0xFF) < 0xC0;
     }
 
     /**
-     * Adds TransactionInfo to the store.
-     * If entries for this transaction already exist the method adds new entry to the list
-     * if no entry for the same block exists
-     * @return true if TransactionInfo was added, false if already exist
+     * Stores the receipts of the block and adds the block location to its transactions.
+     * The location is not added if the transaction already refers the same block
      */
-    public boolean put(final TransactionInfo tx) {
-        final byte[] txHash = tx.getReceipt().getTransaction().getHash();
+    public void put(final Block block, final List<TransactionReceipt> receipts) {
+        final List<Transaction> txs = block.getTransactionsList();
+        if (receipts.size() != txs.size()) {
+            throw new RuntimeException("Block #" + block.getNumber() + " has " + txs.size() + " txs but " + receipts.size() + " receipts");
+        }
+        if (txs.isEmpty()) return;
+
+        final long prefix = hashPrefix(block.getHash());
+        src.put(receiptsKey(block.getNumber(), prefix), encodeReceipts(block.getHash(), receipts));
 
-        List<TransactionInfo> existingInfos = null;
-        synchronized (lastSavedTxHash) {
-            if (lastSavedTxHash.put(new ByteArrayWrapper(txHash), object) != null || !lastSavedTxHash.isFull()) {
-                existingInfos = get(txHash);
+        txLoop:
+        for (int i = 0; i < txs.size(); i++) {
+            final byte[] txHash = txs.get(i).getHash();
+            final byte[] location = ByteBuffer.allocate(LOCATION_SIZE).putLong(block.getNumber()).putLong(prefix).putInt(i).array();
+
+            byte[] existing = null;
+            synchronized (lastSavedTxHash) {
+                if (lastSavedTxHash.put(new ByteArrayWrapper(txHash), object) != null || !lastSavedTxHash.isFull()) {
+                    existing = src.get(txHash);
+                }
             }
-        }
-        // else it is highly unlikely that the transaction was included into another block
-        // earlier than 5000 transactions before with regard to regular block import process
-
-        if (existingInfos == null) {
-            existingInfos = new ArrayList<>();
-        } else {
-            for (final TransactionInfo info : existingInfos) {
-                if (FastByteComparisons.equal(info.getBlockHash(), tx.getBlockHash())) {
-                    return false;
+            // else it is highly unlikely that the transaction was included into another block
+            // earlier than 5000 transactions before with regard to regular block import process
+
+            if (existing == null) {
+                src.put(txHash, location);
+            } else if (isLocations(existing)) {
+                if (indexOf(existing, block.getNumber(), prefix) < 0) {
+                    src.put(txHash, ByteUtil.merge(existing, location));
+                }
+            } else {
+                // the legacy entry keeps its format
+                final List<TransactionInfo> infos = decodeLegacy(existing);
+                for (final TransactionInfo info : infos) {
+                    if (FastByteComparisons.equal(info.getBlockHash(), block.getHash())) continue txLoop;
                 }
+                infos.add(new TransactionInfo(receipts.get(i), block.getHash(), i));
+                src.put(txHash, encodeLegacy(infos));
             }
         }
-        existingInfos.add(tx);
-        put(txHash, existingInfos);
+    }
+
+    private static int indexOf(final byte[] locations, final long blockNumber, final long prefix) {
+        final ByteBuffer buf = ByteBuffer.wrap(locations);
+        for (int i = 0; i < locations.length / LOCATION_SIZE; i++) {
+            if (buf.getLong(i * LOCATION_SIZE) == blockNumber && buf.getLong(i * LOCATION_SIZE + 8) == prefix) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the ancient store which keeps the receipts of the old canonical blocks
+     */
+    public void setFreezer(final BlockFreezer freezer) {
+        this.freezer = freezer;
+    }
+
+    /**
+     * @return the infos of all the blocks including the transaction or null if the transaction is unknown
+     */
+    public List<TransactionInfo> get(final byte[] txHash) {
+        return resolve(src.get(txHash));
+    }
 
-        return true;
+    public List<List<TransactionInfo>> getBatch(final Collection<byte[]> txHashes) {
+        final List<byte[]> entries = AbstractChainedSource.getBatch(src, txHashes);
+        final List<List<TransactionInfo>> ret = new ArrayList<>(entries.size());
+        for (final byte[] entry : entries) ret.add(resolve(entry));
+        return ret;
     }
 
     public TransactionInfo get(final byte[] txHash, final byte[] blockHash) {
-        final List<TransactionInfo> existingInfos = get(txHash);
-        for (final TransactionInfo info : existingInfos) {
-            if (FastByteComparisons.equal(info.getBlockHash(), blockHash)) {
-                return info;
+        final byte[] entry = src.get(txHash);
+        if (entry == null) return null;
+        if (!isLocations(entry)) {
+            for (final TransactionInfo info : decodeLegacy(entry)) {
+                if (FastByteComparisons.equal(info.getBlockHash(), blockHash)) return info;
+            }
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(entry);
+        final long prefix = hashPrefix(blockHash);
+        for (int i = 0; i < entry.length / LOCATION_SIZE; i++) {
+            if (buf.getLong(i * LOCATION_SIZE + 8) == prefix) {
+                final TransactionInfo info = resolve(buf.getLong(i * LOCATION_SIZE), prefix, buf.getInt(i * LOCATION_SIZE + 16));
+                if (info != null && FastByteComparisons.equal(info.getBlockHash(), blockHash)) return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the info of the transaction from the main chain block. If the transaction is
+     *         included into a single block that block is not checked to be the main chain one
+     */
+    public TransactionInfo getMainChain(final byte[] txHash, final BlockStore blockStore) {
+        final byte[] entry = src.get(txHash);
+        if (entry == null) return null;
+        if (!isLocations(entry)) {
+            final List<TransactionInfo> infos = decodeLegacy(entry);
+            if (infos.size() == 1) return infos.get(0);
+            for (final TransactionInfo info : infos) {
+                final Block block = blockStore.getBlockByHash(info.getBlockHash());
+                if (block != null && FastByteComparisons.equal(info.getBlockHash(), blockStore.getBlockHashByNumber(block.getNumber()))) {
+                    return info;
+                }
+            }
+            return null;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(entry);
+        final int count = entry.length / LOCATION_SIZE;
+        for (int i = 0; i < count; i++) {
+            final long number = buf.getLong(i * LOCATION_SIZE);
+            final long prefix = buf.getLong(i * LOCATION_SIZE + 8);
+            final byte[] mainHash = count == 1 ? null : blockStore.getBlockHashByNumber(number);
+            if (count == 1 || (mainHash != null && hashPrefix(mainHash) == prefix)) {
+                return resolve(number, prefix, buf.getInt(i * LOCATION_SIZE + 16));
             }
         }
         return null;
     }
 
+    /**
+     * @return the receipts of the block in one read or null if the receipts are not stored,
+     *         the receipts have no Transaction set
+     */
+    public List<TransactionReceipt> getReceipts(final long blockNumber, final byte[] blockHash) {
+        final List<TransactionReceipt> frozen = getFrozenReceipts(blockNumber, hashPrefix(blockHash));
+        if (frozen != null) return frozen;
+        final byte[] record = src.get(receiptsKey(blockNumber, hashPrefix(blockHash)));
+        if (record == null || !FastByteComparisons.equal(blockHash, recordBlockHash(record))) return null;
+        final int count = ByteBuffer.wrap(record).getInt(0);
+        final List<TransactionReceipt> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) ret.add(decodeReceipt(record, i));
+        return ret;
+    }
+
+    /**
+     * The receipts of the frozen block are served by the freezer, the record is removed
+     */
+    public void blockFrozen(final long blockNumber, final byte[] blockHash) {
+        if (getFrozenReceipts(blockNumber, hashPrefix(blockHash)) != null) {
+            src.delete(receiptsKey(blockNumber, hashPrefix(blockHash)));
+        }
+    }
+
+    /**
+     * Removes the receipts of the dropped fork block, its transaction locations become dangling
+     * and are skipped
+     */
+    public void blockDropped(final long blockNumber, final byte[] blockHash) {
+        src.delete(receiptsKey(blockNumber, hashPrefix(blockHash)));
+    }
+
+    private List<TransactionReceipt> getFrozenReceipts(final long blockNumber, final long prefix) {
+        if (freezer == null || !freezer.isFrozen(blockNumber) || hashPrefix(freezer.getHash(blockNumber)) != prefix) return null;
+        final List<TransactionReceipt> ret = freezer.getReceipts(blockNumber);
+        // the block was frozen without receipts
+        return ret.isEmpty() ? null : ret;
+    }
+
+    private List<TransactionInfo> resolve(final byte[] entry) {
+        if (entry == null) return null;
+        if (!isLocations(entry)) return decodeLegacy(entry);
+        final ByteBuffer buf = ByteBuffer.wrap(entry);
+        final List<TransactionInfo> ret = new ArrayList<>(entry.length / LOCATION_SIZE);
+        for (int i = 0; i < entry.length / LOCATION_SIZE; i++) {
+            final TransactionInfo info = resolve(buf.getLong(i * LOCATION_SIZE), buf.getLong(i * LOCATION_SIZE + 8),
+                    buf.getInt(i * LOCATION_SIZE + 16));
+            if (info != null) ret.add(info);
+        }
+        return ret;
+    }
+
+    private TransactionInfo resolve(final long blockNumber, final long prefix, final int index) {
+        final List<TransactionReceipt> frozen = getFrozenReceipts(blockNumber, prefix);
+        if (frozen != null) {
+            return index < frozen.size() ? new TransactionInfo(frozen.get(index), freezer.getHash(blockNumber), index) : null;
+        }
+        final byte[] record = src.get(receiptsKey(blockNumber, prefix));
+        if (record == null) return null;
+        return new TransactionInfo(decodeReceipt(record, index), recordBlockHash(record), index);
+    }
+
+    /**
+     * [receipts count][block hash][end offset of each receipt][receipts]
+     */
+    private static byte[] encodeReceipts(final byte[] blockHash, final List<TransactionReceipt> receipts) {
+        final byte[][] encoded = new byte[receipts.size()][];
+        int size = HASH_SIZE + 4 + 4 * encoded.length;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = receipts.get(i).getEncoded();
+            size += encoded[i].length;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(encoded.length).put(blockHash);
+        int offset = 0;
+        for (final byte[] receipt : encoded) buf.putInt(offset += receipt.length);
+        for (final byte[] receipt : encoded) buf.put(receipt);
+        return buf.array();
+    }
+
+    private static byte[] recordBlockHash(final byte[] record) {
+        return Arrays.copyOfRange(record, 4, 4 + HASH_SIZE);
+    }
+
+    private static TransactionReceipt decodeReceipt(final byte[] record, final int index) {
+        final ByteBuffer buf = ByteBuffer.wrap(record);
+        final int count = buf.getInt(0);
+        if (index >= count) throw new RuntimeException("No receipt #" + index + " among " + count + " receipts of the block");
+        final int dataStart = HASH_SIZE + 4 + 4 * count;
+        final int start = index == 0 ? 0 : buf.getInt(HASH_SIZE + 4 + 4 * (index - 1));
+        final int end = buf.getInt(HASH_SIZE + 4 + 4 * index);
+        return new TransactionReceipt(Arrays.copyOfRange(record, dataStart + start, dataStart + end));
+    }
+
+    private static byte[] encodeLegacy(final List<TransactionInfo> infos) {
+        final byte[][] txsRlp = new byte[infos.size()][];
+        for (int i = 0; i < txsRlp.length; i++) {
+            txsRlp[i] = infos.get(i).getEncoded();
+        }
+        return RLP.encodeList(txsRlp);
+    }
+
+    private static List<TransactionInfo> decodeLegacy(final byte[] stream) {
+        try {
+            final RLPList params = RLP.decode2(stream);
+            final RLPList infoList = (RLPList) params.get(0);
+            final List<TransactionInfo> ret = new ArrayList<>();
+            for (final RLPElement anInfoList : infoList) {
+                ret.add(new TransactionInfo(anInfoList.getRLPData()));
+            }
+            return ret;
+        } catch (final Exception e) {
+            // fallback to previous DB version
+            return new ArrayList<>(Collections.singletonList(new TransactionInfo(stream)));
+        }
+    }
+
     @PreDestroy
     public void close() {
 //        try {
@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db.freezer;
+
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockHeader;
+import org.ethereum.core.TransactionReceipt;
+import org.ethereum.util.RLP;
+import org.ethereum.util.RLPElement;
+import org.ethereum.util.RLPList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 'Ancient' store of the old canonical chain: block hashes, headers, bodies and receipts
+ * in {@link FreezerTable}s indexed by the block number.
+ *
+ * Blocks are appended strictly in the number order starting from genesis. The tables are
+ * appended in the same order so after a crash the longer tables are truncated to the shortest one.
+ */
+public class BlockFreezer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private final FreezerTable hashes;
+    private final FreezerTable headers;
+    private final FreezerTable bodies;
+    private final FreezerTable receipts;
+    private final FreezerTable[] tables;
+    private volatile long count;
+
+    public BlockFreezer(final File dir, final int fileSize) {
+        hashes = new FreezerTable(dir, "hashes", fileSize);
+        headers = new FreezerTable(dir, "headers", fileSize);
+        bodies = new FreezerTable(dir, "bodies", fileSize);
+        receipts = new FreezerTable(dir, "receipts", fileSize);
+        tables = new FreezerTable[] {hashes, headers, bodies, receipts};
+
+        long minCount = Long.MAX_VALUE;
+        for (final FreezerTable table : tables) minCount = Math.min(minCount, table.size());
+        for (final FreezerTable table : tables) table.truncate(minCount);
+        count = minCount;
+        logger.info("Block freezer opened in {} with {} blocks", dir, count);
+    }
+
+    /**
+     * @return the number of frozen blocks, the number of the next block to freeze
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isFrozen(final long number) {
+        return number >= 0 && number < count;
+    }
+
+    /**
+     * Appends the next canonical block with its receipts, the data is durable only after {@link #sync()}
+     */
+    public synchronized void append(final Block block, final List<TransactionReceipt> blockReceipts) {
+        if (block.getNumber() != count) {
+            throw new RuntimeException("Block #" + block.getNumber() + " can't be frozen, expected #" + count);
+        }
+        final byte[][] receiptsRlp = new byte[blockReceipts.size()][];
+        for (int i = 0; i < receiptsRlp.length; i++) {
+            receiptsRlp[i] = blockReceipts.get(i).getEncoded();
+        }
+        hashes.append(block.getHash());
+        headers.append(block.getHeader().getEncoded());
+        bodies.append(block.getEncodedBody());
+        receipts.append(RLP.encodeList(receiptsRlp));
+        count++;
+    }
+
+    public byte[] getHash(final long number) {
+        return isFrozen(number) ? hashes.get(number) : null;
+    }
+
+    public BlockHeader getHeader(final long number) {
+        return isFrozen(number) ? new BlockHeader(headers.get(number)) : null;
+    }
+
+    public Block getBlock(final long number) {
+        if (!isFrozen(number)) return null;
+        final RLPList body = (RLPList) RLP.decode2(bodies.get(number)).get(0);
+        return new Block(RLP.encodeList(headers.get(number), body.get(0).getRLPData(), body.get(1).getRLPData()));
+    }
+
+    /**
+     * @return receipts of the frozen block, the receipts have no Transaction set
+     */
+    public List<TransactionReceipt> getReceipts(final long number) {
+        if (!isFrozen(number)) return null;
+        final RLPList list = (RLPList) RLP.decode2(receipts.get(number)).get(0);
+        final List<TransactionReceipt> ret = new ArrayList<>(list.size());
+        for (final RLPElement receipt : list) {
+            ret.add(new TransactionReceipt(receipt.getRLPData()));
+        }
+        return ret;
+    }
+
+    public void sync() {
+        for (final FreezerTable table : tables) table.sync();
+    }
+
+    @Override
+    public void close() {
+        for (final FreezerTable table : tables) table.close();
+    }
+}
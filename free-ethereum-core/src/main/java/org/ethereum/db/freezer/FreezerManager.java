@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db.freezer;
+
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockHeader;
+import org.ethereum.core.Transaction;
+import org.ethereum.core.TransactionInfo;
+import org.ethereum.core.TransactionReceipt;
+import org.ethereum.db.IndexedBlockStore;
+import org.ethereum.db.TransactionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves the canonical blocks and receipts which are [depth] blocks behind the best block
+ * from the key-value stores to the {@link BlockFreezer}.
+ *
+ * The blocks are frozen in background batches: a batch is appended and synced to the freezer
+ * first and only then the block entries are replaced with short references to the freezer and
+ * the block receipt records are removed from the stores. Fork blocks of the frozen levels are dropped.
+ * Freezing is suspended at the canonical block which is missing or has no stored receipts.
+ */
+public class FreezerManager {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    static final int BATCH_SIZE = 1000;
+
+    private final IndexedBlockStore blockStore;
+    private final TransactionStore transactionStore;
+    private final BlockFreezer freezer;
+    private final int depth;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private ExecutorService executor;
+
+    public FreezerManager(final IndexedBlockStore blockStore, final TransactionStore transactionStore,
+                          final BlockFreezer freezer, final int depth) {
+        this.blockStore = blockStore;
+        this.transactionStore = transactionStore;
+        this.freezer = freezer;
+        this.depth = depth;
+        if (freezer != null) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                final Thread t = new Thread(r, "BlockFreezerThread");
+                t.setDaemon(true);
+                return t;
+            });
+            // the references of the last batch might have been lost in case of crash
+            final long count = freezer.getCount();
+            if (count > 0) submit(() -> markFrozen(Math.max(0, count - BATCH_SIZE), count));
+        }
+    }
+
+    public BlockFreezer getFreezer() {
+        return freezer;
+    }
+
+    public void blockCommitted(final BlockHeader block) {
+        if (freezer == null) return;
+        final long limit = block.getNumber() - depth;
+        if (limit - freezer.getCount() >= BATCH_SIZE) {
+            submit(() -> freeze(limit));
+        }
+    }
+
+    private void submit(final Runnable task) {
+        if (!running.compareAndSet(false, true)) return;
+        executor.submit(() -> {
+            try {
+                task.run();
+            } catch (final Exception e) {
+                logger.error("Error freezing blocks", e);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    /**
+     * Freezes the canonical blocks with numbers less than the limit
+     */
+    public void freeze(final long limit) {
+        while (freezer.getCount() < limit) {
+            final long from = freezer.getCount();
+            final long to = Math.min(limit, from + BATCH_SIZE);
+            for (long number = from; number < to; number++) {
+                final Block block = blockStore.getChainBlockByNumber(number);
+                if (block == null) {
+                    logger.warn("Canonical block #{} is missing, blocks freezing is suspended", number);
+                    freezer.sync();
+                    markFrozen(from, number);
+                    return;
+                }
+                final List<TransactionReceipt> receipts = getReceipts(block);
+                if (receipts == null) {
+                    // the frozen block receipts can't be added later
+                    logger.warn("Receipts of canonical block #{} are missing, blocks freezing is suspended", number);
+                    freezer.sync();
+                    markFrozen(from, number);
+                    return;
+                }
+                freezer.append(block, receipts);
+            }
+            freezer.sync();
+            markFrozen(from, to);
+            logger.info("Blocks frozen up to #{}", to - 1);
+        }
+    }
+
+    /**
+     * @return the block receipts or null if any of them is missing
+     */
+    private List<TransactionReceipt> getReceipts(final Block block) {
+        if (block.getTransactionsList().isEmpty()) return new ArrayList<>();
+        final List<TransactionReceipt> ret = transactionStore.getReceipts(block.getNumber(), block.getHash());
+        if (ret != null) return ret;
+
+        // entries saved by the previous versions are stored per transaction
+        final List<TransactionReceipt> legacy = new ArrayList<>();
+        for (final Transaction tx : block.getTransactionsList()) {
+            final TransactionInfo txInfo = transactionStore.get(tx.getHash(), block.getHash());
+            if (txInfo == null) return null;
+            legacy.add(txInfo.getReceipt());
+        }
+        return legacy;
+    }
+
+    /**
+     * Replaces frozen entries in the stores with freezer references
+     */
+    private void markFrozen(final long from, final long to) {
+        for (long number = from; number < to; number++) {
+            final byte[] hash = freezer.getHash(number);
+            for (final byte[] dropped : blockStore.blockFrozen(number, hash)) {
+                transactionStore.blockDropped(number, dropped);
+            }
+            transactionStore.blockFrozen(number, hash);
+        }
+    }
+
+    public void close() {
+        if (freezer == null) return;
+        try {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        freezer.close();
+    }
+}
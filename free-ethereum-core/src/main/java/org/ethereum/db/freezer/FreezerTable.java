@@ -0,0 +1,227 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db.freezer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only table of items numbered from zero backed by flat files.
+ *
+ * Items are appended to memory mapped data files of a fixed size ([name].NNNN.dat), a new
+ * file is started when the item doesn't fit the current one. The index file ([name].idx) has
+ * the item count header followed by a fixed-width entry per item: data file number (2 bytes)
+ * and the item end offset (6 bytes), the item start is the previous item end within the same file.
+ *
+ * Appended items become durable on {@link #sync()}, the count in the header is written last
+ * so a crash leaves the table at the last synced state. Reads don't block each other nor the writer.
+ */
+public class FreezerTable implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger("db");
+
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 8;
+    private static final int INDEX_CHUNK_ENTRIES = 1 << 20;
+    private static final long OFFSET_MASK = (1L << 48) - 1;
+
+    private final File dir;
+    private final String name;
+    private final int fileSize;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> indexChunks = new CopyOnWriteArrayList<>();
+    private final List<DataFile> files = new CopyOnWriteArrayList<>();
+    private volatile long count;
+    private boolean closed = false;
+
+    private static class DataFile {
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+
+        DataFile(final File file, final int size) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    public FreezerTable(final File dir, final String name, final int fileSize) {
+        this.dir = dir;
+        this.name = name;
+        this.fileSize = fileSize;
+        try {
+            dir.mkdirs();
+            indexChannel = FileChannel.open(new File(dir, name + ".idx").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            count = header.getLong(0);
+            if (count > 0) {
+                final long last = entry(count - 1);
+                for (int i = 0; i <= fileNumber(last); i++) openFile(i);
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't open freezer table " + name + " in " + dir, e);
+        }
+    }
+
+    private static int fileNumber(final long entry) {
+        return (int) (entry >>> 48);
+    }
+
+    private static int endOffset(final long entry) {
+        return (int) (entry & OFFSET_MASK);
+    }
+
+    private DataFile openFile(final int number) throws IOException {
+        final DataFile ret = new DataFile(new File(dir, String.format("%s.%04d.dat", name, number)), fileSize);
+        files.add(ret);
+        return ret;
+    }
+
+    private MappedByteBuffer indexChunk(final int chunk) throws IOException {
+        if (chunk < indexChunks.size()) return indexChunks.get(chunk);
+        synchronized (indexChunks) {
+            while (indexChunks.size() <= chunk) {
+                final long pos = HEADER_SIZE + (long) indexChunks.size() * INDEX_CHUNK_ENTRIES * ENTRY_SIZE;
+                indexChunks.add(indexChannel.map(FileChannel.MapMode.READ_WRITE, pos, (long) INDEX_CHUNK_ENTRIES * ENTRY_SIZE));
+            }
+            return indexChunks.get(chunk);
+        }
+    }
+
+    private long entry(final long number) throws IOException {
+        return indexChunk((int) (number / INDEX_CHUNK_ENTRIES)).getLong((int) (number % INDEX_CHUNK_ENTRIES) * ENTRY_SIZE);
+    }
+
+    private void setEntry(final long number, final long entry) throws IOException {
+        indexChunk((int) (number / INDEX_CHUNK_ENTRIES)).putLong((int) (number % INDEX_CHUNK_ENTRIES) * ENTRY_SIZE, entry);
+    }
+
+    /**
+     * @return the number of items in the table, the next item number
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Appends the item
+     * @return the item number
+     */
+    public synchronized long append(final byte[] item) {
+        if (item.length > fileSize) {
+            throw new RuntimeException("Item of " + item.length + " bytes doesn't fit freezer file of " + fileSize + " bytes");
+        }
+        try {
+            int fileNum = 0;
+            int start = 0;
+            if (count > 0) {
+                final long last = entry(count - 1);
+                fileNum = fileNumber(last);
+                start = endOffset(last);
+                if (start + item.length > fileSize) {
+                    fileNum++;
+                    start = 0;
+                }
+            }
+            final DataFile file = fileNum < files.size() ? files.get(fileNum) : openFile(fileNum);
+            final ByteBuffer buf = file.buf.duplicate();
+            buf.position(start);
+            buf.put(item);
+            setEntry(count, ((long) fileNum << 48) | (start + item.length));
+            return count++;
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't append to freezer table " + name, e);
+        }
+    }
+
+    /**
+     * @return the item or null if there is no such item
+     */
+    public byte[] get(final long number) {
+        if (number < 0 || number >= count) return null;
+        try {
+            final long entry = entry(number);
+            int start = 0;
+            if (number > 0) {
+                final long prev = entry(number - 1);
+                if (fileNumber(prev) == fileNumber(entry)) start = endOffset(prev);
+            }
+            final DataFile file = files.get(fileNumber(entry));
+            final byte[] ret = new byte[endOffset(entry) - start];
+            final ByteBuffer buf = file.buf.duplicate();
+            buf.position(start);
+            buf.get(ret);
+            return ret;
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't read freezer table " + name, e);
+        }
+    }
+
+    /**
+     * Drops the items starting from the number
+     */
+    public synchronized void truncate(final long newCount) {
+        if (newCount >= count) return;
+        logger.warn("Truncating freezer table {} from {} to {} items", name, count, newCount);
+        count = newCount;
+        header.putLong(0, count);
+        header.force();
+    }
+
+    /**
+     * Flushes the appended items to the disk
+     */
+    public synchronized void sync() {
+        for (final DataFile file : files) file.buf.force();
+        for (final MappedByteBuffer chunk : indexChunks) chunk.force();
+        header.putLong(0, count);
+        header.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            sync();
+            for (final DataFile file : files) file.channel.close();
+            indexChannel.close();
+        } catch (final IOException e) {
+            logger.error("Failed to close freezer table " + name, e);
+        }
+    }
+}
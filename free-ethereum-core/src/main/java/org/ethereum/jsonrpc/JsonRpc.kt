@@ -74,6 +74,9 @@ interface JsonRpc {
     @Throws(Exception::class)
     fun eth_getTransactionCount(address: String, blockId: String): String
 
+    @Throws(Exception::class)
+    fun eth_getProof(address: String, storageKeys: Array<String>, blockId: String): ProofResult
+
     @Throws(Exception::class)
     fun eth_getBlockTransactionCountByHash(blockHash: String): String
 
@@ -203,9 +206,9 @@ interface JsonRpc {
 
     fun admin_addPeer(s: String): Boolean
 
-    fun admin_exportChain(): String
+    fun admin_exportChain(file: String): Boolean
 
-    fun admin_importChain(): String
+    fun admin_importChain(file: String): Boolean
 
     fun admin_sleepBlocks(): String
 
@@ -367,6 +370,42 @@ interface JsonRpc {
         }
     }
 
+    class ProofResult {
+        var address: String? = null // DATA, 20 Bytes - the address of the account.
+        var accountProof: Array<String>? = null // Array - RLP encoded state trie nodes from the root to the account.
+        var balance: String? = null // QUANTITY - the balance of the account.
+        var codeHash: String? = null // DATA, 32 Bytes - hash of the account code.
+        var nonce: String? = null // QUANTITY - the nonce of the account.
+        var storageHash: String? = null // DATA, 32 Bytes - the root of the account storage trie.
+        var storageProof: Array<StorageProof>? = null // Array - proofs for the requested storage keys.
+
+        override fun toString(): String {
+            return "ProofResult{" +
+                    "address='" + address + '\'' +
+                    ", accountProof=" + Arrays.toString(accountProof) +
+                    ", balance='" + balance + '\'' +
+                    ", codeHash='" + codeHash + '\'' +
+                    ", nonce='" + nonce + '\'' +
+                    ", storageHash='" + storageHash + '\'' +
+                    ", storageProof=" + Arrays.toString(storageProof) +
+                    '}'
+        }
+    }
+
+    class StorageProof {
+        var key: String? = null // QUANTITY - the requested storage key.
+        var value: String? = null // QUANTITY - the storage value.
+        var proof: Array<String>? = null // Array - RLP encoded storage trie nodes from the root to the value.
+
+        override fun toString(): String {
+            return "StorageProof{" +
+                    "key='" + key + '\'' +
+                    ", value='" + value + '\'' +
+                    ", proof=" + Arrays.toString(proof) +
+                    '}'
+        }
+    }
+
     class CompilationResult {
         var code: String? = null
         var info: CompilationInfo? = null
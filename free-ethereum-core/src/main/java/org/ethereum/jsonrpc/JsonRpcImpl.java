@@ -33,11 +33,14 @@ import org.ethereum.core.*;
 import org.ethereum.crypto.ECKey;
 import org.ethereum.crypto.HashUtil;
 import org.ethereum.db.BlockStore;
+import org.ethereum.datasource.Serializers;
 import org.ethereum.db.ByteArrayWrapper;
+import org.ethereum.db.StateSource;
 import org.ethereum.db.TransactionStore;
 import org.ethereum.facade.Ethereum;
 import org.ethereum.listener.CompositeEthereumListener;
 import org.ethereum.listener.EthereumListenerAdapter;
+import org.ethereum.manager.BlockLoader;
 import org.ethereum.manager.WorldManager;
 import org.ethereum.mine.BlockMiner;
 import org.ethereum.net.client.Capability;
@@ -47,6 +50,7 @@ import org.ethereum.net.server.ChannelManager;
 import org.ethereum.net.server.PeerServer;
 import org.ethereum.solidity.compiler.SolidityCompiler;
 import org.ethereum.sync.SyncManager;
+import org.ethereum.trie.SecureTrie;
 import org.ethereum.util.BuildInfo;
 import org.ethereum.util.ByteUtil;
 import org.ethereum.util.RLP;
@@ -60,6 +64,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Component;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -113,12 +119,18 @@ public class JsonRpcImpl implements JsonRpc {
     PendingStateImpl pendingState;
     @Autowired
     private
+    StateSource stateSource;
+    @Autowired
+    private
     SolidityCompiler solidityCompiler;
     @Autowired
     private
     ProgramInvokeFactory programInvokeFactory;
     @Autowired
     private
+    BlockLoader blockLoader;
+    @Autowired
+    private
     CommonConfig commonConfig = CommonConfig.getDefault();
     @Autowired
     public JsonRpcImpl(final BlockchainImpl blockchain, final CompositeEthereumListener compositeEthereumListener) {
@@ -406,6 +418,54 @@ public class JsonRpcImpl implements JsonRpc {
         }
     }
 
+    @Override
+    public ProofResult eth_getProof(final String address, final String[] storageKeys, final String blockId) {
+        ProofResult s = null;
+        try {
+            final Block block = getByJsonBlockId(blockId);
+            if (block == null) throw new RuntimeException("No state available for block " + blockId);
+
+            // the tries are reading nodes via the shared state source caches, and
+            // the nodes resolved for one key are reused by the subsequent keys
+            final byte[] addressAsByteArray = StringHexToByteArray(address);
+            final SecureTrie stateTrie = new SecureTrie(stateSource, block.getStateRoot());
+            final byte[] accountRlp = stateTrie.get(addressAsByteArray);
+            final AccountState accountState = accountRlp == null ?
+                    new AccountState(BigInteger.ZERO, BigInteger.ZERO) : new AccountState(accountRlp);
+
+            final ProofResult ret = new ProofResult();
+            ret.setAddress(toJsonHex(addressAsByteArray));
+            ret.setAccountProof(proofToJson(stateTrie.getProof(addressAsByteArray)));
+            ret.setBalance(toJsonHex(accountState.getBalance()));
+            ret.setCodeHash(toJsonHex(accountState.getCodeHash()));
+            ret.setNonce(toJsonHex(accountState.getNonce()));
+            ret.setStorageHash(toJsonHex(accountState.getStateRoot()));
+
+            final SecureTrie storageTrie = new SecureTrie(stateSource, accountState.getStateRoot());
+            final StorageProof[] storageProofs = new StorageProof[storageKeys == null ? 0 : storageKeys.length];
+            for (int i = 0; i < storageProofs.length; i++) {
+                final DataWord key = new DataWord(StringHexToByteArray(storageKeys[i]));
+                final DataWord value = Serializers.INSTANCE.getStorageValueSerializer().deserialize(storageTrie.get(key.getData()));
+                storageProofs[i] = new StorageProof();
+                storageProofs[i].setKey(toJsonHex(key.getData()));
+                storageProofs[i].setValue(toJsonHex(value == null ? BigInteger.ZERO : value.value()));
+                storageProofs[i].setProof(proofToJson(storageTrie.getProof(key.getData())));
+            }
+            ret.setStorageProof(storageProofs);
+            return s = ret;
+        } finally {
+            if (logger.isDebugEnabled()) logger.debug("eth_getProof(" + address + ", " + Arrays.toString(storageKeys) + ", " + blockId + "): " + s);
+        }
+    }
+
+    private String[] proofToJson(final List<byte[]> proof) {
+        final String[] ret = new String[proof.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = toJsonHex(proof.get(i));
+        }
+        return ret;
+    }
+
     public String eth_getBlockTransactionCountByHash(final String blockHash) throws Exception {
         String s = null;
         try {
@@ -1124,13 +1184,25 @@ public class JsonRpcImpl implements JsonRpc {
     }
 
     @Override
-    public String admin_exportChain() {
-        throw new UnsupportedOperationException("JSON RPC method admin_exportChain not implemented yet");
+    public boolean admin_exportChain(final String file) {
+        try {
+            blockLoader.exportBlocks(new File(file), 0, Long.MAX_VALUE);
+            return true;
+        } catch (final IOException e) {
+            throw new RuntimeException("Error exporting chain to " + file, e);
+        }
     }
 
     @Override
-    public String admin_importChain() {
-        throw new UnsupportedOperationException("JSON RPC method admin_importChain not implemented yet");
+    public boolean admin_importChain(final String file) {
+        try {
+            return blockLoader.importBlocks(new File(file));
+        } catch (final IOException e) {
+            throw new RuntimeException("Error importing chain from " + file, e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
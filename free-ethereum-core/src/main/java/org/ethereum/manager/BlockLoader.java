@@ -38,18 +38,22 @@ import org.spongycastle.util.encoders.Hex;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Component
 public class BlockLoader {
     private static final Logger logger = LoggerFactory.getLogger("blockqueue");
+    private static final int EXPORT_BUFFER_SIZE = 1 << 20;
     private final DateFormat df = new SimpleDateFormat("HH:mm:ss.SSSS");
     private final
     SystemProperties config;
@@ -59,6 +63,7 @@ public class BlockLoader {
     private final BlockchainImpl blockchain;
     private ExecutorPipeline<Block, Block> exec1;
     private ExecutorPipeline<Block, ?> exec2;
+    private final AtomicBoolean failed = new AtomicBoolean();
 
     @Autowired
     public BlockLoader(SystemProperties config, DbFlushManager dbFlushManager, BlockHeaderValidator headerValidator, BlockchainImpl blockchain) {
@@ -77,6 +82,7 @@ public class BlockLoader {
 
             final long s = System.currentTimeMillis();
             final ImportResult result = blockchain.tryToConnect(block);
+            if (!result.isSuccessful() && result != ImportResult.EXIST) failed.set(true);
 
             if (block.getNumber() % 10 == 0) {
                 System.out.println(df.format(new Date()) + " Imported block " + block.getShortDescr() + ": " + result + " (prework: "
@@ -91,7 +97,7 @@ public class BlockLoader {
         }
     }
 
-    public void loadBlocks() {
+    private ExecutorPipeline<Block, Block> createPipeline() {
         exec1 = new ExecutorPipeline(8, 1000, true, new Functional.Function<Block, Block>() {
             @Override
             public Block apply(final Block b) {
@@ -108,25 +114,23 @@ public class BlockLoader {
             try {
                 blockWork(block);
             } catch (final Exception e) {
+                failed.set(true);
                 e.printStackTrace();
             }
         });
+        return exec1;
+    }
 
+    public void loadBlocks() {
         final String fileSrc = config.blocksLoader();
         try {
             final String blocksFormat = config.getConfig().hasPath("blocks.format") ? config.getConfig().getString("blocks.format") : null;
             System.out.println("Loading blocks: " + fileSrc + ", format: " + blocksFormat);
 
             if ("rlp".equalsIgnoreCase(blocksFormat)) {     // rlp encoded bytes
-                final Path path = Paths.get(fileSrc);
-                // NOT OPTIMAL, but fine for tests
-                final byte[] data = Files.readAllBytes(path);
-                final RLPList list = RLP.decode2(data);
-                for (final RLPElement item : list) {
-                    final Block block = new Block(item.getRLPData());
-                    exec1.push(block);
-                }
+                importBlocks(new File(fileSrc));
             } else {                                        // hex string
+                createPipeline();
                 final FileInputStream inputStream = new FileInputStream(fileSrc);
                 final Scanner scanner = new Scanner(inputStream, "UTF-8");
 
@@ -137,23 +141,83 @@ public class BlockLoader {
 
                     exec1.push(block);
                 }
+                exec1.join();
+                dbFlushManager.flushSync();
             }
         } catch (final Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
 
+        System.out.println(" * Done * ");
+        System.exit(0);
+    }
 
-        try {
+    /**
+     * Imports the blocks from the file of concatenated block RLPs (the format of {@link #exportBlocks}
+     * and geth export). The file is read incrementally so the memory is bounded by the pipeline queues
+     * @return true if all the blocks were imported or skipped as known
+     */
+    public synchronized boolean importBlocks(final File file) throws IOException, InterruptedException {
+        failed.set(false);
+        createPipeline();
+        long count = 0;
+        try (RLPFileReader reader = new RLPFileReader(file)) {
+            byte[] blockRLP;
+            while ((blockRLP = reader.next()) != null) {
+                exec1.push(new Block(blockRLP));
+                if (++count % 10_000 == 0) {
+                    logger.info("Import of {}: {} blocks read, {}%", file, count, reader.getPosition() * 100 / reader.getSize());
+                }
+            }
+        } finally {
             exec1.join();
-        } catch (final InterruptedException e) {
-            throw new RuntimeException(e);
+            dbFlushManager.flushSync();
         }
+        logger.info("Import of {} complete: {} blocks", file, count);
+        return !failed.get();
+    }
+
+    /**
+     * Writes the canonical blocks [from..to] (to is limited by the best block) to the file
+     * as concatenated block RLPs
+     * @return the number of exported blocks
+     */
+    public long exportBlocks(final File file, final long from, final long to) throws IOException {
+        final long last = Math.min(to, blockchain.getBestBlock().getNumber());
+        final ByteBuffer buf = ByteBuffer.allocateDirect(EXPORT_BUFFER_SIZE);
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long number = from; number <= last; number++) {
+                final Block block = blockchain.getBlockStore().getChainBlockByNumber(number);
+                if (block == null) throw new IOException("Canonical block #" + number + " is missing");
+                final byte[] encoded = block.getEncoded();
+                if (buf.remaining() < encoded.length) flush(channel, buf);
+                if (encoded.length > buf.capacity()) {
+                    writeFully(channel, ByteBuffer.wrap(encoded));
+                } else {
+                    buf.put(encoded);
+                }
+                if (++count % 10_000 == 0) logger.info("Export to {}: {} blocks", file, count);
+            }
+            flush(channel, buf);
+            channel.force(false);
+        }
+        logger.info("Export to {} complete: {} blocks", file, count);
+        return count;
+    }
 
-        dbFlushManager.flushSync();
+    private static void flush(final FileChannel channel, final ByteBuffer buf) throws IOException {
+        buf.flip();
+        writeFully(channel, buf);
+        buf.clear();
+    }
 
-        System.out.println(" * Done * ");
-        System.exit(0);
+    private static void writeFully(final FileChannel channel, final ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
     }
 
     private boolean isValid(final BlockHeader header) {
@@ -31,6 +31,11 @@ import org.ethereum.core.*;
 import org.ethereum.crypto.HashUtil;
 import org.ethereum.db.BlockStore;
 import org.ethereum.db.DbFlushManager;
+import org.ethereum.db.IndexedBlockStore;
+import org.ethereum.db.PruneManager;
+import org.ethereum.db.RepositoryRoot;
+import org.ethereum.db.freezer.FreezerManager;
+import org.ethereum.db.StateSnapshot;
 import org.ethereum.listener.CompositeEthereumListener;
 import org.ethereum.listener.EthereumListener;
 import org.ethereum.net.client.PeerClient;
@@ -80,20 +85,23 @@ public class WorldManager {
     private final UDPListener discoveryUdpListener;
     private final EventDispatchThread eventDispatchThread;
     private final DbFlushManager dbFlushManager;
+    private final StateSnapshot stateSnapshot;
+    private final PruneManager pruneManager;
+    private final FreezerManager freezerManager;
     private final ApplicationContext ctx;
 
     @Autowired
     public WorldManager(final SystemProperties config, final Repository repository,
                         final EthereumListener listener, final Blockchain blockchain,
-                        final BlockStore blockStore, ApplicationContext ctx, DbFlushManager dbFlushManager, EventDispatchThread eventDispatchThread, UDPListener discoveryUdpListener, PendingState pendingState, SyncPool pool, FastSyncManager fastSyncManager, SyncManager syncManager, NodeManager nodeManager, AdminInfo adminInfo, ChannelManager channelManager, PeerClient activePeer) {
+                        final BlockStore blockStore, ApplicationContext ctx, DbFlushManager dbFlushManager, EventDispatchThread eventDispatchThread, UDPListener discoveryUdpListener, PendingState pendingState, SyncPool pool, FastSyncManager fastSyncManager, SyncManager syncManager, NodeManager nodeManager, AdminInfo adminInfo, ChannelManager channelManager, PeerClient activePeer, StateSnapshot stateSnapshot, PruneManager pruneManager, FreezerManager freezerManager) {
         this.listener = listener;
         this.blockchain = blockchain;
         this.repository = repository;
         this.blockStore = blockStore;
         this.config = config;
+        this.dbFlushManager = dbFlushManager;
         loadBlockchain();
         this.ctx = ctx;
-        this.dbFlushManager = dbFlushManager;
         this.eventDispatchThread = eventDispatchThread;
         this.discoveryUdpListener = discoveryUdpListener;
         this.pendingState = pendingState;
@@ -104,6 +112,9 @@ public class WorldManager {
         this.adminInfo = adminInfo;
         this.channelManager = channelManager;
         this.activePeer = activePeer;
+        this.stateSnapshot = stateSnapshot;
+        this.pruneManager = pruneManager;
+        this.freezerManager = freezerManager;
     }
 
     @PostConstruct
@@ -162,6 +173,8 @@ public class WorldManager {
         if (!config.databaseReset() || config.databaseResetBlock() != 0)
             blockStore.load();
 
+        if (!config.databaseReset()) rollbackToCommitMarker();
+
         if (blockStore.getBestBlock() == null) {
             logger.info("DB is empty - adding Genesis");
 
@@ -241,6 +254,27 @@ public class WorldManager {
 */
     }
 
+    /**
+     * Drops the blocks above the last fully flushed one, which data might be
+     * partially lost due to the unclean shutdown
+     */
+    private void rollbackToCommitMarker() {
+        // the injected repository delegates to the current blockchain repository
+        final Repository root = blockchain instanceof BlockchainImpl ? ((BlockchainImpl) blockchain).getRepository() : repository;
+        if (!(blockStore instanceof IndexedBlockStore) || !(root instanceof RepositoryRoot)) return;
+        final RepositoryRoot repo = (RepositoryRoot) root;
+        dbFlushManager.rollbackToCommitMarker((IndexedBlockStore) blockStore, repo::hasState);
+
+        final Block bestBlock = blockStore.getBestBlock();
+        if (bestBlock != null && config.databasePruneDepth() >= 0 && config.databasePruneDiffLayers() &&
+                !repo.hasState(bestBlock.getStateRoot())) {
+            // the diff layers were lost before any of them was persisted
+            throw new RuntimeException("State of the best block #" + bestBlock.getNumber() + " is missing in the DB " +
+                    "after the unclean shutdown with 'database.prune.diffLayers', " +
+                    "the database has to be reset (database.reset = true)");
+        }
+    }
+
     public void close() {
         logger.info("close: stopping peer discovery ...");
         stopPeerDiscovery();
@@ -256,6 +290,14 @@ public class WorldManager {
         blockchain.close();
         logger.info("close: closing main repository ...");
         repository.close();
+        logger.info("close: flushing state snapshot ...");
+        stateSnapshot.close(blockchain.getBestBlock().getStateRoot());
+        logger.info("close: stopping block freezer ...");
+        freezerManager.close();
+        logger.info("close: saving state diff layers ...");
+        pruneManager.close();
+        // the state of the best block is fully written now
+        dbFlushManager.setCommitted(blockchain.getBestBlock());
         logger.info("close: database flush manager ...");
         dbFlushManager.close();
     }
@@ -38,7 +38,7 @@ import org.ethereum.listener.CompositeEthereumListener;
 import org.ethereum.net.eth.EthVersion;
 import org.ethereum.net.eth.message.*;
 import org.ethereum.sync.PeerState;
-import org.ethereum.util.ByteArraySet;
+import org.ethereum.util.HashKeySet;
 import org.ethereum.util.Value;
 import org.spongycastle.util.encoders.Hex;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -111,12 +111,14 @@ public class Eth63 extends Eth62 {
         );
 
         final List<Value> nodeValues = new ArrayList<>();
-        for (final byte[] nodeKey : msg.getNodeKeys()) {
-            final byte[] rawNode = stateSource.get(nodeKey);
+        final List<byte[]> nodeKeys = msg.getNodeKeys();
+        final List<byte[]> rawNodes = stateSource.getBatch(nodeKeys);
+        for (int i = 0; i < nodeKeys.size(); i++) {
+            final byte[] rawNode = rawNodes.get(i);
             if (rawNode != null) {
                 final Value value = new Value(rawNode);
                 nodeValues.add(value);
-                logger.trace("Eth63: " + Hex.toHexString(nodeKey).substring(0, 8) + " -> " + value);
+                logger.trace("Eth63: " + Hex.toHexString(nodeKeys.get(i)).substring(0, 8) + " -> " + value);
             }
         }
 
@@ -131,19 +133,7 @@ public class Eth63 extends Eth62 {
                 msg.getBlockHashes().size()
         );
 
-        final List<List<TransactionReceipt>> receipts = new ArrayList<>();
-        for (final byte[] blockHash : msg.getBlockHashes()) {
-            final Block block = blockchain.getBlockByHash(blockHash);
-            if (block == null) continue;
-
-            final List<TransactionReceipt> blockReceipts = new ArrayList<>();
-            for (final Transaction transaction : block.getTransactionsList()) {
-                final TransactionInfo transactionInfo = blockchain.getTransactionInfo(transaction.getHash());
-                if (transactionInfo == null) break;
-                blockReceipts.add(transactionInfo.getReceipt());
-            }
-            receipts.add(blockReceipts);
-        }
+        final List<List<TransactionReceipt>> receipts = blockchain.getListOfReceiptsByHashes(msg.getBlockHashes());
 
         sendMessage(new ReceiptsMessage(receipts));
     }
@@ -152,7 +142,7 @@ public class Eth63 extends Eth62 {
         if (peerState != PeerState.IDLE) return null;
 
         final GetNodeDataMessage msg = new GetNodeDataMessage(hashes);
-        requestedNodes = new ByteArraySet();
+        requestedNodes = new HashKeySet();
         requestedNodes.addAll(hashes);
 
         requestNodesFuture = SettableFuture.create();
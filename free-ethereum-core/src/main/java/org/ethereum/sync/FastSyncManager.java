@@ -45,7 +45,7 @@ import org.ethereum.net.client.Capability;
 import org.ethereum.net.eth.handler.Eth63;
 import org.ethereum.net.message.ReasonCode;
 import org.ethereum.net.server.Channel;
-import org.ethereum.util.ByteArrayMap;
+import org.ethereum.util.ConcurrentHashKeyMap;
 import org.ethereum.util.FastByteComparisons;
 import org.ethereum.util.Value;
 import org.slf4j.Logger;
@@ -77,7 +77,7 @@ public class FastSyncManager {
     private final static int MSX_DB_QUEUE_SIZE = 20000;
     private static final Capability ETH63_CAPABILITY = new Capability(Capability.Companion.getETH(), (byte) 63);
     private final Deque<TrieNodeRequest> nodesQueue = new LinkedBlockingDeque<>();
-    private final ByteArrayMap<TrieNodeRequest> pendingNodes = new ByteArrayMap<>();
+    private final Map<byte[], TrieNodeRequest> pendingNodes = new ConcurrentHashKeyMap<>();
     private final BlockingQueue<TrieNodeRequest> dbWriteQueue = new LinkedBlockingQueue<>();
     @Autowired
     @Qualifier("blockchainDB")
@@ -122,12 +122,7 @@ class ReceiptsDownloader {
     private void processDownloaded(final byte[] blockHash, final List<TransactionReceipt> receipts) {
         final Block block = blockStore.getBlockByHash(blockHash);
         if (block.getNumber() >= fromBlock && validate(block, receipts) && !completedBlocks.contains(block.getNumber())) {
-            for (int i = 0; i < receipts.size(); i++) {
-                final TransactionReceipt receipt = receipts.get(i);
-                final TransactionInfo txInfo = new TransactionInfo(receipt, block.getHash(), i);
-                txInfo.setTransaction(block.getTransactionsList().get(i));
-                txStore.put(txInfo);
-            }
+            txStore.put(block, receipts);
 
             finalizeBlock(block.getNumber());
         }
@@ -31,8 +31,8 @@ import org.ethereum.core.BlockHeader;
 import org.ethereum.core.BlockHeaderWrapper;
 import org.ethereum.core.Blockchain;
 import org.ethereum.db.ByteArrayWrapper;
-import org.ethereum.util.ByteArrayMap;
 import org.ethereum.util.Functional;
+import org.ethereum.util.HashKeyMap;
 import org.spongycastle.util.encoders.Hex;
 
 import java.util.*;
@@ -95,12 +95,12 @@ public class SyncQueueImpl implements SyncQueueIfc {
         assert lastValidatedGen.size() == 1;
         final HeaderElement lastHeader = lastValidatedGen.values().iterator().next();
 
-        Map<byte[], HeaderElement> chainedParents = new ByteArrayMap<>();
+        Map<byte[], HeaderElement> chainedParents = new HashKeyMap<>();
         chainedParents.put(lastHeader.header.getHash(), lastHeader);
 
         for(long curNum = darkZoneNum + 1; ; curNum++) {
             // keep track of blocks chained to lastHeader until no children
-            final Map<byte[], HeaderElement> chainedBlocks = new ByteArrayMap<>();
+            final Map<byte[], HeaderElement> chainedBlocks = new HashKeyMap<>();
             final Map<ByteArrayWrapper, HeaderElement> curLevel = headers.get(curNum);
             if (curLevel == null) break;
             for (final HeaderElement element : curLevel.values()) {
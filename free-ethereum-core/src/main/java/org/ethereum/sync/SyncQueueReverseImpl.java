@@ -28,8 +28,8 @@ package org.ethereum.sync;
 
 import org.ethereum.core.Block;
 import org.ethereum.core.BlockHeaderWrapper;
-import org.ethereum.util.ByteArrayMap;
 import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.HashKeyMap;
 import org.ethereum.util.MinMaxMap;
 
 import java.util.*;
@@ -39,7 +39,7 @@ public class SyncQueueReverseImpl implements SyncQueueIfc {
     private final byte[] curHeaderHash;
 //    List<BlockHeaderWrapper> headers = new ArrayList<>();
 private final MinMaxMap<BlockHeaderWrapper> headers = new MinMaxMap<>();
-    private final ByteArrayMap<Block> blocks = new ByteArrayMap<>();
+    private final HashKeyMap<Block> blocks = new HashKeyMap<>();
     private long minValidated = -1;
     private boolean headersOnly;
 
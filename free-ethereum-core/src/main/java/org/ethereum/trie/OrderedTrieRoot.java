@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.trie;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.util.RLP;
+
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static org.ethereum.util.RLP.EMPTY_ELEMENT_RLP;
+import static org.ethereum.util.RLP.encodeElement;
+import static org.ethereum.util.RLP.encodeList;
+
+/**
+ * Calculates the root hash of the trie with keys {@code RLP.encodeInt(i)} for i in [0, count)
+ * (transactions and receipts tries) without building the {@link TrieImpl} and its
+ * backing Source.
+ *
+ * The keys order is known upfront: 1..127 (single byte keys), 0 (0x80), then 128.. in
+ * ascending order, so the nodes are encoded bottom-up in a single pass over the sorted
+ * keys with the recursion depth bounded by the key length. Values are requested once each.
+ */
+public final class OrderedTrieRoot {
+
+    private final TrieKey[] keys;
+    private final int[] indexes;
+    private final IntFunction<byte[]> values;
+
+    private OrderedTrieRoot(final int count, final IntFunction<byte[]> values) {
+        this.values = values;
+        keys = new TrieKey[count];
+        indexes = new int[count];
+        for (int pos = 0; pos < count; pos++) {
+            indexes[pos] = sortedIndex(pos, count);
+            keys[pos] = TrieKey.fromNormal(RLP.encodeInt(indexes[pos]));
+        }
+    }
+
+    public static byte[] calcRoot(final List<byte[]> values) {
+        return calcRoot(values.size(), values::get);
+    }
+
+    /**
+     * @param values the function returning the value for the index
+     */
+    public static byte[] calcRoot(final int count, final IntFunction<byte[]> values) {
+        if (count == 0) return HashUtil.INSTANCE.getEMPTY_TRIE_HASH();
+        return HashUtil.INSTANCE.sha3(new OrderedTrieRoot(count, values).encode(0, count, 0));
+    }
+
+    /**
+     * @return the index of the key at the position in the sorted keys sequence
+     */
+    static int sortedIndex(final int pos, final int count) {
+        final int singleByteKeys = Math.min(count - 1, 127);
+        if (pos < singleByteKeys) return pos + 1;
+        if (pos == singleByteKeys) return 0;
+        return pos;
+    }
+
+    /**
+     * Encodes the node containing keys [lo, hi) starting from the depth hex
+     */
+    private byte[] encode(final int lo, final int hi, final int depth) {
+        if (hi - lo == 1) {
+            return encodeList(encodeElement(keys[lo].shift(depth).toPacked()), encodeElement(values.apply(indexes[lo])));
+        }
+        // the keys are sorted so the range common prefix is the common prefix of the first and the last keys
+        int prefix = 0;
+        while (keys[lo].getHex(depth + prefix) == keys[hi - 1].getHex(depth + prefix)) {
+            prefix++;
+            if (depth + prefix == keys[lo].getLength() || depth + prefix == keys[hi - 1].getLength()) {
+                throw new RuntimeException("Trie keys should not be prefixes of each other");
+            }
+        }
+        if (prefix > 0) {
+            final TrieKey extKey = keys[lo].shift(depth).getCommonPrefix(keys[hi - 1].shift(depth));
+            return encodeList(encodeElement(extKey.toPacked()), ref(encodeBranch(lo, hi, depth + prefix)));
+        } else {
+            return encodeBranch(lo, hi, depth);
+        }
+    }
+
+    private byte[] encodeBranch(final int lo, final int hi, final int depth) {
+        final byte[][] items = new byte[17][];
+        int start = lo;
+        for (int hex = 0; hex < 16; hex++) {
+            int end = start;
+            while (end < hi && keys[end].getHex(depth) == hex) end++;
+            items[hex] = end > start ? ref(encode(start, end, depth + 1)) : EMPTY_ELEMENT_RLP;
+            start = end;
+        }
+        items[16] = EMPTY_ELEMENT_RLP;
+        return encodeList(items);
+    }
+
+    private static byte[] ref(final byte[] nodeRlp) {
+        return nodeRlp.length < 32 ? nodeRlp : encodeElement(HashUtil.INSTANCE.sha3(nodeRlp));
+    }
+}
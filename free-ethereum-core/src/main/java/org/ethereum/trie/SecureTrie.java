@@ -29,6 +29,8 @@ package org.ethereum.trie;
 import org.ethereum.crypto.HashUtil;
 import org.ethereum.datasource.Source;
 
+import java.util.List;
+
 import static org.ethereum.util.ByteUtil.EMPTY_BYTE_ARRAY;
 
 public class SecureTrie extends TrieImpl {
@@ -55,6 +57,11 @@ public class SecureTrie extends TrieImpl {
         super.put(HashUtil.INSTANCE.sha3(key), value);
     }
 
+    @Override
+    public List<byte[]> getProof(final byte[] key) {
+        return super.getProof(HashUtil.INSTANCE.sha3(key));
+    }
+
     @Override
     public void delete(final byte[] key) {
         put(key, EMPTY_BYTE_ARRAY);
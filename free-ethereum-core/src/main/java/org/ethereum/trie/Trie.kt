@@ -34,6 +34,16 @@ interface Trie<V> : Source<ByteArray, V> {
 
     fun setRoot(root: ByteArray)
 
+    /**
+     * Collects RLP encoded nodes on the path from the root to the key
+     * (nodes embedded into their parents are not listed separately).
+     * The proof can be checked against the root hash with [TrieProof.verify]
+     * and may prove either presence or absence of the key
+
+     * @return proof nodes starting from the root node or empty list if the trie is empty
+     */
+    fun getProof(key: ByteArray): List<ByteArray>
+
     /**
      * Recursively delete all nodes from root
      */
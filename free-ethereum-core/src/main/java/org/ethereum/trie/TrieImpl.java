@@ -156,6 +156,35 @@ public class TrieImpl implements Trie<byte[]> {
         }
     }
 
+    @Override
+    public List<byte[]> getProof(final byte[] key) {
+        final List<byte[]> ret = new ArrayList<>();
+        if (!hasRoot()) return ret;
+        // dirty nodes need to be hashed and stored to appear in the proof
+        encode();
+        getProof(root, TrieKey.fromNormal(key), ret);
+        return ret;
+    }
+
+    private void getProof(final Node n, final TrieKey k, final List<byte[]> proof) {
+        if (n == null) return;
+
+        final NodeType type = n.getType();
+        if (n.hash != null) {
+            // embedded nodes (without hash) are already a part of the parent node RLP
+            proof.add(n.rlp != null ? n.rlp : getHash(n.hash));
+        }
+        if (type == NodeType.BranchNode) {
+            if (k.isEmpty()) return;
+            getProof(n.branchNodeGetChild(k.getHex(0)), k.shift(1), proof);
+        } else if (type == NodeType.KVNodeNode) {
+            final TrieKey k1 = k.matchAndShift(n.kvNodeGetKey());
+            if (k1 != null) {
+                getProof(n.kvNodeGetChildNode(), k1, proof);
+            }
+        }
+    }
+
     public void put(final byte[] key, final byte[] value) {
         final TrieKey k = TrieKey.fromNormal(key);
         if (root == null) {
@@ -489,10 +518,13 @@ public class TrieImpl implements Trie<byte[]> {
                     deleteHash(hash);
                 }
                 dirty = false;
+                // the encoding loaded from the storage is stale now
                 if (ret.length < 32 && !forceHash) {
+                    hash = null;
                     rlp = ret;
                     return ret;
                 } else {
+                    rlp = null;
                     hash = HashUtil.INSTANCE.sha3(ret);
                     addHash(hash, ret);
                     return encodeElement(hash);
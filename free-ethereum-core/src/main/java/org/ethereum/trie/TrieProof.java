@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.trie;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.List;
+
+/**
+ * Stateless verifier of the Merkle proofs created by {@link Trie#getProof(byte[])}
+ *
+ * The verifier doesn't need any access to the trie storage: it walks the supplied
+ * proof nodes checking that each node hash matches the reference from its parent
+ * (the first node should match the root hash).
+ *
+ * NOTE: for {@link SecureTrie} proofs the key should be hashed by the caller
+ */
+public final class TrieProof {
+
+    private TrieProof() {
+    }
+
+    /**
+     * Verifies the proof for the key against the trie root hash
+     *
+     * @return the value stored under the key or null if the proof shows the key is absent
+     * @throws RuntimeException if the proof doesn't match the root hash or is incomplete
+     */
+    public static byte[] verify(final byte[] rootHash, final byte[] key, final List<byte[]> proof) {
+        if (FastByteComparisons.equal(rootHash, HashUtil.INSTANCE.getEMPTY_TRIE_HASH())) {
+            return result(null, 0, proof);
+        }
+
+        TrieKey k = TrieKey.fromNormal(key);
+        byte[] expectedHash = rootHash;
+        RLP.LList node = null;
+        int idx = 0;
+        while (true) {
+            if (node == null) {
+                if (idx >= proof.size()) {
+                    throw new RuntimeException("Incomplete proof, missing node " + Hex.toHexString(expectedHash));
+                }
+                final byte[] rlp = proof.get(idx++);
+                if (!FastByteComparisons.equal(HashUtil.INSTANCE.sha3(rlp), expectedHash)) {
+                    throw new RuntimeException("Invalid proof, node #" + (idx - 1) + " doesn't match hash " + Hex.toHexString(expectedHash));
+                }
+                node = RLP.decodeLazyList(rlp);
+            }
+
+            final int childIdx;
+            if (node.size() == 17) {
+                if (k.isEmpty()) {
+                    final byte[] value = node.getBytes(16);
+                    return result(value.length == 0 ? null : value, idx, proof);
+                }
+                childIdx = k.getHex(0);
+                k = k.shift(1);
+            } else if (node.size() == 2) {
+                final TrieKey nodeKey = TrieKey.fromPacked(node.getBytes(0));
+                final TrieKey k1 = k.matchAndShift(nodeKey);
+                if (nodeKey.isTerminal()) {
+                    return result(k1 != null && k1.isEmpty() ? node.getBytes(1) : null, idx, proof);
+                }
+                if (k1 == null) {
+                    return result(null, idx, proof);
+                }
+                childIdx = 1;
+                k = k1;
+            } else {
+                throw new RuntimeException("Invalid proof, malformed node #" + (idx - 1));
+            }
+
+            if (node.isList(childIdx)) {
+                // embedded node
+                node = node.getList(childIdx);
+            } else {
+                final byte[] ref = node.getBytes(childIdx);
+                if (ref.length == 0) {
+                    return result(null, idx, proof);
+                }
+                expectedHash = ref;
+                node = null;
+            }
+        }
+    }
+
+    private static byte[] result(final byte[] value, final int usedNodes, final List<byte[]> proof) {
+        if (usedNodes != proof.size()) {
+            throw new RuntimeException("Invalid proof, " + (proof.size() - usedNodes) + " extra nodes");
+        }
+        return value;
+    }
+}
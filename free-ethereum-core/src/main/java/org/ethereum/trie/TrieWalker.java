@@ -0,0 +1,208 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.trie;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.Source;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.RLP;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+
+/**
+ * Walks the trie reading the nodes directly from the node Source in the key order.
+ *
+ * Unlike {@link TrieImpl#scanTree(TrieImpl.ScanAction)} no {@link TrieImpl.Node} instances
+ * are created and retained, so the walk memory is bounded by the trie depth and
+ * arbitrary large tries (like the whole state trie) can be walked
+ */
+public class TrieWalker {
+
+    private final Source<byte[], byte[]> nodeSource;
+
+    public TrieWalker(final Source<byte[], byte[]> nodeSource) {
+        this.nodeSource = nodeSource;
+    }
+
+    /**
+     * Walks the whole trie
+     * @return true if the walk is complete, false if it was stopped by the visitor
+     */
+    public boolean walk(final byte[] root, final Visitor visitor) {
+        return walk(root, null, visitor);
+    }
+
+    /**
+     * Walks the trie values with keys greater or equal to the fromKey
+     * Subtrees containing only lesser keys are not resolved at all
+     * @return true if the walk is complete, false if it was stopped by the visitor
+     */
+    public boolean walk(final byte[] root, final byte[] fromKey, final Visitor visitor) {
+        if (root == null || FastByteComparisons.equal(root, HashUtil.INSTANCE.getEMPTY_TRIE_HASH())) return true;
+        return walkHash(root, new Path(), fromKey == null ? null : toNibbles(fromKey), fromKey != null, visitor);
+    }
+
+    /**
+     * Walks the subtree of the stored node located at the specified key path
+     * This allows splitting the walk of a large trie into independent parts
+     * @param hexPath key hexes from the root to the node
+     * @return true if the walk is complete, false if it was stopped by the visitor
+     */
+    public boolean walkSubtree(final byte[] nodeHash, final byte[] hexPath, final Visitor visitor) {
+        final Path path = new Path();
+        for (final byte hex : hexPath) {
+            path.push(hex);
+        }
+        return walkHash(nodeHash, path, null, false, visitor);
+    }
+
+    private boolean walkRef(final RLP.LList parent, final int idx, final Path path, final byte[] from,
+                            final boolean bounded, final Visitor visitor) {
+        if (parent.isList(idx)) {
+            return walkNode(parent.getList(idx), path, from, bounded, visitor);
+        }
+        final byte[] ref = parent.getBytes(idx);
+        return ref.length == 0 || walkHash(ref, path, from, bounded, visitor);
+    }
+
+    private boolean walkHash(final byte[] hash, final Path path, final byte[] from,
+                             final boolean bounded, final Visitor visitor) {
+        final byte[] rlp = nodeSource.get(hash);
+        if (rlp == null) throw new RuntimeException("Invalid Trie state, can't resolve hash " + Hex.toHexString(hash));
+        return !visitor.onNode(hash, rlp, path.len) || walkNode(RLP.decodeLazyList(rlp), path, from, bounded, visitor);
+    }
+
+    private boolean walkNode(final RLP.LList node, final Path path, final byte[] from,
+                             final boolean bounded, final Visitor visitor) {
+        if (node.size() == 17) {
+            // while bounded the path is a prefix of the fromKey
+            final boolean prefix = bounded && path.len < from.length;
+            if (!prefix) {
+                final byte[] value = node.getBytes(16);
+                if (value.length > 0 && !emit(path, value, visitor)) return false;
+            }
+            final int start = prefix ? from[path.len] : 0;
+            for (int i = start; i < 16; i++) {
+                path.push(i);
+                final boolean ret = walkRef(node, i, path, from, prefix && i == start, visitor);
+                path.pop(1);
+                if (!ret) return false;
+            }
+            return true;
+        } else {
+            final TrieKey key = TrieKey.fromPacked(node.getBytes(0));
+            final int keyLen = key.getLength();
+            int cmp = 0;
+            if (bounded) {
+                for (int i = 0; i < keyLen && cmp == 0; i++) {
+                    if (path.len + i >= from.length) {
+                        cmp = 1;
+                    } else {
+                        cmp = Integer.compare(key.getHex(i), from[path.len + i]);
+                    }
+                }
+                if (cmp < 0) return true; // the whole subtree is below the fromKey
+            }
+            final boolean childBounded = bounded && cmp == 0;
+            for (int i = 0; i < keyLen; i++) {
+                path.push(key.getHex(i));
+            }
+            final boolean ret;
+            if (key.isTerminal()) {
+                ret = childBounded && path.len < from.length || emit(path, node.getBytes(1), visitor);
+            } else {
+                ret = walkRef(node, 1, path, from, childBounded, visitor);
+            }
+            path.pop(keyLen);
+            return ret;
+        }
+    }
+
+    private boolean emit(final Path path, final byte[] value, final Visitor visitor) {
+        // keys with odd number of hexes can't be converted to normal keys
+        return (path.len & 1) != 0 || visitor.onValue(path.toKey(), value);
+    }
+
+    private static byte[] toNibbles(final byte[] key) {
+        final byte[] ret = new byte[key.length * 2];
+        for (int i = 0; i < key.length; i++) {
+            ret[i * 2] = (byte) ((key[i] >> 4) & 0xF);
+            ret[i * 2 + 1] = (byte) (key[i] & 0xF);
+        }
+        return ret;
+    }
+
+    public interface Visitor {
+
+        /**
+         * Invoked for each node stored in the Source under its hash
+         * (nodes embedded into their parents are not reported)
+         * @param depth number of key hexes from the root to the node
+         * @return false to skip the node subtree
+         */
+        boolean onNode(byte[] hash, byte[] rlp, int depth);
+
+        /**
+         * Invoked for each trie value in the key order
+         * @return false to stop the walk
+         */
+        boolean onValue(byte[] key, byte[] value);
+    }
+
+    /**
+     * Base Visitor which is interested in values only
+     */
+    public static abstract class ValueVisitor implements Visitor {
+        @Override
+        public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+            return true;
+        }
+    }
+
+    private static final class Path {
+        private byte[] hexes = new byte[64];
+        private int len;
+
+        void push(final int hex) {
+            if (len == hexes.length) hexes = Arrays.copyOf(hexes, len * 2);
+            hexes[len++] = (byte) hex;
+        }
+
+        void pop(final int cnt) {
+            len -= cnt;
+        }
+
+        byte[] toKey() {
+            final byte[] ret = new byte[len / 2];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = (byte) ((hexes[i * 2] << 4) | hexes[i * 2 + 1]);
+            }
+            return ret;
+        }
+    }
+}
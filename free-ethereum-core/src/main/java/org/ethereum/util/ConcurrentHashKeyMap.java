@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.util;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe {@link HashKeyMap}. The keys are spread over stripes each guarded by
+ * its own read/write lock so readers never block each other and writers block only
+ * a fraction of the map.
+ *
+ * Iterators are weakly consistent: each stripe is copied when the iteration reaches it.
+ */
+public class ConcurrentHashKeyMap<V> extends AbstractMap<byte[], V> {
+
+    private final HashKeyMap<V>[] stripes;
+    private final ReadWriteLock[] locks;
+
+    public ConcurrentHashKeyMap() {
+        this(16);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentHashKeyMap(final int stripeCount) {
+        final int count = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new HashKeyMap[count];
+        locks = new ReadWriteLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new HashKeyMap<>();
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private int stripe(final Object key) {
+        final byte[] bytes = (byte[]) key;
+        // the low bits of the hash while the map slots are taken from the high bits
+        final int h = bytes.length == HashKeyMap.KEY_SIZE ? (int) HashKeyMap.hash(bytes, 0) : Arrays.hashCode(bytes);
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    @Override
+    public int size() {
+        int ret = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].readLock().lock();
+            try {
+                ret += stripes[i].size();
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        final int i = stripe(key);
+        locks[i].readLock().lock();
+        try {
+            return stripes[i].containsKey(key);
+        } finally {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    @Override
+    public V get(final Object key) {
+        final int i = stripe(key);
+        locks[i].readLock().lock();
+        try {
+            return stripes[i].get(key);
+        } finally {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    @Override
+    public V put(final byte[] key, final V value) {
+        final int i = stripe(key);
+        locks[i].writeLock().lock();
+        try {
+            return stripes[i].put(key, value);
+        } finally {
+            locks[i].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public V remove(final Object key) {
+        final int i = stripe(key);
+        locks[i].writeLock().lock();
+        try {
+            return stripes[i].remove(key);
+        } finally {
+            locks[i].writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i].writeLock().lock();
+            try {
+                stripes[i].clear();
+            } finally {
+                locks[i].writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<Entry<byte[], V>> entrySet() {
+        return new AbstractSet<Entry<byte[], V>>() {
+            @Override
+            public Iterator<Entry<byte[], V>> iterator() {
+                return new Iterator<Entry<byte[], V>>() {
+                    private int stripe = -1;
+                    private Iterator<Entry<byte[], V>> it = Collections.emptyIterator();
+                    private Entry<byte[], V> last;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!it.hasNext() && ++stripe < stripes.length) {
+                            locks[stripe].readLock().lock();
+                            try {
+                                final List<Entry<byte[], V>> copy = new ArrayList<>(stripes[stripe].size());
+                                for (final Entry<byte[], V> e : stripes[stripe].entrySet()) {
+                                    copy.add(new SimpleImmutableEntry<>(e));
+                                }
+                                it = copy.iterator();
+                            } finally {
+                                locks[stripe].readLock().unlock();
+                            }
+                        }
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<byte[], V> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return last = it.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) throw new IllegalStateException();
+                        ConcurrentHashKeyMap.this.remove(last.getKey());
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentHashKeyMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                ConcurrentHashKeyMap.this.clear();
+            }
+        };
+    }
+}
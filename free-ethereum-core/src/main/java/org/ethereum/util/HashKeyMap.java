@@ -0,0 +1,317 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.util;
+
+import java.util.*;
+
+/**
+ * Map for byte[] keys specialized for 32-byte hashes.
+ *
+ * Unlike {@link ByteArrayMap} it doesn't wrap keys: 32-byte keys are copied to a flat
+ * open addressing (linear probing) table and the hash is taken directly from the key bytes,
+ * so an entry costs about 32 bytes of key plus a value reference instead of three objects.
+ * Keys of other sizes are rare and go to a regular {@link ByteArrayMap}.
+ *
+ * The map is not thread-safe, see {@link ConcurrentHashKeyMap}.
+ * Iterators create a key copy for each entry.
+ */
+public class HashKeyMap<V> extends AbstractMap<byte[], V> {
+
+    public static final int KEY_SIZE = 32;
+
+    private static final Object NULL = new Object();
+    private static final int MIN_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private byte[] keys;
+    private Object[] values;
+    private int shift;
+    private int mask;
+    private int threshold;
+    private int size;
+    private ByteArrayMap<V> other;
+
+    public HashKeyMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public HashKeyMap(final int expectedSize) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit((int) (expectedSize / LOAD_FACTOR)) << 1));
+    }
+
+    private void allocate(final int capacity) {
+        keys = new byte[capacity * KEY_SIZE];
+        values = new Object[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Hash keys are already uniform, the first and the last 8 bytes are mixed only to
+     * tolerate keys like zero padded numbers
+     */
+    static long hash(final byte[] key, final int off) {
+        return (readLong(key, off) ^ readLong(key, off + KEY_SIZE - 8)) * 0x9E3779B97F4A7C15L;
+    }
+
+    private static long readLong(final byte[] b, final int off) {
+        return (b[off] & 0xFFL) << 56 |
+                (b[off + 1] & 0xFFL) << 48 |
+                (b[off + 2] & 0xFFL) << 40 |
+                (b[off + 3] & 0xFFL) << 32 |
+                (b[off + 4] & 0xFFL) << 24 |
+                (b[off + 5] & 0xFFL) << 16 |
+                (b[off + 6] & 0xFFL) << 8 |
+                (b[off + 7] & 0xFFL);
+    }
+
+    private int slot(final byte[] key, final int off) {
+        return (int) (hash(key, off) >>> shift);
+    }
+
+    private boolean keyEquals(final int slot, final byte[] key) {
+        return FastByteComparisons.compareTo(keys, slot * KEY_SIZE, KEY_SIZE, key, 0, KEY_SIZE) == 0;
+    }
+
+    /**
+     * @return the slot of the key or (-1 - free slot) where it should be inserted
+     */
+    private int find(final byte[] key) {
+        int i = slot(key, 0);
+        while (values[i] != null) {
+            if (keyEquals(i, key)) return i;
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    private static boolean isHashKey(final Object key) {
+        return ((byte[]) key).length == KEY_SIZE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V unwrap(final Object val) {
+        return val == NULL ? null : (V) val;
+    }
+
+    @Override
+    public int size() {
+        return size + (other == null ? 0 : other.size());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (!isHashKey(key)) return other != null && other.containsKey(key);
+        return find((byte[]) key) >= 0;
+    }
+
+    @Override
+    public V get(final Object key) {
+        if (!isHashKey(key)) return other == null ? null : other.get(key);
+        final int i = find((byte[]) key);
+        return i < 0 ? null : unwrap(values[i]);
+    }
+
+    @Override
+    public V put(final byte[] key, final V value) {
+        if (!isHashKey(key)) {
+            if (other == null) other = new ByteArrayMap<>();
+            return other.put(key, value);
+        }
+        int i = find(key);
+        if (i >= 0) {
+            final V ret = unwrap(values[i]);
+            values[i] = value == null ? NULL : value;
+            return ret;
+        }
+        if (size >= threshold) {
+            resize(values.length << 1);
+            i = find(key);
+        }
+        i = -1 - i;
+        System.arraycopy(key, 0, keys, i * KEY_SIZE, KEY_SIZE);
+        values[i] = value == null ? NULL : value;
+        size++;
+        return null;
+    }
+
+    @Override
+    public V remove(final Object key) {
+        if (!isHashKey(key)) return other == null ? null : other.remove(key);
+        final int i = find((byte[]) key);
+        if (i < 0) return null;
+        final V ret = unwrap(values[i]);
+        removeAt(i);
+        return ret;
+    }
+
+    /**
+     * Removes the slot entry and shifts back the following entries of the cluster
+     * so no tombstones are needed
+     */
+    private void removeAt(int i) {
+        values[i] = null;
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) return;
+            final int k = slot(keys, j * KEY_SIZE);
+            // the entry stays if its home slot is cyclically within (i, j]
+            if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+            System.arraycopy(keys, j * KEY_SIZE, keys, i * KEY_SIZE, KEY_SIZE);
+            values[i] = values[j];
+            values[j] = null;
+            i = j;
+        }
+    }
+
+    private void resize(final int capacity) {
+        final byte[] oldKeys = keys;
+        final Object[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null) continue;
+            int i = slot(oldKeys, j * KEY_SIZE);
+            while (values[i] != null) i = (i + 1) & mask;
+            System.arraycopy(oldKeys, j * KEY_SIZE, keys, i * KEY_SIZE, KEY_SIZE);
+            values[i] = oldValues[j];
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+        other = null;
+    }
+
+    @Override
+    public Set<Entry<byte[], V>> entrySet() {
+        return new AbstractSet<Entry<byte[], V>>() {
+            @Override
+            public Iterator<Entry<byte[], V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return HashKeyMap.this.size();
+            }
+
+            @Override
+            public void clear() {
+                HashKeyMap.this.clear();
+            }
+        };
+    }
+
+    private class SlotEntry extends SimpleEntry<byte[], V> {
+        SlotEntry(final byte[] key, final V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(final V value) {
+            put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    private class EntryIterator implements Iterator<Entry<byte[], V>> {
+        private int slot = -1;
+        private int nextSlot = -1;
+        // keys left to iterate after the first removal since removal shifts entries around
+        private Iterator<byte[]> remaining;
+        private byte[] nextRemaining;
+        private Iterator<Entry<byte[], V>> otherIt;
+        private Entry<byte[], V> last;
+        private boolean lastOther;
+
+        @Override
+        public boolean hasNext() {
+            if (remaining == null) {
+                if (nextSlot <= slot) {
+                    nextSlot = slot + 1;
+                    while (nextSlot < values.length && values[nextSlot] == null) nextSlot++;
+                }
+                if (nextSlot < values.length) return true;
+            } else {
+                while (nextRemaining == null && remaining.hasNext()) {
+                    final byte[] key = remaining.next();
+                    if (find(key) >= 0) nextRemaining = key;
+                }
+                if (nextRemaining != null) return true;
+            }
+            if (otherIt == null) {
+                otherIt = other == null ? Collections.emptyIterator() : other.entrySet().iterator();
+            }
+            return otherIt.hasNext();
+        }
+
+        @Override
+        public Entry<byte[], V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            lastOther = false;
+            if (remaining == null && nextSlot < values.length) {
+                slot = nextSlot;
+                last = new SlotEntry(Arrays.copyOfRange(keys, slot * KEY_SIZE, (slot + 1) * KEY_SIZE), unwrap(values[slot]));
+            } else if (nextRemaining != null) {
+                last = new SlotEntry(nextRemaining, get(nextRemaining));
+                nextRemaining = null;
+            } else {
+                last = otherIt.next();
+                lastOther = true;
+            }
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) throw new IllegalStateException();
+            if (lastOther) {
+                otherIt.remove();
+            } else {
+                if (remaining == null) {
+                    final List<byte[]> keyList = new ArrayList<>();
+                    for (int i = slot + 1; i < values.length; i++) {
+                        if (values[i] != null) keyList.add(Arrays.copyOfRange(keys, i * KEY_SIZE, (i + 1) * KEY_SIZE));
+                    }
+                    remaining = keyList.iterator();
+                }
+                HashKeyMap.this.remove(last.getKey());
+            }
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * Set for byte[] keys specialized for 32-byte hashes, see {@link HashKeyMap}
+ */
+public class HashKeySet extends AbstractSet<byte[]> {
+    private final HashKeyMap<Boolean> map;
+
+    public HashKeySet() {
+        map = new HashKeyMap<>();
+    }
+
+    public HashKeySet(final int expectedSize) {
+        map = new HashKeyMap<>(expectedSize);
+    }
+
+    @Override
+    public boolean add(final byte[] key) {
+        return map.put(key, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        return map.remove(o) != null;
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+        return map.keySet().iterator();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the sequence of the top level RLP items (e.g. the blocks exported by geth or
+ * {@link org.ethereum.manager.BlockLoader}) from the file one by one.
+ *
+ * The file is memory mapped by windows which are moved forward as the items are read,
+ * so the memory used doesn't depend on the file size
+ */
+public class RLPFileReader implements Closeable {
+
+    private static final int WINDOW_SIZE = 64 << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public RLPFileReader(final File file) throws IOException {
+        this(file, WINDOW_SIZE);
+    }
+
+    RLPFileReader(final File file, final int windowSize) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.size = channel.size();
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return the next item encoding (with the RLP prefix) or null if the end of file is reached
+     */
+    public byte[] next() throws IOException {
+        if (position >= size) return null;
+        ensureMapped(position, Math.min(9, size - position));
+        final int prefix = window.get((int) (position - windowStart)) & 0xFF;
+        final long length;
+        if (prefix < RLP.OFFSET_SHORT_ITEM) {
+            length = 1;
+        } else if (prefix <= RLP.OFFSET_LONG_ITEM) {
+            length = 1 + prefix - RLP.OFFSET_SHORT_ITEM;
+        } else if (prefix < RLP.OFFSET_SHORT_LIST) {
+            length = longLength(prefix - RLP.OFFSET_LONG_ITEM);
+        } else if (prefix <= RLP.OFFSET_LONG_LIST) {
+            length = 1 + prefix - RLP.OFFSET_SHORT_LIST;
+        } else {
+            length = longLength(prefix - RLP.OFFSET_LONG_LIST);
+        }
+        if (position + length > size || length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Truncated RLP item at " + position + " (" + length + " bytes)");
+        }
+        ensureMapped(position, length);
+        final byte[] ret = new byte[(int) length];
+        window.position((int) (position - windowStart));
+        window.get(ret);
+        position += length;
+        return ret;
+    }
+
+    /**
+     * @return the total length of the item with the length of length bytes following the prefix
+     */
+    private long longLength(final int lengthOfLength) throws IOException {
+        if (position + 1 + lengthOfLength > size) throw new IOException("Truncated RLP item at " + position);
+        long len = 0;
+        for (int i = 0; i < lengthOfLength; i++) {
+            len = (len << 8) | (window.get((int) (position - windowStart) + 1 + i) & 0xFF);
+        }
+        return 1 + lengthOfLength + len;
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    private void ensureMapped(final long start, final long length) throws IOException {
+        if (window != null && start >= windowStart && start + length <= windowStart + window.limit()) return;
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, Math.max(windowSize, length)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+}
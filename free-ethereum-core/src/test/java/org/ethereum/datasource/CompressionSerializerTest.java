@@ -0,0 +1,178 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.datasource;
+
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link CompressionSerializer}
+ */
+public class CompressionSerializerTest {
+
+    private final CompressionSerializer codec = new CompressionSerializer(64);
+
+    private byte[] repeated(final int len, final int first) {
+        final byte[] ret = new byte[len];
+        for (int i = 0; i < len; i++) ret[i] = (byte) (i % 7);
+        ret[0] = (byte) first;
+        return ret;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final byte[] compressible = repeated(1000, 0xF9);
+        final byte[] stored = codec.serialize(compressible);
+        assertEquals(0x21, stored[0]);
+        assertTrue(stored.length < compressible.length);
+        assertArrayEquals(compressible, codec.deserialize(stored));
+
+        final byte[] random = new byte[1000];
+        new Random(1).nextBytes(random);
+        random[0] = (byte) 0xF9;
+        // doesn't compress, stored as is
+        assertArrayEquals(random, codec.serialize(random));
+        assertArrayEquals(random, codec.deserialize(random));
+
+        final byte[] small = repeated(32, 0xC0);
+        assertArrayEquals(small, codec.serialize(small));
+        assertArrayEquals(small, codec.deserialize(small));
+
+        assertArrayEquals(new byte[0], codec.deserialize(codec.serialize(new byte[0])));
+        assertNull(codec.serialize(null));
+        assertNull(codec.deserialize(null));
+    }
+
+    @Test
+    public void testHeaderRangeEscaped() {
+        for (int b = 0x20; b <= 0x2F; b++) {
+            final byte[] small = repeated(10, b);
+            final byte[] stored = codec.serialize(small);
+            assertEquals(0x20, stored[0]);
+            assertEquals(small.length + 1, stored.length);
+            assertArrayEquals(small, codec.deserialize(stored));
+
+            final byte[] random = new byte[200];
+            new Random(b).nextBytes(random);
+            random[0] = (byte) b;
+            assertArrayEquals(random, codec.deserialize(codec.serialize(random)));
+
+            final byte[] large = repeated(200, b);
+            assertArrayEquals(large, codec.deserialize(codec.serialize(large)));
+        }
+    }
+
+    @Test
+    public void testUncompressedSource() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final byte[] key1 = {1};
+        final byte[] key2 = {2};
+        final byte[] legacy = repeated(500, 0xF9);
+        db.put(key1, legacy);
+
+        final Source<byte[], byte[]> src = new SourceCodec.BytesKey<>(db, codec);
+        assertArrayEquals(legacy, src.get(key1));
+
+        src.put(key2, legacy);
+        assertTrue(db.get(key2).length < legacy.length);
+        assertArrayEquals(legacy, src.get(key2));
+    }
+
+    @Test
+    public void testCountingValues() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final CountingBytesSource src = new CountingBytesSource(new SourceCodec.BytesKey<>(db, codec));
+        final byte[] key = {1};
+        final byte[] value = repeated(37, 0xF9);
+        // the reference counter 32 and 33 prefixes are in the header range
+        for (int i = 1; i <= 33; i++) {
+            src.put(key, value);
+            if (i >= 31) assertArrayEquals(value, src.get(key));
+        }
+        for (int i = 0; i < 32; i++) src.delete(key);
+        assertArrayEquals(value, src.get(key));
+        src.delete(key);
+        assertNull(src.get(key));
+
+        // single byte RLP
+        for (int b = 0x20; b <= 0x2F; b++) {
+            assertArrayEquals(new byte[]{(byte) b}, codec.deserialize(codec.serialize(new byte[]{(byte) b})));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testCorrupted() {
+        final byte[] stored = codec.serialize(repeated(1000, 0xF9));
+        codec.deserialize(Arrays.copyOf(stored, stored.length / 2));
+    }
+
+    @Ignore
+    @Test
+    public void perfTest() throws Exception {
+        final URL resource = ClassLoader.getSystemResource("blockstore/light-load.dmp");
+        final List<byte[]> blocks = new ArrayList<>();
+        for (final String line : Files.readAllLines(new File(resource.toURI()).toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) blocks.add(Hex.decode(line));
+        }
+
+        final CompressionSerializer serializer = new CompressionSerializer(128);
+        long raw = 0;
+        long compressed = 0;
+        final List<byte[]> stored = new ArrayList<>();
+        for (final byte[] block : blocks) {
+            final byte[] s = serializer.serialize(block);
+            raw += block.length;
+            compressed += s.length;
+            stored.add(s);
+        }
+        System.out.printf("Blocks: %d, raw: %d bytes, stored: %d bytes, ratio: %.3f%n",
+                blocks.size(), raw, compressed, (double) compressed / raw);
+
+        for (int round = 0; round < 5; round++) {
+            final long s = System.nanoTime();
+            long bytes = 0;
+            for (int i = 0; i < 1000; i++) {
+                for (final byte[] b : stored) bytes += serializer.deserialize(b).length;
+            }
+            final long t = System.nanoTime() - s;
+            System.out.printf("Decoded %d MB in %d ms: %.1f MB/s%n", bytes >> 20, t / 1_000_000,
+                    (bytes / 1048576.0) / (t / 1e9));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.db.ByteArrayWrapper;
+import org.ethereum.util.ByteUtil;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link DiffLayerSource}
+ */
+public class DiffLayerSourceTest {
+
+    private static byte[] hashInt(final int i) {
+        return HashUtil.INSTANCE.sha3(ByteUtil.intToBytes(i));
+    }
+
+    private static byte[] key(final String s) {
+        return s.getBytes();
+    }
+
+    private static Set<ByteArrayWrapper> keys(final HashMapDB<byte[]> db) {
+        final Set<ByteArrayWrapper> ret = new HashSet<>();
+        for (final byte[] key : db.keys()) {
+            ret.add(new ByteArrayWrapper(key));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testLayers() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final DiffLayerSource<byte[]> src = new DiffLayerSource<>(new CountingBytesSource(db));
+
+        src.put(key("a1"), key("a1"));
+        src.commitUpdates(hashInt(0));
+        src.persistUpdate(hashInt(0));
+        assertEquals(1, db.keys().size());
+
+        src.put(key("a2"), key("a2"));
+        src.delete(key("a1"));
+        src.commitUpdates(hashInt(1));
+        // fork block
+        src.put(key("a3"), key("a3"));
+        src.commitUpdates(hashInt(2));
+
+        // nothing is written until persisted
+        assertEquals(1, db.keys().size());
+        assertArrayEquals(key("a1"), src.get(key("a1")));
+        assertArrayEquals(key("a2"), src.get(key("a2")));
+        assertArrayEquals(key("a3"), src.get(key("a3")));
+        final List<byte[]> batch = src.getBatch(Arrays.asList(key("a1"), key("a3"), key("a4")));
+        assertArrayEquals(key("a1"), batch.get(0));
+        assertArrayEquals(key("a3"), batch.get(1));
+        assertNull(batch.get(2));
+        assertTrue(src.hasUpdate(hashInt(1)));
+        assertEquals(2, src.getLayerCount());
+
+        src.revertUpdate(hashInt(2));
+        src.persistUpdate(hashInt(1));
+        assertEquals(0, src.getLayerCount());
+        assertEquals(0, src.getNodeCount());
+        assertEquals(Collections.singleton(new ByteArrayWrapper(key("a2"))), keys(db));
+        assertNull(src.get(key("a3")));
+    }
+
+    @Test
+    public void testSameAsJournal() {
+        final Random rnd = new Random(1);
+        final HashMapDB<byte[]> journalDb = new HashMapDB<>();
+        final HashMapDB<byte[]> layersDb = new HashMapDB<>();
+        final JournalSource<byte[]> journal = new JournalSource<>(new CountingBytesSource(journalDb));
+        final DiffLayerSource<byte[]> layers = new DiffLayerSource<>(new CountingBytesSource(layersDb));
+
+        final int depth = 5;
+        // keys referenced by the main chain state (the same key may be inserted several times)
+        final List<byte[]> live = new ArrayList<>();
+        int forkKey = 10_000;
+        for (int block = 0; block < 200; block++) {
+            final boolean fork = block % 3 == 0;
+            for (int i = 0; i < 10; i++) {
+                if (fork) {
+                    // fork block state nodes aren't referenced by the main chain
+                    final byte[] k = hashInt(forkKey++);
+                    journal.put(k, k);
+                    layers.put(k, k);
+                } else if (live.isEmpty() || rnd.nextBoolean()) {
+                    final byte[] k = hashInt(rnd.nextInt(50));
+                    journal.put(k, k);
+                    layers.put(k, k);
+                    live.add(k);
+                } else {
+                    final byte[] k = live.remove(rnd.nextInt(live.size()));
+                    journal.delete(k);
+                    layers.delete(k);
+                }
+            }
+            journal.commitUpdates(hashInt(1000 + block));
+            layers.commitUpdates(hashInt(1000 + block));
+
+            if (block >= depth) {
+                final int pruneBlock = block - depth;
+                final byte[] hash = hashInt(1000 + pruneBlock);
+                if (pruneBlock % 3 == 0) {
+                    journal.revertUpdate(hash);
+                    layers.revertUpdate(hash);
+                } else {
+                    journal.persistUpdate(hash);
+                    layers.persistUpdate(hash);
+                }
+            }
+            for (final byte[] k : live) {
+                assertArrayEquals(k, layers.get(k));
+            }
+        }
+        for (int block = 200 - depth; block < 200; block++) {
+            if (block % 3 == 0) {
+                journal.revertUpdate(hashInt(1000 + block));
+                layers.revertUpdate(hashInt(1000 + block));
+            } else {
+                journal.persistUpdate(hashInt(1000 + block));
+                layers.persistUpdate(hashInt(1000 + block));
+            }
+        }
+        assertEquals(keys(journalDb), keys(layersDb));
+        for (final byte[] k : live) {
+            assertNotNull(layersDb.get(k));
+        }
+    }
+
+    @Test
+    public void testSpill() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final HashMapDB<byte[]> journalDb = new HashMapDB<>();
+        final DiffLayerSource<byte[]> src = new DiffLayerSource<>(new CountingBytesSource(db));
+        src.setJournalStore(journalDb);
+
+        src.put(key("a1"), key("a1"));
+        src.commitUpdates(hashInt(1));
+        src.put(key("a2"), key("a2"));
+        src.delete(key("a1"));
+        src.commitUpdates(hashInt(2));
+        src.spillLayers();
+        assertEquals(2, db.keys().size());
+
+        // restart
+        final DiffLayerSource<byte[]> src1 = new DiffLayerSource<>(new CountingBytesSource(db));
+        src1.setJournalStore(journalDb);
+        assertTrue(src1.hasUpdate(hashInt(1)));
+        assertArrayEquals(key("a1"), src1.get(key("a1")));
+        src1.persistUpdate(hashInt(1));
+        src1.revertUpdate(hashInt(2));
+        assertEquals(Collections.singleton(new ByteArrayWrapper(key("a1"))), keys(db));
+        assertEquals(0, journalDb.keys().size());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.db.StateSource;
+import org.ethereum.util.FileUtil;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Testing {@link AbstractChainedSource#getBatch} through the Source chains
+ */
+public class GetBatchTest {
+
+    private static class CountingReadsSource extends HashMapDB<byte[]> {
+        int gets = 0;
+        int batches = 0;
+        int batchKeys = 0;
+
+        @Override
+        public byte[] get(final byte[] key) {
+            gets++;
+            return super.get(key);
+        }
+
+        @Override
+        public List<byte[]> getBatch(final java.util.Collection<byte[]> keys) {
+            batches++;
+            batchKeys += keys.size();
+            final List<byte[]> ret = new ArrayList<>();
+            for (final byte[] key : keys) {
+                ret.add(super.get(key));
+            }
+            return ret;
+        }
+    }
+
+    private static byte[] value(final int i) {
+        return intToBytes(i);
+    }
+
+    private static byte[] key(final int i) {
+        return HashUtil.INSTANCE.sha3(value(i));
+    }
+
+    @Test
+    public void testReadCache() {
+        final CountingReadsSource src = new CountingReadsSource();
+        final ReadCache<byte[], byte[]> cache = new ReadCache.BytesKey<>(src).withMaxSize(1000);
+        for (int i = 0; i < 100; i++) {
+            src.put(key(i), value(i));
+        }
+        for (int i = 0; i < 50; i++) {
+            cache.get(key(i));
+        }
+        src.gets = 0;
+
+        final List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 110; i++) {
+            keys.add(key(i));
+        }
+        final List<byte[]> values = cache.getBatch(keys);
+        for (int i = 0; i < 110; i++) {
+            assertArrayEquals(i < 100 ? value(i) : null, values.get(i));
+        }
+        // only misses are passed as a single batch
+        assertEquals(0, src.gets);
+        assertEquals(1, src.batches);
+        assertEquals(60, src.batchKeys);
+
+        // both found and missing entries are cached
+        cache.getBatch(keys);
+        assertEquals(1, src.batches);
+    }
+
+    @Test
+    public void testStateSource() throws Exception {
+        final CountingReadsSource src = new CountingReadsSource();
+        final StateSource stateSource = new StateSource(src, false);
+        // filters are loaded on creation
+        src.gets = 0;
+        for (int i = 0; i < 100; i++) {
+            stateSource.put(key(i), value(i));
+        }
+        final List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add(key(i));
+        }
+
+        // from the write cache
+        List<byte[]> values = stateSource.getBatch(keys);
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(i < 100 ? value(i) : null, values.get(i));
+        }
+        assertEquals(0, src.gets);
+
+        ((AsyncWriteCache<byte[], byte[]>) stateSource.getWriteCache()).flipStorage();
+        ((AsyncWriteCache<byte[], byte[]>) stateSource.getWriteCache()).flushAsync().get();
+        src.gets = 0;
+
+        stateSource.getReadCache().withMaxSize(1000);
+        values = stateSource.getBatch(keys);
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(i < 100 ? value(i) : null, values.get(i));
+        }
+        assertEquals(0, src.gets);
+        assertTrue(src.batches > 0);
+    }
+
+    @Test
+    public void testWriteCache() {
+        final CountingReadsSource src = new CountingReadsSource();
+        final WriteCache<byte[], byte[]> cache = new ShardedWriteCache.BytesKey<>(src, WriteCache.CacheType.SIMPLE, 4);
+        src.put(key(0), value(0));
+        src.put(key(1), value(1));
+        cache.put(key(2), value(2));
+        cache.delete(key(1));
+
+        final List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            keys.add(key(i));
+        }
+        final List<byte[]> values = cache.getBatch(keys);
+        assertArrayEquals(value(0), values.get(0));
+        assertNull(values.get(1));
+        assertArrayEquals(value(2), values.get(2));
+        assertNull(values.get(3));
+        assertEquals(2, src.batchKeys);
+    }
+
+    @Test
+    public void testLevelDb() throws Exception {
+        final Path dir = Files.createTempDirectory("getbatch");
+        final SystemProperties config = new SystemProperties();
+        config.setDataBaseDir(dir.toString());
+        final LevelDbDataSource db = new LevelDbDataSource(config);
+        db.setName("test");
+        db.init();
+        try {
+            final Map<byte[], byte[]> batch = new HashMap<>();
+            for (int i = 0; i < 1000; i++) batch.put(key(i), value(i));
+            db.updateBatch(batch);
+
+            final List<byte[]> keys = new ArrayList<>();
+            for (int i = 0; i < 1001; i++) keys.add(key(i));
+            // large batch is split among the read threads
+            final List<byte[]> values = db.getBatch(keys);
+            db.setParallelReads(false);
+            final List<byte[]> sequential = db.getBatch(keys);
+            for (int i = 0; i < 1000; i++) {
+                assertArrayEquals(value(i), values.get(i));
+                assertArrayEquals(value(i), sequential.get(i));
+            }
+            assertNull(values.get(1000));
+            assertNull(sequential.get(1000));
+        } finally {
+            db.close();
+            FileUtil.recursiveDelete(dir.toString());
+        }
+    }
+}
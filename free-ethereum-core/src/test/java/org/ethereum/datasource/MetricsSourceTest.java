@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.datasource;
+
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.db.StateSource;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.ethereum.crypto.HashUtil.INSTANCE;
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link MetricsSource}
+ */
+public class MetricsSourceTest {
+
+    private byte[] key(final int i) {
+        return INSTANCE.sha3(intToBytes(i));
+    }
+
+    @Test
+    public void testCounters() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final MetricsSource<byte[], byte[]> src = new MetricsSource<>("test", db, MemSizeEstimator.ByteArrayEstimator);
+
+        for (int i = 0; i < 10; i++) src.put(key(i), new byte[100]);
+        src.delete(key(0));
+        for (int i = 0; i < 20; i++) src.get(key(i));
+        src.getBatch(Arrays.asList(key(1), key(100)));
+
+        assertEquals(10, src.getPuts());
+        assertEquals(1, src.getDeletes());
+        assertEquals(22, src.getGets());
+        assertEquals(10, src.getHits());
+        assertEquals(12, src.getMisses());
+        assertEquals(10 * 104, src.getBytesWritten());
+        assertEquals(10 * 104, src.getBytesRead());
+        assertTrue(src.getGetLatencyP99Micros() >= src.getGetLatencyP50Micros());
+        assertNotNull(src.summary());
+
+        src.reset();
+        assertEquals(0, src.getGets());
+        assertEquals(0, src.getGetLatencyP99Micros());
+        assertNull(src.summary());
+    }
+
+    @Test
+    public void testFlushPassedThrough() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final WriteCache.BytesKey<byte[]> cache = new WriteCache.BytesKey<>(db, WriteCache.CacheType.SIMPLE);
+        final MetricsSource<byte[], byte[]> src = new MetricsSource<>("test", cache, MemSizeEstimator.ByteArrayEstimator);
+
+        src.put(key(1), key(1));
+        assertNull(db.get(key(1)));
+        assertTrue(src.flush());
+        assertArrayEquals(key(1), db.get(key(1)));
+        assertEquals(1, src.getFlushes());
+    }
+
+    @Test
+    public void testHistogram() {
+        final MetricsSource.Histogram h = new MetricsSource.Histogram();
+        assertEquals(0, h.percentile(0.99));
+        for (int i = 0; i < 99; i++) h.add(1000);
+        h.add(1_000_000);
+        assertEquals(1023, h.percentile(0.5));
+        assertEquals(1023, h.percentile(0.99));
+        assertEquals((1 << 20) - 1, h.percentile(1));
+        assertEquals((99 * 1000 + 1_000_000) / 100, h.mean());
+    }
+
+    @Test
+    public void testStateSourceLayers() throws Exception {
+        final SourceMetricsReporter reporter = new SourceMetricsReporter(0);
+        try {
+            final HashMapDB<byte[]> db = new HashMapDB<>();
+            final StateSource stateSource = new StateSource(db, false, false, 0, reporter);
+            stateSource.put(key(1), key(1));
+            stateSource.flush();
+            stateSource.getWriteCache().flush();
+
+            for (int i = 0; i < 10; i++) assertArrayEquals(key(1), stateSource.get(key(1)));
+            assertNull(stateSource.get(key(2)));
+
+            final MetricsSource<?, ?> top = find(reporter, "state");
+            assertEquals(11, top.getGets());
+            assertEquals(10, top.getHits());
+            // the read cache answers the repeated reads
+            assertTrue(find(reporter, "state.bloom").getGets() < top.getGets());
+            assertTrue(find(reporter, "state.source").getPuts() > 0);
+
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                    new ObjectName("org.ethereum:type=SourceMetrics,name=\"state.readCache\"")));
+            assertEquals(11L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new ObjectName("org.ethereum:type=SourceMetrics,name=\"state\""), "Gets"));
+            reporter.log();
+        } finally {
+            reporter.close();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName("org.ethereum:type=SourceMetrics,name=\"state\"")));
+    }
+
+    private MetricsSource<?, ?> find(final SourceMetricsReporter reporter, final String name) {
+        for (final MetricsSource<?, ?> src : reporter.getSources()) {
+            if (src.getName().equals(name)) return src;
+        }
+        throw new AssertionError(name);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.ethereum.util.ByteUtil.longToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link OffHeapCache}
+ */
+public class OffHeapCacheTest {
+
+    private byte[] intToKey(final int i) {
+        return HashUtil.INSTANCE.sha3(longToBytes(i));
+    }
+
+    private byte[] intToValue(final int i, final int size) {
+        final byte[] ret = new byte[size];
+        Arrays.fill(ret, (byte) i);
+        return ret;
+    }
+
+    @Test
+    public void testReadThrough() {
+        final HashMapDB<byte[]> src = new HashMapDB<>();
+        final OffHeapCache cache = new OffHeapCache(src, 64 * 1024 * 1024);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(intToKey(i), intToValue(i, 10 + i % 300));
+        }
+        for (int i = 0; i < 1000; i++) {
+            src.delete(intToKey(i));
+        }
+        // everything is served from the cache
+        for (int i = 0; i < 1000; i++) {
+            assertArrayEquals(intToValue(i, 10 + i % 300), cache.get(intToKey(i)));
+        }
+        assertEquals(1000, cache.getHitCount());
+        assertEquals(1000, cache.getSize());
+
+        // changing the value size class
+        cache.put(intToKey(1), intToValue(1, 5000));
+        assertArrayEquals(intToValue(1, 5000), cache.get(intToKey(1)));
+        assertArrayEquals(intToValue(1, 5000), src.get(intToKey(1)));
+
+        cache.delete(intToKey(2));
+        assertNull(cache.get(intToKey(2)));
+        assertEquals(999, cache.getSize());
+
+        for (int i = 3; i < 1000; i++) {
+            assertArrayEquals(intToValue(i, 10 + i % 300), cache.get(intToKey(i)));
+        }
+
+        // non-hash keys bypass the cache
+        cache.put(new byte[] {1, 2, 3}, new byte[] {4});
+        assertArrayEquals(new byte[] {4}, src.get(new byte[] {1, 2, 3}));
+        assertEquals(999, cache.getSize());
+    }
+
+    @Test
+    public void testEviction() {
+        final HashMapDB<byte[]> src = new HashMapDB<>();
+        final OffHeapCache cache = new OffHeapCache(src, 2 * 1024 * 1024);
+
+        // hot entries keep being referenced
+        for (int i = 0; i < 100; i++) {
+            cache.put(intToKey(i), intToValue(i, 100));
+        }
+        for (int i = 100; i < 100_000; i++) {
+            cache.put(intToKey(i), intToValue(i, 100));
+            assertNotNull(cache.get(intToKey(i % 100)));
+        }
+        assertTrue(cache.getAllocatedBytes() <= 2 * 1024 * 1024);
+        assertTrue(cache.getEvictionCount() > 0);
+        // the hot entries were never evicted
+        assertEquals(99_900, cache.getHitCount());
+
+        for (int i = 0; i < 100_000; i++) {
+            assertArrayEquals(intToValue(i, 100), cache.get(intToKey(i)));
+        }
+
+        cache.setMaxSize(0);
+        assertEquals(0, cache.getSize());
+        assertArrayEquals(intToValue(5, 100), cache.get(intToKey(5)));
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link ScalableQuotientFilter}
+ */
+public class ScalableQuotientFilterTest {
+
+    private byte[] key(final int i) {
+        return HashUtil.INSTANCE.sha3(intToBytes(i));
+    }
+
+    @Test
+    public void testGrowth() {
+        final ScalableQuotientFilter f = new ScalableQuotientFilter(1000);
+        for (int i = 0; i < 20_000; i++) {
+            f.insert(key(i));
+        }
+        assertTrue(f.getSegmentCount() > 1);
+        assertEquals(20_000, f.getEntries());
+        for (int i = 0; i < 20_000; i++) {
+            assertTrue(f.maybeContains(key(i)));
+        }
+        int falsePositives = 0;
+        for (int i = 20_000; i < 40_000; i++) {
+            if (f.maybeContains(key(i))) falsePositives++;
+        }
+        assertTrue(falsePositives < 100);
+    }
+
+    @Test
+    public void testRemove() {
+        final ScalableQuotientFilter f = new ScalableQuotientFilter(100).withMaxDuplicates(2);
+        for (int i = 0; i < 1000; i++) {
+            f.insert(key(i));
+        }
+        f.insert(key(10));
+        for (int i = 0; i < 1000; i++) {
+            f.remove(key(i));
+        }
+        assertTrue(f.maybeContains(key(10)));
+        assertFalse(f.maybeContains(key(20)));
+        assertFalse(f.maybeContains(key(999)));
+        f.remove(key(10));
+        assertTrue(f.maybeContains(key(10)));
+
+        f.insert(1);
+        f.remove(1);
+        assertFalse(f.maybeContains(1));
+    }
+
+    @Test
+    public void testPersistence() {
+        final byte[] rootKey = key(-1);
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final ScalableQuotientFilter f = new ScalableQuotientFilter(100);
+        assertFalse(f.flush(db, rootKey));
+        assertNull(db.get(rootKey));
+
+        for (int i = 0; i < 1000; i++) {
+            f.insert(key(i));
+        }
+        assertTrue(f.flush(db, rootKey));
+        final int segments = f.getSegmentCount();
+        for (int i = 0; i < segments; i++) {
+            assertNotNull(db.get(ScalableQuotientFilter.segmentKey(rootKey, i)));
+        }
+        assertFalse(f.flush(db, rootKey));
+
+        // only the active segment is rewritten
+        final List<byte[]> stored = new ArrayList<>();
+        for (int i = 0; i < segments; i++) stored.add(db.get(ScalableQuotientFilter.segmentKey(rootKey, i)));
+        f.insert(key(1000));
+        final AtomicInteger puts = new AtomicInteger();
+        f.flush(new AbstractChainedSource<byte[], byte[], byte[], byte[]>(db) {
+            @Override
+            public void put(final byte[] key, final byte[] val) {
+                puts.incrementAndGet();
+                getSource().put(key, val);
+            }
+
+            @Override
+            public byte[] get(final byte[] key) {
+                return getSource().get(key);
+            }
+
+            @Override
+            public void delete(final byte[] key) {
+                getSource().delete(key);
+            }
+
+            @Override
+            protected boolean flushImpl() {
+                return false;
+            }
+        }, rootKey);
+        assertEquals(1, puts.get());
+        for (int i = 0; i < segments - 1; i++) {
+            assertSame(stored.get(i), db.get(ScalableQuotientFilter.segmentKey(rootKey, i)));
+        }
+
+        final ScalableQuotientFilter f1 = ScalableQuotientFilter.load(db, rootKey, 100);
+        assertEquals(segments, f1.getSegmentCount());
+        assertEquals(1001, f1.getEntries());
+        for (int i = 0; i <= 1000; i++) {
+            assertTrue(f1.maybeContains(key(i)));
+        }
+    }
+
+    @Test
+    public void testLegacyFormat() {
+        final byte[] rootKey = key(-1);
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final QuotientFilter legacy = QuotientFilter.create(5_000_000, 10_000);
+        for (int i = 0; i < 1000; i++) {
+            legacy.insert(key(i));
+        }
+        db.put(rootKey, legacy.serialize());
+
+        final ScalableQuotientFilter f = ScalableQuotientFilter.load(db, rootKey, 10_000);
+        assertEquals(1, f.getSegmentCount());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(f.maybeContains(key(i)));
+        }
+        assertTrue(f.flush(db, rootKey));
+
+        final ScalableQuotientFilter f1 = ScalableQuotientFilter.load(db, rootKey, 10_000);
+        assertEquals(1000, f1.getEntries());
+        assertTrue(f1.maybeContains(key(999)));
+    }
+
+    @Test
+    public void testBloomedSource() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final BloomedSource src = new BloomedSource(db, 16 * 1024 * 1024);
+        for (int i = 0; i < 300_000; i++) {
+            src.put(key(i), intToBytes(i));
+        }
+        src.flush();
+
+        final BloomedSource src1 = new BloomedSource(db, 16 * 1024 * 1024);
+        for (int i = 0; i < 300_000; i += 1000) {
+            assertArrayEquals(intToBytes(i), src1.get(key(i)));
+        }
+        assertNull(src1.get(key(300_001)));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.segment.SegmentLogDataSource;
+import org.ethereum.util.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link SegmentLogDataSource}
+ */
+public class SegmentLogDataSourceTest {
+
+    private Path dir;
+    private SystemProperties config;
+
+    private static byte[] key(final int i) {
+        return HashUtil.INSTANCE.sha3(intToBytes(i));
+    }
+
+    private static byte[] value(final int i) {
+        final byte[] ret = new byte[64 + i % 100];
+        Arrays.fill(ret, (byte) i);
+        return ret;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("segmentlog");
+        config = new SystemProperties();
+        config.setDataBaseDir(dir.toString());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(dir.toString());
+    }
+
+    private SegmentLogDataSource open() {
+        final SegmentLogDataSource ret = new SegmentLogDataSource(config);
+        ret.setName("test");
+        ret.setSegmentSize(64 * 1024);
+        ret.setBackgroundCompaction(false);
+        ret.init();
+        return ret;
+    }
+
+    @Test
+    public void testPutGetDelete() {
+        final SegmentLogDataSource db = open();
+        final Map<byte[], byte[]> batch = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            batch.put(key(i), value(i));
+            if (batch.size() == 1000) {
+                db.updateBatch(batch);
+                batch.clear();
+            }
+        }
+        for (int i = 0; i < 100_000; i += 3) {
+            db.delete(key(i));
+        }
+        db.put(new byte[]{1}, new byte[]{2});
+
+        for (int i = 0; i < 100_000; i++) {
+            if (i % 3 == 0) {
+                assertNull(db.get(key(i)));
+            } else {
+                assertArrayEquals(value(i), db.get(key(i)));
+            }
+        }
+        assertArrayEquals(new byte[]{2}, db.get(new byte[]{1}));
+        assertEquals(100_000 - 33_334 + 1, db.keys().size());
+        final List<byte[]> values = db.getBatch(Arrays.asList(key(1), key(3)));
+        assertArrayEquals(value(1), values.get(0));
+        assertNull(values.get(1));
+        assertTrue(db.getSegmentCount() > 1);
+        db.close();
+
+        final SegmentLogDataSource db1 = open();
+        assertEquals(100_000 - 33_334 + 1, db1.keys().size());
+        assertArrayEquals(value(1), db1.get(key(1)));
+        assertNull(db1.get(key(3)));
+        db1.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        final SegmentLogDataSource db = open();
+        for (int i = 0; i < 100; i++) {
+            db.put(key(i), value(i));
+        }
+        db.flush();
+        for (int i = 100; i < 200; i++) {
+            db.put(key(i), value(i));
+        }
+        db.delete(key(0));
+        // the instance is dropped without close(): the index checkpoint is before the last writes
+
+        final Path segment = dir.resolve("test").resolve(String.format("%08d.seg", 1));
+        final SegmentLogDataSource db1 = new SegmentLogDataSource(config);
+        db1.setName("test");
+        db1.setSegmentSize(64 * 1024);
+        db1.setBackgroundCompaction(false);
+        db1.init();
+        assertNull(db1.get(key(0)));
+        for (int i = 1; i < 200; i++) {
+            assertArrayEquals(value(i), db1.get(key(i)));
+        }
+        db1.put(key(1000), value(1000));
+        db1.close();
+
+        // corrupt the last record of the log
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            long pos = file.length() - 1;
+            do {
+                file.seek(pos--);
+            } while (file.read() == 0);
+            file.seek(pos + 1);
+            file.write(0xFF);
+        }
+        Files.delete(dir.resolve("test").resolve("index.meta"));
+        final SegmentLogDataSource db2 = open();
+        assertEquals(199, db2.keys().size());
+        assertNull(db2.get(key(1000)));
+        for (int i = 1; i < 200; i++) {
+            assertArrayEquals(value(i), db2.get(key(i)));
+        }
+        db2.put(key(1001), value(1001));
+        db2.close();
+
+        final SegmentLogDataSource db3 = open();
+        assertArrayEquals(value(1001), db3.get(key(1001)));
+        assertEquals(200, db3.keys().size());
+        db3.close();
+    }
+
+    @Test
+    public void testReopenAfterCrash() {
+        final SegmentLogDataSource db = open();
+        for (int i = 0; i < 100; i++) {
+            db.put(key(i), value(i));
+        }
+        db.flush();
+        for (int i = 100; i < 40_000; i++) {
+            db.put(key(i), value(i));
+        }
+        // the instance is dropped without close(): the mapped index already has the keys
+        // written after the checkpoint while the saved key count doesn't
+
+        final SegmentLogDataSource db1 = open();
+        assertEquals(40_000, db1.getKeyCount());
+        // the index is resized in time
+        for (int i = 40_000; i < 100_000; i++) {
+            db1.put(key(i), value(i));
+        }
+        assertEquals(100_000, db1.getKeyCount());
+        for (int i = 0; i < 100_000; i++) {
+            assertArrayEquals(value(i), db1.get(key(i)));
+        }
+        db1.flush();
+        // the segments written during the run are compacted after the flush
+        for (int i = 0; i < 100_000; i++) {
+            if (i % 10 != 0) db1.delete(key(i));
+        }
+        db1.flush();
+        assertTrue(db1.compact() > 0);
+        db1.close();
+
+        final SegmentLogDataSource db2 = open();
+        assertEquals(10_000, db2.getKeyCount());
+        assertArrayEquals(value(10), db2.get(key(10)));
+        db2.close();
+    }
+
+    @Test
+    public void testIndexUnchangedBetweenCheckpoints() throws Exception {
+        final SegmentLogDataSource db = open();
+        for (int i = 0; i < 1000; i++) {
+            db.put(key(i), value(i));
+        }
+        db.flush();
+        final Path index = dir.resolve("test").resolve("index");
+        final byte[] checkpointed = Files.readAllBytes(index);
+
+        for (int i = 0; i < 1000; i += 2) {
+            db.delete(key(i));
+        }
+        for (int i = 1000; i < 2000; i++) {
+            db.put(key(i), value(i));
+        }
+        assertNull(db.get(key(0)));
+        assertArrayEquals(value(1500), db.get(key(1500)));
+        // the index file may reach the disk at any moment, it must stay consistent with the checkpoint
+        assertArrayEquals(checkpointed, Files.readAllBytes(index));
+
+        // the instance is dropped without close(): the changes are replayed from the log
+        final SegmentLogDataSource db1 = open();
+        assertEquals(1500, db1.getKeyCount());
+        assertNull(db1.get(key(0)));
+        assertArrayEquals(value(1), db1.get(key(1)));
+        assertArrayEquals(value(1999), db1.get(key(1999)));
+        db1.flush();
+        assertFalse(Arrays.equals(checkpointed, Files.readAllBytes(index)));
+        assertFalse(Files.exists(dir.resolve("test").resolve("index.journal")));
+        db1.close();
+
+        final SegmentLogDataSource db2 = open();
+        assertEquals(1500, db2.getKeyCount());
+        assertNull(db2.get(key(998)));
+        assertArrayEquals(value(999), db2.get(key(999)));
+        db2.close();
+    }
+
+    @Test
+    public void testCompaction() {
+        final SegmentLogDataSource db = open();
+        for (int i = 0; i < 10_000; i++) {
+            db.put(key(i), value(i));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            if (i % 10 != 0) db.delete(key(i));
+        }
+        db.flush();
+        final int segments = db.getSegmentCount();
+        assertTrue(db.compact() > 0);
+        assertTrue(db.getSegmentCount() < segments);
+
+        for (int i = 0; i < 10_000; i++) {
+            if (i % 10 == 0) {
+                assertArrayEquals(value(i), db.get(key(i)));
+            } else {
+                assertNull(db.get(key(i)));
+            }
+        }
+        db.close();
+
+        final SegmentLogDataSource db1 = open();
+        assertEquals(1000, db1.keys().size());
+        assertArrayEquals(value(10), db1.get(key(10)));
+        db1.close();
+    }
+}
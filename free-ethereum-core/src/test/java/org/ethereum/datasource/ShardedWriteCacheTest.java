@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import static org.ethereum.util.ByteUtil.longToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link ShardedWriteCache}
+ */
+public class ShardedWriteCacheTest {
+
+    private byte[] intToKey(final int i) {
+        return HashUtil.INSTANCE.sha3(longToBytes(i));
+    }
+
+    private byte[] intToValue(final int i) {
+        return (new DataWord(i)).getData();
+    }
+
+    private String str(final Object obj) {
+        if (obj == null) return null;
+        return Hex.toHexString((byte[]) obj);
+    }
+
+    @Test
+    public void testSimple() {
+        final Source<byte[], byte[]> src = new HashMapDB<>();
+        final WriteCache<byte[], byte[]> writeCache = new ShardedWriteCache.BytesKey<>(src, WriteCache.CacheType.SIMPLE, 16);
+        writeCache.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
+        for (int i = 0; i < 10_000; ++i) {
+            writeCache.put(intToKey(i), intToValue(i));
+        }
+        assertEquals(10_000, writeCache.getModified().size());
+        assertTrue(writeCache.hasModified());
+        assertEquals(10_000 * (32 + 4) * 2, writeCache.estimateCacheSize());
+        assertEquals(str(intToValue(9_999)), str(writeCache.getCached(intToKey(9_999)).value()));
+        assertNull(src.get(intToKey(0)));
+
+        assertTrue(writeCache.flush());
+        assertFalse(writeCache.hasModified());
+        assertEquals(0, writeCache.estimateCacheSize());
+        assertNull(writeCache.getCached(intToKey(0)));
+        assertEquals(str(intToValue(0)), str(src.get(intToKey(0))));
+        assertEquals(str(intToValue(9_999)), str(writeCache.get(intToKey(9_999))));
+
+        writeCache.put(intToKey(0), intToValue(12345));
+        writeCache.delete(intToKey(0));
+        writeCache.delete(intToKey(1));
+        assertEquals(str(intToValue(1)), str(src.get(intToKey(1))));
+        writeCache.flush();
+        assertNull(src.get(intToKey(0)));
+        assertNull(src.get(intToKey(1)));
+    }
+
+    @Test
+    public void testCounting() {
+        final Source<byte[], byte[]> parentSrc = new HashMapDB<>();
+        final Source<byte[], byte[]> src = new CountingBytesSource(parentSrc);
+        final WriteCache<byte[], byte[]> writeCache = new ShardedWriteCache.BytesKey<>(src, WriteCache.CacheType.COUNTING, 4);
+        for (int i = 0; i < 100; ++i) {
+            for (int j = 0; j <= i; ++j) {
+                writeCache.put(intToKey(i), intToValue(i));
+            }
+        }
+        writeCache.flush();
+        assertNull(writeCache.getCached(intToKey(99)));
+
+        writeCache.delete(intToKey(0));
+        writeCache.delete(intToKey(1));
+        writeCache.flush();
+        assertNull(src.get(intToKey(0)));
+        assertEquals(str(intToValue(1)), str(writeCache.get(intToKey(1))));
+        writeCache.delete(intToKey(1));
+        writeCache.flush();
+        assertNull(writeCache.get(intToKey(1)));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final Source<byte[], byte[]> src = new HashMapDB<>();
+        final AsyncWriteCache<byte[], byte[]> cache = new AsyncWriteCache<byte[], byte[]>(src) {
+            @Override
+            protected WriteCache<byte[], byte[]> createCache(final Source<byte[], byte[]> source) {
+                final WriteCache<byte[], byte[]> ret = new ShardedWriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE, 8);
+                ret.setFlushSource(true);
+                return ret;
+            }
+        };
+        for (int i = 0; i < 1000; ++i) {
+            cache.put(intToKey(i), intToValue(i));
+        }
+        cache.flipStorage();
+        // entries are available from the flushing cache
+        assertEquals(str(intToValue(10)), str(cache.get(intToKey(10))));
+        assertFalse(cache.hasModified());
+        cache.flushAsync().get();
+        assertEquals(str(intToValue(10)), str(src.get(intToKey(10))));
+        assertEquals(str(intToValue(999)), str(cache.get(intToKey(999))));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.datasource;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.db.ByteArrayWrapper;
+import org.ethereum.util.ByteArrayMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.ethereum.util.ByteUtil.longToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link TinyLfuCache}
+ */
+public class TinyLfuCacheTest {
+
+    private byte[] intToKey(final int i) {
+        return HashUtil.INSTANCE.sha3(longToBytes(i));
+    }
+
+    @Test
+    public void testWeightBound() {
+        final AtomicLong removedWeight = new AtomicLong();
+        final TinyLfuCache<Integer, byte[]> cache = new TinyLfuCache<>(10_000, 100,
+                (k, v) -> v.length, (k, v) -> removedWeight.addAndGet(v.length));
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, new byte[100]);
+            assertTrue(cache.getWeight() <= 10_000);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900 * 100, removedWeight.get());
+        // most recently put entries survive
+        assertNotNull(cache.get(999));
+        assertNull(cache.get(0));
+        assertEquals(0.5, cache.getHitRate(), 0.0001);
+
+        // replacing with heavier value evicts others
+        cache.put(999, new byte[1000]);
+        assertTrue(cache.getWeight() <= 10_000);
+        assertEquals(1000, cache.get(999).length);
+
+        assertArrayEquals(new byte[1000], cache.remove(999));
+        assertNull(cache.get(999));
+    }
+
+    @Test
+    public void testAdmission() {
+        final TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<>(100, 100, (k, v) -> 1, null);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+
+        // scan over the keys read once shouldn't wash out the hot entries
+        // which keep being accessed
+        for (int i = 100; i < 10_000; i++) {
+            cache.get(i % 50);
+            assertNull(cache.get(i));
+            cache.admit(i, i);
+        }
+        int hot = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get(i) != null) hot++;
+        }
+        assertTrue("Hot entries survived: " + hot, hot >= 45);
+        assertTrue(cache.getRejectionCount() > 0);
+
+        // the key becomes frequent enough to be admitted
+        for (int j = 0; j < 10; j++) {
+            cache.get(20_000);
+        }
+        cache.admit(20_000, 20_000);
+        assertEquals(20_000, (int) cache.get(20_000));
+    }
+
+    @Test
+    public void testReadCacheWeighted() {
+        final Source<byte[], byte[]> src = new HashMapDB<>();
+        final ReadCache<byte[], byte[]> readCache = new ReadCache.BytesKey<>(src);
+        readCache.withSizeEstimators(MemSizeEstimator.ByteArrayEstimator, MemSizeEstimator.ByteArrayEstimator);
+        readCache.withMaxSize(100_000);
+
+        for (int i = 0; i < 10_000; i++) {
+            readCache.put(intToKey(i), new byte[64]);
+        }
+        assertTrue(readCache.estimateCacheSize() <= 100_000);
+        assertEquals(readCache.getLfuCache().getWeight(), readCache.estimateCacheSize());
+
+        for (int i = 0; i < 10_000; i++) {
+            assertArrayEquals(new byte[64], readCache.get(intToKey(i)));
+            assertNull(readCache.get(intToKey(-i - 1)));
+        }
+        assertTrue(readCache.estimateCacheSize() <= 100_000);
+        assertEquals(readCache.getLfuCache().getWeight(), readCache.estimateCacheSize());
+
+        // cached null is invalidated by put
+        readCache.get(intToKey(-1));
+        readCache.put(intToKey(-1), new byte[1]);
+        assertArrayEquals(new byte[1], readCache.get(intToKey(-1)));
+        readCache.delete(intToKey(-1));
+        assertNull(readCache.get(intToKey(-1)));
+        assertNull(src.get(intToKey(-1)));
+        assertEquals(readCache.getLfuCache().getWeight(), readCache.estimateCacheSize());
+    }
+
+    @Test
+    public void testViews() {
+        final TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<>(10_000, 2000, (k, v) -> 1, null);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i * 2);
+        }
+        assertEquals(1000, cache.entrySet().size());
+        assertEquals(1000, cache.keySet().size());
+        assertTrue(cache.keySet().contains(500));
+        assertTrue(cache.values().contains(1000));
+        final Map<Integer, Integer> copy = new HashMap<>(cache);
+        assertEquals(copy, cache);
+        assertEquals(cache, copy);
+
+        // the snapshot is not affected by the later updates
+        final Set<Map.Entry<Integer, Integer>> entries = cache.entrySet();
+        cache.remove(1);
+        assertEquals(1000, entries.size());
+        assertEquals(999, cache.entrySet().size());
+
+        // the views work through the ReadCache.BytesKey wrapper too
+        final ByteArrayMap<Integer> bytesMap = new ByteArrayMap<>(
+                new TinyLfuCache<ByteArrayWrapper, Integer>(10_000, 100, (k, v) -> 1, null));
+        bytesMap.put(intToKey(1), 1);
+        bytesMap.put(intToKey(2), 2);
+        assertEquals(2, bytesMap.keySet().size());
+        assertTrue(bytesMap.keySet().contains(intToKey(1)));
+        assertEquals(2, bytesMap.entrySet().size());
+        assertTrue(bytesMap.values().contains(2));
+        assertNotNull(bytesMap.toString());
+    }
+}
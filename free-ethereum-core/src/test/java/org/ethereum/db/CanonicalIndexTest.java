@@ -0,0 +1,177 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.core.Block;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.util.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.ethereum.crypto.HashUtil.INSTANCE;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link CanonicalIndex}
+ */
+public class CanonicalIndexTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("canonicalIndex").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        FileUtil.recursiveDelete(dir.getAbsolutePath());
+    }
+
+    @Test
+    public void testIndex() {
+        final File file = new File(dir, "canonical.idx");
+        CanonicalIndex index = new CanonicalIndex(file);
+        final byte[] h0 = INSTANCE.randomHash();
+        final byte[] h1 = INSTANCE.randomHash();
+        final BigInteger bigTd = BigInteger.ONE.shiftLeft(255);
+
+        index.set(0, h0, BigInteger.TEN);
+        index.set(1, h1, bigTd);
+        index.set(70000, h1, BigInteger.ONE);
+        assertEquals(70001, index.size());
+        assertArrayEquals(h1, index.getHash(1));
+        assertEquals(bigTd, index.getTotalDifficulty(1));
+        assertNull(index.getHash(2));
+        assertEquals(2, index.getHashes(0, 10).size());
+
+        index.clear(70000);
+        assertEquals(2, index.size());
+        index.close();
+
+        index = new CanonicalIndex(file);
+        assertEquals(2, index.size());
+        assertArrayEquals(h0, index.getHash(0));
+        assertEquals(BigInteger.TEN, index.getTotalDifficulty(0));
+        index.truncate(1);
+        assertNull(index.getHash(1));
+        index.close();
+    }
+
+    @Test
+    public void testBlockStore() {
+        final HashMapDB<byte[]> indexDb = new HashMapDB<>();
+        final HashMapDB<byte[]> blocksDb = new HashMapDB<>();
+        final IndexedBlockStore plain = new IndexedBlockStore();
+        plain.init(new HashMapDB<>(), new HashMapDB<>());
+        final IndexedBlockStore store = new IndexedBlockStore();
+        store.init(indexDb, blocksDb);
+        final File file = new File(dir, "canonical.idx");
+        store.setCanonicalIndex(new CanonicalIndex(file));
+
+        final List<Block> bestLine = getChain(INSTANCE.getEMPTY_DATA_HASH(), 0, 100);
+        BigInteger td = BigInteger.ZERO;
+        for (final Block block : bestLine) {
+            td = td.add(block.getCumulativeDifficulty());
+            plain.saveBlock(block, td, true);
+            store.saveBlock(block, td, true);
+        }
+        final List<Block> forkLine = getChain(bestLine.get(60).getHash(), 61, 10);
+        for (final Block block : forkLine) {
+            td = plain.getTotalDifficultyForHash(block.getParentHash()).add(block.getCumulativeDifficulty());
+            plain.saveBlock(block, td, false);
+            store.saveBlock(block, td, false);
+        }
+        assertSame(plain, store);
+
+        final Block forkBlock = forkLine.get(forkLine.size() - 1);
+        plain.reBranch(forkBlock);
+        store.reBranch(forkBlock);
+        assertSame(plain, store);
+        assertEquals(70, store.getBestBlock().getNumber());
+        store.flush();
+
+        // stale levels left by a crash are rewritten from the block index
+        CanonicalIndex index = new CanonicalIndex(file);
+        index.set(70, INSTANCE.randomHash(), BigInteger.ONE);
+        index.set(71, INSTANCE.randomHash(), BigInteger.ONE);
+        index.set(72, INSTANCE.randomHash(), BigInteger.ONE);
+        index.set(150, INSTANCE.randomHash(), BigInteger.ONE);
+        IndexedBlockStore reopened = new IndexedBlockStore();
+        reopened.init(indexDb, blocksDb);
+        reopened.setCanonicalIndex(index);
+        assertSame(plain, reopened);
+        index.close();
+
+        // missing index is rebuilt
+        assertTrue(file.delete());
+        reopened = new IndexedBlockStore();
+        reopened.init(indexDb, blocksDb);
+        reopened.setCanonicalIndex(index = new CanonicalIndex(file));
+        assertSame(plain, reopened);
+        index.close();
+    }
+
+    // TestUtils.getRandomChain() may produce zero difficulty which breaks the decoded block hash
+    private static List<Block> getChain(byte[] parentHash, long number, final int length) {
+        final Random rnd = new Random();
+        final List<Block> ret = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            final Block block = new Block(parentHash, INSTANCE.randomHash(), null, null, new byte[] {(byte) (1 + rnd.nextInt(255))},
+                    number++, new byte[]{0}, 0, 0, null, null, null, null,
+                    INSTANCE.getEMPTY_TRIE_HASH(), INSTANCE.randomHash(), null, null);
+            parentHash = block.getHash();
+            ret.add(block);
+        }
+        return ret;
+    }
+
+    private static void assertSame(final IndexedBlockStore expected, final IndexedBlockStore actual) {
+        assertEquals(expected.getTotalDifficulty(), actual.getTotalDifficulty());
+        assertArrayEquals(expected.getBestBlock().getHash(), actual.getBestBlock().getHash());
+        for (long i = 0; i <= expected.getMaxNumber() + 1; i++) {
+            assertArrayEquals(expected.getBlockHashByNumber(i), actual.getBlockHashByNumber(i));
+            final Block block = actual.getChainBlockByNumber(i);
+            assertArrayEquals(expected.getBlockHashByNumber(i), block == null ? null : block.getHash());
+        }
+        final List<byte[]> expectedHashes = expected.getListHashesStartWith(10, 50);
+        final List<byte[]> actualHashes = actual.getListHashesStartWith(10, 50);
+        assertEquals(expectedHashes.size(), actualHashes.size());
+        for (int i = 0; i < expectedHashes.size(); i++) {
+            assertArrayEquals(expectedHashes.get(i), actualHashes.get(i));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.core.Transaction;
+import org.ethereum.core.TransactionInfo;
+import org.ethereum.core.TransactionReceipt;
+import org.ethereum.crypto.ECKey;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.AsyncWriteCache;
+import org.ethereum.datasource.CompressionSerializer;
+import org.ethereum.datasource.DbSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.XorDataSource;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.util.ByteUtil;
+import org.ethereum.util.FileUtil;
+import org.ethereum.util.RLP;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link DbLayoutMigration}
+ */
+public class DbLayoutMigrationTest {
+
+    private static byte[] addr(final int i) {
+        return new DataWord(i).getLast20Bytes();
+    }
+
+    private static Source<byte[], byte[]> store(final DbSource<byte[]> db, final String name) {
+        return new XorDataSource<>(db, DbLayoutMigration.storeKey(name));
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+
+        final StateSource stateSource = new StateSource(store(db, "state"), false);
+        final RepositoryRoot repo = new RepositoryRoot(stateSource, null);
+        for (int i = 0; i < 30; i++) {
+            repo.addBalance(addr(i), BigInteger.ONE);
+            repo.addStorageRow(addr(i), new DataWord(i), new DataWord(i + 1));
+            repo.saveCode(addr(i), new byte[]{1, 2, (byte) i});
+        }
+        repo.commit();
+        final byte[] root = repo.getRoot();
+        final AsyncWriteCache<byte[], byte[]> writeCache = (AsyncWriteCache<byte[], byte[]>) stateSource.getWriteCache();
+        writeCache.flipStorage();
+        writeCache.flushAsync().get();
+
+        final Block genesis = SystemProperties.getDefault().getGenesis();
+        final IndexedBlockStore blockStore = new IndexedBlockStore();
+        blockStore.init(store(db, "index"), store(db, "block"));
+        blockStore.saveBlock(genesis, genesis.getCumulativeDifficulty(), true);
+
+        final TransactionReceipt receipt = new TransactionReceipt(Hex.decode("f9010c80825208b90100" +
+                new String(new char[512]).replace('\0', '0') + "c082520880"));
+        final byte[] txHash = HashUtil.INSTANCE.sha3(new byte[]{1});
+        store(db, "transactions").put(txHash,
+                RLP.encodeList(new TransactionInfo(receipt, genesis.getHash(), 0).getEncoded()));
+        // the receipts record and the tx location entry
+        final Transaction tx = Transaction.createDefault(Hex.toHexString(addr(1)), BigInteger.ONE, BigInteger.ZERO);
+        tx.sign(new ECKey());
+        final Block txBlock = new Block(genesis.getHeader(), Collections.singletonList(tx), Collections.emptyList());
+        new TransactionStore(store(db, "transactions")).put(txBlock, Collections.singletonList(receipt));
+
+        store(db, "journal").put(genesis.getHash(), RLP.encodeList(RLP.encodeList(), RLP.encodeList()));
+
+        final byte[] snapshotKey = ByteUtil.merge(ByteUtil.intToBytes(1), HashUtil.INSTANCE.sha3(new byte[]{2}));
+        store(db, "snapshot").put(snapshotKey, new byte[]{2});
+        store(db, "snapshot").put(HashUtil.INSTANCE.sha3("snapshotRoot".getBytes()), new byte[]{3});
+
+        store(db, "block").put(CompressionSerializer.MARKER_KEY, new byte[]{1});
+
+        final byte[] otherKey = HashUtil.INSTANCE.sha3(new byte[]{42});
+        db.put(otherKey, new byte[]{42});
+
+        assertTrue(DbLayoutMigration.hasCombinedData(db));
+
+        final Map<String, HashMapDB<byte[]>> storeDbs = new HashMap<>();
+        final HashMapDB<byte[]> restDb = new HashMapDB<>();
+        final Map<String, Long> counts = new DbLayoutMigration(db)
+                .migrate(s -> storeDbs.computeIfAbsent(s, k -> new HashMapDB<>()), restDb);
+
+        long total = 0;
+        for (final Long cnt : counts.values()) total += cnt;
+        assertEquals(db.keys().size(), total);
+        assertEquals(1L, (long) counts.get("unknown"));
+        assertEquals(2L, (long) counts.get("snapshot"));
+        assertEquals(2L, (long) counts.get("block"));
+        assertEquals(3L, (long) counts.get("transactions"));
+        assertEquals(1L, (long) counts.get("journal"));
+
+        assertArrayEquals(new byte[]{42}, restDb.get(otherKey));
+        assertFalse(DbLayoutMigration.hasCombinedData(restDb));
+        assertTrue(DbLayoutMigration.hasCombinedData(storeDbs.get("index")));
+
+        final RepositoryRoot migratedRepo = new RepositoryRoot(
+                new StateSource(store(storeDbs.get("state"), "state"), false), root);
+        for (int i = 0; i < 30; i++) {
+            assertEquals(BigInteger.ONE, migratedRepo.getBalance(addr(i)));
+            assertArrayEquals(new byte[]{1, 2, (byte) i}, migratedRepo.getCode(addr(i)));
+            assertEquals(new DataWord(i + 1), migratedRepo.getStorageValue(addr(i), new DataWord(i)));
+        }
+
+        final IndexedBlockStore migratedBlockStore = new IndexedBlockStore();
+        migratedBlockStore.init(store(storeDbs.get("index"), "index"), store(storeDbs.get("block"), "block"));
+        assertEquals(0, migratedBlockStore.getMaxNumber());
+        assertArrayEquals(genesis.getHash(), migratedBlockStore.getBestBlock().getHash());
+
+        assertNotNull(store(storeDbs.get("transactions"), "transactions").get(txHash));
+        final List<TransactionInfo> infos = new TransactionStore(store(storeDbs.get("transactions"), "transactions"))
+                .get(tx.getHash());
+        assertEquals(1, infos.size());
+        assertArrayEquals(txBlock.getHash(), infos.get(0).getBlockHash());
+        assertNotNull(store(storeDbs.get("journal"), "journal").get(genesis.getHash()));
+        assertNotNull(store(storeDbs.get("block"), "block").get(CompressionSerializer.MARKER_KEY));
+        assertArrayEquals(new byte[]{2}, store(storeDbs.get("snapshot"), "snapshot").get(snapshotKey));
+    }
+
+    @Test
+    public void testMigrateOffline() throws Exception {
+        final Path dir = Files.createTempDirectory("migration");
+        final SystemProperties config = new SystemProperties();
+        config.setDataBaseDir(dir.toString());
+        try {
+            final LevelDbDataSource db = new LevelDbDataSource(config);
+            db.setName("blockchain");
+            db.init();
+            final Block genesis = config.getGenesis();
+            final IndexedBlockStore blockStore = new IndexedBlockStore();
+            blockStore.init(store(db, "index"), store(db, "block"));
+            blockStore.saveBlock(genesis, genesis.getCumulativeDifficulty(), true);
+            db.close();
+
+            DbLayoutMigration.migrateOffline(config);
+            assertTrue(DbLayoutMigration.hasSeparateData(config));
+            // the original DB is kept
+            assertTrue(Files.isDirectory(dir.resolve("blockchain-combined")));
+            assertTrue(Files.isDirectory(dir.resolve("blockchain")));
+            try {
+                DbLayoutMigration.migrateOffline(config);
+                fail("The backup is overwritten");
+            } catch (final RuntimeException e) {
+                assertTrue(e.getMessage().contains("blockchain-combined"));
+            }
+        } finally {
+            FileUtil.recursiveDelete(dir.toString());
+        }
+    }
+}
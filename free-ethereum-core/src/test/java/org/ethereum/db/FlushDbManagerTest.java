@@ -27,13 +27,25 @@
 package org.ethereum.db;
 
 import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockchainImpl;
+import org.ethereum.core.ImportResult;
+import org.ethereum.datasource.AsyncWriteCache;
+import org.ethereum.datasource.DiffLayerSource;
+import org.ethereum.datasource.JournalSource;
+import org.ethereum.datasource.Source;
 import org.ethereum.datasource.WriteCache;
 import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.util.FastByteComparisons;
+import org.ethereum.util.blockchain.StandaloneBlockchain;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.ethereum.datasource.MemSizeEstimator.ByteArrayEstimator;
 import static org.ethereum.util.ByteUtil.intToBytes;
@@ -124,4 +136,209 @@ public class FlushDbManagerTest {
 
         if (exception[0] != null) throw exception[0];
     }
+
+    private static AsyncWriteCache<byte[], byte[]> createAsyncCache(final Source<byte[], byte[]> src) {
+        final AsyncWriteCache<byte[], byte[]> ret = new AsyncWriteCache<byte[], byte[]>(src) {
+            @Override
+            protected WriteCache<byte[], byte[]> createCache(final Source<byte[], byte[]> source) {
+                final WriteCache<byte[], byte[]> ret = new WriteCache.BytesKey<>(source, WriteCache.CacheType.SIMPLE);
+                ret.withSizeEstimators(ByteArrayEstimator, ByteArrayEstimator);
+                ret.setFlushSource(true);
+                return ret;
+            }
+        };
+        return ret;
+    }
+
+    @Test
+    public void testContinuousFlush() throws Exception {
+        // the DB blocks the first flush until released
+        final CountDownLatch flushStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final HashMapDB<byte[]> db = new HashMapDB<byte[]>() {
+            @Override
+            public void put(final byte[] key, final byte[] val) {
+                flushStarted.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.put(key, val);
+            }
+        };
+        final AsyncWriteCache<byte[], byte[]> cache = createAsyncCache(db);
+
+        final DbFlushManager dbFlushManager = new DbFlushManager(SystemProperties.getDefault(), Collections.emptySet(), null);
+        dbFlushManager.addCache(cache);
+        dbFlushManager.setSizeThreshold(1024 * 1024);
+        dbFlushManager.setContinuous(true, 1000, 0);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(intToBytes(i), intToBytes(i));
+            dbFlushManager.commit();
+        }
+        flushStarted.await();
+        // the import doesn't wait for the running flush
+        for (int i = 1000; i < 2000; i++) {
+            cache.put(intToBytes(i), intToBytes(i));
+            dbFlushManager.commit();
+        }
+        Assert.assertTrue(dbFlushManager.isFlushing());
+        Assert.assertEquals(0, dbFlushManager.getFlushCount());
+        Assert.assertEquals(0, dbFlushManager.getBackpressureCount());
+
+        // hard limit reached, the commit waits for the running flush
+        dbFlushManager.setSizeThreshold(2000);
+        final Thread importer = new Thread(() -> {
+            cache.put(intToBytes(2000), intToBytes(2000));
+            dbFlushManager.commit();
+        });
+        importer.start();
+        while (importer.getState() != Thread.State.WAITING && importer.isAlive()) {
+            Thread.yield();
+        }
+        Assert.assertTrue(importer.isAlive());
+        release.countDown();
+        importer.join();
+        Assert.assertEquals(1, dbFlushManager.getBackpressureCount());
+
+        dbFlushManager.flushSync();
+        for (int i = 0; i <= 2000; i++) {
+            Assert.assertArrayEquals(intToBytes(i), db.get(intToBytes(i)));
+        }
+        Assert.assertEquals(0, dbFlushManager.getPendingSize());
+        Assert.assertTrue(dbFlushManager.getFlushCount() > 0);
+    }
+
+    @Test
+    public void testDbSourcesFlushed() {
+        final AtomicInteger flushes = new AtomicInteger();
+        final HashMapDB<byte[]> db = new HashMapDB<byte[]>() {
+            @Override
+            public boolean flush() {
+                flushes.incrementAndGet();
+                return true;
+            }
+        };
+        final WriteCache<byte[], byte[]> cache = new WriteCache.BytesKey<>(db, WriteCache.CacheType.SIMPLE);
+        final DbFlushManager dbFlushManager = new DbFlushManager(SystemProperties.getDefault(), Collections.singleton(db), null);
+        dbFlushManager.addCache(cache);
+
+        cache.put(intToBytes(1), intToBytes(1));
+        dbFlushManager.commit();
+        Assert.assertEquals(0, flushes.get());
+        dbFlushManager.flushSync();
+        Assert.assertEquals(1, flushes.get());
+        Assert.assertArrayEquals(intToBytes(1), db.get(intToBytes(1)));
+    }
+
+    @Test
+    public void testCommitMarker() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final WriteCache<byte[], byte[]> dbCache = new WriteCache.BytesKey<>(db, WriteCache.CacheType.SIMPLE);
+        final WriteCache<byte[], byte[]> cache = new WriteCache.BytesKey<>(dbCache, WriteCache.CacheType.SIMPLE);
+        cache.withSizeEstimators(ByteArrayEstimator, ByteArrayEstimator);
+
+        final DbFlushManager dbFlushManager = new DbFlushManager(SystemProperties.getDefault(), Collections.emptySet(), dbCache);
+        dbFlushManager.addCache(cache);
+
+        final StandaloneBlockchain bc = new StandaloneBlockchain();
+        final Block b1 = bc.createBlock();
+        final Block b2 = bc.createBlock();
+
+        dbFlushManager.commit(() -> {
+            cache.put(intToBytes(1), intToBytes(1));
+            dbFlushManager.setCommitted(b1);
+        });
+        Assert.assertNull(dbFlushManager.getCommitMarker());
+        dbFlushManager.flushSync();
+        DbFlushManager.CommitMarker marker = dbFlushManager.getCommitMarker();
+        Assert.assertEquals(1, marker.getNumber());
+        Assert.assertArrayEquals(b1.getHash(), marker.getHash());
+        Assert.assertArrayEquals(b1.getStateRoot(), marker.getStateRoot());
+        Assert.assertArrayEquals(intToBytes(1), db.get(intToBytes(1)));
+
+        dbFlushManager.commit(() -> {
+            cache.put(intToBytes(2), intToBytes(2));
+            dbFlushManager.setCommitted(b2);
+        });
+        // the commits without block don't move the marker
+        dbFlushManager.commit(() -> cache.put(intToBytes(3), intToBytes(3)));
+        dbFlushManager.flushSync();
+        marker = dbFlushManager.getCommitMarker();
+        Assert.assertEquals(2, marker.getNumber());
+        Assert.assertArrayEquals(b2.getHash(), marker.getHash());
+        Assert.assertArrayEquals(marker.getEncoded(), db.get(DbFlushManager.COMMIT_MARKER_KEY));
+    }
+
+    @Test
+    public void testRollbackToCommitMarker() {
+        // the blocks above the last flushed one are dropped and can be imported again
+        final StandaloneBlockchain bc = new StandaloneBlockchain();
+        final BlockchainImpl blockchain = bc.getBlockchain();
+        final IndexedBlockStore blockStore = (IndexedBlockStore) blockchain.getBlockStore();
+
+        final Block b1 = bc.createBlock();
+        final Block b2 = bc.createBlock();
+        final Block b2_ = bc.createForkBlock(b1);
+        final Block b3 = bc.createBlock();
+        Assert.assertEquals(3, blockStore.getMaxNumber());
+
+        final DbFlushManager dbFlushManager = new DbFlushManager(SystemProperties.getDefault(), Collections.emptySet(),
+                new WriteCache.BytesKey<>(new HashMapDB<>(), WriteCache.CacheType.SIMPLE));
+        Assert.assertFalse(dbFlushManager.rollbackToCommitMarker(blockStore, root -> true));
+        dbFlushManager.setCommitted(b1);
+        dbFlushManager.flushSync();
+
+        // the marked state is missing: the DB is left as is
+        try {
+            dbFlushManager.rollbackToCommitMarker(blockStore, root -> false);
+            Assert.fail("Rolled back to the missing state");
+        } catch (final RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("is missing"));
+        }
+        Assert.assertEquals(3, blockStore.getMaxNumber());
+
+        Assert.assertTrue(dbFlushManager.rollbackToCommitMarker(blockStore,
+                root -> FastByteComparisons.equal(root, b1.getStateRoot())));
+        Assert.assertEquals(1, blockStore.getMaxNumber());
+        Assert.assertTrue(blockStore.getBestBlock().isEqual(b1));
+        Assert.assertNull(blockStore.getChainBlockByNumber(2));
+        Assert.assertFalse(blockStore.isBlockExist(b2.getHash()));
+        Assert.assertFalse(blockStore.isBlockExist(b2_.getHash()));
+        Assert.assertFalse(blockStore.isBlockExist(b3.getHash()));
+        Assert.assertFalse(dbFlushManager.rollbackToCommitMarker(blockStore, root -> true));
+
+        blockchain.setBestBlock(b1);
+        blockchain.setTotalDifficulty(blockStore.getTotalDifficultyForHash(b1.getHash()));
+        Assert.assertEquals(ImportResult.IMPORTED_BEST, blockchain.tryToConnect(b2));
+        Assert.assertEquals(ImportResult.IMPORTED_BEST, blockchain.tryToConnect(b3));
+        Assert.assertTrue(blockStore.getBestBlock().isEqual(b3));
+    }
+
+    @Test
+    public void testStateBlockWithDiffLayers() {
+        // the commit marker follows the last persisted diff layer
+        final StandaloneBlockchain bc = new StandaloneBlockchain();
+        final IndexedBlockStore blockStore = (IndexedBlockStore) bc.getBlockchain().getBlockStore();
+        final List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            blocks.add(bc.createBlock());
+        }
+
+        final PruneManager layers = new PruneManager(blockStore, new DiffLayerSource<>(new HashMapDB<>()), 2);
+        final PruneManager journal = new PruneManager(blockStore, new JournalSource<>(new HashMapDB<>()), 2);
+        for (int i = 0; i < 5; i++) {
+            final Block block = blocks.get(i);
+            layers.blockCommitted(block.getHeader());
+            journal.blockCommitted(block.getHeader());
+            Assert.assertTrue(journal.getStateBlock(block).isEqual(block));
+            if (i < 2) {
+                Assert.assertNull(layers.getStateBlock(block));
+            } else {
+                Assert.assertTrue(layers.getStateBlock(block).isEqual(blocks.get(i - 2)));
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockHeader;
+import org.ethereum.core.Genesis;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import static java.math.BigInteger.ZERO;
+import static org.ethereum.TestUtils.getRandomChain;
+import static org.ethereum.util.ByteUtil.wrap;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test for the decoded block and header caches of {@link IndexedBlockStore}
+ */
+public class IndexedBlockStoreCacheTest {
+
+    @Test // decoded block caches are evicted on rebranch
+    public void testBlockCaches() {
+        final IndexedBlockStore indexedBlockStore = new IndexedBlockStore();
+        indexedBlockStore.init(new HashMapDB<>(), new HashMapDB<>(), 64, 64);
+
+        final List<Block> bestLine = getRandomChain(Genesis.Companion.getInstance().getHash(), 1, 30);
+        BigInteger td = ZERO;
+        for (final Block block : bestLine) {
+            td = td.add(block.getCumulativeDifficulty());
+            indexedBlockStore.saveBlock(block, td, true);
+        }
+        final List<Block> forkLine = getRandomChain(bestLine.get(9).getHash(), 11, 25);
+        for (final Block block : forkLine) {
+            td = indexedBlockStore.getTotalDifficultyForHash(block.getParentHash()).add(block.getCumulativeDifficulty());
+            indexedBlockStore.saveBlock(block, td, false);
+        }
+
+        for (int i = 1; i <= 30; i++) {
+            assertEquals(wrap(bestLine.get(i - 1).getHash()), wrap(indexedBlockStore.getChainBlockByNumber(i).getHash()));
+        }
+        assertEquals(10, indexedBlockStore.getListHeadersEndWith(bestLine.get(29).getHash(), 10).size());
+
+        indexedBlockStore.reBranch(forkLine.get(forkLine.size() - 1));
+
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(wrap(bestLine.get(i - 1).getHash()), wrap(indexedBlockStore.getChainBlockByNumber(i).getHash()));
+        }
+        for (int i = 11; i <= 35; i++) {
+            assertEquals(wrap(forkLine.get(i - 11).getHash()), wrap(indexedBlockStore.getChainBlockByNumber(i).getHash()));
+        }
+        final List<BlockHeader> headers = indexedBlockStore.getListHeadersEndWith(forkLine.get(24).getHash(), 30);
+        assertEquals(30, headers.size());
+        assertEquals(wrap(bestLine.get(5).getHash()), wrap(headers.get(29).getHash()));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.core.Block;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.ethereum.crypto.HashUtil.INSTANCE;
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent readers and writer test for {@link IndexedBlockStore}
+ */
+public class IndexedBlockStoreConcurrentTest {
+
+    private static List<Block> getChain(byte[] parentHash, long number, final int length) {
+        final Random rnd = new Random();
+        final List<Block> ret = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            final Block block = new Block(parentHash, INSTANCE.randomHash(), null, null, new byte[] {(byte) (1 + rnd.nextInt(255))},
+                    number++, new byte[]{0}, 0, 0, null, null, null, null,
+                    INSTANCE.getEMPTY_TRIE_HASH(), INSTANCE.randomHash(), null, null);
+            parentHash = block.getHash();
+            ret.add(block);
+        }
+        return ret;
+    }
+
+    private static IndexedBlockStore createStore(final List<Block> chain) {
+        final IndexedBlockStore store = new IndexedBlockStore();
+        store.init(new HashMapDB<>(), new HashMapDB<>());
+        BigInteger td = BigInteger.ZERO;
+        for (final Block block : chain) {
+            td = td.add(block.getDifficultyBI());
+            store.saveBlock(block, td, true);
+        }
+        return store;
+    }
+
+    private static void saveFork(final IndexedBlockStore store, final List<Block> fork) {
+        for (final Block block : fork) {
+            final BigInteger td = store.getTotalDifficultyForHash(block.getParentHash()).add(block.getDifficultyBI());
+            store.saveBlock(block, td, false);
+        }
+    }
+
+    @Test
+    public void testReadersDuringReBranch() throws Exception {
+        final List<Block> chain = getChain(INSTANCE.getEMPTY_DATA_HASH(), 0, 100);
+        final IndexedBlockStore store = createStore(chain);
+        final List<Block> forkA = getChain(chain.get(49).getHash(), 50, 60);
+        final List<Block> forkB = getChain(chain.get(49).getHash(), 50, 70);
+        saveFork(store, forkA);
+        saveFork(store, forkB);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Thread reader = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        final Block best = store.getBestBlock();
+                        assertTrue(best.getNumber() >= 99);
+                        for (int i = 0; i < 50; i++) {
+                            assertArrayEquals(chain.get(i).getHash(), store.getBlockHashByNumber(i));
+                        }
+                        final int size = store.getListHashesStartWith(50, 70).size();
+                        assertTrue(size == 50 || size == 60 || size == 70);
+                        final Block head = store.getChainBlockByNumber(75);
+                        assertNotNull(head);
+                        assertEquals(75, head.getNumber());
+                        assertEquals(10, store.getListHeadersEndWith(head.getHash(), 10).size());
+                    }
+                } catch (final Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        final Block[] heads = {chain.get(99), forkA.get(59), forkB.get(69)};
+        for (int i = 0; i < 300 && error.get() == null; i++) {
+            store.reBranch(heads[i % heads.length]);
+        }
+        stop.set(true);
+        for (final Thread reader : readers) reader.join();
+        if (error.get() != null) throw new AssertionError(error.get());
+    }
+
+    @Ignore
+    @Test
+    public void perfTest() throws Exception {
+        final int readersCount = 8;
+        final List<Block> chain = getChain(INSTANCE.getEMPTY_DATA_HASH(), 0, 20_000);
+        final IndexedBlockStore store = createStore(chain.subList(0, 10_000));
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong reads = new AtomicLong();
+        final List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < readersCount; t++) {
+            final Thread reader = new Thread(() -> {
+                final Random rnd = new Random();
+                long cnt = 0;
+                while (!stop.get()) {
+                    final Block block = store.getChainBlockByNumber(rnd.nextInt(10_000));
+                    store.getListHeadersEndWith(block.getHash(), 16);
+                    store.isBlockExist(block.getParentHash());
+                    cnt++;
+                }
+                reads.addAndGet(cnt);
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        final long s = System.nanoTime();
+        BigInteger td = store.getTotalDifficulty();
+        for (final Block block : chain.subList(10_000, 20_000)) {
+            td = td.add(block.getDifficultyBI());
+            store.saveBlock(block, td, true);
+        }
+        final long writeTime = System.nanoTime() - s;
+        stop.set(true);
+        for (final Thread reader : readers) reader.join();
+        final long time = System.nanoTime() - s;
+
+        System.out.printf("Writer: 10000 blocks in %d ms, %d readers: %d reads/sec%n",
+                writeTime / 1_000_000, readersCount, reads.get() * 1_000_000_000L / time);
+    }
+}
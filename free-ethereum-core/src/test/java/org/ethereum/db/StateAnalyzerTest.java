@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.datasource.NoDeleteSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.trie.TrieWalker;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link StateAnalyzer}
+ */
+public class StateAnalyzerTest {
+
+    @Test
+    public void testStats() {
+        final Source<byte[], byte[]> stateDS = new NoDeleteSource<>(new HashMapDB<byte[]>());
+        final RepositoryRoot repo = new RepositoryRoot(stateDS, null);
+        int slots = 0;
+        for (int i = 0; i < 2000; i++) {
+            final byte[] addr = new DataWord(i).getLast20Bytes();
+            repo.addBalance(addr, BigInteger.ONE);
+            if (i % 10 == 0) {
+                repo.saveCode(addr, new byte[i / 10 + 1]);
+                for (int j = 0; j < i / 10; j++) {
+                    repo.addStorageRow(addr, new DataWord(j), new DataWord(j + 1));
+                    slots++;
+                }
+            }
+        }
+        repo.commit();
+
+        final StateAnalyzer analyzer = new StateAnalyzer(stateDS, 4, 5);
+        final String report = analyzer.analyze(repo.getRoot());
+
+        final long[] stateNodes = new long[1];
+        new TrieWalker(stateDS).walk(repo.getRoot(), new TrieWalker.Visitor() {
+            @Override
+            public boolean onNode(final byte[] hash, final byte[] rlp, final int depth) {
+                stateNodes[0]++;
+                return true;
+            }
+
+            @Override
+            public boolean onValue(final byte[] key, final byte[] value) {
+                return true;
+            }
+        });
+
+        assertEquals(2000, analyzer.getAccounts());
+        assertEquals(200, analyzer.getContracts());
+        assertEquals(2000, analyzer.getStateStats().getValues());
+        assertEquals(stateNodes[0], analyzer.getStateStats().getNodes());
+        assertEquals(analyzer.getStateStats().getNodes(), analyzer.getStateStats().getNodes("branch") +
+                analyzer.getStateStats().getNodes("extension") + analyzer.getStateStats().getNodes("leaf"));
+        assertEquals(slots, analyzer.getStorageStats().getValues());
+        assertTrue(report.contains("Largest contract storages"));
+    }
+}
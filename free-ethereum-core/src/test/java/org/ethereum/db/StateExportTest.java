@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockHeader;
+import org.ethereum.datasource.*;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.datasource.leveldb.LevelDbDataSource;
+import org.ethereum.util.FileUtil;
+import org.ethereum.vm.DataWord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.ethereum.crypto.HashUtil.INSTANCE;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link StateExporter} and {@link StateImporter}
+ */
+public class StateExportTest {
+
+    private File file;
+    private final HashMapDB<byte[]> stateDb = new HashMapDB<>();
+    private final Source<byte[], byte[]> stateDS = new NoDeleteSource<>(stateDb);
+    private final IndexedBlockStore blockStore = new IndexedBlockStore();
+    private List<Block> chain;
+    private byte[] root;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("state", ".export");
+        final RepositoryRoot repo = new RepositoryRoot(stateDS, null);
+        for (int i = 0; i < 2000; i++) {
+            final byte[] addr = new DataWord(i).getLast20Bytes();
+            repo.addBalance(addr, BigInteger.valueOf(i + 1));
+            if (i % 10 == 0) {
+                // the codes and the storages are shared by several contracts
+                repo.saveCode(addr, new byte[i % 30 + 1]);
+                for (int j = 0; j < i % 50; j++) {
+                    repo.addStorageRow(addr, new DataWord(j), new DataWord(j + 1));
+                }
+            }
+        }
+        repo.commit();
+        root = repo.getRoot();
+
+        blockStore.init(new HashMapDB<>(), new HashMapDB<>());
+        chain = getChain(600, root);
+        BigInteger td = BigInteger.ZERO;
+        for (final Block block : chain) {
+            td = td.add(block.getDifficultyBI());
+            blockStore.saveBlock(block, td, true);
+        }
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+    }
+
+    @Test
+    public void testExportImport() {
+        final Block best = chain.get(chain.size() - 1);
+        new StateExporter(stateDS, blockStore, 4).export(best, file, 100);
+
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final CountingBytesSource imported = new CountingBytesSource(db);
+        final IndexedBlockStore importedBlocks = new IndexedBlockStore();
+        importedBlocks.init(new HashMapDB<>(), new HashMapDB<>());
+        final DataSourceArray<BlockHeader> headers = new DataSourceArray<>(
+                new ObjectDataSource<>(new HashMapDB<>(), Serializers.INSTANCE.getBlockHeaderSerializer(), 0));
+
+        final Block block = new StateImporter(imported, importedBlocks, headers, 4).importFile(file, chain.get(0).getHash());
+
+        assertArrayEquals(best.getHash(), block.getHash());
+        assertArrayEquals(best.getHash(), importedBlocks.getBestBlock().getHash());
+        assertEquals(blockStore.getTotalDifficultyForHash(best.getHash()), importedBlocks.getTotalDifficultyForHash(best.getHash()));
+        assertArrayEquals(chain.get(0).getHash(), importedBlocks.getChainBlockByNumber(0).getHash());
+        assertArrayEquals(chain.get(500).getHash(), importedBlocks.getChainBlockByNumber(500).getHash());
+        assertNull(importedBlocks.getChainBlockByNumber(499));
+        assertEquals(600, headers.size());
+        for (int i = 0; i < 600; i += 7) {
+            assertArrayEquals(chain.get(i).getHash(), headers.get(i).getHash());
+        }
+
+        final RepositoryRoot repo = new RepositoryRoot(imported, root);
+        for (int i = 0; i < 2000; i++) {
+            final byte[] addr = new DataWord(i).getLast20Bytes();
+            assertEquals(BigInteger.valueOf(i + 1), repo.getBalance(addr));
+            if (i % 10 == 0) {
+                assertEquals(i % 30 + 1, repo.getCode(addr).length);
+                for (int j = 0; j < i % 50; j++) {
+                    assertEquals(new DataWord(j + 1), repo.getStorageValue(addr, new DataWord(j)));
+                }
+            }
+        }
+        new StateExporter(imported, importedBlocks, 2).verify(root);
+
+        // only the reachable entries are exported
+        assertEquals(stateDb.keys().size(), db.keys().size());
+    }
+
+    @Test
+    public void testCorrupted() throws Exception {
+        new StateExporter(stateDS, blockStore, 2).export(chain.get(chain.size() - 1), file, 10);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(100);
+            final int b = raf.read();
+            raf.seek(100);
+            raf.write(b ^ 0xFF);
+        }
+        final IndexedBlockStore importedBlocks = new IndexedBlockStore();
+        importedBlocks.init(new HashMapDB<>(), new HashMapDB<>());
+        try {
+            new StateImporter(new CountingBytesSource(new HashMapDB<>()), importedBlocks, null, 2).importFile(file, null);
+            fail();
+        } catch (final RuntimeException e) {
+            assertNull(importedBlocks.getBestBlock());
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testWrongGenesis() {
+        new StateExporter(stateDS, blockStore, 2).export(chain.get(chain.size() - 1), file, 10);
+        final IndexedBlockStore importedBlocks = new IndexedBlockStore();
+        importedBlocks.init(new HashMapDB<>(), new HashMapDB<>());
+        new StateImporter(new CountingBytesSource(new HashMapDB<>()), importedBlocks, null, 2)
+                .importFile(file, INSTANCE.randomHash());
+    }
+
+    private static List<Block> getChain(final int length, final byte[] stateRoot) {
+        final Random rnd = new Random(1);
+        final List<Block> ret = new ArrayList<>();
+        byte[] parentHash = INSTANCE.getEMPTY_DATA_HASH();
+        for (int i = 0; i < length; i++) {
+            final Block block = new Block(parentHash, INSTANCE.randomHash(), null, null, new byte[] {(byte) (1 + rnd.nextInt(255))},
+                    i, new byte[]{0}, 0, 0, null, null, null, null,
+                    INSTANCE.getEMPTY_TRIE_HASH(), i == length - 1 ? stateRoot : INSTANCE.randomHash(), null, null);
+            parentHash = block.getHash();
+            ret.add(block);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testExportOfflineCompressed() throws Exception {
+        final Path dir = Files.createTempDirectory("export");
+        final SystemProperties config = new SystemProperties();
+        config.setDataBaseDir(dir.toString());
+        config.overrideParams("database.stores.default.valueCompression", "true",
+                "database.stores.default.valueCompressionMinSize", "64");
+        try {
+            final LevelDbDataSource db = new LevelDbDataSource(config);
+            db.setName("blockchain");
+            db.init();
+            final Source<byte[], byte[]> state = new CountingBytesSource(
+                    CompressionSerializer.storeSource(config, db, "state", true));
+            for (final byte[] key : stateDb.keys()) state.put(key, stateDb.get(key));
+            final IndexedBlockStore dbBlocks = new IndexedBlockStore();
+            dbBlocks.init(CompressionSerializer.storeSource(config, db, "index", true),
+                    CompressionSerializer.storeSource(config, db, "block", true));
+            BigInteger td = BigInteger.ZERO;
+            for (final Block block : chain) {
+                td = td.add(block.getDifficultyBI());
+                dbBlocks.saveBlock(block, td, true);
+            }
+            db.close();
+
+            StateExporter.exportOffline(config, file, -1, 10);
+            final HashMapDB<byte[]> imported = new HashMapDB<>();
+            final IndexedBlockStore importedBlocks = new IndexedBlockStore();
+            importedBlocks.init(new HashMapDB<>(), new HashMapDB<>());
+            final Block block = new StateImporter(new CountingBytesSource(imported), importedBlocks, null, 2)
+                    .importFile(file, chain.get(0).getHash());
+            assertArrayEquals(chain.get(chain.size() - 1).getHash(), block.getHash());
+            new StateExporter(new CountingBytesSource(imported), importedBlocks, 2).verify(root);
+
+            // the stores written with the compression can't be read without it
+            final SystemProperties uncompressed = new SystemProperties();
+            uncompressed.setDataBaseDir(dir.toString());
+            try {
+                StateExporter.exportOffline(uncompressed, file, -1, 10);
+                fail();
+            } catch (final RuntimeException e) {
+                assertTrue(e.getMessage().contains("valueCompression"));
+            }
+        } finally {
+            FileUtil.recursiveDelete(dir.toString());
+        }
+    }
+}
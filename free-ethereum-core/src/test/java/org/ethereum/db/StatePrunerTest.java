@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.AsyncWriteCache;
+import org.ethereum.datasource.XorDataSource;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link StatePruner}
+ */
+public class StatePrunerTest {
+
+    private static byte[] addr(final int i) {
+        return new DataWord(i).getLast20Bytes();
+    }
+
+    private static StateSource stateSource(final HashMapDB<byte[]> db) {
+        return new StateSource(new XorDataSource<>(db, HashUtil.INSTANCE.sha3("state".getBytes())), false);
+    }
+
+    @Test
+    public void testMarkAndCopy() throws Exception {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final StateSource stateSource = stateSource(db);
+        final RepositoryRoot repo = new RepositoryRoot(stateSource, null);
+
+        byte[] oldRoot = null;
+        for (int block = 0; block < 10; block++) {
+            for (int i = 0; i < 30; i++) {
+                repo.addBalance(addr(i), BigInteger.ONE);
+                repo.addStorageRow(addr(i), new DataWord(block % 4), new DataWord(block + 1));
+            }
+            repo.saveCode(addr(block), new byte[]{1, 2, (byte) block});
+            repo.commit();
+            if (block == 0) oldRoot = repo.getRoot();
+        }
+        final byte[] root = repo.getRoot();
+        final AsyncWriteCache<byte[], byte[]> writeCache = (AsyncWriteCache<byte[], byte[]>) stateSource.getWriteCache();
+        writeCache.flipStorage();
+        writeCache.flushAsync().get();
+
+        final byte[] otherKey = HashUtil.INSTANCE.sha3(new byte[]{42});
+        db.put(otherKey, new byte[]{42});
+
+        final StatePruner pruner = new StatePruner(db, new DiskHashSet(new HashMapDB<>(), 16));
+        final long marked = pruner.mark(Collections.singletonList(root));
+        assertTrue(marked > 0);
+
+        final HashMapDB<byte[]> dstDb = new HashMapDB<>();
+        final long dropped = pruner.copy(dstDb);
+        assertTrue(dropped > 0);
+        assertEquals(db.keys().size() - dropped, dstDb.keys().size());
+        assertArrayEquals(new byte[]{42}, dstDb.get(otherKey));
+
+        final RepositoryRoot origRepo = new RepositoryRoot(stateSource(db), root);
+        final RepositoryRoot prunedRepo = new RepositoryRoot(stateSource(dstDb), root);
+        for (int i = 0; i < 30; i++) {
+            assertEquals(origRepo.getBalance(addr(i)), prunedRepo.getBalance(addr(i)));
+            assertArrayEquals(origRepo.getCode(addr(i)), prunedRepo.getCode(addr(i)));
+            for (int j = 0; j < 4; j++) {
+                assertEquals(origRepo.getStorageValue(addr(i), new DataWord(j)),
+                        prunedRepo.getStorageValue(addr(i), new DataWord(j)));
+            }
+        }
+
+        // the old state is pruned
+        assertNotNull(stateSource(db).get(oldRoot));
+        assertNull(stateSource(dstDb).get(oldRoot));
+    }
+}
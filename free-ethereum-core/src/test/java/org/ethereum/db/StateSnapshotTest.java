@@ -0,0 +1,167 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.AccountState;
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.AbstractCachedSource;
+import org.ethereum.datasource.NoDeleteSource;
+import org.ethereum.datasource.Source;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.ethereum.vm.DataWord;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link StateSnapshot}
+ */
+public class StateSnapshotTest {
+
+    private static byte[] addr(final int i) {
+        return new DataWord(i).getLast20Bytes();
+    }
+
+    private static byte[] addrHash(final int i) {
+        return HashUtil.INSTANCE.sha3(addr(i));
+    }
+
+    private static void fill(final RepositoryRoot repo, final int block) {
+        for (int i = 0; i < 20; i++) {
+            repo.addBalance(addr(i), BigInteger.valueOf(block + 1));
+            repo.addStorageRow(addr(i), new DataWord(block % 3), new DataWord(block * 100 + i + 1));
+        }
+        repo.commit();
+    }
+
+    private static void assertSameState(final Source<byte[], byte[]> stateDS, final RepositoryRoot repo) {
+        final RepositoryRoot trieRepo = new RepositoryRoot(stateDS, repo.getRoot());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(trieRepo.getBalance(addr(i)), repo.getBalance(addr(i)));
+            assertEquals(trieRepo.isExist(addr(i)), repo.isExist(addr(i)));
+            for (int j = 0; j < 3; j++) {
+                assertEquals(trieRepo.getStorageValue(addr(i), new DataWord(j)),
+                        repo.getStorageValue(addr(i), new DataWord(j)));
+            }
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        // the entries of the dropped epochs are never removed from the DB
+        assertTrue(new SystemProperties().databaseSnapshotDepth() < 0);
+        final StateSnapshot snapshot = new StateSnapshot(new HashMapDB<>(), null, -1);
+        assertFalse(snapshot.isEnabled());
+        assertNull(snapshot.getAccount(HashUtil.INSTANCE.getEMPTY_TRIE_HASH(), HashUtil.INSTANCE.sha3(new byte[]{1})));
+    }
+
+    @Test
+    public void testDiffLayers() {
+        final Source<byte[], byte[]> stateDS = new NoDeleteSource<>(new HashMapDB<byte[]>());
+        final StateSnapshot snapshot = new StateSnapshot(stateDS, new HashMapDB<>(), 4);
+        final RepositoryRoot repo = new RepositoryRoot(stateDS, snapshot, null);
+
+        final byte[][] roots = new byte[10][];
+        for (int i = 0; i < 10; i++) {
+            fill(repo, i);
+            roots[i] = repo.getRoot();
+            assertSameState(stateDS, new RepositoryRoot(stateDS, snapshot, roots[i]));
+        }
+
+        // the latest roots are covered by the snapshot
+        for (int i = 5; i < 10; i++) {
+            final AbstractCachedSource.Entry<byte[]> entry = snapshot.getAccount(roots[i], addrHash(1));
+            assertNotNull(entry);
+            assertEquals(BigInteger.valueOf((i + 1) * (i + 2) / 2),
+                    new AccountState(entry.value()).getBalance());
+            assertNotNull(snapshot.getStorage(roots[i], addrHash(1), HashUtil.INSTANCE.sha3(new DataWord(0).getData())));
+            assertNull(snapshot.getAccount(roots[i], addrHash(22)).value());
+        }
+        // the older were flattened to the disk layer
+        assertNull(snapshot.getAccount(roots[2], addrHash(1)));
+    }
+
+    @Test
+    public void testDeleteAccount() {
+        final Source<byte[], byte[]> stateDS = new NoDeleteSource<>(new HashMapDB<byte[]>());
+        final StateSnapshot snapshot = new StateSnapshot(stateDS, new HashMapDB<>(), 2);
+        final RepositoryRoot repo = new RepositoryRoot(stateDS, snapshot, null);
+
+        fill(repo, 0);
+        fill(repo, 1);
+        repo.delete(addr(3));
+        repo.commit();
+        assertSameState(stateDS, repo);
+        assertNull(new RepositoryRoot(stateDS, snapshot, repo.getRoot()).getStorageValue(addr(3), new DataWord(1)));
+
+        // recreated with storage
+        repo.addBalance(addr(4), BigInteger.TEN);
+        repo.delete(addr(4));
+        repo.addStorageRow(addr(4), new DataWord(2), new DataWord(777));
+        repo.commit();
+        assertSameState(stateDS, repo);
+
+        for (int i = 2; i < 6; i++) {
+            fill(repo, i);
+            assertSameState(stateDS, repo);
+        }
+    }
+
+    @Test
+    public void testGeneration() throws InterruptedException {
+        final Source<byte[], byte[]> stateDS = new NoDeleteSource<>(new HashMapDB<byte[]>());
+        final RepositoryRoot plainRepo = new RepositoryRoot(stateDS, null);
+        for (int i = 0; i < 5; i++) {
+            fill(plainRepo, i);
+        }
+        final byte[] root = plainRepo.getRoot();
+
+        final HashMapDB<byte[]> snapshotDb = new HashMapDB<>();
+        final StateSnapshot snapshot = new StateSnapshot(stateDS, snapshotDb, 4);
+        final RepositoryRoot repo = new RepositoryRoot(stateDS, snapshot, root);
+        // the root is unknown to the snapshot, it starts generation
+        fill(repo, 5);
+
+        for (int i = 0; i < 100 && snapshot.getAccount(root, addrHash(19)) == null; i++) {
+            Thread.sleep(50);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(snapshot.getAccount(root, addrHash(i)));
+            assertNotNull(snapshot.getStorage(repo.getRoot(), addrHash(i), HashUtil.INSTANCE.sha3(new DataWord(1).getData())).value());
+        }
+        assertSameState(stateDS, repo);
+
+        // reopening after clean close keeps the disk layer
+        snapshot.close(repo.getRoot());
+        final StateSnapshot reopened = new StateSnapshot(stateDS, snapshotDb, 4);
+        assertNotNull(reopened.getAccount(repo.getRoot(), addrHash(7)));
+        assertNull(reopened.getAccount(root, addrHash(7)));
+    }
+}
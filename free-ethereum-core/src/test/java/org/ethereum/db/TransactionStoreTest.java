@@ -30,6 +30,7 @@ import org.ethereum.config.SystemProperties;
 import org.ethereum.core.Block;
 import org.ethereum.core.Transaction;
 import org.ethereum.core.TransactionInfo;
+import org.ethereum.core.TransactionReceipt;
 import org.ethereum.datasource.inmem.HashMapDB;
 import org.ethereum.util.blockchain.SolidityContract;
 import org.ethereum.util.blockchain.StandaloneBlockchain;
@@ -40,6 +41,7 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.List;
 
 public class TransactionStoreTest {
 
@@ -119,6 +121,47 @@ public class TransactionStoreTest {
         Assert.assertTrue(Arrays.equals(txInfo.getBlockHash(), b2.getHash()));
     }
 
+    @Test
+    public void compactIndexTest() {
+        // receipts are stored once per block, transactions refer them by location
+        final HashMapDB<byte[]> txDb = new HashMapDB<>();
+        final TransactionStore transactionStore = new TransactionStore(txDb);
+        final StandaloneBlockchain bc = new StandaloneBlockchain();
+        bc.getBlockchain().withTransactionStore(transactionStore);
+
+        final byte[] receiver = new byte[20];
+        final Block b1 = bc.createBlock();
+        bc.sendEther(receiver, BigInteger.valueOf(1000));
+        bc.sendEther(receiver, BigInteger.valueOf(2000));
+        final Block b2 = bc.createBlock();
+        final Block b2_ = bc.createForkBlock(b1);
+        bc.sendEther(receiver, BigInteger.valueOf(1000));
+        final Block b3_ = bc.createForkBlock(b2_);
+        final Block b4_ = bc.createForkBlock(b3_);
+        final Transaction tx = b2.getTransactionsList().get(0);
+        Assert.assertArrayEquals(tx.getHash(), b3_.getTransactionsList().get(0).getHash());
+
+        final List<TransactionReceipt> receipts = transactionStore.getReceipts(b2.getNumber(), b2.getHash());
+        Assert.assertEquals(2, receipts.size());
+        Assert.assertNull(transactionStore.getReceipts(b2_.getNumber(), b2_.getHash()));
+
+        final List<TransactionInfo> infos = transactionStore.get(tx.getHash());
+        Assert.assertEquals(2, infos.size());
+        Assert.assertArrayEquals(receipts.get(0).getEncoded(), transactionStore.get(tx.getHash(), b2.getHash()).getReceipt().getEncoded());
+        final TransactionInfo mainInfo = bc.getBlockchain().getTransactionInfo(tx.getHash());
+        Assert.assertArrayEquals(b3_.getHash(), mainInfo.getBlockHash());
+        Assert.assertArrayEquals(tx.getHash(), mainInfo.getReceipt().getTransaction().getHash());
+
+        final TransactionInfo second = transactionStore.get(b2.getTransactionsList().get(1).getHash(), b2.getHash());
+        Assert.assertEquals(1, second.getIndex());
+        Assert.assertArrayEquals(receipts.get(1).getEncoded(), second.getReceipt().getEncoded());
+
+        // the receipts of the dropped block are no more resolved
+        transactionStore.blockDropped(b2.getNumber(), b2.getHash());
+        Assert.assertEquals(1, transactionStore.get(tx.getHash()).size());
+        Assert.assertNull(transactionStore.get(tx.getHash(), b2.getHash()));
+    }
+
     @Test
     public void backwardCompatibleDbTest() {
         // check that we can read previously saved entries (saved with legacy code)
@@ -139,4 +182,29 @@ public class TransactionStoreTest {
         final TransactionInfo info1 = transactionStore1.get(tx.getHash()).get(0);
         Assert.assertArrayEquals(info1.getReceipt().getPostTxState(), info.getReceipt().getPostTxState());
     }
+
+    @Test
+    public void legacyEntryReimportTest() {
+        final HashMapDB<byte[]> txDb = new HashMapDB<>();
+        final TransactionStore transactionStore = new TransactionStore(txDb);
+        final StandaloneBlockchain bc = new StandaloneBlockchain();
+        bc.getBlockchain().withTransactionStore(transactionStore);
+
+        bc.sendEther(new byte[20], BigInteger.valueOf(1000));
+        bc.sendEther(new byte[20], BigInteger.valueOf(2000));
+        final Block b1 = bc.createBlock();
+        final Transaction tx1 = b1.getTransactionsList().get(0);
+        final Transaction tx2 = b1.getTransactionsList().get(1);
+        final List<TransactionReceipt> receipts = transactionStore.getReceipts(b1.getNumber(), b1.getHash());
+
+        // the first tx of the block already has the legacy entry, e.g. the block is imported again
+        final HashMapDB<byte[]> txDb1 = new HashMapDB<>();
+        txDb1.put(tx1.getHash(), transactionStore.get(tx1.getHash()).get(0).getEncoded());
+        final TransactionStore transactionStore1 = new TransactionStore(txDb1);
+        transactionStore1.put(b1, receipts);
+        Assert.assertEquals(1, transactionStore1.get(tx1.getHash()).size());
+        final TransactionInfo info2 = transactionStore1.get(tx2.getHash(), b1.getHash());
+        Assert.assertNotNull(info2);
+        Assert.assertEquals(1, info2.getIndex());
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.db.freezer;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.core.BlockchainImpl;
+import org.ethereum.core.Transaction;
+import org.ethereum.core.TransactionInfo;
+import org.ethereum.core.TransactionReceipt;
+import org.ethereum.crypto.ECKey;
+import org.ethereum.db.IndexedBlockStore;
+import org.ethereum.db.TransactionStore;
+import org.ethereum.util.FileUtil;
+import org.ethereum.util.blockchain.StandaloneBlockchain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link FreezerTable}, {@link BlockFreezer} and {@link FreezerManager}
+ */
+public class BlockFreezerTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("freezer").toFile();
+        // StandaloneBlockchain takes the prune depth from the default config which other tests override,
+        // the fork below needs the state of the 7 blocks deep block
+        SystemProperties.resetToDefault();
+        SystemProperties.getDefault().overrideParams(
+                "database.prune.enabled", "true",
+                "database.prune.maxDepth", "16");
+    }
+
+    @After
+    public void tearDown() {
+        SystemProperties.resetToDefault();
+        FileUtil.recursiveDelete(dir.toString());
+    }
+
+    private byte[] item(final int i) {
+        final byte[] ret = new byte[i % 100 + 1];
+        System.arraycopy(intToBytes(i), 0, ret, 0, Math.min(4, ret.length));
+        ret[ret.length - 1] = (byte) i;
+        return ret;
+    }
+
+    @Test
+    public void testTable() {
+        FreezerTable table = new FreezerTable(dir, "test", 1000);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, table.append(item(i)));
+        }
+        assertEquals(500, table.size());
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(item(i), table.get(i));
+        }
+        assertNull(table.get(500));
+        table.sync();
+
+        // not synced items are lost on crash
+        for (int i = 500; i < 600; i++) table.append(item(i));
+        final FreezerTable crashed = new FreezerTable(dir, "test", 1000);
+        assertEquals(500, crashed.size());
+        crashed.close();
+        table.close();
+
+        table = new FreezerTable(dir, "test", 1000);
+        assertEquals(600, table.size());
+        for (int i = 0; i < 600; i++) {
+            assertArrayEquals(item(i), table.get(i));
+        }
+        table.truncate(550);
+        assertEquals(550, table.size());
+        assertEquals(550, table.append(item(1000)));
+        assertArrayEquals(item(1000), table.get(550));
+        assertArrayEquals(item(549), table.get(549));
+        table.close();
+    }
+
+    @Test
+    public void testFreezeChain() {
+        final StandaloneBlockchain sb = new StandaloneBlockchain();
+        final List<Block> chain = new ArrayList<>();
+        final byte[] receiver = new ECKey().getAddress();
+        for (int i = 0; i < 10; i++) {
+            sb.sendEther(receiver, BigInteger.valueOf(i + 1));
+            sb.sendEther(receiver, BigInteger.valueOf(100 + i));
+            chain.add(sb.createBlock());
+        }
+        final Block fork = sb.createForkBlock(chain.get(2));
+
+        final BlockchainImpl blockchain = sb.getBlockchain();
+        final IndexedBlockStore blockStore = (IndexedBlockStore) blockchain.getBlockStore();
+        final TransactionStore txStore = blockchain.getTransactionStore();
+        final TransactionInfo txInfo = blockchain.getTransactionInfo(chain.get(4).getTransactionsList().get(1).getHash());
+
+        BlockFreezer freezer = new BlockFreezer(dir, 64 * 1024);
+        blockStore.setFreezer(freezer);
+        txStore.setFreezer(freezer);
+        final FreezerManager manager = new FreezerManager(blockStore, txStore, freezer, 3);
+        manager.freeze(chain.size() + 1 - 3);
+
+        assertEquals(8, freezer.getCount());
+        for (final Block block : chain.subList(0, 7)) {
+            assertTrue(freezer.isFrozen(block.getNumber()));
+            assertArrayEquals(block.getEncoded(), blockStore.getBlockByHash(block.getHash()).getEncoded());
+            assertArrayEquals(block.getEncoded(), blockStore.getChainBlockByNumber(block.getNumber()).getEncoded());
+            assertArrayEquals(block.getHash(), blockStore.getBlockHashByNumber(block.getNumber()));
+            assertEquals(1, blockStore.getBlocksByNumber(block.getNumber()).size());
+
+            final List<TransactionReceipt> receipts = freezer.getReceipts(block.getNumber());
+            assertEquals(2, receipts.size());
+            for (int i = 0; i < 2; i++) {
+                final Transaction tx = block.getTransactionsList().get(i);
+                final List<TransactionInfo> infos = txStore.get(tx.getHash());
+                assertEquals(1, infos.size());
+                assertArrayEquals(block.getHash(), infos.get(0).getBlockHash());
+                assertEquals(i, infos.get(0).getIndex());
+                assertArrayEquals(receipts.get(i).getEncoded(), infos.get(0).getReceipt().getEncoded());
+            }
+        }
+        // the fork block of the frozen level is dropped
+        assertNull(blockStore.getBlockByHash(fork.getHash()));
+        assertFalse(freezer.isFrozen(chain.get(7).getNumber()));
+        assertArrayEquals(chain.get(9).getEncoded(), blockStore.getChainBlockByNumber(10).getEncoded());
+
+        final TransactionInfo frozenInfo = blockchain.getTransactionInfo(chain.get(4).getTransactionsList().get(1).getHash());
+        assertArrayEquals(txInfo.getReceipt().getEncoded(), frozenInfo.getReceipt().getEncoded());
+        assertArrayEquals(txInfo.getBlockHash(), frozenInfo.getBlockHash());
+
+        final List<List<TransactionReceipt>> receipts = blockchain.getListOfReceiptsByHashes(
+                asHashes(chain.get(3), chain.get(8)));
+        assertEquals(2, receipts.size());
+        assertEquals(2, receipts.get(0).size());
+        assertEquals(2, receipts.get(1).size());
+
+        manager.close();
+        freezer = new BlockFreezer(dir, 64 * 1024);
+        assertEquals(8, freezer.getCount());
+        assertArrayEquals(chain.get(6).getEncoded(), freezer.getBlock(7).getEncoded());
+        freezer.close();
+    }
+
+    @Test
+    public void testMissingReceipts() {
+        final StandaloneBlockchain sb = new StandaloneBlockchain();
+        final List<Block> chain = new ArrayList<>();
+        final byte[] receiver = new ECKey().getAddress();
+        for (int i = 0; i < 6; i++) {
+            sb.sendEther(receiver, BigInteger.valueOf(i + 1));
+            chain.add(sb.createBlock());
+        }
+        final BlockchainImpl blockchain = sb.getBlockchain();
+        final IndexedBlockStore blockStore = (IndexedBlockStore) blockchain.getBlockStore();
+        final TransactionStore txStore = blockchain.getTransactionStore();
+        final Block noReceipts = chain.get(2);
+        txStore.blockDropped(noReceipts.getNumber(), noReceipts.getHash());
+
+        final BlockFreezer freezer = new BlockFreezer(dir, 64 * 1024);
+        blockStore.setFreezer(freezer);
+        txStore.setFreezer(freezer);
+        final FreezerManager manager = new FreezerManager(blockStore, txStore, freezer, 1);
+        manager.freeze(chain.size());
+
+        // the genesis and the blocks before the one without receipts
+        assertEquals(noReceipts.getNumber(), freezer.getCount());
+        assertFalse(freezer.isFrozen(noReceipts.getNumber()));
+        assertEquals(1, freezer.getReceipts(chain.get(1).getNumber()).size());
+        assertArrayEquals(noReceipts.getEncoded(), blockStore.getChainBlockByNumber(noReceipts.getNumber()).getEncoded());
+        manager.close();
+    }
+
+    private List<byte[]> asHashes(final Block... blocks) {
+        final List<byte[]> ret = new ArrayList<>();
+        for (final Block block : blocks) ret.add(block.getHash());
+        return ret;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.manager;
+
+import org.ethereum.config.SystemProperties;
+import org.ethereum.core.Block;
+import org.ethereum.db.DbFlushManager;
+import org.ethereum.util.blockchain.StandaloneBlockchain;
+import org.ethereum.validator.BlockHeaderValidator;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link BlockLoader}
+ */
+public class BlockLoaderTest {
+
+    @Test
+    public void testExportImport() throws Exception {
+        final StandaloneBlockchain src = new StandaloneBlockchain();
+        final byte[] receiver = new byte[20];
+        for (int i = 0; i < 30; i++) {
+            receiver[0] = (byte) i;
+            src.sendEther(receiver, BigInteger.valueOf(i + 1));
+            src.createBlock();
+        }
+        final Block best = src.getBlockchain().getBestBlock();
+
+        final File file = File.createTempFile("chain", ".rlp");
+        try {
+            final DbFlushManager dbFlushManager = new DbFlushManager(SystemProperties.getDefault(), Collections.emptySet(), null);
+            final BlockHeaderValidator headerValidator = new BlockHeaderValidator();
+            final BlockLoader exporter = new BlockLoader(SystemProperties.getDefault(), dbFlushManager, headerValidator,
+                    src.getBlockchain());
+            assertEquals(31, exporter.exportBlocks(file, 0, Long.MAX_VALUE));
+
+            final StandaloneBlockchain dst = new StandaloneBlockchain();
+            final BlockLoader importer = new BlockLoader(SystemProperties.getDefault(), dbFlushManager, headerValidator,
+                    dst.getBlockchain());
+            assertTrue(importer.importBlocks(file));
+            assertArrayEquals(best.getHash(), dst.getBlockchain().getBestBlock().getHash());
+            assertArrayEquals(best.getStateRoot(), dst.getBlockchain().getRepository().getRoot());
+
+            // partial export of the known blocks
+            assertEquals(10, exporter.exportBlocks(file, 21, 40));
+            assertTrue(importer.importBlocks(file));
+            assertArrayEquals(best.getHash(), dst.getBlockchain().getBestBlock().getHash());
+        } finally {
+            file.delete();
+        }
+    }
+}
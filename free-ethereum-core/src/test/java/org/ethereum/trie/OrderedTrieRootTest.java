@@ -0,0 +1,81 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.trie;
+
+import org.ethereum.util.RLP;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Test for {@link OrderedTrieRoot}
+ */
+public class OrderedTrieRootTest {
+
+    private static byte[] trieRoot(final List<byte[]> values) {
+        final TrieImpl trie = new TrieImpl();
+        for (int i = 0; i < values.size(); i++) {
+            trie.put(RLP.encodeInt(i), values.get(i));
+        }
+        return trie.getRootHash();
+    }
+
+    private static void check(final List<byte[]> values) {
+        assertArrayEquals("Count: " + values.size(), trieRoot(values), OrderedTrieRoot.calcRoot(values));
+    }
+
+    @Test
+    public void testAgainstTrieImpl() {
+        final Random rnd = new Random(1);
+        final List<byte[]> values = new ArrayList<>();
+        for (int cnt = 0; cnt <= 300; cnt++) {
+            check(values);
+            // mixing short values (embedded nodes) and long ones
+            final byte[] value = new byte[rnd.nextInt(3) == 0 ? 1 + rnd.nextInt(4) : 1 + rnd.nextInt(200)];
+            rnd.nextBytes(value);
+            values.add(value);
+        }
+    }
+
+    @Test
+    public void testLarge() {
+        final Random rnd = new Random(2);
+        final List<byte[]> values = new ArrayList<>();
+        for (int cnt = 0; cnt < 70000; cnt++) {
+            final byte[] value = new byte[1 + rnd.nextInt(100)];
+            rnd.nextBytes(value);
+            values.add(value);
+        }
+        check(values);
+        check(values.subList(0, 257));
+        check(values.subList(0, 65536));
+    }
+}
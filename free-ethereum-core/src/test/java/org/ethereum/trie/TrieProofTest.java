@@ -0,0 +1,171 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.trie;
+
+import org.ethereum.crypto.HashUtil;
+import org.ethereum.datasource.inmem.HashMapDB;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link TrieImpl#getProof(byte[])} and {@link TrieProof}
+ */
+public class TrieProofTest {
+
+    private static byte[] value(final int i, final int len) {
+        final byte[] ret = new byte[len];
+        new Random(i).nextBytes(ret);
+        return ret;
+    }
+
+    @Test
+    public void testPresentAndAbsentKeys() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final TrieImpl trie = new TrieImpl(db);
+        for (int i = 0; i < 1000; i++) {
+            // mix short values (embedded nodes) and long values
+            trie.put(intToBytes(i * 2), value(i, i % 3 == 0 ? 2 : 40));
+        }
+        final byte[] root = trie.getRootHash();
+
+        for (int i = 0; i < 1000; i++) {
+            final List<byte[]> proof = trie.getProof(intToBytes(i * 2));
+            assertFalse(proof.isEmpty());
+            assertArrayEquals(value(i, i % 3 == 0 ? 2 : 40), TrieProof.verify(root, intToBytes(i * 2), proof));
+
+            final List<byte[]> absentProof = trie.getProof(intToBytes(i * 2 + 1));
+            assertNull(TrieProof.verify(root, intToBytes(i * 2 + 1), absentProof));
+        }
+    }
+
+    @Test
+    public void testProofFromStorage() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final TrieImpl trie = new TrieImpl(db);
+        for (int i = 0; i < 100; i++) {
+            trie.put(intToBytes(i), value(i, 33));
+        }
+        trie.flush();
+        final byte[] root = trie.getRootHash();
+
+        // the fresh instance resolves all the nodes from the backing source
+        final TrieImpl trie1 = new TrieImpl(db, root);
+        for (int i = 0; i < 100; i++) {
+            final List<byte[]> proof = trie1.getProof(intToBytes(i));
+            assertArrayEquals(trie.getProof(intToBytes(i)).toArray(), proof.toArray());
+            assertArrayEquals(value(i, 33), TrieProof.verify(root, intToBytes(i), proof));
+        }
+    }
+
+    @Test
+    public void testProofAfterUpdate() {
+        final HashMapDB<byte[]> db = new HashMapDB<>();
+        final TrieImpl trie = new TrieImpl(db);
+        for (int i = 0; i < 100; i++) {
+            trie.put(intToBytes(i), value(i, 33));
+        }
+        trie.flush();
+
+        // the resolved nodes get modified and re-encoded
+        final TrieImpl trie1 = new TrieImpl(db, trie.getRootHash());
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(value(i, 33), trie1.get(intToBytes(i)));
+        }
+        trie1.put(intToBytes(5), value(1005, 40));
+        trie1.delete(intToBytes(6));
+        trie1.put(intToBytes(200), value(200, 2));
+        final byte[] root = trie1.getRootHash();
+
+        for (int i = 0; i < 100; i++) {
+            final byte[] expected = i == 5 ? value(1005, 40) : i == 6 ? null : value(i, 33);
+            assertArrayEquals(expected, TrieProof.verify(root, intToBytes(i), trie1.getProof(intToBytes(i))));
+        }
+        assertArrayEquals(value(200, 2), TrieProof.verify(root, intToBytes(200), trie1.getProof(intToBytes(200))));
+    }
+
+    @Test
+    public void testSecureTrie() {
+        final SecureTrie trie = new SecureTrie(new HashMapDB<byte[]>());
+        for (int i = 0; i < 100; i++) {
+            trie.put(intToBytes(i), value(i, 70));
+        }
+        final byte[] root = trie.getRootHash();
+        final List<byte[]> proof = trie.getProof(intToBytes(42));
+        assertArrayEquals(value(42, 70), TrieProof.verify(root, HashUtil.INSTANCE.sha3(intToBytes(42)), proof));
+    }
+
+    @Test
+    public void testEmptyTrie() {
+        final TrieImpl trie = new TrieImpl();
+        assertTrue(trie.getProof(intToBytes(1)).isEmpty());
+        assertNull(TrieProof.verify(trie.getRootHash(), intToBytes(1), trie.getProof(intToBytes(1))));
+    }
+
+    @Test
+    public void testInvalidProofs() {
+        final TrieImpl trie = new TrieImpl();
+        for (int i = 0; i < 100; i++) {
+            trie.put(intToBytes(i), value(i, 40));
+        }
+        final byte[] root = trie.getRootHash();
+        final List<byte[]> proof = trie.getProof(intToBytes(7));
+
+        final List<byte[]> truncated = new ArrayList<>(proof.subList(0, proof.size() - 1));
+        try {
+            TrieProof.verify(root, intToBytes(7), truncated);
+            fail("Incomplete proof accepted");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+
+        final List<byte[]> tampered = new ArrayList<>(proof);
+        final byte[] last = tampered.get(tampered.size() - 1).clone();
+        last[last.length - 1] ^= 1;
+        tampered.set(tampered.size() - 1, last);
+        try {
+            TrieProof.verify(root, intToBytes(7), tampered);
+            fail("Tampered proof accepted");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+
+        final List<byte[]> extended = new ArrayList<>(proof);
+        extended.add(proof.get(0));
+        try {
+            TrieProof.verify(root, intToBytes(7), extended);
+            fail("Proof with extra nodes accepted");
+        } catch (final RuntimeException e) {
+            // expected
+        }
+    }
+}
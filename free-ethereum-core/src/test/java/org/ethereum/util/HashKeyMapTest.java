@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package org.ethereum.util;
+
+import org.ethereum.crypto.HashUtil;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.ethereum.util.ByteUtil.intToBytes;
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link HashKeyMap}, {@link HashKeySet} and {@link ConcurrentHashKeyMap}
+ */
+public class HashKeyMapTest {
+
+    private byte[] key(final int i) {
+        // mostly hashes, some short and some zero padded keys
+        if (i % 17 == 0) return intToBytes(i);
+        if (i % 13 == 0) return ByteUtil.merge(new byte[28], intToBytes(i));
+        return HashUtil.INSTANCE.sha3(intToBytes(i));
+    }
+
+    private void assertSameContent(final Map<byte[], Integer> expected, final Map<byte[], Integer> actual) {
+        assertEquals(expected.size(), actual.size());
+        int count = 0;
+        for (final Map.Entry<byte[], Integer> entry : actual.entrySet()) {
+            assertEquals(expected.get(entry.getKey()), entry.getValue());
+            count++;
+        }
+        assertEquals(expected.size(), count);
+        for (final Map.Entry<byte[], Integer> entry : expected.entrySet()) {
+            assertTrue(actual.containsKey(entry.getKey()));
+            assertEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testRandomOps() {
+        final Random rnd = new Random(0);
+        final Map<byte[], Integer> expected = new ByteArrayMap<>();
+        final HashKeyMap<Integer> map = new HashKeyMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            final int k = rnd.nextInt(20_000);
+            if (rnd.nextInt(3) == 0) {
+                assertEquals(expected.remove(key(k)), map.remove(key(k)));
+            } else {
+                assertEquals(expected.put(key(k), i), map.put(key(k), i));
+            }
+            if (i % 50_000 == 0) assertSameContent(expected, map);
+        }
+        assertSameContent(expected, map);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(key(1)));
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void testNullValue() {
+        final HashKeyMap<Integer> map = new HashKeyMap<>();
+        map.put(key(1), null);
+        assertTrue(map.containsKey(key(1)));
+        assertNull(map.get(key(1)));
+        assertEquals(1, map.size());
+        assertNull(map.remove(key(1)));
+        assertFalse(map.containsKey(key(1)));
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        final Map<byte[], Integer> expected = new ByteArrayMap<>();
+        final HashKeyMap<Integer> map = new HashKeyMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            expected.put(key(i), i);
+            map.put(key(i), i);
+        }
+
+        final Iterator<Map.Entry<byte[], Integer>> it = map.entrySet().iterator();
+        int visited = 0;
+        while (it.hasNext()) {
+            final Map.Entry<byte[], Integer> entry = it.next();
+            visited++;
+            if (entry.getValue() % 3 == 0) {
+                it.remove();
+                expected.remove(entry.getKey());
+            }
+        }
+        assertEquals(10_000, visited);
+        assertSameContent(expected, map);
+    }
+
+    @Test
+    public void testSet() {
+        final HashKeySet set = new HashKeySet();
+        assertTrue(set.add(key(1)));
+        assertFalse(set.add(key(1)));
+        assertTrue(set.add(key(17)));
+        assertTrue(set.contains(key(1)));
+        assertTrue(set.contains(key(17)));
+        assertFalse(set.contains(key(2)));
+        assertEquals(2, set.size());
+        assertTrue(set.remove(key(1)));
+        assertFalse(set.contains(key(1)));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final ConcurrentHashKeyMap<Integer> map = new ConcurrentHashKeyMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = thread; i < 40_000; i += 4) {
+                    map.put(key(i), i);
+                    assertEquals(i, (int) map.get(key(i)));
+                    if (i % 2 == 0) map.remove(key(i));
+                }
+            }));
+        }
+        for (final Future<?> future : futures) future.get();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        assertEquals(20_000, map.size());
+        int count = 0;
+        for (final Map.Entry<byte[], Integer> entry : map.entrySet()) {
+            assertEquals(1, entry.getValue() % 2);
+            count++;
+        }
+        assertEquals(20_000, count);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2017 Alexander Orlov <alexander.orlov@loxal.net>. All rights reserved.
+ * Copyright (c) [2016] [ <ether.camp> ]
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.ethereum.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test for {@link RLPFileReader}
+ */
+public class RLPFileReaderTest {
+
+    @Test
+    public void testRead() throws IOException {
+        final Random rnd = new Random(1);
+        final List<byte[]> items = new ArrayList<>();
+        items.add(RLP.encodeElement(new byte[]{1}));
+        items.add(RLP.encodeElement(new byte[0]));
+        items.add(RLP.encodeElement(new byte[55]));
+        items.add(RLP.encodeElement(new byte[56]));
+        items.add(RLP.encodeList());
+        for (int i = 0; i < 200; i++) {
+            final byte[] data = new byte[rnd.nextInt(i % 10 == 0 ? 5000 : 100)];
+            rnd.nextBytes(data);
+            items.add(i % 2 == 0 ? RLP.encodeList(RLP.encodeElement(data), RLP.encodeInt(i)) : RLP.encodeElement(data));
+        }
+        // larger than the window
+        items.add(RLP.encodeList(RLP.encodeElement(new byte[70_000])));
+
+        final File file = write(items);
+        try {
+            for (final int window : new int[] {1000, 64 << 20}) {
+                try (RLPFileReader reader = new RLPFileReader(file, window)) {
+                    for (final byte[] item : items) {
+                        assertArrayEquals(item, reader.next());
+                    }
+                    assertNull(reader.next());
+                    assertEquals(file.length(), reader.getPosition());
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        final byte[] item = RLP.encodeList(RLP.encodeElement(new byte[1000]));
+        final File file = write(Arrays.asList(item, Arrays.copyOf(item, 500)));
+        try (RLPFileReader reader = new RLPFileReader(file)) {
+            assertArrayEquals(item, reader.next());
+            reader.next();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private File write(final List<byte[]> items) throws IOException {
+        final File file = File.createTempFile("rlp", ".dat");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (final byte[] item : items) {
+                out.write(item);
+            }
+        }
+        return file;
+    }
+}